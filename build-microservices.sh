@@ -1,4 +1,4 @@
-SHARED=(server-timings/pom.xml response-utils/pom.xml)
+SHARED=(server-timings/pom.xml response-utils/pom.xml group-dictionary/pom.xml jdbc-metrics/pom.xml)
 NEED_JVM=(credentials-store/pom.xml token-store/pom.xml)
 
 if [ "x$*" = "x" ]; then
@@ -1,4 +1,4 @@
-SHARED=(server-timings/pom.xml response-utils/pom.xml)
+SHARED=(server-timings/pom.xml response-utils/pom.xml group-dictionary/pom.xml jdbc-metrics/pom.xml)
 
 # "clean install" all shared modules (in parallel)
 for f in "${SHARED[@]}"; do
@@ -0,0 +1,410 @@
+package de.dopler.ms.credentials_store;
+
+import de.dopler.ms.credentials_store.domain.AuthData;
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.metrics.Metadata;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.eclipse.microprofile.metrics.MetricType;
+import org.eclipse.microprofile.metrics.MetricUnits;
+import org.eclipse.microprofile.metrics.Timer;
+import org.eclipse.microprofile.metrics.annotation.Gauge;
+import org.eclipse.microprofile.metrics.annotation.RegistryType;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * Read-through cache of the {@link AuthData} of up to {@code credentials-store.cache.max-size}
+ * usernames, so the logins of frequent users don't query the database.
+ * <p>
+ * Eviction follows W-TinyLFU: new entries enter a small LRU window (1% of the entries); an entry
+ * leaving the window is only admitted to the main segmented LRU if a count-min sketch of the
+ * recent access frequencies rates it higher than the main region's victim. So a burst of one-time
+ * logins cannot flush the frequently used entries, as it would flush a plain LRU.
+ * <p>
+ * Reads don't block: their access is recorded only if the policy lock is free. Changes of the
+ * credentials must {@link #invalidate(long)} synchronously after their commit; a load which read
+ * the database before an invalidation is not cached. The cache only knows the changes of this
+ * process, so it must be disabled via {@code credentials-store.cache.max-size=0} if other
+ * processes write to the same database.
+ */
+@ApplicationScoped
+public class AuthDataCache {
+
+    private final int maxSize;
+    private final int maxWindowSize;
+    private final int maxProtectedSize;
+
+    private final ConcurrentHashMap<String, Node> entries = new ConcurrentHashMap<>();
+    // the policy state below is guarded by the lock
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<Long, Node> entriesById = new HashMap<>();
+    private final AccessOrder window = new AccessOrder();
+    private final AccessOrder probation = new AccessOrder();
+    private final AccessOrder protectedEntries = new AccessOrder();
+    private final FrequencySketch sketch;
+    // only written under the lock
+    private volatile long invalidations;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final Timer loads;
+
+    @Inject
+    public AuthDataCache(
+            @ConfigProperty(name = "credentials-store.cache.max-size", defaultValue = "10000")
+                    int maxSize,
+            @RegistryType(type = MetricRegistry.Type.APPLICATION) MetricRegistry metricRegistry) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("credentials-store.cache.max-size must not be " +
+                    "negative");
+        }
+        this.maxSize = maxSize;
+        maxWindowSize = Math.max(1, maxSize / 100);
+        maxProtectedSize = (maxSize - maxWindowSize) * 4 / 5;
+        sketch = new FrequencySketch(Math.max(1, maxSize));
+        loads = metricRegistry.timer(Metadata.builder()
+                .withName("auth-data-cache-load")
+                .withDescription("Time to load the auth data of a username missing in the cache")
+                .withType(MetricType.TIMER)
+                .build());
+    }
+
+    /**
+     * @return the cached auth data of {@code username} or the result of {@code loader}, which is
+     * cached if present.
+     */
+    @NonNull
+    public Optional<AuthData> get(@NonNull String username,
+            @NonNull Function<String, Optional<AuthData>> loader) {
+        if (maxSize == 0) {
+            return loader.apply(username);
+        }
+        var node = entries.get(username);
+        if (node != null) {
+            hits.increment();
+            if (lock.tryLock()) {
+                try {
+                    onAccess(node);
+                } finally {
+                    lock.unlock();
+                }
+            }
+            return Optional.of(node.authData);
+        }
+        misses.increment();
+        var invalidationsBeforeLoad = invalidations;
+        Optional<AuthData> authData;
+        var loadTiming = loads.time();
+        try {
+            authData = loader.apply(username);
+        } finally {
+            loadTiming.stop();
+        }
+        authData.ifPresent(loaded -> add(username, loaded, invalidationsBeforeLoad));
+        return authData;
+    }
+
+    /**
+     * Remove the entry of the credentials with {@code id}, if there is one.
+     */
+    public void invalidate(long id) {
+        if (maxSize == 0) {
+            return;
+        }
+        lock.lock();
+        try {
+            invalidations++;
+            var node = entriesById.get(id);
+            if (node != null) {
+                remove(node);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void invalidateAll() {
+        if (maxSize == 0) {
+            return;
+        }
+        lock.lock();
+        try {
+            invalidations++;
+            entries.values().forEach(this::remove);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Gauge(name = "auth-data-cache-hit-ratio", unit = MetricUnits.NONE, absolute = true,
+            description = "Share of auth data lookups answered by the cache")
+    public double hitRatio() {
+        var hitCount = hits.sum();
+        var lookups = hitCount + misses.sum();
+        return lookups == 0 ? 0 : (double) hitCount / lookups;
+    }
+
+    @Gauge(name = "auth-data-cache-evictions-total", unit = MetricUnits.NONE, absolute = true,
+            description = "Number of entries evicted from the auth data cache as it was full")
+    public long evictionsTotal() {
+        return evictions.sum();
+    }
+
+    @Gauge(name = "auth-data-cache-size", unit = MetricUnits.NONE, absolute = true,
+            description = "Number of entries in the auth data cache")
+    public long size() {
+        return entries.size();
+    }
+
+    private void add(@NonNull String username, @NonNull AuthData authData,
+            long invalidationsBeforeLoad) {
+        lock.lock();
+        try {
+            sketch.increment(username);
+            // changed meanwhile: the loaded data may be stale
+            if (invalidations != invalidationsBeforeLoad || entries.containsKey(username)) {
+                return;
+            }
+            var previous = entriesById.get(authData.id);
+            if (previous != null) {
+                // cached under its previous username
+                remove(previous);
+            }
+            var node = new Node(username, authData);
+            entriesById.put(authData.id, node);
+            entries.put(username, node);
+            node.region = Region.WINDOW;
+            window.addLast(node);
+            evictIfFull();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void onAccess(@NonNull Node node) {
+        sketch.increment(node.username);
+        switch (node.region) {
+            case WINDOW:
+                window.moveToLast(node);
+                break;
+            case PROBATION:
+                probation.remove(node);
+                node.region = Region.PROTECTED;
+                protectedEntries.addLast(node);
+                if (protectedEntries.size() > maxProtectedSize) {
+                    var demoted = protectedEntries.removeFirst();
+                    demoted.region = Region.PROBATION;
+                    probation.addLast(demoted);
+                }
+                break;
+            case PROTECTED:
+                protectedEntries.moveToLast(node);
+                break;
+            case REMOVED:
+                // invalidated concurrently
+                break;
+        }
+    }
+
+    /**
+     * Move the oldest window entry to the main region; if that is full, keep the more frequently
+     * used of the window entry and the main region's victim.
+     */
+    private void evictIfFull() {
+        while (window.size() > maxWindowSize) {
+            var candidate = window.removeFirst();
+            candidate.region = Region.PROBATION;
+            probation.addLast(candidate);
+            if (entries.size() <= maxSize) {
+                continue;
+            }
+            var victim = probation.first() != candidate ?
+                    probation.first() :
+                    protectedEntries.first();
+            var evicted = victim != null &&
+                    sketch.frequency(candidate.username) > sketch.frequency(victim.username) ?
+                    victim :
+                    candidate;
+            remove(evicted);
+            evictions.increment();
+        }
+    }
+
+    private void remove(@NonNull Node node) {
+        switch (node.region) {
+            case WINDOW:
+                window.remove(node);
+                break;
+            case PROBATION:
+                probation.remove(node);
+                break;
+            case PROTECTED:
+                protectedEntries.remove(node);
+                break;
+            case REMOVED:
+                return;
+        }
+        node.region = Region.REMOVED;
+        entries.remove(node.username, node);
+        entriesById.remove(node.authData.id, node);
+    }
+
+    private enum Region {WINDOW, PROBATION, PROTECTED, REMOVED}
+
+    private static final class Node {
+
+        final String username;
+        final AuthData authData;
+        Region region;
+        Node previous;
+        Node next;
+
+        Node(String username, AuthData authData) {
+            this.username = username;
+            this.authData = authData;
+        }
+    }
+
+    /**
+     * Doubly linked list of nodes, least recently used first.
+     */
+    private static final class AccessOrder {
+
+        private Node first;
+        private Node last;
+        private int size;
+
+        Node first() {
+            return first;
+        }
+
+        int size() {
+            return size;
+        }
+
+        void addLast(@NonNull Node node) {
+            node.previous = last;
+            node.next = null;
+            if (last == null) {
+                first = node;
+            } else {
+                last.next = node;
+            }
+            last = node;
+            size++;
+        }
+
+        Node removeFirst() {
+            var node = first;
+            remove(node);
+            return node;
+        }
+
+        void moveToLast(@NonNull Node node) {
+            if (node != last) {
+                remove(node);
+                addLast(node);
+            }
+        }
+
+        void remove(@NonNull Node node) {
+            if (node.previous == null) {
+                first = node.next;
+            } else {
+                node.previous.next = node.next;
+            }
+            if (node.next == null) {
+                last = node.previous;
+            } else {
+                node.next.previous = node.previous;
+            }
+            node.previous = null;
+            node.next = null;
+            size--;
+        }
+    }
+
+    /**
+     * Count-min sketch of 4-bit counters with four rows. All counters are halved once
+     * 10 * capacity increments have been counted, so old popularity fades.
+     */
+    static final class FrequencySketch {
+
+        private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L,
+                0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+        private static final long RESET_MASK = 0x7777777777777777L;
+        private static final int MAX_COUNT = 15;
+
+        private final long[] table;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int capacity) {
+            // 16 counters per word, one word per expected entry
+            var words = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+            table = new long[words];
+            sampleSize = 10 * Math.max(1, capacity);
+        }
+
+        int frequency(@NonNull Object key) {
+            var hash = spread(key.hashCode());
+            var frequency = MAX_COUNT;
+            for (int row = 0; row < SEEDS.length; row++) {
+                frequency = Math.min(frequency, count(hash, row));
+            }
+            return frequency;
+        }
+
+        void increment(@NonNull Object key) {
+            var hash = spread(key.hashCode());
+            var added = false;
+            for (int row = 0; row < SEEDS.length; row++) {
+                var index = index(hash, row);
+                var shift = offset(hash, row) << 2;
+                if ((table[index] >>> shift & MAX_COUNT) < MAX_COUNT) {
+                    table[index] += 1L << shift;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                reset();
+            }
+        }
+
+        private void reset() {
+            for (int i = 0; i < table.length; i++) {
+                table[i] = table[i] >>> 1 & RESET_MASK;
+            }
+            additions /= 2;
+        }
+
+        private int count(int hash, int row) {
+            return (int) (table[index(hash, row)] >>> (offset(hash, row) << 2) & MAX_COUNT);
+        }
+
+        private int index(int hash, int row) {
+            var mixed = (hash + SEEDS[row]) * SEEDS[row];
+            mixed += mixed >>> 32;
+            return (int) mixed & table.length - 1;
+        }
+
+        private static int offset(int hash, int row) {
+            return (hash >>> (row << 3)) + row & 15;
+        }
+
+        private static int spread(int hash) {
+            hash = (hash >>> 16 ^ hash) * 0x45d9f3b;
+            return hash >>> 16 ^ hash;
+        }
+    }
+}
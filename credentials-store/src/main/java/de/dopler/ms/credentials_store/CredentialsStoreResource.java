@@ -1,15 +1,30 @@
 package de.dopler.ms.credentials_store;
 
 import de.dopler.ms.credentials_store.domain.Credentials;
+import de.dopler.ms.credentials_store.domain.CredentialsPatch;
 import de.dopler.ms.response_utils.ResponseUtils;
 import io.quarkus.runtime.StartupEvent;
+import org.eclipse.jdt.annotation.NonNull;
+import org.jboss.logging.Logger;
 
 import javax.enterprise.event.Observes;
 import javax.inject.Inject;
 import javax.ws.rs.*;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ConcurrentModificationException;
+import java.util.OptionalLong;
 import java.util.Set;
 
 @Path("/auth/credentials")
@@ -17,11 +32,19 @@ import java.util.Set;
 @Consumes(MediaType.TEXT_PLAIN)
 public class CredentialsStoreResource {
 
+    private static final Logger LOG = Logger.getLogger("CredentialsStoreResource");
+
+    private static final String APPLICATION_NDJSON = "application/x-ndjson";
+    private static final String ANY_ETAG = "*";
+
     private final CredentialsStoreService credentialsStoreService;
+    private final CredentialsTransfer credentialsTransfer;
 
     @Inject
-    public CredentialsStoreResource(CredentialsStoreService credentialsStoreService) {
+    public CredentialsStoreResource(CredentialsStoreService credentialsStoreService,
+            CredentialsTransfer credentialsTransfer) {
         this.credentialsStoreService = credentialsStoreService;
+        this.credentialsTransfer = credentialsTransfer;
     }
 
     void onStart(@Observes StartupEvent ev) {
@@ -55,13 +78,181 @@ public class CredentialsStoreResource {
         }
     }
 
+    /**
+     * Stream all credentials as NDJSON. Once streaming has started, a failure can't change the
+     * status anymore: the response is aborted instead.
+     * <p>
+     * The path has two segments, so it can't shadow a user named "export".
+     */
+    @GET
+    @Path("/bulk/export")
+    @Produces(APPLICATION_NDJSON)
+    public Response exportCredentials() {
+        StreamingOutput output = outputStream -> {
+            try {
+                credentialsTransfer.exportCredentials(new BufferedWriter(
+                        new OutputStreamWriter(outputStream, StandardCharsets.UTF_8)));
+            } catch (IllegalStateException e) {
+                LOG.errorf("credentials export failed: %s", e.getMessage());
+                throw new WebApplicationException(e, Status.INTERNAL_SERVER_ERROR);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        };
+        return ResponseUtils.response(Status.OK, MediaType.valueOf(APPLICATION_NDJSON), output);
+    }
+
+    /**
+     * Stream one page of users (without secrets) as NDJSON, see {@link UserQuery}. The next page
+     * follows the id or username of the last user of this one; an empty page ends the listing.
+     * The members of a group are listed from its index, in the id order only.
+     */
+    @GET
+    @Path("/bulk/list")
+    @Produces(APPLICATION_NDJSON)
+    public Response listUsers(@QueryParam("order") String order,
+            @QueryParam("after") String after, @QueryParam("prefix") String prefix,
+            @QueryParam("group") String group,
+            @QueryParam("limit") @DefaultValue("100") int limit) {
+        UserQuery query;
+        try {
+            query = UserQuery.of(order, after, prefix, group, limit);
+        } catch (IllegalArgumentException e) {
+            return ResponseUtils.textResponse(Status.BAD_REQUEST, e.getMessage());
+        }
+        StreamingOutput output = outputStream -> {
+            try {
+                credentialsTransfer.listUsers(query, new BufferedWriter(
+                        new OutputStreamWriter(outputStream, StandardCharsets.UTF_8)));
+            } catch (IllegalStateException e) {
+                LOG.errorf("listing users failed: %s", e.getMessage());
+                throw new WebApplicationException(e, Status.INTERNAL_SERVER_ERROR);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        };
+        return ResponseUtils.response(Status.OK, MediaType.valueOf(APPLICATION_NDJSON), output);
+    }
+
+    /**
+     * @param credentials NDJSON as written by {@link #exportCredentials()}, read as a stream.
+     * @return the number of imported credentials.
+     */
+    @POST
+    @Path("/bulk/import")
+    @Consumes(APPLICATION_NDJSON)
+    public Response importCredentials(InputStream credentials) {
+        long imported;
+        try {
+            imported = credentialsTransfer.importCredentials(
+                    new InputStreamReader(credentials, StandardCharsets.UTF_8));
+        } catch (IllegalArgumentException e) {
+            return ResponseUtils.textResponse(Status.BAD_REQUEST, e.getMessage());
+        } catch (IOException e) {
+            return ResponseUtils.textResponse(Status.BAD_REQUEST,
+                    "reading the credentials failed");
+        } catch (IllegalStateException e) {
+            return ResponseUtils.status(Status.INTERNAL_SERVER_ERROR);
+        }
+        return ResponseUtils.textResponse(Status.OK, String.valueOf(imported));
+    }
+
+    /**
+     * Store new users, e.g. when onboarding a tenant. Streams back the generated ids as the
+     * batches are committed: one {@link de.dopler.ms.credentials_store.domain.InsertResult} per
+     * line, with an error for invalid lines and taken usernames. Once streaming has started, a
+     * failure aborts the response; the lines reported so far stay stored.
+     *
+     * @param credentials NDJSON with one {@link Credentials} (with the hashed secret) per line,
+     *                    read as a stream.
+     */
+    @POST
+    @Path("/bulk/insert")
+    @Consumes(APPLICATION_NDJSON)
+    @Produces(APPLICATION_NDJSON)
+    public Response insertCredentials(InputStream credentials) {
+        StreamingOutput output = outputStream -> {
+            try {
+                credentialsTransfer.insertCredentials(
+                        new InputStreamReader(credentials, StandardCharsets.UTF_8),
+                        new BufferedWriter(
+                                new OutputStreamWriter(outputStream, StandardCharsets.UTF_8)));
+            } catch (IllegalStateException e) {
+                LOG.errorf("credentials insert failed: %s", e.getMessage());
+                throw new WebApplicationException(e, Status.INTERNAL_SERVER_ERROR);
+            }
+        };
+        return ResponseUtils.response(Status.OK, MediaType.valueOf(APPLICATION_NDJSON), output);
+    }
+
+    /**
+     * Add the users with the given ids to {@code group} in one transaction, e.g. to grant a role
+     * to a whole tenant.
+     *
+     * @param ids the user ids; ids without credentials are skipped.
+     * @return the number of given users which were added; existing members aren't counted.
+     */
+    @POST
+    @Path("/bulk/groups/{group}/add")
+    @Consumes(MediaType.APPLICATION_JSON)
+    public Response addGroupMembers(@PathParam("group") String group, Set<Long> ids) {
+        if (ids == null || ids.contains(null)) {
+            return ResponseUtils.textResponse(Status.BAD_REQUEST, "body has to be an array of ids");
+        }
+        int members;
+        try {
+            members = credentialsStoreService.addGroupMembers(group, ids);
+        } catch (IllegalStateException e) {
+            return ResponseUtils.status(Status.INTERNAL_SERVER_ERROR);
+        }
+        return ResponseUtils.textResponse(Status.OK, String.valueOf(members));
+    }
+
+    /**
+     * Remove the users with the given ids from {@code group} in one transaction.
+     *
+     * @return the number of given users which were members of the group.
+     */
+    @POST
+    @Path("/bulk/groups/{group}/remove")
+    @Consumes(MediaType.APPLICATION_JSON)
+    public Response removeGroupMembers(@PathParam("group") String group, Set<Long> ids) {
+        if (ids == null || ids.contains(null)) {
+            return ResponseUtils.textResponse(Status.BAD_REQUEST, "body has to be an array of ids");
+        }
+        int removed;
+        try {
+            removed = credentialsStoreService.removeGroupMembers(group, ids);
+        } catch (IllegalStateException e) {
+            return ResponseUtils.status(Status.INTERNAL_SERVER_ERROR);
+        }
+        return ResponseUtils.textResponse(Status.OK, String.valueOf(removed));
+    }
+
     @GET
     @Path("/{username}")
     @Produces(MediaType.APPLICATION_JSON)
     public Response getAuthData(@PathParam("username") String username) {
         try {
             return credentialsStoreService.getAuthData(username)
-                    .map(authData -> Response.ok(authData).build())
+                    .map(authData -> Response.ok(authData).tag(etag(authData.version)).build())
+                    .orElse(Response.status(Status.NOT_FOUND).build());
+        } catch (IllegalStateException e) {
+            return ResponseUtils.status(Status.INTERNAL_SERVER_ERROR);
+        }
+    }
+
+    /**
+     * @return the credentials of {@code id} without the secret, with the {@code ETag} to patch
+     * them via {@link #patchCredentials}.
+     */
+    @GET
+    @Path("/{id}/metadata")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getMetadata(@PathParam("id") long id) {
+        try {
+            return credentialsStoreService.getMetadata(id)
+                    .map(metadata -> Response.ok(metadata).tag(etag(metadata.version)).build())
                     .orElse(Response.status(Status.NOT_FOUND).build());
         } catch (IllegalStateException e) {
             return ResponseUtils.status(Status.INTERNAL_SERVER_ERROR);
@@ -82,6 +273,50 @@ public class CredentialsStoreResource {
                 ResponseUtils.status(Status.NOT_FOUND);
     }
 
+    /**
+     * Apply the non-null fields of {@code patch} at once, instead of one PUT per field. With an
+     * {@code If-Match} header, the patch is only applied to the version of its {@code ETag}, as
+     * returned by {@link #getAuthData}, {@link #getMetadata} and this method.
+     *
+     * @param ifMatch the {@code ETag} of the version the patch is based on or {@code *}; null to
+     *                apply the patch to any version.
+     * @return 204 with the {@code ETag} of the new version, 409 if the username is taken or 412 if
+     * the credentials have another version.
+     */
+    @PATCH
+    @Path("/{id}")
+    @Consumes(MediaType.APPLICATION_JSON)
+    public Response patchCredentials(@PathParam("id") long id,
+            @HeaderParam(HttpHeaders.IF_MATCH) String ifMatch, CredentialsPatch patch) {
+        if (patch == null || patch.username == null && patch.secret == null &&
+                patch.groups == null) {
+            return ResponseUtils.textResponse(Status.BAD_REQUEST, "patch has to change a field");
+        }
+        if (patch.groups != null && patch.groups.contains(null)) {
+            return ResponseUtils.textResponse(Status.BAD_REQUEST, "groups must not contain null");
+        }
+        Long expectedVersion;
+        try {
+            expectedVersion = parseVersion(ifMatch);
+        } catch (IllegalArgumentException e) {
+            return ResponseUtils.textResponse(Status.BAD_REQUEST,
+                    "If-Match has to be an ETag of this resource or *");
+        }
+        OptionalLong version;
+        try {
+            version = credentialsStoreService.patchCredentials(id, patch, expectedVersion);
+        } catch (IllegalArgumentException e) {
+            return ResponseUtils.status(Status.CONFLICT);
+        } catch (ConcurrentModificationException e) {
+            return ResponseUtils.status(Status.PRECONDITION_FAILED);
+        } catch (IllegalStateException e) {
+            return ResponseUtils.status(Status.INTERNAL_SERVER_ERROR);
+        }
+        return version.isPresent() ?
+                Response.noContent().tag(etag(version.getAsLong())).build() :
+                ResponseUtils.status(Status.NOT_FOUND);
+    }
+
     @PUT
     @Path("/{id}/username")
     public Response updateUsername(@PathParam("id") long id, String newUsername) {
@@ -120,6 +355,7 @@ public class CredentialsStoreResource {
 
     @PUT
     @Path("/{id}/groups")
+    @Consumes(MediaType.APPLICATION_JSON)
     public Response updateGroups(@PathParam("id") long id, Set<String> newGroups) {
         if (newGroups == null) {
             return ResponseUtils.textResponse(Status.BAD_REQUEST, "body has to be non-null");
@@ -134,4 +370,26 @@ public class CredentialsStoreResource {
                 ResponseUtils.status(Status.NO_CONTENT) :
                 ResponseUtils.status(Status.NOT_FOUND);
     }
+
+    @NonNull
+    private static EntityTag etag(long version) {
+        return new EntityTag(String.valueOf(version));
+    }
+
+    /**
+     * @return the version of the strong {@code ETag} {@code ifMatch}; null if it's null or
+     * {@code *}.
+     * @throws IllegalArgumentException if it's neither.
+     */
+    private static Long parseVersion(String ifMatch) {
+        if (ifMatch == null || ifMatch.trim().equals(ANY_ETAG)) {
+            return null;
+        }
+        var tag = EntityTag.valueOf(ifMatch.trim());
+        if (tag.isWeak()) {
+            throw new IllegalArgumentException("weak ETag");
+        }
+        // a NumberFormatException is an IllegalArgumentException
+        return Long.parseLong(tag.getValue());
+    }
 }
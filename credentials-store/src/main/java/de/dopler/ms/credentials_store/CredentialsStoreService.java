@@ -1,7 +1,14 @@
 package de.dopler.ms.credentials_store;
 
 import de.dopler.ms.credentials_store.domain.AuthData;
+import de.dopler.ms.credentials_store.domain.Credentials;
+import de.dopler.ms.credentials_store.domain.CredentialsPatch;
+import de.dopler.ms.credentials_store.domain.ListedUser;
+import de.dopler.ms.credentials_store.domain.StoredCredentials;
+import de.dopler.ms.credentials_store.domain.UserMetadata;
+import de.dopler.ms.group_dictionary.GroupDictionary;
 import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
 import org.jboss.logging.Logger;
 
 import javax.enterprise.context.ApplicationScoped;
@@ -10,13 +17,17 @@ import javax.sql.DataSource;
 import java.sql.*;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.List;
 import java.util.Optional;
+import java.util.OptionalLong;
 import java.util.Set;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import static de.dopler.ms.credentials_store.CredentialsStoreSqlStatements.*;
-import static java.sql.JDBCType.VARCHAR;
 
 @ApplicationScoped
 public class CredentialsStoreService {
@@ -24,27 +35,51 @@ public class CredentialsStoreService {
     private static final Logger LOG = Logger.getLogger("CredentialsStoreService");
 
     private static final String SQL_STATE_UNIQUE_VIOLATION = "23505";
+    private static final String ARRAY_TYPE_NAME = "ARRAY";
+    private static final String GROUPS_COLUMN = "GROUPS";
+    private static final String GROUP_IDS_COLUMN = "GROUP_IDS";
+    private static final int FETCH_SIZE = 1000;
+    private static final int BATCH_SIZE = 1000;
 
     private final DataSource dataSource;
+    private final GroupDictionary groupDictionary;
+    private final AuthDataCache authDataCache;
+    private final int migrationChunkSize;
+    // the table still has the CHAR(60) secret column of schema v1
+    private volatile boolean v1SecretColumn;
+    private volatile SecretColumnMigration migration;
 
     @SuppressWarnings("CdiInjectionPointsInspection")
     @Inject
-    public CredentialsStoreService(DataSource dataSource) {
+    public CredentialsStoreService(DataSource dataSource, GroupDictionary groupDictionary,
+            AuthDataCache authDataCache,
+            @ConfigProperty(name = "credentials-store.migration.chunk-size",
+                    defaultValue = "1000") int migrationChunkSize) {
         this.dataSource = dataSource;
+        this.groupDictionary = groupDictionary;
+        this.authDataCache = authDataCache;
+        this.migrationChunkSize = migrationChunkSize;
     }
 
     public void initStore() {
+        groupDictionary.initStore();
         var timingStart = Instant.now();
         try (Connection conn = dataSource.getConnection();
              Statement statement = conn.createStatement()) {
             conn.setAutoCommit(false);
             statement.execute(SQL_CREATE_TABLE);
-            statement.execute(SQL_CREATE_INDEX);
+            statement.execute(SQL_CREATE_USER_GROUPS_TABLE);
+            statement.execute(SQL_CREATE_GROUP_INDEX);
+            statement.execute(SQL_ADD_VERSION_COLUMN);
+            statement.execute(SQL_DROP_USERNAME_SECRET_INDEX);
             conn.commit();
+            migrateGroupsColumn(conn, statement);
+            migrateV1Secrets(statement);
         } catch (SQLException e) {
             LOG.errorf("initStore failed: %s", e.getMessage());
             throw new IllegalStateException("Initializing the store failed due to SQL exception");
         }
+        authDataCache.invalidateAll();
         var duration = timingStart.until(Instant.now(), ChronoUnit.MILLIS);
         LOG.infof("Database initialization succeeded after %d ms", duration);
     }
@@ -56,7 +91,7 @@ public class CredentialsStoreService {
                      Statement.RETURN_GENERATED_KEYS)) {
             conn.setAutoCommit(true);
             statement.setString(1, username);
-            statement.setString(2, hashedSecret);
+            statement.setBytes(2, PackedSecrets.pack(hashedSecret));
             if (statement.executeUpdate() != 1) {
                 return Optional.empty();
             }
@@ -75,18 +110,39 @@ public class CredentialsStoreService {
         return Optional.empty();
     }
 
+    /**
+     * Served from the {@link AuthDataCache} if possible. An uncached lookup joins the
+     * {@code user_groups} table, which is slower than reading a groups column of the credentials
+     * row but still far faster than the bcrypt check of the login it serves; a denormalized
+     * groups column would make every group-scoped bulk change rewrite the rows of all members.
+     */
     @NonNull
     public Optional<AuthData> getAuthData(@NonNull String username) {
+        return authDataCache.get(username, this::loadAuthData);
+    }
+
+    @NonNull
+    private Optional<AuthData> loadAuthData(@NonNull String username) {
+        var v1 = v1SecretColumn;
         try (Connection conn = dataSource.getConnection();
-             PreparedStatement statement = conn.prepareStatement(SQL_SELECT)) {
+             PreparedStatement statement = conn.prepareStatement(v1 ? SQL_SELECT_V1 : SQL_SELECT)) {
             conn.setAutoCommit(true);
             statement.setString(1, username);
             try (ResultSet resultSet = statement.executeQuery()) {
                 if (resultSet.next()) {
                     var id = resultSet.getLong(1);
-                    var secret = resultSet.getString(2);
-                    var groups = toStringSet(resultSet.getArray(3));
-                    return Optional.of(new AuthData(id, secret, groups));
+                    var secret = readSecret(resultSet, 2, v1 ? 5 : 0);
+                    var version = resultSet.getLong(4);
+                    var groupIds = new ArrayList<Integer>();
+                    do {
+                        var groupId = resultSet.getInt(3);
+                        if (!resultSet.wasNull()) {
+                            groupIds.add(groupId);
+                        }
+                    } while (resultSet.next());
+                    var groups = groupDictionary.decode(
+                            groupIds.stream().mapToInt(Integer::intValue).toArray());
+                    return Optional.of(new AuthData(id, secret, groups, version));
                 }
             }
         } catch (SQLException e) {
@@ -96,51 +152,646 @@ public class CredentialsStoreService {
         return Optional.empty();
     }
 
-    public boolean removeCredentials(long id) {
-        var updatedRows = 0;
+    /**
+     * @return the credentials of {@code id} without the secret, e.g. for the {@code ETag} of its
+     * version before a first patch.
+     */
+    @NonNull
+    public Optional<UserMetadata> getMetadata(long id) {
         try (Connection conn = dataSource.getConnection();
-             PreparedStatement statement = conn.prepareStatement(SQL_DELETE)) {
+             PreparedStatement statement = conn.prepareStatement(SQL_SELECT_METADATA)) {
             conn.setAutoCommit(true);
             statement.setLong(1, id);
-            updatedRows = statement.executeUpdate();
+            try (ResultSet resultSet = statement.executeQuery()) {
+                if (resultSet.next()) {
+                    return Optional.of(new UserMetadata(id, resultSet.getString(1),
+                            readGroups(resultSet, 2), resultSet.getLong(3)));
+                }
+            }
+        } catch (SQLException e) {
+            LOG.errorf("getMetadata failed: %s", e.getMessage());
+            throw new IllegalStateException("getMetadata failed due to SQL exception");
+        }
+        return Optional.empty();
+    }
+
+    public boolean removeCredentials(long id) {
+        var updatedRows = 0;
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement statement = conn.prepareStatement(SQL_DELETE);
+             PreparedStatement deleteStatement = conn.prepareStatement(SQL_DELETE_USER_GROUPS)) {
+            conn.setAutoCommit(false);
+            try {
+                statement.setLong(1, id);
+                updatedRows = statement.executeUpdate();
+                deleteStatement.setLong(1, id);
+                deleteStatement.executeUpdate();
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
         } catch (SQLException e) {
             LOG.errorf("removeCredentials failed: %s", e.getMessage());
             throw new IllegalStateException("removeCredentials failed due to SQL exception");
         }
+        authDataCache.invalidate(id);
         return updatedRows == 1;
     }
 
     public boolean updateUsername(long id, @NonNull String newUsername) {
-        return updateStringColumn(id, newUsername, SQL_UPDATE_USERNAME);
+        return updateColumn(id, newUsername, SQL_UPDATE_USERNAME);
     }
 
     public boolean updateSecret(long id, @NonNull String newSecret) {
-        return updateStringColumn(id, newSecret, SQL_UPDATE_SECRET);
+        return updateColumn(id, PackedSecrets.pack(newSecret), SQL_UPDATE_SECRET);
     }
 
     public boolean updateGroups(long id, @NonNull Set<String> newGroups) {
-        var updatedRows = 0;
+        var groupIds = newGroups.stream().mapToInt(groupDictionary::id).toArray();
         try (Connection conn = dataSource.getConnection();
-             PreparedStatement statement = conn.prepareStatement(SQL_UPDATE_GROUPS)) {
-            conn.setAutoCommit(true);
-            Array groupsArray = conn.createArrayOf(VARCHAR.name(), newGroups.toArray());
-            statement.setArray(1, groupsArray);
-            statement.setLong(2, id);
-            updatedRows = statement.executeUpdate();
+             PreparedStatement statement = conn.prepareStatement(SQL_INCREMENT_VERSION)) {
+            conn.setAutoCommit(false);
+            try {
+                statement.setLong(1, id);
+                if (statement.executeUpdate() != 1) {
+                    conn.rollback();
+                    return false;
+                }
+                replaceGroups(conn, id, groupIds);
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
         } catch (SQLException e) {
             LOG.errorf("updateGroups failed: %s", e.getMessage());
             throw new IllegalStateException("updateGroups failed due to SQL exception");
         }
-        return updatedRows == 1;
+        authDataCache.invalidate(id);
+        return true;
+    }
+
+    /**
+     * Apply the non-null fields of {@code patch} to the credentials with the given id in one
+     * transaction: the username and the (hashed) secret in one statement, the groups are
+     * replaced.
+     *
+     * @param expectedVersion the version the patch is based on, i.e. the {@code ETag} of an
+     *                        {@code If-Match} header; null to apply the patch to any version.
+     * @return the new version; empty if there are no credentials with the given id.
+     * @throws IllegalArgumentException        if the username is taken.
+     * @throws ConcurrentModificationException if the credentials have another version.
+     */
+    @NonNull
+    public OptionalLong patchCredentials(long id, @NonNull CredentialsPatch patch,
+            Long expectedVersion) {
+        var groupIds = patch.groups == null ?
+                null :
+                patch.groups.stream().mapToInt(groupDictionary::id).toArray();
+        long newVersion;
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement statement = conn.prepareStatement(expectedVersion == null ?
+                     SQL_PATCH :
+                     SQL_PATCH_IF_VERSION)) {
+            conn.setAutoCommit(false);
+            try {
+                if (patch.username == null) {
+                    statement.setNull(1, Types.VARCHAR);
+                } else {
+                    statement.setString(1, patch.username);
+                }
+                if (patch.secret == null) {
+                    statement.setNull(2, Types.VARBINARY);
+                } else {
+                    statement.setBytes(2, PackedSecrets.pack(patch.secret));
+                }
+                statement.setLong(3, id);
+                if (expectedVersion != null) {
+                    statement.setLong(4, expectedVersion);
+                }
+                if (statement.executeUpdate() != 1) {
+                    var version = selectVersion(conn, id);
+                    conn.rollback();
+                    if (version.isPresent()) {
+                        throw new ConcurrentModificationException("version mismatch");
+                    }
+                    return OptionalLong.empty();
+                }
+                // the updated row is locked until the commit
+                newVersion = expectedVersion == null ?
+                        selectVersion(conn, id).orElseThrow() :
+                        expectedVersion + 1;
+                if (groupIds != null) {
+                    replaceGroups(conn, id, groupIds);
+                }
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            // don't log UNIQUE violations
+            if (SQL_STATE_UNIQUE_VIOLATION.equals(e.getSQLState())) {
+                throw new IllegalArgumentException("conflict");
+            }
+            LOG.errorf("patchCredentials failed: %s", e.getMessage());
+            throw new IllegalStateException("patchCredentials failed due to SQL exception");
+        }
+        authDataCache.invalidate(id);
+        return OptionalLong.of(newVersion);
+    }
+
+    /**
+     * Add the users with the given ids to {@code group} in one transaction. Ids without
+     * credentials are skipped.
+     *
+     * @return the number of given users which were added; existing members aren't counted.
+     */
+    public int addGroupMembers(@NonNull String group, @NonNull Set<Long> ids) {
+        return updateGroupMembers(SQL_ADD_GROUP_MEMBER, groupDictionary.id(group), ids);
+    }
+
+    /**
+     * Remove the users with the given ids from {@code group} in one transaction.
+     *
+     * @return the number of given users which were members of the group.
+     */
+    public int removeGroupMembers(@NonNull String group, @NonNull Set<Long> ids) {
+        var groupId = groupDictionary.existingId(group);
+        return groupId.isPresent() ?
+                updateGroupMembers(SQL_REMOVE_GROUP_MEMBER, groupId.getAsInt(), ids) :
+                0;
+    }
+
+    /**
+     * Pass the users of the page {@code query} to {@code consumer}. The rows are read in chunks
+     * of up to 1000, each seeking in the index past the last row of the previous chunk, so a page
+     * costs the same at any depth and at most a chunk of rows is held in memory. The members of a
+     * group are read from the group index.
+     *
+     * @return the number of listed users.
+     */
+    public int listUsers(@NonNull UserQuery query, @NonNull Consumer<ListedUser> consumer) {
+        Integer groupId = null;
+        if (query.group != null) {
+            var existingId = groupDictionary.existingId(query.group);
+            if (existingId.isEmpty()) {
+                return 0;
+            }
+            groupId = existingId.getAsInt();
+        }
+        var listed = 0;
+        var afterId = query.afterId;
+        var afterUsername = query.afterUsername;
+        try (Connection conn = dataSource.getConnection()) {
+            conn.setAutoCommit(true);
+            while (true) {
+                var chunkSize = Math.min(query.limit - listed, FETCH_SIZE);
+                var read = 0;
+                try (PreparedStatement statement = prepareListChunk(conn, query, groupId,
+                        afterId, afterUsername, chunkSize);
+                     ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        read++;
+                        afterId = resultSet.getLong(1);
+                        afterUsername = resultSet.getString(2);
+                        if (afterUsername == null) {
+                            // a member whose credentials were removed while it was added
+                            continue;
+                        }
+                        if (query.prefix != null && !afterUsername.startsWith(query.prefix)) {
+                            // past the usernames with the prefix
+                            return listed;
+                        }
+                        consumer.accept(new ListedUser(afterId, afterUsername,
+                                readGroups(resultSet, 3)));
+                        if (++listed == query.limit) {
+                            return listed;
+                        }
+                    }
+                }
+                if (read < chunkSize) {
+                    return listed;
+                }
+            }
+        } catch (SQLException e) {
+            LOG.errorf("listUsers failed: %s", e.getMessage());
+            throw new IllegalStateException("listUsers failed due to SQL exception");
+        }
+    }
+
+    /**
+     * Pass all credentials to {@code consumer} in the order of their ids, e.g. for an export. The
+     * rows are read with a forward-only cursor, so they are not held in memory.
+     */
+    public void forEachCredentials(@NonNull Consumer<StoredCredentials> consumer) {
+        var v1 = v1SecretColumn;
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement statement = conn.prepareStatement(
+                     v1 ? SQL_SELECT_ALL_V1 : SQL_SELECT_ALL, ResultSet.TYPE_FORWARD_ONLY,
+                     ResultSet.CONCUR_READ_ONLY)) {
+            conn.setAutoCommit(true);
+            statement.setFetchSize(FETCH_SIZE);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    consumer.accept(new StoredCredentials(resultSet.getLong(1),
+                            resultSet.getString(2), readSecret(resultSet, 3, v1 ? 5 : 0),
+                            readGroups(resultSet, 4)));
+                }
+            }
+        } catch (SQLException e) {
+            LOG.errorf("forEachCredentials failed: %s", e.getMessage());
+            throw new IllegalStateException("forEachCredentials failed due to SQL exception");
+        }
+    }
+
+    /**
+     * Store the given credentials with their ids as one batch in one transaction, replacing
+     * stored credentials with the same id and their groups. New credentials get ids after the
+     * highest stored one.
+     *
+     * @return the number of stored credentials.
+     * @throws IllegalArgumentException if a username is taken by credentials with another id.
+     */
+    public int mergeCredentials(@NonNull List<StoredCredentials> credentials) {
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement statement = conn.prepareStatement(SQL_MERGE);
+             PreparedStatement deleteStatement = conn.prepareStatement(SQL_DELETE_USER_GROUPS);
+             PreparedStatement insertStatement = conn.prepareStatement(SQL_INSERT_USER_GROUP)) {
+            conn.setAutoCommit(false);
+            try {
+                var memberships = 0;
+                for (var stored : credentials) {
+                    statement.setLong(1, stored.id);
+                    statement.setString(2, stored.username);
+                    statement.setBytes(3, PackedSecrets.pack(stored.secret));
+                    statement.setLong(4, stored.id);
+                    statement.addBatch();
+                    deleteStatement.setLong(1, stored.id);
+                    deleteStatement.addBatch();
+                    for (var group : stored.groups) {
+                        insertStatement.setLong(1, stored.id);
+                        insertStatement.setInt(2, groupDictionary.id(group));
+                        insertStatement.addBatch();
+                        memberships++;
+                    }
+                }
+                statement.executeBatch();
+                deleteStatement.executeBatch();
+                if (memberships > 0) {
+                    insertStatement.executeBatch();
+                }
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            // don't log UNIQUE violations; a failed batch reports its first failure
+            var cause = e instanceof BatchUpdateException && e.getNextException() != null ?
+                    e.getNextException() :
+                    e;
+            if (SQL_STATE_UNIQUE_VIOLATION.equals(cause.getSQLState())) {
+                throw new IllegalArgumentException("conflict");
+            }
+            LOG.errorf("mergeCredentials failed: %s", e.getMessage());
+            throw new IllegalStateException("mergeCredentials failed due to SQL exception");
+        }
+        authDataCache.invalidateAll();
+        return credentials.size();
+    }
+
+    /**
+     * Store new credentials as one batch in one transaction. Credentials whose username is taken,
+     * also by earlier credentials of the batch, are skipped without failing the batch.
+     *
+     * @return the generated ids in the order of {@code credentials}, empty for the skipped ones.
+     */
+    @NonNull
+    public List<Optional<Long>> insertCredentials(@NonNull List<Credentials> credentials) {
+        var ids = new ArrayList<Optional<Long>>(credentials.size());
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement statement = conn.prepareStatement(SQL_INSERT,
+                     Statement.RETURN_GENERATED_KEYS)) {
+            conn.setAutoCommit(false);
+            try {
+                for (var newCredentials : credentials) {
+                    statement.setString(1, newCredentials.username);
+                    statement.setBytes(2, PackedSecrets.pack(newCredentials.secret));
+                    statement.addBatch();
+                }
+                int[] updateCounts;
+                try {
+                    updateCounts = statement.executeBatch();
+                } catch (BatchUpdateException e) {
+                    // H2 executes all statements of a batch and chains the failures
+                    for (var failure = e.getNextException(); failure != null;
+                         failure = failure.getNextException()) {
+                        if (!SQL_STATE_UNIQUE_VIOLATION.equals(failure.getSQLState())) {
+                            throw e;
+                        }
+                    }
+                    updateCounts = e.getUpdateCounts();
+                }
+                // only the inserted rows have generated keys
+                try (ResultSet generatedKeys = statement.getGeneratedKeys()) {
+                    for (var updateCount : updateCounts) {
+                        ids.add(updateCount == 1 && generatedKeys.next() ?
+                                Optional.of(generatedKeys.getLong(1)) :
+                                Optional.empty());
+                    }
+                }
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            LOG.errorf("insertCredentials failed: %s", e.getMessage());
+            throw new IllegalStateException("insertCredentials failed due to SQL exception");
+        }
+        return ids;
+    }
+
+    /**
+     * Move the groups of a store created before the {@code user_groups} table from their column
+     * of the credentials table to the table: an {@code ARRAY} column of a store created before
+     * the group dictionary or a column of encoded group ids. The memberships are merged and the
+     * columns are only dropped after the commit, so a migration which stopped half-way is
+     * repeated by the next {@link #initStore()}.
+     */
+    private void migrateGroupsColumn(@NonNull Connection conn, @NonNull Statement statement)
+            throws SQLException {
+        var groupsColumnType = columnType(conn, GROUPS_COLUMN);
+        var arrayGroups = ARRAY_TYPE_NAME.equals(groupsColumnType);
+        String selectGroups;
+        if (arrayGroups) {
+            selectGroups = SQL_SELECT_ARRAY_GROUPS;
+        } else if (groupsColumnType != null) {
+            selectGroups = SQL_SELECT_ENCODED_GROUPS;
+        } else if (columnType(conn, GROUP_IDS_COLUMN) != null) {
+            // a migration to the group dictionary stopped after dropping the ARRAY column
+            selectGroups = SQL_SELECT_ENCODED_GROUP_IDS;
+        } else {
+            return;
+        }
+        var timingStart = Instant.now();
+        var migrated = 0;
+        try (PreparedStatement addStatement = conn.prepareStatement(SQL_ADD_GROUP_MEMBER);
+             ResultSet resultSet = statement.executeQuery(selectGroups)) {
+            var batched = 0;
+            while (resultSet.next()) {
+                var id = resultSet.getLong(1);
+                var groups = arrayGroups ?
+                        toStringSet(resultSet.getArray(2)) :
+                        groupDictionary.decode(resultSet.getBytes(2));
+                for (var group : groups) {
+                    addStatement.setInt(1, groupDictionary.id(group));
+                    addStatement.setLong(2, id);
+                    addStatement.addBatch();
+                    batched++;
+                }
+                migrated++;
+                if (batched >= BATCH_SIZE) {
+                    addStatement.executeBatch();
+                    batched = 0;
+                }
+            }
+            if (batched > 0) {
+                addStatement.executeBatch();
+            }
+        }
+        conn.commit();
+        statement.execute(SQL_DROP_GROUPS_COLUMN);
+        statement.execute(SQL_DROP_GROUP_IDS_COLUMN);
+        var duration = timingStart.until(Instant.now(), ChronoUnit.MILLIS);
+        LOG.infof("Migrated the groups of %d users to the user_groups table after %d ms",
+                migrated, duration);
+    }
+
+    /**
+     * Complete the migration of a schema v1 table to packed secrets: drop its v1 secret column if
+     * all secrets are packed or else pack them in the background by a
+     * {@link SecretColumnMigration}, reading the v1 secrets meanwhile. H2 rewrites the table to
+     * add or drop a column, so both are only done here.
+     */
+    private void migrateV1Secrets(@NonNull Statement statement) throws SQLException {
+        try (ResultSet resultSet = statement.executeQuery(SQL_SELECT_V1_SECRET_COLUMN_EXISTS)) {
+            if (!resultSet.next()) {
+                v1SecretColumn = false;
+                return;
+            }
+        }
+        statement.execute(SQL_ADD_PACKED_SECRET_COLUMN);
+        v1SecretColumn = true;
+        var currentMigration = migration;
+        if (currentMigration != null && currentMigration.isRunning()) {
+            return;
+        }
+        boolean unpacked;
+        try (ResultSet resultSet = statement.executeQuery(SQL_SELECT_V1_SECRET_EXISTS)) {
+            unpacked = resultSet.next();
+        }
+        if (unpacked) {
+            migration = new SecretColumnMigration(dataSource, migrationChunkSize);
+            migration.start();
+            return;
+        }
+        var timingStart = Instant.now();
+        v1SecretColumn = false;
+        statement.execute(SQL_DROP_V1_SECRET_COLUMN);
+        var duration = timingStart.until(Instant.now(), ChronoUnit.MILLIS);
+        LOG.infof("Dropped the v1 secret column after %d ms", duration);
+    }
+
+    /**
+     * @param groupId the GroupDictionary id of the group of {@code query}, if it has one.
+     */
+    @NonNull
+    private static PreparedStatement prepareListChunk(@NonNull Connection conn,
+            @NonNull UserQuery query, Integer groupId, long afterId, String afterUsername,
+            int chunkSize) throws SQLException {
+        PreparedStatement statement;
+        var parameterIndex = 1;
+        if (query.order == UserQuery.Order.ID && groupId != null) {
+            statement = conn.prepareStatement(SQL_LIST_GROUP_MEMBERS);
+            statement.setInt(parameterIndex++, groupId);
+            statement.setLong(parameterIndex++, afterId);
+        } else if (query.order == UserQuery.Order.ID) {
+            statement = conn.prepareStatement(SQL_LIST_BY_ID);
+            statement.setLong(parameterIndex++, afterId);
+        } else if (query.prefixEnd == null) {
+            statement = conn.prepareStatement(afterUsername == null ?
+                    SQL_LIST_BY_USERNAME_FROM :
+                    SQL_LIST_BY_USERNAME_AFTER);
+            statement.setString(parameterIndex++, afterUsername == null ?
+                    query.prefix == null ? "" : query.prefix :
+                    afterUsername);
+        } else {
+            statement = conn.prepareStatement(afterUsername == null ?
+                    SQL_LIST_BY_PREFIX_FROM :
+                    SQL_LIST_BY_PREFIX_AFTER);
+            statement.setString(parameterIndex++, afterUsername == null ?
+                    query.prefix :
+                    afterUsername);
+            statement.setString(parameterIndex++, query.prefixEnd);
+        }
+        statement.setInt(parameterIndex, chunkSize);
+        return statement;
+    }
+
+    /**
+     * @return the packed secret in column {@code packedIndex} or else the v1 secret in column
+     * {@code v1Index}, if that is not 0.
+     */
+    private static String readSecret(@NonNull ResultSet resultSet, int packedIndex, int v1Index)
+            throws SQLException {
+        var packed = resultSet.getBytes(packedIndex);
+        if (packed != null) {
+            return PackedSecrets.unpack(packed);
+        }
+        return v1Index == 0 ? null : resultSet.getString(v1Index);
+    }
+
+    /**
+     * @return the groups in the column {@code index} of {@code resultSet}: the array of their
+     * GroupDictionary ids, which is null if there are none.
+     */
+    @NonNull
+    private Set<String> readGroups(@NonNull ResultSet resultSet, int index) throws SQLException {
+        var groupIds = resultSet.getArray(index);
+        if (groupIds == null) {
+            return Set.of();
+        }
+        var objectArray = (Object[]) groupIds.getArray();
+        var ids = new int[objectArray.length];
+        for (var i = 0; i < ids.length; i++) {
+            ids[i] = (Integer) objectArray[i];
+        }
+        return groupDictionary.decode(ids);
+    }
+
+    /**
+     * @return the type of the column {@code columnName} of the credentials table; null if there
+     * is no such column.
+     */
+    private static String columnType(@NonNull Connection conn, @NonNull String columnName)
+            throws SQLException {
+        try (PreparedStatement statement = conn.prepareStatement(SQL_SELECT_COLUMN_TYPE)) {
+            statement.setString(1, columnName);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() ? resultSet.getString(1) : null;
+            }
+        }
+    }
+
+    /**
+     * Execute {@code sqlStatement} with the parameters {@code groupId} and each of {@code ids} in
+     * batches of one transaction and increment the versions of the users whose row was inserted
+     * or deleted. A user whose membership didn't change keeps its version, so an ETag held by a
+     * client stays valid for an idempotent or a retried call.
+     *
+     * @return the number of updated rows.
+     */
+    private int updateGroupMembers(@NonNull String sqlStatement, int groupId,
+            @NonNull Set<Long> ids) {
+        var updatedIds = new ArrayList<Long>();
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement statement = conn.prepareStatement(sqlStatement);
+             PreparedStatement versionStatement = conn.prepareStatement(SQL_INCREMENT_VERSION)) {
+            conn.setAutoCommit(false);
+            try {
+                var batchedIds = new ArrayList<Long>(Math.min(ids.size(), BATCH_SIZE));
+                var batched = 0;
+                for (var id : ids) {
+                    statement.setInt(1, groupId);
+                    statement.setLong(2, id);
+                    statement.addBatch();
+                    batchedIds.add(id);
+                    if (++batched % BATCH_SIZE == 0 || batched == ids.size()) {
+                        executeGroupMembersBatch(statement, versionStatement, batchedIds,
+                                updatedIds);
+                    }
+                }
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            LOG.errorf("updateGroupMembers failed: %s", e.getMessage());
+            throw new IllegalStateException("updateGroupMembers failed due to SQL exception");
+        }
+        updatedIds.forEach(authDataCache::invalidate);
+        return updatedIds.size();
+    }
+
+    /**
+     * Execute the batch of {@code statement}, whose users are {@code batchedIds}, and increment
+     * the versions of the users of updated rows, which are added to {@code updatedIds}. Clears
+     * {@code batchedIds}.
+     */
+    private static void executeGroupMembersBatch(@NonNull PreparedStatement statement,
+            @NonNull PreparedStatement versionStatement, @NonNull List<Long> batchedIds,
+            @NonNull List<Long> updatedIds) throws SQLException {
+        var updateCounts = statement.executeBatch();
+        var versionsBatched = false;
+        for (var i = 0; i < updateCounts.length; i++) {
+            if (updateCounts[i] > 0) {
+                versionStatement.setLong(1, batchedIds.get(i));
+                versionStatement.addBatch();
+                updatedIds.add(batchedIds.get(i));
+                versionsBatched = true;
+            }
+        }
+        if (versionsBatched) {
+            versionStatement.executeBatch();
+        }
+        batchedIds.clear();
+    }
+
+    /**
+     * Replace the groups of the user with the given id in the transaction of {@code conn}, which
+     * must hold the lock of the user's row.
+     */
+    private static void replaceGroups(@NonNull Connection conn, long id, int[] groupIds)
+            throws SQLException {
+        try (PreparedStatement deleteStatement = conn.prepareStatement(SQL_DELETE_USER_GROUPS);
+             PreparedStatement insertStatement = conn.prepareStatement(SQL_INSERT_USER_GROUP)) {
+            deleteStatement.setLong(1, id);
+            deleteStatement.executeUpdate();
+            for (var groupId : groupIds) {
+                insertStatement.setLong(1, id);
+                insertStatement.setInt(2, groupId);
+                insertStatement.addBatch();
+            }
+            if (groupIds.length > 0) {
+                insertStatement.executeBatch();
+            }
+        }
+    }
+
+    @NonNull
+    private static OptionalLong selectVersion(@NonNull Connection conn, long id)
+            throws SQLException {
+        try (PreparedStatement statement = conn.prepareStatement(SQL_SELECT_VERSION)) {
+            statement.setLong(1, id);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() ?
+                        OptionalLong.of(resultSet.getLong(1)) :
+                        OptionalLong.empty();
+            }
+        }
     }
 
-    private boolean updateStringColumn(long id, @NonNull String newValue,
+    private boolean updateColumn(long id, @NonNull Object newValue,
             @NonNull String sqlStatement) {
         var updatedRows = 0;
         try (Connection conn = dataSource.getConnection();
              PreparedStatement statement = conn.prepareStatement(sqlStatement)) {
             conn.setAutoCommit(true);
-            statement.setString(1, newValue);
+            statement.setObject(1, newValue);
             statement.setLong(2, id);
             updatedRows = statement.executeUpdate();
         } catch (SQLException e) {
@@ -148,9 +799,10 @@ public class CredentialsStoreService {
             if (e.getSQLState().equals(SQL_STATE_UNIQUE_VIOLATION)) {
                 throw new IllegalArgumentException("conflict");
             }
-            LOG.errorf("updateStringColumn failed: %s", e.getMessage());
-            throw new IllegalStateException("updateStringColumn failed due to SQL exception");
+            LOG.errorf("updateColumn failed: %s", e.getMessage());
+            throw new IllegalStateException("updateColumn failed due to SQL exception");
         }
+        authDataCache.invalidate(id);
         return updatedRows == 1;
     }
 
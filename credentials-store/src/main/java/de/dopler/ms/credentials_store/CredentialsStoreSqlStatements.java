@@ -7,33 +7,61 @@ public final class CredentialsStoreSqlStatements {
     }
 
     // @formatter:off
+    // schema v2: the secrets are packed by PackedSecrets, the UNIQUE constraint's index is the
+    // only index on the username and the groups are in the user_groups table. Every change of a
+    // user increments its version, the ETag of the optimistic concurrency of PATCH requests.
     //language=H2
     static final String SQL_CREATE_TABLE =
             "CREATE TABLE IF NOT EXISTS credentials (" +
                     "  id IDENTITY," +
                     "  username VARCHAR(254) UNIQUE," +
-                    "  secret CHAR(60)," +
-                    "  groups ARRAY NOT NULL DEFAULT ()," +
+                    "  packed_secret VARBINARY," +
+                    "  version BIGINT NOT NULL DEFAULT 0," +
                     "  last_mod TIMESTAMP WITH TIME ZONE AS CURRENT_TIMESTAMP());";
 
+    // the group memberships by the ids of the GroupDictionary: the primary key reads the groups
+    // of a user, the group index the members of a group. No foreign key: H2 would add a third
+    // index on user_id for it.
     //language=H2
-    static final String SQL_CREATE_INDEX =
-            "CREATE UNIQUE INDEX IF NOT EXISTS idx_username_secret" +
-                    "  ON credentials" +
-                    "  (username, secret);";
+    static final String SQL_CREATE_USER_GROUPS_TABLE =
+            "CREATE TABLE IF NOT EXISTS user_groups (" +
+                    "  user_id BIGINT NOT NULL," +
+                    "  group_id INT NOT NULL," +
+                    "  PRIMARY KEY (user_id, group_id));";
+
+    //language=H2
+    static final String SQL_CREATE_GROUP_INDEX =
+            "CREATE INDEX IF NOT EXISTS idx_user_groups_group" +
+                    "  ON user_groups (group_id, user_id);";
+
+    // for a store created before the version column; H2 rewrites the table to add it
+    //language=H2
+    static final String SQL_ADD_VERSION_COLUMN =
+            "ALTER TABLE credentials" +
+                    "  ADD COLUMN IF NOT EXISTS version BIGINT NOT NULL DEFAULT 0;";
 
     //language=H2
     static final String SQL_INSERT =
             "INSERT INTO credentials" +
-                    "  (username, secret)" +
+                    "  (username, packed_secret)" +
                     "  VALUES (?, ?);";
 
+    // one row per group (one with a null group_id if there are none); for a single user, the
+    // join is faster than the ARRAY_AGG subquery of the statements reading many users
     //language=H2
     static final String SQL_SELECT =
-            "SELECT id, secret, groups FROM credentials" +
+            "SELECT id, packed_secret, group_id, version FROM credentials" +
+                    "  LEFT JOIN user_groups ON user_id = id" +
                     "  WHERE" +
-                    "  username = ?" +
-                    "  LIMIT 1;";
+                    "  username = ?;";
+
+    // while the secrets of schema v1 are packed: the v1 secret is read if there is no packed one
+    //language=H2
+    static final String SQL_SELECT_V1 =
+            "SELECT id, packed_secret, group_id, version, secret FROM credentials" +
+                    "  LEFT JOIN user_groups ON user_id = id" +
+                    "  WHERE" +
+                    "  username = ?;";
 
     //language=H2
     static final String SQL_DELETE =
@@ -45,7 +73,7 @@ public final class CredentialsStoreSqlStatements {
     //language=H2
     static final String SQL_UPDATE_USERNAME =
             "UPDATE credentials" +
-                    "  SET username = ?" +
+                    "  SET username = ?, version = version + 1" +
                     "  WHERE" +
                     "  id = ?" +
                     "  LIMIT 1;";
@@ -53,17 +81,278 @@ public final class CredentialsStoreSqlStatements {
     //language=H2
     static final String SQL_UPDATE_SECRET =
             "UPDATE credentials" +
-                    "  SET secret = ?" +
+                    "  SET packed_secret = ?, version = version + 1" +
                     "  WHERE" +
                     "  id = ?" +
                     "  LIMIT 1;";
 
+    // for a change of the groups; locks the row, so the user can't be removed while its groups
+    // are replaced
+    //language=H2
+    static final String SQL_INCREMENT_VERSION =
+            "UPDATE credentials" +
+                    "  SET version = version + 1" +
+                    "  WHERE" +
+                    "  id = ?;";
+
+    // PATCH: a null parameter keeps the column; the conditional statement fails for a changed
+    // version instead of overwriting the change
     //language=H2
-    static final String SQL_UPDATE_GROUPS =
+    static final String SQL_PATCH =
             "UPDATE credentials" +
-                    "  SET groups = ?" +
+                    "  SET username = COALESCE(?, username)," +
+                    "  packed_secret = COALESCE(?, packed_secret)," +
+                    "  version = version + 1" +
+                    "  WHERE" +
+                    "  id = ?;";
+
+    //language=H2
+    static final String SQL_PATCH_IF_VERSION =
+            "UPDATE credentials" +
+                    "  SET username = COALESCE(?, username)," +
+                    "  packed_secret = COALESCE(?, packed_secret)," +
+                    "  version = version + 1" +
                     "  WHERE" +
                     "  id = ?" +
+                    "  AND version = ?;";
+
+    //language=H2
+    static final String SQL_SELECT_VERSION =
+            "SELECT version FROM credentials" +
+                    "  WHERE" +
+                    "  id = ?;";
+
+    //language=H2
+    static final String SQL_SELECT_METADATA =
+            "SELECT username," +
+                    "  (SELECT ARRAY_AGG(group_id) FROM user_groups" +
+                    "    WHERE user_id = credentials.id)," +
+                    "  version FROM credentials" +
+                    "  WHERE" +
+                    "  id = ?;";
+
+    //language=H2
+    static final String SQL_DELETE_USER_GROUPS =
+            "DELETE FROM user_groups" +
+                    "  WHERE" +
+                    "  user_id = ?;";
+
+    //language=H2
+    static final String SQL_INSERT_USER_GROUP =
+            "INSERT INTO user_groups" +
+                    "  (user_id, group_id)" +
+                    "  VALUES (?, ?);";
+
+    // group-scoped bulk operations: a member which doesn't exist is skipped, an existing
+    // membership is kept. Unlike a MERGE, which counts an existing row as updated, the statement
+    // inserts a row only for a new membership, so its update count tells whether the user changed.
+    // The parameters are indexed: ?1 is the group, ?2 the user
+    //language=H2
+    static final String SQL_ADD_GROUP_MEMBER =
+            "INSERT INTO user_groups" +
+                    "  (user_id, group_id)" +
+                    "  SELECT id, ?1 FROM credentials" +
+                    "  WHERE" +
+                    "  id = ?2" +
+                    "  AND NOT EXISTS (SELECT 1 FROM user_groups" +
+                    "    WHERE user_id = credentials.id AND group_id = ?1);";
+
+    //language=H2
+    static final String SQL_REMOVE_GROUP_MEMBER =
+            "DELETE FROM user_groups" +
+                    "  WHERE" +
+                    "  group_id = ?" +
+                    "  AND user_id = ?;";
+
+    // listing: keyset pagination, the index sorted rows are read from the previous chunk's last
+    //language=H2
+    static final String SQL_LIST_BY_ID =
+            "SELECT id, username," +
+                    "  (SELECT ARRAY_AGG(group_id) FROM user_groups" +
+                    "    WHERE user_id = credentials.id)" +
+                    "  FROM credentials" +
+                    "  WHERE" +
+                    "  id > ?" +
+                    "  ORDER BY id" +
+                    "  LIMIT ?;";
+
+    //language=H2
+    static final String SQL_LIST_BY_USERNAME_FROM =
+            "SELECT id, username," +
+                    "  (SELECT ARRAY_AGG(group_id) FROM user_groups" +
+                    "    WHERE user_id = credentials.id)" +
+                    "  FROM credentials" +
+                    "  WHERE" +
+                    "  username >= ?" +
+                    "  ORDER BY username" +
+                    "  LIMIT ?;";
+
+    //language=H2
+    static final String SQL_LIST_BY_USERNAME_AFTER =
+            "SELECT id, username," +
+                    "  (SELECT ARRAY_AGG(group_id) FROM user_groups" +
+                    "    WHERE user_id = credentials.id)" +
+                    "  FROM credentials" +
+                    "  WHERE" +
+                    "  username > ?" +
+                    "  ORDER BY username" +
+                    "  LIMIT ?;";
+
+    // the upper bound is the first string after all strings with the prefix
+    //language=H2
+    static final String SQL_LIST_BY_PREFIX_FROM =
+            "SELECT id, username," +
+                    "  (SELECT ARRAY_AGG(group_id) FROM user_groups" +
+                    "    WHERE user_id = credentials.id)" +
+                    "  FROM credentials" +
+                    "  WHERE" +
+                    "  username >= ?" +
+                    "  AND username < ?" +
+                    "  ORDER BY username" +
+                    "  LIMIT ?;";
+
+    //language=H2
+    static final String SQL_LIST_BY_PREFIX_AFTER =
+            "SELECT id, username," +
+                    "  (SELECT ARRAY_AGG(group_id) FROM user_groups" +
+                    "    WHERE user_id = credentials.id)" +
+                    "  FROM credentials" +
+                    "  WHERE" +
+                    "  username > ?" +
+                    "  AND username < ?" +
+                    "  ORDER BY username" +
+                    "  LIMIT ?;";
+
+    // seeks in the group index, whose order H2 only uses if the ORDER BY starts with group_id
+    //language=H2
+    static final String SQL_LIST_GROUP_MEMBERS =
+            "SELECT user_id," +
+                    "  (SELECT username FROM credentials WHERE id = members.user_id)," +
+                    "  (SELECT ARRAY_AGG(group_id) FROM user_groups" +
+                    "    WHERE user_id = members.user_id)" +
+                    "  FROM user_groups members USE INDEX (idx_user_groups_group)" +
+                    "  WHERE" +
+                    "  group_id = ?" +
+                    "  AND user_id > ?" +
+                    "  ORDER BY group_id, user_id" +
+                    "  LIMIT ?;";
+
+    // export and import
+    //language=H2
+    static final String SQL_SELECT_ALL =
+            "SELECT id, username, packed_secret," +
+                    "  (SELECT ARRAY_AGG(group_id) FROM user_groups" +
+                    "    WHERE user_id = credentials.id)" +
+                    "  FROM credentials" +
+                    "  ORDER BY id;";
+
+    //language=H2
+    static final String SQL_SELECT_ALL_V1 =
+            "SELECT id, username, packed_secret," +
+                    "  (SELECT ARRAY_AGG(group_id) FROM user_groups" +
+                    "    WHERE user_id = credentials.id), secret" +
+                    "  FROM credentials" +
+                    "  ORDER BY id;";
+
+    // H2 moves the identity sequence past explicitly inserted ids; replaced credentials get the
+    // next version, new ones version 0
+    //language=H2
+    static final String SQL_MERGE =
+            "MERGE INTO credentials" +
+                    "  (id, username, packed_secret, version)" +
+                    "  KEY (id)" +
+                    "  SELECT ?, ?, ?, COALESCE(MAX(version) + 1, 0) FROM credentials" +
+                    "  WHERE" +
+                    "  id = ?;";
+
+    // migration of the groups from a column of the credentials table: an ARRAY column, its
+    // GroupDictionary ids or the ids column of a migration of the ARRAY column which stopped
+    // after dropping it
+    //language=H2
+    static final String SQL_SELECT_COLUMN_TYPE =
+            "SELECT type_name FROM information_schema.columns" +
+                    "  WHERE" +
+                    "  table_schema = SCHEMA()" +
+                    "  AND table_name = 'CREDENTIALS'" +
+                    "  AND column_name = ?;";
+
+    //language=H2
+    static final String SQL_SELECT_ARRAY_GROUPS =
+            "SELECT id, groups FROM credentials" +
+                    "  WHERE" +
+                    "  ARRAY_LENGTH(groups) > 0;";
+
+    //language=H2
+    static final String SQL_SELECT_ENCODED_GROUPS =
+            "SELECT id, groups FROM credentials" +
+                    "  WHERE" +
+                    "  LENGTH(groups) > 0;";
+
+    //language=H2
+    static final String SQL_SELECT_ENCODED_GROUP_IDS =
+            "SELECT id, group_ids FROM credentials" +
+                    "  WHERE" +
+                    "  LENGTH(group_ids) > 0;";
+
+    //language=H2
+    static final String SQL_DROP_GROUPS_COLUMN =
+            "ALTER TABLE credentials" +
+                    "  DROP COLUMN IF EXISTS groups;";
+
+    //language=H2
+    static final String SQL_DROP_GROUP_IDS_COLUMN =
+            "ALTER TABLE credentials" +
+                    "  DROP COLUMN IF EXISTS group_ids;";
+
+    // migration of schema v1: its (username, secret) index duplicates the username index and its
+    // secrets are CHAR(60) text
+    //language=H2
+    static final String SQL_DROP_USERNAME_SECRET_INDEX =
+            "DROP INDEX IF EXISTS idx_username_secret;";
+
+    //language=H2
+    static final String SQL_SELECT_V1_SECRET_COLUMN_EXISTS =
+            "SELECT 1 FROM information_schema.columns" +
+                    "  WHERE" +
+                    "  table_schema = SCHEMA()" +
+                    "  AND table_name = 'CREDENTIALS'" +
+                    "  AND column_name = 'SECRET';";
+
+    //language=H2
+    static final String SQL_ADD_PACKED_SECRET_COLUMN =
+            "ALTER TABLE credentials" +
+                    "  ADD COLUMN IF NOT EXISTS packed_secret VARBINARY;";
+
+    //language=H2
+    static final String SQL_SELECT_V1_SECRET_EXISTS =
+            "SELECT 1 FROM credentials" +
+                    "  WHERE" +
+                    "  packed_secret IS NULL" +
+                    "  AND secret IS NOT NULL" +
                     "  LIMIT 1;";
+
+    //language=H2
+    static final String SQL_SELECT_V1_SECRETS_CHUNK =
+            "SELECT id, secret FROM credentials" +
+                    "  WHERE" +
+                    "  id > ?" +
+                    "  AND packed_secret IS NULL" +
+                    "  AND secret IS NOT NULL" +
+                    "  ORDER BY id" +
+                    "  LIMIT ?;";
+
+    // a secret changed meanwhile is packed already and not overwritten
+    //language=H2
+    static final String SQL_UPDATE_PACKED_V1_SECRET =
+            "UPDATE credentials" +
+                    "  SET packed_secret = ?" +
+                    "  WHERE" +
+                    "  id = ?" +
+                    "  AND packed_secret IS NULL;";
+
+    //language=H2
+    static final String SQL_DROP_V1_SECRET_COLUMN =
+            "ALTER TABLE credentials" +
+                    "  DROP COLUMN secret;";
     // @formatter:on
 }
@@ -0,0 +1,271 @@
+package de.dopler.ms.credentials_store;
+
+import de.dopler.ms.credentials_store.domain.Credentials;
+import de.dopler.ms.credentials_store.domain.InsertResult;
+import de.dopler.ms.credentials_store.domain.StoredCredentials;
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.json.bind.Jsonb;
+import javax.json.bind.JsonbBuilder;
+import javax.json.bind.JsonbException;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+/**
+ * Export and import of all credentials as NDJSON: one {@link StoredCredentials} per line, with
+ * the hashed secret.
+ * <p>
+ * Both directions stream: the export writes the credentials while they are read, the import
+ * stores every {@code credentials-store.import.batch-size} parsed lines in one batch. So neither
+ * holds more than a batch of credentials in memory, regardless of the number of users.
+ * <p>
+ * New users, e.g. of a new tenant, are stored by a bulk insert of NDJSON {@link Credentials},
+ * which streams back the generated ids in the same way. Pages of the user listing are streamed
+ * as NDJSON {@link de.dopler.ms.credentials_store.domain.ListedUser}s.
+ */
+@ApplicationScoped
+public class CredentialsTransfer {
+
+    private static final Logger LOG = Logger.getLogger("CredentialsTransfer");
+
+    private static final Jsonb JSONB = JsonbBuilder.create();
+    // the length of the username column
+    private static final int MAX_USERNAME_LENGTH = 254;
+
+    private final CredentialsStoreService credentialsStoreService;
+    private final int batchSize;
+
+    @Inject
+    public CredentialsTransfer(CredentialsStoreService credentialsStoreService,
+            @ConfigProperty(name = "credentials-store.import.batch-size", defaultValue = "1000")
+                    int batchSize) {
+        this.credentialsStoreService = credentialsStoreService;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @return the number of exported credentials.
+     * @throws UncheckedIOException if writing fails.
+     */
+    public long exportCredentials(@NonNull Writer writer) {
+        var timingStart = Instant.now();
+        var count = new long[1];
+        credentialsStoreService.forEachCredentials(credentials -> {
+            try {
+                writer.write(JSONB.toJson(credentials));
+                writer.write('\n');
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            count[0]++;
+        });
+        try {
+            writer.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        var duration = timingStart.until(Instant.now(), ChronoUnit.MILLIS);
+        LOG.infof("Exported %d credentials after %d ms", count[0], duration);
+        return count[0];
+    }
+
+    /**
+     * @return the number of listed users.
+     * @throws UncheckedIOException if writing fails.
+     */
+    public int listUsers(@NonNull UserQuery query, @NonNull Writer writer) {
+        var listed = credentialsStoreService.listUsers(query, user -> {
+            try {
+                writer.write(JSONB.toJson(user));
+                writer.write('\n');
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        try {
+            writer.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return listed;
+    }
+
+    /**
+     * Store the credentials of {@code reader} with their ids, replacing stored credentials with
+     * the same id. Empty lines are skipped. The batches stored before an invalid line or a
+     * conflict stay stored, so a failed import can be repeated once the input is fixed.
+     *
+     * @return the number of imported credentials.
+     * @throws IllegalArgumentException if a line is not valid credentials or a username is
+     *                                  taken by credentials with another id.
+     */
+    public long importCredentials(@NonNull Reader reader) throws IOException {
+        var timingStart = Instant.now();
+        var imported = 0L;
+        var batch = new ArrayList<StoredCredentials>(batchSize);
+        var lineReader = new BufferedReader(reader);
+        String line;
+        var lineNumber = 0;
+        while ((line = lineReader.readLine()) != null) {
+            lineNumber++;
+            if (line.isBlank()) {
+                continue;
+            }
+            batch.add(parse(line, lineNumber));
+            if (batch.size() >= batchSize) {
+                imported += store(batch, lineNumber);
+            }
+        }
+        if (!batch.isEmpty()) {
+            imported += store(batch, lineNumber);
+        }
+        var duration = timingStart.until(Instant.now(), ChronoUnit.MILLIS);
+        LOG.infof("Imported %d credentials after %d ms", imported, duration);
+        return imported;
+    }
+
+    /**
+     * Store the new credentials of {@code reader}, one {@link Credentials} with the hashed secret
+     * per line, and write one {@link InsertResult} per non-empty line to {@code writer}. Every
+     * {@code credentials-store.import.batch-size} lines are stored in one batch; their results
+     * are written once the batch is committed. Invalid lines and taken usernames are reported
+     * without failing the other lines of their batch.
+     *
+     * @return the number of stored credentials.
+     * @throws IllegalStateException if storing a batch fails; the batches reported before stay
+     *                               stored.
+     */
+    public long insertCredentials(@NonNull Reader reader, @NonNull Writer writer)
+            throws IOException {
+        var timingStart = Instant.now();
+        var inserted = 0L;
+        var skipped = 0L;
+        var batch = new ArrayList<Line>(batchSize);
+        var lineReader = new BufferedReader(reader);
+        String line;
+        var lineNumber = 0;
+        while ((line = lineReader.readLine()) != null) {
+            lineNumber++;
+            if (line.isBlank()) {
+                continue;
+            }
+            batch.add(new Line(lineNumber, parseNew(line)));
+            if (batch.size() >= batchSize) {
+                var batchInserted = insert(batch, writer);
+                inserted += batchInserted;
+                skipped += batch.size() - batchInserted;
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            var batchInserted = insert(batch, writer);
+            inserted += batchInserted;
+            skipped += batch.size() - batchInserted;
+        }
+        var duration = timingStart.until(Instant.now(), ChronoUnit.MILLIS);
+        LOG.infof("Inserted %d credentials and skipped %d after %d ms", inserted, skipped,
+                duration);
+        return inserted;
+    }
+
+    @NonNull
+    private static StoredCredentials parse(@NonNull String line, int lineNumber) {
+        StoredCredentials credentials;
+        try {
+            credentials = JSONB.fromJson(line, StoredCredentials.class);
+        } catch (JsonbException e) {
+            credentials = null;
+        }
+        if (credentials == null || credentials.username == null ||
+                credentials.secret == null || credentials.groups == null) {
+            throw new IllegalArgumentException(
+                    String.format("invalid credentials in line %d", lineNumber));
+        }
+        return credentials;
+    }
+
+    /**
+     * @return the credentials of {@code line} or null if they are invalid.
+     */
+    private static Credentials parseNew(@NonNull String line) {
+        Credentials credentials;
+        try {
+            credentials = JSONB.fromJson(line, Credentials.class);
+        } catch (JsonbException e) {
+            return null;
+        }
+        if (credentials == null || credentials.username == null || credentials.secret == null ||
+                credentials.username.length() > MAX_USERNAME_LENGTH) {
+            return null;
+        }
+        return credentials;
+    }
+
+    /**
+     * @return the number of stored credentials.
+     */
+    private int insert(@NonNull List<Line> batch, @NonNull Writer writer) throws IOException {
+        var valid = batch.stream()
+                .filter(line -> line.credentials != null)
+                .map(line -> line.credentials)
+                .collect(Collectors.toList());
+        var ids = valid.isEmpty() ?
+                List.<Optional<Long>>of() :
+                credentialsStoreService.insertCredentials(valid);
+        var nextId = ids.iterator();
+        var inserted = 0;
+        for (var line : batch) {
+            InsertResult result;
+            if (line.credentials == null) {
+                result = new InsertResult(line.number, null, null, InsertResult.ERROR_INVALID);
+            } else {
+                var id = nextId.next();
+                result = new InsertResult(line.number, line.credentials.username, id.orElse(null),
+                        id.isPresent() ? null : InsertResult.ERROR_CONFLICT);
+                if (id.isPresent()) {
+                    inserted++;
+                }
+            }
+            writer.write(JSONB.toJson(result));
+            writer.write('\n');
+        }
+        writer.flush();
+        return inserted;
+    }
+
+    private int store(@NonNull List<StoredCredentials> batch, int lastLineNumber) {
+        int stored;
+        try {
+            stored = credentialsStoreService.mergeCredentials(batch);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(String.format(
+                    "username conflict in the batch ending at line %d", lastLineNumber));
+        }
+        batch.clear();
+        return stored;
+    }
+
+    private static final class Line {
+
+        final int number;
+        final Credentials credentials;
+
+        Line(int number, Credentials credentials) {
+            this.number = number;
+            this.credentials = credentials;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package de.dopler.ms.credentials_store;
+
+import de.dopler.ms.group_dictionary.GroupDictionarySqlStatements;
+import de.dopler.ms.jdbc_metrics.JdbcMetrics;
+import io.agroal.api.AgroalDataSource;
+import io.quarkus.arc.AlternativePriority;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.eclipse.microprofile.metrics.annotation.RegistryType;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.inject.Produces;
+import javax.inject.Singleton;
+import javax.sql.DataSource;
+
+/**
+ * Provides the default datasource instrumented with {@link JdbcMetrics} unless
+ * {@code credentials-store.jdbc-metrics.enabled} is false. It replaces the datasource of Agroal
+ * for all injection points.
+ */
+@ApplicationScoped
+public class DataSourceProducer {
+
+    @SuppressWarnings("CdiInjectionPointsInspection")
+    @Produces
+    @AlternativePriority(1)
+    @Singleton
+    DataSource dataSource(AgroalDataSource dataSource,
+            @RegistryType(type = MetricRegistry.Type.APPLICATION) MetricRegistry metricRegistry,
+            @ConfigProperty(name = "credentials-store.jdbc-metrics.enabled",
+                    defaultValue = "true") boolean enabled) {
+        if (!enabled) {
+            return dataSource;
+        }
+        return new JdbcMetrics(metricRegistry, CredentialsStoreSqlStatements.class,
+                GroupDictionarySqlStatements.class).instrument(dataSource);
+    }
+}
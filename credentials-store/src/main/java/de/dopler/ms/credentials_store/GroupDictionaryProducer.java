@@ -0,0 +1,26 @@
+package de.dopler.ms.credentials_store;
+
+import de.dopler.ms.group_dictionary.GroupDictionary;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.inject.Produces;
+import javax.inject.Singleton;
+import javax.sql.DataSource;
+
+/**
+ * Provides the {@link GroupDictionary} of the credentials database.
+ */
+@ApplicationScoped
+public class GroupDictionaryProducer {
+
+    @SuppressWarnings("CdiInjectionPointsInspection")
+    @Produces
+    @Singleton
+    GroupDictionary groupDictionary(DataSource dataSource,
+            @ConfigProperty(name = "credentials-store.groups.min-reload-interval-millis",
+                    defaultValue = "1000") long minReloadIntervalMillis) {
+        return new GroupDictionary(dataSource, GroupDictionary.DEFAULT_MAX_CACHED_GROUP_SETS,
+                minReloadIntervalMillis);
+    }
+}
@@ -0,0 +1,132 @@
+package de.dopler.ms.credentials_store;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Conversion between the hashed secrets of the API and the bytes stored in the
+ * {@code packed_secret} column.
+ * <p>
+ * A Modular Crypt Format bcrypt hash ({@code $2a$10$} followed by 22 characters of salt and 31 of
+ * hash, 60 bytes as text) is packed into 41 bytes: the minor version character, the cost, the 16
+ * bytes of salt and the 23 bytes of hash. Any other secret is stored as a zero byte followed by
+ * its UTF-8 encoding, so every secret is returned exactly as it was stored.
+ */
+final class PackedSecrets {
+
+    private static final int BCRYPT_LENGTH = 60;
+    private static final int SALT_LENGTH = 16;
+    private static final int HASH_LENGTH = 23;
+    private static final int PACKED_BCRYPT_LENGTH = 2 + SALT_LENGTH + HASH_LENGTH;
+    private static final byte UNPACKED = 0;
+
+    private static final char[] BCRYPT_CHARS =
+            "./ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789".toCharArray();
+    private static final int[] BCRYPT_VALUES = new int[128];
+
+    static {
+        Arrays.fill(BCRYPT_VALUES, -1);
+        for (int i = 0; i < BCRYPT_CHARS.length; i++) {
+            BCRYPT_VALUES[BCRYPT_CHARS[i]] = i;
+        }
+    }
+
+    private PackedSecrets() {
+        // utility class
+    }
+
+    @NonNull
+    static byte[] pack(@NonNull String secret) {
+        if (isBcrypt(secret)) {
+            var packed = new byte[PACKED_BCRYPT_LENGTH];
+            packed[0] = (byte) secret.charAt(2);
+            packed[1] = (byte) ((secret.charAt(4) - '0') * 10 + secret.charAt(5) - '0');
+            decode(secret, 7, packed, 2, SALT_LENGTH);
+            decode(secret, 29, packed, 2 + SALT_LENGTH, HASH_LENGTH);
+            // unused bits of the last salt or hash character which are set can't be restored
+            if (unpack(packed).equals(secret)) {
+                return packed;
+            }
+        }
+        var utf8 = secret.getBytes(StandardCharsets.UTF_8);
+        var packed = new byte[utf8.length + 1];
+        packed[0] = UNPACKED;
+        System.arraycopy(utf8, 0, packed, 1, utf8.length);
+        return packed;
+    }
+
+    @NonNull
+    static String unpack(@NonNull byte[] packed) {
+        if (packed.length == 0 || packed[0] == UNPACKED) {
+            return new String(packed, Math.min(1, packed.length), Math.max(0, packed.length - 1),
+                    StandardCharsets.UTF_8);
+        }
+        var secret = new StringBuilder(BCRYPT_LENGTH)
+                .append("$2").append((char) packed[0]).append('$');
+        var cost = packed[1];
+        secret.append((char) ('0' + cost / 10)).append((char) ('0' + cost % 10)).append('$');
+        encode(packed, 2, SALT_LENGTH, secret);
+        encode(packed, 2 + SALT_LENGTH, HASH_LENGTH, secret);
+        return secret.toString();
+    }
+
+    private static boolean isBcrypt(@NonNull String secret) {
+        if (secret.length() != BCRYPT_LENGTH || !secret.startsWith("$2") ||
+                secret.charAt(2) < 'a' || secret.charAt(2) > 'z' || secret.charAt(3) != '$' ||
+                !isDigit(secret.charAt(4)) || !isDigit(secret.charAt(5)) ||
+                secret.charAt(6) != '$') {
+            return false;
+        }
+        for (int i = 7; i < BCRYPT_LENGTH; i++) {
+            var c = secret.charAt(i);
+            if (c >= BCRYPT_VALUES.length || BCRYPT_VALUES[c] < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    /**
+     * Decode {@code length} bytes from the bcrypt base64 characters of {@code secret} starting at
+     * {@code from}; the characters hold 6 bits each, most significant first.
+     */
+    private static void decode(@NonNull String secret, int from, @NonNull byte[] bytes,
+            int offset, int length) {
+        var bits = 0;
+        var bitCount = 0;
+        var index = from;
+        for (int i = 0; i < length; i++) {
+            while (bitCount < 8) {
+                bits = bits << 6 | BCRYPT_VALUES[secret.charAt(index++)];
+                bitCount += 6;
+            }
+            bitCount -= 8;
+            bytes[offset + i] = (byte) (bits >>> bitCount);
+            bits &= (1 << bitCount) - 1;
+        }
+    }
+
+    private static void encode(@NonNull byte[] bytes, int offset, int length,
+            @NonNull StringBuilder secret) {
+        var bits = 0;
+        var bitCount = 0;
+        for (int i = 0; i < length; i++) {
+            bits = bits << 8 | bytes[offset + i] & 0xFF;
+            bitCount += 8;
+            while (bitCount >= 6) {
+                bitCount -= 6;
+                secret.append(BCRYPT_CHARS[bits >>> bitCount]);
+                bits &= (1 << bitCount) - 1;
+            }
+        }
+        if (bitCount > 0) {
+            secret.append(BCRYPT_CHARS[bits << 6 - bitCount]);
+        }
+    }
+}
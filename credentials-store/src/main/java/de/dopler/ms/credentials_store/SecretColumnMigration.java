@@ -0,0 +1,122 @@
+package de.dopler.ms.credentials_store;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.jboss.logging.Logger;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static de.dopler.ms.credentials_store.CredentialsStoreSqlStatements.*;
+
+/**
+ * Packs the {@code CHAR(60)} secrets of a schema v1 table into its {@code packed_secret} column
+ * while the store keeps serving requests.
+ * <p>
+ * The rows are packed in chunks in the order of their ids, each chunk in its own transaction.
+ * All writes store packed secrets only, so a row whose secret has been changed concurrently is
+ * skipped. Until then, {@link CredentialsStoreService} reads the v1 secret of rows without a
+ * packed one. The v1 column is dropped by the next {@link CredentialsStoreService#initStore()},
+ * as dropping a column rewrites the table and would block all requests meanwhile.
+ */
+final class SecretColumnMigration {
+
+    private static final Logger LOG = Logger.getLogger("SecretColumnMigration");
+
+    private static final long RETRY_DELAY_MILLIS = 1000;
+
+    private final DataSource dataSource;
+    private final int chunkSize;
+    private final Thread migrator;
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    SecretColumnMigration(@NonNull DataSource dataSource, int chunkSize) {
+        this.dataSource = dataSource;
+        this.chunkSize = chunkSize;
+        migrator = new Thread(this::migrate, "secret-column-migration");
+        migrator.setDaemon(true);
+    }
+
+    void start() {
+        migrator.start();
+    }
+
+    boolean isRunning() {
+        return done.getCount() > 0;
+    }
+
+    private void migrate() {
+        var timingStart = Instant.now();
+        var lastId = 0L;
+        var packed = 0L;
+        while (true) {
+            try {
+                var chunk = packChunk(lastId);
+                if (chunk[0] == 0) {
+                    break;
+                }
+                lastId = chunk[1];
+                packed += chunk[2];
+            } catch (SQLException e) {
+                LOG.errorf("packing secrets failed, retrying: %s", e.getMessage());
+                try {
+                    TimeUnit.MILLISECONDS.sleep(RETRY_DELAY_MILLIS);
+                } catch (InterruptedException ie) {
+                    LOG.warn("Secret column migration interrupted");
+                    return;
+                }
+            }
+        }
+        done.countDown();
+        var duration = timingStart.until(Instant.now(), ChronoUnit.MILLIS);
+        LOG.infof("Packed the secrets of %d users after %d ms; the v1 secret column is dropped " +
+                "on the next start", packed, duration);
+    }
+
+    /**
+     * @return the number of rows read, the highest id read and the number of rows packed.
+     */
+    private long[] packChunk(long afterId) throws SQLException {
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement selectStatement = conn.prepareStatement(
+                     SQL_SELECT_V1_SECRETS_CHUNK);
+             PreparedStatement updateStatement = conn.prepareStatement(
+                     SQL_UPDATE_PACKED_V1_SECRET)) {
+            conn.setAutoCommit(false);
+            try {
+                var read = 0L;
+                var lastId = afterId;
+                selectStatement.setLong(1, afterId);
+                selectStatement.setInt(2, chunkSize);
+                try (ResultSet resultSet = selectStatement.executeQuery()) {
+                    while (resultSet.next()) {
+                        lastId = resultSet.getLong(1);
+                        updateStatement.setBytes(1, PackedSecrets.pack(resultSet.getString(2)));
+                        updateStatement.setLong(2, lastId);
+                        updateStatement.addBatch();
+                        read++;
+                    }
+                }
+                if (read == 0) {
+                    conn.rollback();
+                    return new long[]{0, lastId, 0};
+                }
+                var packed = 0L;
+                for (var updateCount : updateStatement.executeBatch()) {
+                    packed += updateCount;
+                }
+                conn.commit();
+                return new long[]{read, lastId, packed};
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        }
+    }
+}
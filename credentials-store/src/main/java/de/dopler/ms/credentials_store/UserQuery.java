@@ -0,0 +1,99 @@
+package de.dopler.ms.credentials_store;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+import java.util.Locale;
+
+/**
+ * A page of the user listing of {@link CredentialsStoreService#listUsers}: up to {@code limit}
+ * users in the order of their ids or usernames, following the id or username {@code after},
+ * usually the last one of the previous page. A {@code prefix} restricts the listing to the
+ * usernames starting with it and implies the username order; a {@code group} to its members,
+ * which are only listed in the id order of the group index: in the username order, a page of a
+ * small group would have to be filtered out of the whole table.
+ */
+public final class UserQuery {
+
+    public enum Order {ID, USERNAME}
+
+    final Order order;
+    // Long.MIN_VALUE and null on the first page
+    final long afterId;
+    final String afterUsername;
+    final String prefix;
+    // the first string after all strings with the prefix; null if there is none
+    final String prefixEnd;
+    final String group;
+    final int limit;
+
+    private UserQuery(Order order, long afterId, String afterUsername, String prefix,
+            String group, int limit) {
+        this.order = order;
+        this.afterId = afterId;
+        this.afterUsername = afterUsername;
+        this.prefix = prefix;
+        prefixEnd = prefix == null ? null : prefixEnd(prefix);
+        this.group = group;
+        this.limit = limit;
+    }
+
+    /**
+     * @param order  "id" or "username"; null for the username order if there is a prefix or else
+     *               the id order.
+     * @param after  the id or username after which the page starts; null for the first page.
+     * @param prefix the prefix of the listed usernames; null or empty for all usernames.
+     * @param group  the group of the listed users; null for all users.
+     * @throws IllegalArgumentException if the parameters are invalid.
+     */
+    @NonNull
+    public static UserQuery of(String order, String after, String prefix, String group,
+            int limit) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("limit must be positive");
+        }
+        if (prefix != null && prefix.isEmpty()) {
+            prefix = null;
+        }
+        Order parsedOrder;
+        try {
+            parsedOrder = order == null ?
+                    prefix == null ? Order.ID : Order.USERNAME :
+                    Order.valueOf(order.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("order must be id or username");
+        }
+        if (parsedOrder == Order.ID) {
+            if (prefix != null) {
+                throw new IllegalArgumentException("a prefix requires the username order");
+            }
+            long afterId;
+            try {
+                afterId = after == null ? Long.MIN_VALUE : Long.parseLong(after);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("after must be an id in the id order");
+            }
+            return new UserQuery(parsedOrder, afterId, null, null, group, limit);
+        }
+        if (group != null) {
+            throw new IllegalArgumentException("a group requires the id order");
+        }
+        // a page after a username before the prefix starts at the prefix
+        if (after != null && prefix != null && after.compareTo(prefix) < 0) {
+            after = null;
+        }
+        return new UserQuery(parsedOrder, Long.MIN_VALUE, after, prefix, null, limit);
+    }
+
+    private static String prefixEnd(@NonNull String prefix) {
+        var end = new StringBuilder(prefix);
+        while (end.length() > 0) {
+            var last = end.charAt(end.length() - 1);
+            if (last != Character.MAX_VALUE) {
+                end.setCharAt(end.length() - 1, (char) (last + 1));
+                return end.toString();
+            }
+            end.setLength(end.length() - 1);
+        }
+        return null;
+    }
+}
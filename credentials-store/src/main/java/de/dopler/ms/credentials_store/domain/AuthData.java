@@ -12,17 +12,20 @@ public class AuthData {
     public final long id;
     public final String secret;
     public final Set<String> groups;
+    public final long version;
 
     @JsonbCreator
     public AuthData(@JsonbProperty("id") long id, @JsonbProperty("secret") String secret,
-            @JsonbProperty("groups") Set<String> groups) {
+            @JsonbProperty("groups") Set<String> groups, @JsonbProperty("version") long version) {
         this.id = id;
         this.secret = secret;
         this.groups = groups;
+        this.version = version;
     }
 
     @Override
     public String toString() {
-        return String.format("AuthData[id=%s, secret=HIDDEN, groups=%s]", id, groups);
+        return String.format("AuthData[id=%s, secret=HIDDEN, groups=%s, version=%s]", id,
+                groups, version);
     }
 }
@@ -0,0 +1,38 @@
+package de.dopler.ms.credentials_store.domain;
+
+import io.quarkus.runtime.annotations.RegisterForReflection;
+
+import javax.json.bind.annotation.JsonbCreator;
+import javax.json.bind.annotation.JsonbProperty;
+
+/**
+ * The result of one line of a bulk insert: the generated id of the stored credentials or the
+ * error why the line was skipped.
+ */
+@RegisterForReflection
+public class InsertResult {
+
+    public static final String ERROR_CONFLICT = "conflict";
+    public static final String ERROR_INVALID = "invalid credentials";
+
+    public final int line;
+    public final String username;
+    public final Long id;
+    public final String error;
+
+    @JsonbCreator
+    public InsertResult(@JsonbProperty("line") int line,
+            @JsonbProperty("username") String username, @JsonbProperty("id") Long id,
+            @JsonbProperty("error") String error) {
+        this.line = line;
+        this.username = username;
+        this.id = id;
+        this.error = error;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("InsertResult[line=%s, username=%s, id=%s, error=%s]", line, username,
+                id, error);
+    }
+}
@@ -0,0 +1,31 @@
+package de.dopler.ms.credentials_store.domain;
+
+import io.quarkus.runtime.annotations.RegisterForReflection;
+
+import javax.json.bind.annotation.JsonbCreator;
+import javax.json.bind.annotation.JsonbProperty;
+import java.util.Set;
+
+/**
+ * A user as listed by the credentials store, without the secret.
+ */
+@RegisterForReflection
+public class ListedUser {
+
+    public final long id;
+    public final String username;
+    public final Set<String> groups;
+
+    @JsonbCreator
+    public ListedUser(@JsonbProperty("id") long id, @JsonbProperty("username") String username,
+            @JsonbProperty("groups") Set<String> groups) {
+        this.id = id;
+        this.username = username;
+        this.groups = groups;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ListedUser[id=%s, username=%s, groups=%s]", id, username, groups);
+    }
+}
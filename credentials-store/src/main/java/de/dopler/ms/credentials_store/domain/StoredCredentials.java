@@ -0,0 +1,36 @@
+package de.dopler.ms.credentials_store.domain;
+
+import io.quarkus.runtime.annotations.RegisterForReflection;
+
+import javax.json.bind.annotation.JsonbCreator;
+import javax.json.bind.annotation.JsonbProperty;
+import java.util.Set;
+
+/**
+ * The stored credentials of a user, as exported and imported (one per line of NDJSON). The
+ * secret is the hashed one.
+ */
+@RegisterForReflection
+public class StoredCredentials {
+
+    public final long id;
+    public final String username;
+    public final String secret;
+    public final Set<String> groups;
+
+    @JsonbCreator
+    public StoredCredentials(@JsonbProperty("id") long id,
+            @JsonbProperty("username") String username, @JsonbProperty("secret") String secret,
+            @JsonbProperty("groups") Set<String> groups) {
+        this.id = id;
+        this.username = username;
+        this.secret = secret;
+        this.groups = groups;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("StoredCredentials[id=%s, username=%s, secret=HIDDEN, groups=%s]", id,
+                username, groups);
+    }
+}
@@ -0,0 +1,34 @@
+package de.dopler.ms.credentials_store.domain;
+
+import io.quarkus.runtime.annotations.RegisterForReflection;
+
+import javax.json.bind.annotation.JsonbCreator;
+import javax.json.bind.annotation.JsonbProperty;
+import java.util.Set;
+
+/**
+ * The credentials of a user without the secret, with the version their {@code ETag} is made of.
+ */
+@RegisterForReflection
+public class UserMetadata {
+
+    public final long id;
+    public final String username;
+    public final Set<String> groups;
+    public final long version;
+
+    @JsonbCreator
+    public UserMetadata(@JsonbProperty("id") long id, @JsonbProperty("username") String username,
+            @JsonbProperty("groups") Set<String> groups, @JsonbProperty("version") long version) {
+        this.id = id;
+        this.username = username;
+        this.groups = groups;
+        this.version = version;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("UserMetadata[id=%s, username=%s, groups=%s, version=%s]", id,
+                username, groups, version);
+    }
+}
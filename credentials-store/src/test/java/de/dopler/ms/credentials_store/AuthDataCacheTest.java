@@ -0,0 +1,187 @@
+package de.dopler.ms.credentials_store;
+
+import de.dopler.ms.credentials_store.domain.AuthData;
+import io.smallrye.metrics.MetricRegistries;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+class AuthDataCacheTest {
+
+    private static final int MAX_SIZE = 100;
+
+    private MetricRegistry metricRegistry;
+    // the "database" of the loader
+    private final Map<String, AuthData> stored = new HashMap<>();
+    private final AtomicInteger loads = new AtomicInteger();
+
+    @BeforeEach
+    void setUp() {
+        metricRegistry = MetricRegistries.get(MetricRegistry.Type.APPLICATION);
+        for (int id = 0; id < 2000; id++) {
+            stored.put(username(id), authData(id));
+        }
+    }
+
+    @Test
+    void cachedAuthDataIsReturnedWithoutLoading() {
+        var cache = new AuthDataCache(MAX_SIZE, metricRegistry);
+
+        var first = cache.get(username(1), this::load);
+        var second = cache.get(username(1), this::load);
+
+        assertThat(first.orElseThrow().id, is(equalTo(1L)));
+        assertThat(second.orElseThrow(), is(sameInstance(first.orElseThrow())));
+        assertThat(loads.get(), is(equalTo(1)));
+    }
+
+    @Test
+    void unknownUsernameIsNotCached() {
+        var cache = new AuthDataCache(MAX_SIZE, metricRegistry);
+
+        assertThat(cache.get("unknown", this::load), is(equalTo(Optional.empty())));
+        assertThat(cache.get("unknown", this::load), is(equalTo(Optional.empty())));
+
+        assertThat(loads.get(), is(equalTo(2)));
+        assertThat(cache.size(), is(equalTo(0L)));
+    }
+
+    @Test
+    void sizeDoesNotExceedMaxSize() {
+        var cache = new AuthDataCache(MAX_SIZE, metricRegistry);
+
+        for (int id = 0; id < 1000; id++) {
+            cache.get(username(id), this::load);
+        }
+
+        assertThat(cache.size(), is(equalTo((long) MAX_SIZE)));
+        assertThat(cache.evictionsTotal(), is(equalTo(900L)));
+    }
+
+    @Test
+    void frequentlyUsedEntriesSurviveBurstOfOneTimeLookups() {
+        var cache = new AuthDataCache(MAX_SIZE, metricRegistry);
+        for (int round = 0; round < 10; round++) {
+            for (int id = 0; id < 50; id++) {
+                cache.get(username(id), this::load);
+            }
+        }
+        // would flush all of them from a plain LRU cache
+        for (int id = 1000; id < 2000; id++) {
+            cache.get(username(id), this::load);
+        }
+
+        loads.set(0);
+        for (int id = 0; id < 50; id++) {
+            cache.get(username(id), this::load);
+        }
+        assertThat(loads.get(), is(equalTo(0)));
+    }
+
+    @Test
+    void loadRacingWithInvalidateIsNotCached() throws Exception {
+        var cache = new AuthDataCache(MAX_SIZE, metricRegistry);
+        var loadStarted = new CountDownLatch(1);
+        var invalidated = new CountDownLatch(1);
+        var executor = Executors.newSingleThreadExecutor();
+
+        // reads the old secret, then the change is committed and invalidated
+        var staleLoad = executor.submit(() -> cache.get(username(1), username -> {
+            var authData = load(username);
+            loadStarted.countDown();
+            try {
+                assertThat(invalidated.await(10, TimeUnit.SECONDS), is(equalTo(true)));
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            return authData;
+        }));
+        assertThat(loadStarted.await(10, TimeUnit.SECONDS), is(equalTo(true)));
+        stored.put(username(1), new AuthData(1, "changed-secret", Set.of("user"), 2));
+        cache.invalidate(1);
+        invalidated.countDown();
+        assertThat(staleLoad.get().orElseThrow().secret, is(equalTo("secret-1")));
+        executor.shutdown();
+
+        assertThat(cache.get(username(1), this::load).orElseThrow().secret,
+                is(equalTo("changed-secret")));
+        assertThat(loads.get(), is(equalTo(2)));
+    }
+
+    @Test
+    void invalidateRemovesEntryOfId() {
+        var cache = new AuthDataCache(MAX_SIZE, metricRegistry);
+        cache.get(username(1), this::load);
+        cache.get(username(2), this::load);
+
+        cache.invalidate(1);
+
+        cache.get(username(1), this::load);
+        cache.get(username(2), this::load);
+        assertThat(loads.get(), is(equalTo(3)));
+    }
+
+    @Test
+    void changedUsernameIsNotFoundUnderOldUsername() {
+        var cache = new AuthDataCache(MAX_SIZE, metricRegistry);
+        cache.get("alice", username -> Optional.of(authData(1)));
+
+        // the username of id 1 changes to bob
+        cache.invalidate(1);
+        var renamed = cache.get("bob", username -> Optional.of(authData(1)));
+
+        assertThat(renamed.orElseThrow().id, is(equalTo(1L)));
+        assertThat(cache.get("alice", username -> Optional.empty()),
+                is(equalTo(Optional.empty())));
+        assertThat(cache.size(), is(equalTo(1L)));
+    }
+
+    @Test
+    void entryIsReplacedIfIdIsLoadedUnderNewUsername() {
+        var cache = new AuthDataCache(MAX_SIZE, metricRegistry);
+        cache.get("alice", username -> Optional.of(authData(1)));
+
+        // loaded under the new username without an invalidation in between
+        cache.get("bob", username -> Optional.of(authData(1)));
+
+        assertThat(cache.get("alice", username -> Optional.empty()),
+                is(equalTo(Optional.empty())));
+        assertThat(cache.size(), is(equalTo(1L)));
+    }
+
+    @Test
+    void disabledCacheAlwaysLoads() {
+        var cache = new AuthDataCache(0, metricRegistry);
+
+        cache.get(username(1), this::load);
+        cache.get(username(1), this::load);
+
+        assertThat(loads.get(), is(equalTo(2)));
+        assertThat(cache.size(), is(equalTo(0L)));
+    }
+
+    private Optional<AuthData> load(String username) {
+        loads.incrementAndGet();
+        return Optional.ofNullable(stored.get(username));
+    }
+
+    private static String username(int id) {
+        return "user-" + id;
+    }
+
+    private static AuthData authData(long id) {
+        return new AuthData(id, "secret-" + id, Set.of("user"), 1);
+    }
+}
@@ -0,0 +1,207 @@
+package de.dopler.ms.credentials_store;
+
+import io.quarkus.test.junit.QuarkusTest;
+import io.restassured.http.ContentType;
+import io.restassured.response.Response;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.UriBuilder;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.UUID;
+
+import static io.restassured.RestAssured.given;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+@QuarkusTest
+class CredentialsStoreResourceTest {
+
+    private static final URI RESOURCE_BASE_URI = URI.create("/auth/credentials");
+    private static final String USER_PATH = "/{id}";
+    private static final String USERNAME_PATH = "/{username}";
+    private static final String METADATA_PATH = "/{id}/metadata";
+    private static final String ADD_MEMBERS_PATH = "/bulk/groups/{group}/add";
+    private static final String REMOVE_MEMBERS_PATH = "/bulk/groups/{group}/remove";
+
+    private String username;
+    private long id;
+
+    @BeforeEach
+    void setUp() {
+        username = "user-" + UUID.randomUUID();
+        // @formatter:off
+        id = Long.parseLong(given().contentType(ContentType.JSON)
+                .body(String.format("{\"username\":\"%s\",\"secret\":\"secret\"}", username))
+            .when().post(RESOURCE_BASE_URI)
+            .then().statusCode(Status.OK.getStatusCode())
+            .extract().asString());
+        // @formatter:on
+    }
+
+    // #getMetadata ================================================================================
+
+    @Test
+    void getMetadataReturnsUserWithoutSecretAndETagOfAuthData() {
+        var response = givenGetMetadata(id);
+
+        assertThat(response.statusCode(), is(equalTo(Status.OK.getStatusCode())));
+        assertThat(response.jsonPath().getString("username"), is(equalTo(username)));
+        assertThat(response.jsonPath().getString("secret"), is(nullValue()));
+        assertThat(response.header(HttpHeaders.ETAG),
+                is(equalTo(givenGetAuthData(username).header(HttpHeaders.ETAG))));
+    }
+
+    @Test
+    void patchWithETagOfMetadataIsApplied() {
+        var etag = givenGetMetadata(id).header(HttpHeaders.ETAG);
+
+        var response = givenPatch(etag, "{\"groups\":[\"user\"]}");
+
+        assertThat(response.statusCode(), is(equalTo(Status.NO_CONTENT.getStatusCode())));
+        var metadata = givenGetMetadata(id);
+        assertThat(metadata.header(HttpHeaders.ETAG),
+                is(equalTo(response.header(HttpHeaders.ETAG))));
+        assertThat(metadata.jsonPath().getList("groups"), contains("user"));
+    }
+
+    @Test
+    void getMetadataOfUnknownIdReturnsCode404() {
+        givenGetMetadata(Long.MAX_VALUE).then().statusCode(Status.NOT_FOUND.getStatusCode());
+    }
+
+    // #patchCredentials ===========================================================================
+
+    @Test
+    void patchWithCurrentETagIsAppliedAndReturnsNewETag() {
+        var etag = givenGetAuthData(username).header(HttpHeaders.ETAG);
+
+        var response = givenPatch(etag, "{\"secret\":\"new-secret\"}");
+
+        assertThat(response.statusCode(), is(equalTo(Status.NO_CONTENT.getStatusCode())));
+        var newEtag = response.header(HttpHeaders.ETAG);
+        assertThat(newEtag, is(not(equalTo(etag))));
+        var authData = givenGetAuthData(username);
+        assertThat(authData.header(HttpHeaders.ETAG), is(equalTo(newEtag)));
+        assertThat(authData.jsonPath().getString("secret"), is(equalTo("new-secret")));
+    }
+
+    @Test
+    void patchWithStaleETagReturnsCode412AndChangesNothing() {
+        var etag = givenGetAuthData(username).header(HttpHeaders.ETAG);
+        givenPatch(etag, "{\"groups\":[\"user\"]}").then()
+                .statusCode(Status.NO_CONTENT.getStatusCode());
+
+        givenPatch(etag, "{\"secret\":\"new-secret\"}").then()
+                .statusCode(Status.PRECONDITION_FAILED.getStatusCode());
+
+        assertThat(givenGetAuthData(username).jsonPath().getString("secret"),
+                is(equalTo("secret")));
+    }
+
+    @Test
+    void patchWithoutOrWithAnyETagIsApplied() {
+        givenPatch(null, "{\"groups\":[\"user\"]}").then()
+                .statusCode(Status.NO_CONTENT.getStatusCode());
+        givenPatch("*", "{\"groups\":[\"admin\"]}").then()
+                .statusCode(Status.NO_CONTENT.getStatusCode());
+
+        assertThat(givenGetAuthData(username).jsonPath().getList("groups"),
+                contains("admin"));
+    }
+
+    @Test
+    void patchWithWeakOrInvalidETagReturnsCode400() {
+        var etag = givenGetAuthData(username).header(HttpHeaders.ETAG);
+
+        givenPatch("W/" + etag, "{\"secret\":\"new-secret\"}").then()
+                .statusCode(Status.BAD_REQUEST.getStatusCode());
+        givenPatch("\"not-a-version\"", "{\"secret\":\"new-secret\"}").then()
+                .statusCode(Status.BAD_REQUEST.getStatusCode());
+    }
+
+    @Test
+    void patchOfUnknownIdReturnsCode404() {
+        // @formatter:off
+        given().contentType(ContentType.JSON).header(HttpHeaders.IF_MATCH, "\"0\"")
+                .body("{\"secret\":\"new-secret\"}")
+            .when().patch(UriBuilder.fromUri(RESOURCE_BASE_URI).path(USER_PATH)
+                .build(Long.MAX_VALUE))
+            .then().statusCode(Status.NOT_FOUND.getStatusCode());
+        // @formatter:on
+    }
+
+    // #addGroupMembers and #removeGroupMembers ====================================================
+
+    @Test
+    void addingAndRemovingMembersChangesTheirETag() {
+        var etag = givenGetMetadata(id).header(HttpHeaders.ETAG);
+
+        givenGroupMembers(ADD_MEMBERS_PATH, "admin", id).then()
+                .statusCode(Status.OK.getStatusCode()).body(is(equalTo("1")));
+        var addedEtag = givenGetMetadata(id).header(HttpHeaders.ETAG);
+        givenGroupMembers(REMOVE_MEMBERS_PATH, "admin", id).then()
+                .statusCode(Status.OK.getStatusCode()).body(is(equalTo("1")));
+
+        assertThat(addedEtag, is(not(equalTo(etag))));
+        assertThat(givenGetMetadata(id).header(HttpHeaders.ETAG), is(not(equalTo(addedEtag))));
+    }
+
+    @Test
+    void reAddingAMemberChangesNothing() {
+        givenGroupMembers(ADD_MEMBERS_PATH, "admin", id).then()
+                .statusCode(Status.OK.getStatusCode());
+        var etag = givenGetAuthData(username).header(HttpHeaders.ETAG);
+
+        givenGroupMembers(ADD_MEMBERS_PATH, "admin", id, Long.MAX_VALUE).then()
+                .statusCode(Status.OK.getStatusCode()).body(is(equalTo("0")));
+
+        var authData = givenGetAuthData(username);
+        assertThat(authData.header(HttpHeaders.ETAG), is(equalTo(etag)));
+        assertThat(authData.jsonPath().getList("groups"), contains("admin"));
+        givenPatch(etag, "{\"secret\":\"new-secret\"}").then()
+                .statusCode(Status.NO_CONTENT.getStatusCode());
+    }
+
+    @Test
+    void removingANonMemberChangesNothing() {
+        // the group is known, but the user isn't a member
+        givenGroupMembers(ADD_MEMBERS_PATH, "other-group", Long.MAX_VALUE).then()
+                .statusCode(Status.OK.getStatusCode());
+        var etag = givenGetAuthData(username).header(HttpHeaders.ETAG);
+
+        givenGroupMembers(REMOVE_MEMBERS_PATH, "other-group", id, Long.MAX_VALUE).then()
+                .statusCode(Status.OK.getStatusCode()).body(is(equalTo("0")));
+
+        assertThat(givenGetAuthData(username).header(HttpHeaders.ETAG), is(equalTo(etag)));
+        givenPatch(etag, "{\"secret\":\"new-secret\"}").then()
+                .statusCode(Status.NO_CONTENT.getStatusCode());
+    }
+
+    private static Response givenGroupMembers(String path, String group, Long... ids) {
+        return given().contentType(ContentType.JSON).body(Arrays.toString(ids)).when()
+                .post(UriBuilder.fromUri(RESOURCE_BASE_URI).path(path).build(group));
+    }
+
+    private Response givenPatch(String ifMatch, String patch) {
+        var request = given().contentType(ContentType.JSON).body(patch);
+        if (ifMatch != null) {
+            request.header(HttpHeaders.IF_MATCH, ifMatch);
+        }
+        return request.when()
+                .patch(UriBuilder.fromUri(RESOURCE_BASE_URI).path(USER_PATH).build(id));
+    }
+
+    private static Response givenGetMetadata(long id) {
+        return given().accept(ContentType.JSON).when()
+                .get(UriBuilder.fromUri(RESOURCE_BASE_URI).path(METADATA_PATH).build(id));
+    }
+
+    private static Response givenGetAuthData(String username) {
+        return given().accept(ContentType.JSON).when()
+                .get(UriBuilder.fromUri(RESOURCE_BASE_URI).path(USERNAME_PATH).build(username));
+    }
+}
@@ -0,0 +1,170 @@
+package de.dopler.ms.credentials_store;
+
+import de.dopler.ms.credentials_store.domain.Credentials;
+import de.dopler.ms.credentials_store.domain.ListedUser;
+import de.dopler.ms.group_dictionary.GroupDictionary;
+import io.smallrye.metrics.MetricRegistries;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+class CredentialsStoreServiceTest {
+
+    private JdbcDataSource dataSource;
+    private CredentialsStoreService service;
+
+    @BeforeEach
+    void setUp() {
+        dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:credentials-store-service-test;DB_CLOSE_DELAY=-1");
+        service = new CredentialsStoreService(dataSource, new GroupDictionary(dataSource),
+                new AuthDataCache(100, MetricRegistries.get(MetricRegistry.Type.APPLICATION)),
+                1000);
+        service.initStore();
+    }
+
+    @AfterEach
+    void tearDown() throws SQLException {
+        try (Connection conn = dataSource.getConnection();
+             Statement statement = conn.createStatement()) {
+            statement.execute("DROP ALL OBJECTS;");
+        }
+    }
+
+    @Test
+    void insertCredentialsReturnsIdsInOrderAndSkipsTakenUsernames() {
+        var existingId = service.storeCredentials("taken", "secret-taken").orElseThrow();
+        var credentials = List.of(
+                new Credentials("user-a", "secret-a"),
+                new Credentials("taken", "secret-x"),
+                new Credentials("user-b", "secret-b"),
+                // taken by an earlier credentials of the same batch
+                new Credentials("user-a", "secret-y"),
+                new Credentials("user-c", "secret-c"));
+
+        var ids = service.insertCredentials(credentials);
+
+        assertThat(ids, hasSize(credentials.size()));
+        assertThat(ids.get(1), is(equalTo(Optional.empty())));
+        assertThat(ids.get(3), is(equalTo(Optional.empty())));
+        // each generated id belongs to the credentials at its position
+        for (var i : new int[]{0, 2, 4}) {
+            var authData = service.getAuthData(credentials.get(i).username).orElseThrow();
+            assertThat(ids.get(i), is(equalTo(Optional.of(authData.id))));
+            assertThat(authData.secret, is(equalTo(credentials.get(i).secret)));
+        }
+        var taken = service.getAuthData("taken").orElseThrow();
+        assertThat(taken.id, is(equalTo(existingId)));
+        assertThat(taken.secret, is(equalTo("secret-taken")));
+    }
+
+    @Test
+    void insertCredentialsWithoutConflictsReturnsAllIds() {
+        var credentials = List.of(new Credentials("user-a", "secret-a"),
+                new Credentials("user-b", "secret-b"));
+
+        var ids = service.insertCredentials(credentials);
+
+        assertThat(ids.get(0), is(equalTo(Optional.of(
+                service.getAuthData("user-a").orElseThrow().id))));
+        assertThat(ids.get(1), is(equalTo(Optional.of(
+                service.getAuthData("user-b").orElseThrow().id))));
+    }
+
+    @Test
+    void insertCredentialsWithOnlyTakenUsernamesReturnsNoIds() {
+        service.storeCredentials("taken", "secret");
+
+        var ids = service.insertCredentials(List.of(new Credentials("taken", "secret-x"),
+                new Credentials("taken", "secret-y")));
+
+        assertThat(ids, contains(Optional.empty(), Optional.empty()));
+    }
+
+    @Test
+    void listUsersPagesByIdWithoutGapsOrDuplicates() {
+        var ids = new ArrayList<Long>();
+        for (int i = 0; i < 25; i++) {
+            ids.add(service.storeCredentials("user-" + i, "secret").orElseThrow());
+        }
+
+        var listed = new ArrayList<Long>();
+        String after = null;
+        List<ListedUser> page;
+        do {
+            page = listPage(UserQuery.of("id", after, null, null, 10));
+            assertThat(page.size(), is(lessThanOrEqualTo(10)));
+            page.forEach(user -> listed.add(user.id));
+            after = page.isEmpty() ? after : String.valueOf(page.get(page.size() - 1).id);
+        } while (!page.isEmpty());
+
+        assertThat(listed, is(equalTo(ids)));
+    }
+
+    @Test
+    void listUsersPagesByPrefixInUsernameOrder() {
+        for (var username : List.of("bob", "alice-2", "carol", "alice-1", "alice-3", "al")) {
+            service.storeCredentials(username, "secret");
+        }
+
+        var first = listPage(UserQuery.of(null, null, "alice", null, 2));
+        var second = listPage(UserQuery.of(null, first.get(1).username, "alice", null, 2));
+        // a page after a username before the prefix starts at the prefix
+        var fromBefore = listPage(UserQuery.of(null, "al", "alice", null, 10));
+
+        assertThat(usernames(first), contains("alice-1", "alice-2"));
+        assertThat(usernames(second), contains("alice-3"));
+        assertThat(usernames(fromBefore), contains("alice-1", "alice-2", "alice-3"));
+    }
+
+    @Test
+    void listUsersPagesThroughGroupMembers() {
+        var members = new ArrayList<Long>();
+        for (int i = 0; i < 20; i++) {
+            var id = service.storeCredentials("user-" + i, "secret").orElseThrow();
+            if (i % 4 == 0) {
+                service.updateGroups(id, Set.of("admin", "user"));
+                members.add(id);
+            } else {
+                service.updateGroups(id, Set.of("user"));
+            }
+        }
+
+        var first = listPage(UserQuery.of(null, null, null, "admin", 3));
+        var second = listPage(UserQuery.of(null, String.valueOf(first.get(2).id), null, "admin",
+                3));
+
+        assertThat(first, hasSize(3));
+        assertThat(second, hasSize(2));
+        var listed = new ArrayList<Long>();
+        first.forEach(user -> listed.add(user.id));
+        second.forEach(user -> listed.add(user.id));
+        assertThat(listed, is(equalTo(members)));
+        assertThat(first.get(0).groups, containsInAnyOrder("admin", "user"));
+        assertThat(listPage(UserQuery.of(null, null, null, "unknown", 3)), is(empty()));
+    }
+
+    private List<ListedUser> listPage(UserQuery query) {
+        var page = new ArrayList<ListedUser>();
+        assertThat(service.listUsers(query, page::add), is(equalTo(page.size())));
+        return page;
+    }
+
+    private static List<String> usernames(List<ListedUser> users) {
+        return users.stream().map(user -> user.username).collect(Collectors.toList());
+    }
+}
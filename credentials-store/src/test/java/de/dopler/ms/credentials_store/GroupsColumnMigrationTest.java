@@ -0,0 +1,207 @@
+package de.dopler.ms.credentials_store;
+
+import de.dopler.ms.group_dictionary.GroupDictionary;
+import io.smallrye.metrics.MetricRegistries;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+class GroupsColumnMigrationTest {
+
+    private static final List<Set<String>> GROUPS = List.of(Set.of("user"),
+            Set.of("user", "admin"), Set.of());
+
+    // the groups column of a store created before the group dictionary
+    //language=H2
+    private static final String SQL_CREATE_ARRAY_GROUPS_TABLE =
+            "CREATE TABLE credentials (" +
+                    "  id IDENTITY," +
+                    "  username VARCHAR(254) UNIQUE," +
+                    "  packed_secret VARBINARY," +
+                    "  groups ARRAY NOT NULL DEFAULT ()," +
+                    "  last_mod TIMESTAMP WITH TIME ZONE AS CURRENT_TIMESTAMP());";
+    // the groups column of GroupDictionary ids of a store created before the user_groups table
+    //language=H2
+    private static final String SQL_CREATE_ENCODED_GROUPS_TABLE =
+            "CREATE TABLE credentials (" +
+                    "  id IDENTITY," +
+                    "  username VARCHAR(254) UNIQUE," +
+                    "  packed_secret VARBINARY," +
+                    "  groups VARBINARY NOT NULL DEFAULT X''," +
+                    "  last_mod TIMESTAMP WITH TIME ZONE AS CURRENT_TIMESTAMP());";
+    // left by a migration to the group dictionary which stopped after dropping the ARRAY column
+    //language=H2
+    private static final String SQL_CREATE_GROUP_IDS_TABLE =
+            "CREATE TABLE credentials (" +
+                    "  id IDENTITY," +
+                    "  username VARCHAR(254) UNIQUE," +
+                    "  packed_secret VARBINARY," +
+                    "  group_ids VARBINARY NOT NULL DEFAULT X''," +
+                    "  last_mod TIMESTAMP WITH TIME ZONE AS CURRENT_TIMESTAMP());";
+    //language=H2
+    private static final String SQL_INSERT =
+            "INSERT INTO credentials" +
+                    "  (username, packed_secret, %s)" +
+                    "  VALUES (?, ?, ?);";
+
+    private JdbcDataSource dataSource;
+
+    @BeforeEach
+    void setUp() {
+        dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:groups-column-migration-test;DB_CLOSE_DELAY=-1");
+    }
+
+    @AfterEach
+    void tearDown() throws SQLException {
+        try (Connection conn = dataSource.getConnection();
+             Statement statement = conn.createStatement()) {
+            statement.execute("DROP ALL OBJECTS;");
+        }
+    }
+
+    @Test
+    void arrayGroupsAreMovedToUserGroups() throws SQLException {
+        createTable(SQL_CREATE_ARRAY_GROUPS_TABLE);
+        var ids = insert("groups", groups -> groups.toArray(new Object[0]));
+
+        assertMigrated(ids);
+    }
+
+    @Test
+    void encodedGroupsAreMovedToUserGroups() throws SQLException {
+        createTable(SQL_CREATE_ENCODED_GROUPS_TABLE);
+        var groupDictionary = new GroupDictionary(dataSource);
+        var ids = insert("groups", groupDictionary::encode);
+
+        assertMigrated(ids);
+    }
+
+    @Test
+    void groupIdsOfStoppedMigrationAreMovedToUserGroups() throws SQLException {
+        createTable(SQL_CREATE_GROUP_IDS_TABLE);
+        var groupDictionary = new GroupDictionary(dataSource);
+        var ids = insert("group_ids", groupDictionary::encode);
+
+        assertMigrated(ids);
+    }
+
+    @Test
+    void migrationWhichStoppedBeforeDroppingColumnIsRepeated() throws SQLException {
+        createTable(SQL_CREATE_ENCODED_GROUPS_TABLE);
+        var groupDictionary = new GroupDictionary(dataSource);
+        var ids = insert("groups", groupDictionary::encode);
+        // as if the memberships of the first user were committed before a crash
+        try (Connection conn = dataSource.getConnection();
+             Statement statement = conn.createStatement()) {
+            statement.execute(CredentialsStoreSqlStatements.SQL_CREATE_USER_GROUPS_TABLE);
+            statement.execute(String.format("INSERT INTO user_groups VALUES (%d, %d);",
+                    ids.get(0), groupDictionary.id("user")));
+        }
+
+        assertMigrated(ids);
+    }
+
+    private void assertMigrated(List<Long> ids) throws SQLException {
+        var service = newService();
+        service.initStore();
+
+        assertThat(columnExists("GROUPS"), is(equalTo(false)));
+        assertThat(columnExists("GROUP_IDS"), is(equalTo(false)));
+        assertAuthData(service, ids);
+        assertThat(countMemberships(), is(equalTo(3)));
+
+        // the next start has nothing to migrate
+        var restarted = newService();
+        restarted.initStore();
+        assertAuthData(restarted, ids);
+        assertThat(countMemberships(), is(equalTo(3)));
+        var admins = new ArrayList<Long>();
+        restarted.listUsers(UserQuery.of(null, null, null, "admin", 10),
+                user -> admins.add(user.id));
+        assertThat(admins, contains(ids.get(1)));
+    }
+
+    private void createTable(String sql) throws SQLException {
+        try (Connection conn = dataSource.getConnection();
+             Statement statement = conn.createStatement()) {
+            statement.execute(sql);
+        }
+    }
+
+    /**
+     * @return the ids of the users with {@link #GROUPS}.
+     */
+    private List<Long> insert(String column, GroupsColumnValue value) throws SQLException {
+        var ids = new ArrayList<Long>();
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement statement = conn.prepareStatement(
+                     String.format(SQL_INSERT, column), Statement.RETURN_GENERATED_KEYS)) {
+            for (int i = 0; i < GROUPS.size(); i++) {
+                statement.setString(1, "user-" + i);
+                statement.setBytes(2, PackedSecrets.pack("secret-" + i));
+                statement.setObject(3, value.of(GROUPS.get(i)));
+                statement.executeUpdate();
+                try (ResultSet generatedKeys = statement.getGeneratedKeys()) {
+                    generatedKeys.next();
+                    ids.add(generatedKeys.getLong(1));
+                }
+            }
+        }
+        return ids;
+    }
+
+    private CredentialsStoreService newService() {
+        return new CredentialsStoreService(dataSource, new GroupDictionary(dataSource),
+                new AuthDataCache(0, MetricRegistries.get(MetricRegistry.Type.APPLICATION)), 10);
+    }
+
+    private static void assertAuthData(CredentialsStoreService service, List<Long> ids) {
+        for (int i = 0; i < GROUPS.size(); i++) {
+            var authData = service.getAuthData("user-" + i).orElseThrow();
+            assertThat(authData.id, is(equalTo(ids.get(i))));
+            assertThat(authData.secret, is(equalTo("secret-" + i)));
+            assertThat(authData.groups, is(equalTo(GROUPS.get(i))));
+        }
+    }
+
+    private boolean columnExists(String column) throws SQLException {
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement statement = conn.prepareStatement(
+                     CredentialsStoreSqlStatements.SQL_SELECT_COLUMN_TYPE)) {
+            statement.setString(1, column);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next();
+            }
+        }
+    }
+
+    private int countMemberships() throws SQLException {
+        try (Connection conn = dataSource.getConnection();
+             Statement statement = conn.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT COUNT(*) FROM user_groups;")) {
+            resultSet.next();
+            return resultSet.getInt(1);
+        }
+    }
+
+    @FunctionalInterface
+    private interface GroupsColumnValue {
+
+        Object of(Set<String> groups);
+    }
+}
@@ -0,0 +1,97 @@
+package de.dopler.ms.credentials_store;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+class PackedSecretsTest {
+
+    private static final String BCRYPT_2A =
+            "$2a$10$N9qo8uLOickgx2ZMRZoMyeIjZAgcfl7p92ldGxad68LJZdL17lhWy";
+    private static final int PACKED_BCRYPT_LENGTH = 41;
+
+    @Test
+    void canonicalBcryptHashesArePackedAndRestored() {
+        for (var minor : new String[]{"a", "b", "y"}) {
+            var secret = "$2" + minor + BCRYPT_2A.substring(3);
+
+            var packed = PackedSecrets.pack(secret);
+
+            assertThat(packed.length, is(equalTo(PACKED_BCRYPT_LENGTH)));
+            assertThat(PackedSecrets.unpack(packed), is(equalTo(secret)));
+        }
+    }
+
+    @Test
+    void costIsPackedAndRestored() {
+        for (var cost : new String[]{"04", "12", "31"}) {
+            var secret = BCRYPT_2A.substring(0, 4) + cost + BCRYPT_2A.substring(6);
+
+            var packed = PackedSecrets.pack(secret);
+
+            assertThat(packed.length, is(equalTo(PACKED_BCRYPT_LENGTH)));
+            assertThat(PackedSecrets.unpack(packed), is(equalTo(secret)));
+        }
+    }
+
+    @Test
+    void randomSaltsAndHashesArePackedAndRestored() {
+        var random = new Random(42);
+        for (int i = 0; i < 1000; i++) {
+            var bytes = new byte[PACKED_BCRYPT_LENGTH];
+            random.nextBytes(bytes);
+            bytes[0] = 'b';
+            bytes[1] = 10;
+            var secret = PackedSecrets.unpack(bytes);
+
+            assertThat(secret.length(), is(equalTo(60)));
+            assertThat(PackedSecrets.pack(secret), is(equalTo(bytes)));
+        }
+    }
+
+    @Test
+    void bcryptHashesWithSetUnusedBitsAreStoredUnpacked() {
+        // the last salt character holds 4 unused bits, the last hash character 2
+        var nonCanonicalSalt = BCRYPT_2A.substring(0, 28) + 'f' + BCRYPT_2A.substring(29);
+        var nonCanonicalHash = BCRYPT_2A.substring(0, 59) + 'z';
+
+        for (var secret : new String[]{nonCanonicalSalt, nonCanonicalHash}) {
+            var packed = PackedSecrets.pack(secret);
+
+            assertThat(packed.length, is(equalTo(61)));
+            assertThat(packed[0], is(equalTo((byte) 0)));
+            assertThat(PackedSecrets.unpack(packed), is(equalTo(secret)));
+        }
+    }
+
+    @Test
+    void otherSecretsAreStoredUnpacked() {
+        var secrets = new String[]{
+                "plain-text",
+                "$argon2id$v=19$m=65536,t=3,p=4$c2FsdHNhbHQ$aGFzaGhhc2g",
+                // bcrypt length, but an invalid character
+                BCRYPT_2A.substring(0, 59) + '!',
+                // bcrypt length, but an upper case minor version
+                "$2A" + BCRYPT_2A.substring(3),
+                "gemäß ✓"};
+
+        for (var secret : secrets) {
+            var packed = PackedSecrets.pack(secret);
+
+            assertThat(packed[0], is(equalTo((byte) 0)));
+            assertThat(PackedSecrets.unpack(packed), is(equalTo(secret)));
+        }
+    }
+
+    @Test
+    void emptySecretIsRestored() {
+        var packed = PackedSecrets.pack("");
+
+        assertThat(packed, is(equalTo(new byte[]{0})));
+        assertThat(PackedSecrets.unpack(packed), is(equalTo("")));
+        assertThat(PackedSecrets.unpack(new byte[0]), is(equalTo("")));
+    }
+}
@@ -0,0 +1,165 @@
+package de.dopler.ms.credentials_store;
+
+import de.dopler.ms.group_dictionary.GroupDictionary;
+import io.smallrye.metrics.MetricRegistries;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Set;
+
+import static de.dopler.ms.credentials_store.CredentialsStoreSqlStatements.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+class SecretColumnMigrationTest {
+
+    private static final long AWAIT_TIMEOUT_MILLIS = 10_000;
+    private static final String BCRYPT_SECRET =
+            "$2a$10$N9qo8uLOickgx2ZMRZoMyeIjZAgcfl7p92ldGxad68LJZdL17lhWy";
+
+    // the schema v1 of the credentials table
+    //language=H2
+    private static final String SQL_CREATE_V1_TABLE =
+            "CREATE TABLE credentials (" +
+                    "  id IDENTITY," +
+                    "  username VARCHAR(254) UNIQUE," +
+                    "  secret CHAR(60)," +
+                    "  groups ARRAY NOT NULL DEFAULT ()," +
+                    "  last_mod TIMESTAMP WITH TIME ZONE AS CURRENT_TIMESTAMP());";
+    //language=H2
+    private static final String SQL_CREATE_V1_INDEX =
+            "CREATE UNIQUE INDEX idx_username_secret" +
+                    "  ON credentials" +
+                    "  (username, secret);";
+    //language=H2
+    private static final String SQL_INSERT_V1 =
+            "INSERT INTO credentials" +
+                    "  (username, secret, groups)" +
+                    "  VALUES (?, ?, ?);";
+
+    private JdbcDataSource dataSource;
+
+    @BeforeEach
+    void setUp() throws SQLException {
+        dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:secret-column-migration-test;DB_CLOSE_DELAY=-1");
+        try (Connection conn = dataSource.getConnection();
+             Statement statement = conn.createStatement()) {
+            statement.execute(SQL_CREATE_V1_TABLE);
+            statement.execute(SQL_CREATE_V1_INDEX);
+        }
+    }
+
+    @AfterEach
+    void tearDown() throws SQLException {
+        try (Connection conn = dataSource.getConnection();
+             Statement statement = conn.createStatement()) {
+            statement.execute("DROP ALL OBJECTS;");
+        }
+    }
+
+    @Test
+    void v1SecretsAreReadDuringAndAfterMigrationToV2() throws Exception {
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement statement = conn.prepareStatement(SQL_INSERT_V1)) {
+            for (int i = 0; i < 25; i++) {
+                statement.setString(1, "user-" + i);
+                statement.setString(2, i % 2 == 0 ? BCRYPT_SECRET : "plain-" + i);
+                statement.setObject(3, new Object[]{"user"});
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+        var service = newService();
+
+        service.initStore();
+
+        // v1 column still there, the chunks are packed in the background
+        assertThat(v1SecretColumnExists(), is(equalTo(true)));
+        assertAuthData(service);
+        awaitAllPacked();
+        assertAuthData(service);
+
+        // the next start drops the v1 column
+        var restarted = newService();
+        restarted.initStore();
+        assertThat(v1SecretColumnExists(), is(equalTo(false)));
+        assertAuthData(restarted);
+    }
+
+    @Test
+    void secretChangedDuringMigrationIsNotOverwritten() throws Exception {
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement statement = conn.prepareStatement(SQL_INSERT_V1);
+             Statement alterStatement = conn.createStatement()) {
+            for (int i = 0; i < 2; i++) {
+                statement.setString(1, "user-" + i);
+                statement.setString(2, BCRYPT_SECRET);
+                statement.setObject(3, new Object[]{});
+                statement.executeUpdate();
+            }
+            // as if user-0 changed the secret after the packed column was added
+            alterStatement.execute(SQL_ADD_PACKED_SECRET_COLUMN);
+            try (PreparedStatement updateStatement = conn.prepareStatement(
+                    "UPDATE credentials SET packed_secret = ? WHERE username = 'user-0';")) {
+                updateStatement.setBytes(1, PackedSecrets.pack("changed"));
+                updateStatement.executeUpdate();
+            }
+        }
+        var service = newService();
+
+        service.initStore();
+        awaitAllPacked();
+
+        assertThat(service.getAuthData("user-0").orElseThrow().secret, is(equalTo("changed")));
+        assertThat(service.getAuthData("user-1").orElseThrow().secret,
+                is(equalTo(BCRYPT_SECRET)));
+    }
+
+    private CredentialsStoreService newService() {
+        return new CredentialsStoreService(dataSource, new GroupDictionary(dataSource),
+                new AuthDataCache(0, MetricRegistries.get(MetricRegistry.Type.APPLICATION)), 10);
+    }
+
+    private static void assertAuthData(CredentialsStoreService service) {
+        for (int i = 0; i < 25; i++) {
+            var authData = service.getAuthData("user-" + i).orElseThrow();
+            assertThat(authData.secret, is(equalTo(i % 2 == 0 ? BCRYPT_SECRET : "plain-" + i)));
+            assertThat(authData.groups, is(equalTo(Set.of("user"))));
+        }
+    }
+
+    private boolean v1SecretColumnExists() throws SQLException {
+        try (Connection conn = dataSource.getConnection();
+             Statement statement = conn.createStatement();
+             ResultSet resultSet = statement.executeQuery(SQL_SELECT_V1_SECRET_COLUMN_EXISTS)) {
+            return resultSet.next();
+        }
+    }
+
+    private void awaitAllPacked() throws SQLException, InterruptedException {
+        var deadline = System.currentTimeMillis() + AWAIT_TIMEOUT_MILLIS;
+        while (true) {
+            try (Connection conn = dataSource.getConnection();
+                 Statement statement = conn.createStatement();
+                 ResultSet resultSet = statement.executeQuery(
+                         "SELECT COUNT(*) FROM credentials WHERE packed_secret IS NULL;")) {
+                resultSet.next();
+                if (resultSet.getInt(1) == 0) {
+                    return;
+                }
+            }
+            assertThat("migration timed out", System.currentTimeMillis(),
+                    is(lessThan(deadline)));
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package de.dopler.ms.credentials_store;
+
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class UserQueryTest {
+
+    @Test
+    void orderDefaultsToUsernameWithPrefixAndToIdWithout() {
+        assertThat(UserQuery.of(null, null, "a", null, 10).order,
+                is(equalTo(UserQuery.Order.USERNAME)));
+        assertThat(UserQuery.of(null, null, null, null, 10).order,
+                is(equalTo(UserQuery.Order.ID)));
+        // an empty prefix is no prefix
+        assertThat(UserQuery.of(null, null, "", null, 10).order, is(equalTo(UserQuery.Order.ID)));
+    }
+
+    @Test
+    void firstPageStartsBeforeAllIds() {
+        var query = UserQuery.of("id", null, null, null, 10);
+
+        assertThat(query.afterId, is(equalTo(Long.MIN_VALUE)));
+        assertThat(query.afterUsername, is(nullValue()));
+    }
+
+    @Test
+    void prefixEndIsFirstStringAfterAllStringsWithPrefix() {
+        assertThat(UserQuery.of(null, null, "abc", null, 10).prefixEnd, is(equalTo("abd")));
+        assertThat(UserQuery.of(null, null, "a" + Character.MAX_VALUE, null, 10).prefixEnd,
+                is(equalTo("b")));
+        assertThat(UserQuery.of(null, null, String.valueOf(Character.MAX_VALUE), null,
+                10).prefixEnd, is(nullValue()));
+    }
+
+    @Test
+    void pageAfterUsernameBeforePrefixStartsAtPrefix() {
+        assertThat(UserQuery.of(null, "aaa", "b", null, 10).afterUsername, is(nullValue()));
+        assertThat(UserQuery.of(null, "bb", "b", null, 10).afterUsername, is(equalTo("bb")));
+        assertThat(UserQuery.of("username", "aaa", null, null, 10).afterUsername,
+                is(equalTo("aaa")));
+    }
+
+    @Test
+    void invalidParametersAreRejected() {
+        assertThrows(IllegalArgumentException.class,
+                () -> UserQuery.of(null, null, null, null, 0));
+        assertThrows(IllegalArgumentException.class,
+                () -> UserQuery.of("name", null, null, null, 10));
+        assertThrows(IllegalArgumentException.class,
+                () -> UserQuery.of("id", null, "a", null, 10));
+        assertThrows(IllegalArgumentException.class,
+                () -> UserQuery.of("id", "user-a", null, null, 10));
+    }
+
+    @Test
+    void groupIsOnlyListedInIdOrder() {
+        assertThat(UserQuery.of(null, "42", null, "admin", 10).group, is(equalTo("admin")));
+        assertThrows(IllegalArgumentException.class,
+                () -> UserQuery.of("username", null, null, "admin", 10));
+        assertThrows(IllegalArgumentException.class,
+                () -> UserQuery.of(null, null, "a", "admin", 10));
+    }
+}
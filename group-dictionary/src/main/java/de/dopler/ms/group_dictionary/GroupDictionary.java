@@ -0,0 +1,317 @@
+package de.dopler.ms.group_dictionary;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.jboss.logging.Logger;
+
+import javax.sql.DataSource;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.sql.*;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.OptionalInt;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static de.dopler.ms.group_dictionary.GroupDictionarySqlStatements.*;
+
+/**
+ * Interns group names into small integer ids, stored in the {@code group_dictionary} table of the
+ * given datasource, so rows only store the ids of their groups.
+ * <p>
+ * A set of groups is encoded as the ascending ids as unsigned varints, so equal sets have equal
+ * encodings. Decoding returns a canonical, immutable set which is shared by all rows with the same
+ * groups; up to {@code maxCachedGroupSets} distinct sets are cached, so a decode usually is a
+ * single map lookup without building a new set.
+ * <p>
+ * Looking up a name which isn't in the dictionary reloads it at most once per
+ * {@code minReloadIntervalMillis}, so a stream of lookups of unknown names can't keep the
+ * dictionary busy with full reloads. A name interned by another process using the same database
+ * may therefore be found up to that interval late. Decoding an unknown id reloads the dictionary
+ * on its first lookup, as the id was most likely interned by another process; later lookups of
+ * an id which is still unknown, e.g. of a corrupt row, reload at most once per interval as well.
+ */
+public class GroupDictionary {
+
+    private static final Logger LOG = Logger.getLogger("GroupDictionary");
+
+    private static final String SQL_STATE_UNIQUE_VIOLATION = "23505";
+    public static final int DEFAULT_MAX_CACHED_GROUP_SETS = 10_000;
+    private static final long DEFAULT_MIN_RELOAD_INTERVAL_MILLIS = 1000;
+    // beyond this number of distinct unknown ids, even their first lookup waits for the interval
+    private static final int MAX_UNKNOWN_IDS = 1000;
+
+    private final DataSource dataSource;
+    private final int maxCachedGroupSets;
+    private final long minReloadIntervalNanos;
+
+    private final ConcurrentHashMap<String, Integer> idsByName = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, String> namesById = new ConcurrentHashMap<>();
+    // encoded ids -> canonical set
+    private final ConcurrentHashMap<ByteBuffer, Set<String>> groupSets =
+            new ConcurrentHashMap<>();
+    // ids which were not found after a reload
+    private final Set<Integer> unknownIds = ConcurrentHashMap.newKeySet();
+    // System.nanoTime() before which unknown names and ids don't trigger a reload
+    private final AtomicLong nextReloadAt = new AtomicLong();
+    private volatile boolean initialized;
+
+    public GroupDictionary(@NonNull DataSource dataSource) {
+        this(dataSource, DEFAULT_MAX_CACHED_GROUP_SETS);
+    }
+
+    public GroupDictionary(@NonNull DataSource dataSource, int maxCachedGroupSets) {
+        this(dataSource, maxCachedGroupSets, DEFAULT_MIN_RELOAD_INTERVAL_MILLIS);
+    }
+
+    public GroupDictionary(@NonNull DataSource dataSource, int maxCachedGroupSets,
+            long minReloadIntervalMillis) {
+        this.dataSource = dataSource;
+        this.maxCachedGroupSets = maxCachedGroupSets;
+        minReloadIntervalNanos = TimeUnit.MILLISECONDS.toNanos(minReloadIntervalMillis);
+    }
+
+    /**
+     * Create the dictionary table if necessary and load all group names. Called on first use if
+     * it wasn't called before.
+     */
+    public synchronized void initStore() {
+        try (Connection conn = dataSource.getConnection();
+             Statement statement = conn.createStatement()) {
+            conn.setAutoCommit(true);
+            statement.execute(SQL_CREATE_TABLE);
+        } catch (SQLException e) {
+            LOG.errorf("initStore failed: %s", e.getMessage());
+            throw new IllegalStateException(
+                    "Initializing the group dictionary failed due to SQL exception");
+        }
+        reload();
+        initialized = true;
+        LOG.infof("Loaded %d group names", namesById.size());
+    }
+
+    /**
+     * Encode the given groups, interning group names which aren't in the dictionary yet.
+     */
+    @NonNull
+    public byte[] encode(@NonNull Set<String> groups) {
+        var ids = new int[groups.size()];
+        var i = 0;
+        for (var group : groups) {
+            ids[i++] = id(group);
+        }
+        return toVarints(ids);
+    }
+
+    /**
+     * @return the id of {@code group}, interning it if it isn't in the dictionary yet.
+     */
+    public int id(@NonNull String group) {
+        ensureInitialized();
+        var id = idsByName.get(group);
+        return id != null ? id : intern(group);
+    }
+
+    /**
+     * @return the id of {@code group}; empty if it isn't in the dictionary, so looking up a group
+     * never interns it. Only reloads the dictionary if the last reload is at least
+     * {@code minReloadIntervalMillis} ago.
+     */
+    @NonNull
+    public OptionalInt existingId(@NonNull String group) {
+        ensureInitialized();
+        var id = idsByName.get(group);
+        if (id == null && claimReload()) {
+            // interned by another process using the same database
+            reload();
+            id = idsByName.get(group);
+        }
+        return id == null ? OptionalInt.empty() : OptionalInt.of(id);
+    }
+
+    /**
+     * @return the canonical, immutable set of the encoded groups.
+     * @throws IllegalArgumentException if {@code encoded} was not created by {@link #encode}.
+     */
+    @NonNull
+    public Set<String> decode(@NonNull byte[] encoded) {
+        var key = ByteBuffer.wrap(encoded);
+        var groups = groupSets.get(key);
+        if (groups != null) {
+            return groups;
+        }
+        ensureInitialized();
+        groups = Set.copyOf(decodeNames(encoded));
+        if (groupSets.size() < maxCachedGroupSets) {
+            var existing = groupSets.putIfAbsent(key, groups);
+            if (existing != null) {
+                return existing;
+            }
+        }
+        return groups;
+    }
+
+    /**
+     * @return the canonical, immutable set of the groups with the given ids, in any order.
+     * @throws IllegalArgumentException if an id is not in the dictionary.
+     */
+    @NonNull
+    public Set<String> decode(@NonNull int[] ids) {
+        return decode(toVarints(ids.clone()));
+    }
+
+    /**
+     * @return the canonical, immutable set equal to {@code groups}.
+     */
+    @NonNull
+    public Set<String> canonical(@NonNull Set<String> groups) {
+        return decode(encode(groups));
+    }
+
+    @NonNull
+    private Set<String> decodeNames(@NonNull byte[] encoded) {
+        var names = new HashSet<String>();
+        var position = 0;
+        while (position < encoded.length) {
+            var id = 0;
+            var shift = 0;
+            int b;
+            do {
+                if (position >= encoded.length || shift > 28) {
+                    throw new IllegalArgumentException("invalid encoded groups");
+                }
+                b = encoded[position++] & 0xFF;
+                id |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            var name = namesById.get(id);
+            names.add(name != null ? name : nameOfUnknownId(id));
+        }
+        return names;
+    }
+
+    /**
+     * Reload the dictionary for an id which isn't in it, as it may have been interned by another
+     * process using the same database: on the first lookup of the id, later at most once per
+     * interval.
+     *
+     * @throws IllegalArgumentException if the id is still unknown.
+     */
+    @NonNull
+    private String nameOfUnknownId(int id) {
+        var firstLookup = unknownIds.size() < MAX_UNKNOWN_IDS && !unknownIds.contains(id);
+        if (firstLookup || claimReload()) {
+            reload();
+        }
+        var name = namesById.get(id);
+        if (name == null) {
+            if (unknownIds.add(id)) {
+                LOG.warnf("Group id %d is not in the dictionary", id);
+            }
+            throw new IllegalArgumentException("unknown group id " + id);
+        }
+        unknownIds.remove(id);
+        return name;
+    }
+
+    /**
+     * @return the given ids as ascending unsigned varints; sorts {@code ids} in place.
+     */
+    @NonNull
+    private static byte[] toVarints(@NonNull int[] ids) {
+        Arrays.sort(ids);
+        var out = new ByteArrayOutputStream(ids.length * 2);
+        for (var id : ids) {
+            while ((id & ~0x7F) != 0) {
+                out.write(id & 0x7F | 0x80);
+                id >>>= 7;
+            }
+            out.write(id);
+        }
+        return out.toByteArray();
+    }
+
+    private synchronized int intern(@NonNull String group) {
+        var id = idsByName.get(group);
+        if (id != null) {
+            return id;
+        }
+        try (Connection conn = dataSource.getConnection()) {
+            conn.setAutoCommit(true);
+            try (PreparedStatement statement = conn.prepareStatement(SQL_INSERT,
+                    Statement.RETURN_GENERATED_KEYS)) {
+                statement.setString(1, group);
+                statement.executeUpdate();
+                try (ResultSet generatedKeys = statement.getGeneratedKeys()) {
+                    if (generatedKeys.next()) {
+                        id = generatedKeys.getInt(1);
+                    }
+                }
+            } catch (SQLException e) {
+                // interned by another process using the same database
+                if (!SQL_STATE_UNIQUE_VIOLATION.equals(e.getSQLState())) {
+                    throw e;
+                }
+            }
+            if (id == null) {
+                id = selectId(conn, group);
+            }
+        } catch (SQLException e) {
+            LOG.errorf("interning group failed: %s", e.getMessage());
+            throw new IllegalStateException("interning a group failed due to SQL exception");
+        }
+        namesById.put(id, group);
+        idsByName.put(group, id);
+        return id;
+    }
+
+    private static int selectId(@NonNull Connection conn, @NonNull String group)
+            throws SQLException {
+        try (PreparedStatement statement = conn.prepareStatement(SQL_SELECT_ID)) {
+            statement.setString(1, group);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                if (resultSet.next()) {
+                    return resultSet.getInt(1);
+                }
+            }
+        }
+        throw new SQLException("group was neither inserted nor found");
+    }
+
+    /**
+     * @return true if the caller may reload the dictionary; at most one caller per interval gets
+     * true, the others neither reload nor wait for the reload.
+     */
+    private boolean claimReload() {
+        var now = System.nanoTime();
+        var next = nextReloadAt.get();
+        return now - next >= 0 && nextReloadAt.compareAndSet(next, now + minReloadIntervalNanos);
+    }
+
+    private synchronized void reload() {
+        nextReloadAt.set(System.nanoTime() + minReloadIntervalNanos);
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement statement = conn.prepareStatement(SQL_SELECT_ALL)) {
+            conn.setAutoCommit(true);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    var id = resultSet.getInt(1);
+                    var name = resultSet.getString(2);
+                    namesById.put(id, name);
+                    idsByName.put(name, id);
+                }
+            }
+        } catch (SQLException e) {
+            LOG.errorf("loading group names failed: %s", e.getMessage());
+            throw new IllegalStateException("loading group names failed due to SQL exception");
+        }
+    }
+
+    private void ensureInitialized() {
+        if (!initialized) {
+            initStore();
+        }
+    }
+}
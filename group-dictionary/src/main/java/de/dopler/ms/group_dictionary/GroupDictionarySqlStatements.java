@@ -0,0 +1,32 @@
+package de.dopler.ms.group_dictionary;
+
+public final class GroupDictionarySqlStatements {
+
+    private GroupDictionarySqlStatements() {
+        // data class
+    }
+
+    // @formatter:off
+    //language=H2
+    static final String SQL_CREATE_TABLE =
+            "CREATE TABLE IF NOT EXISTS group_dictionary (" +
+                    "  id INT AUTO_INCREMENT PRIMARY KEY," +
+                    "  name VARCHAR NOT NULL UNIQUE);";
+
+    //language=H2
+    static final String SQL_INSERT =
+            "INSERT INTO group_dictionary" +
+                    "  (name)" +
+                    "  VALUES (?);";
+
+    //language=H2
+    static final String SQL_SELECT_ID =
+            "SELECT id FROM group_dictionary" +
+                    "  WHERE" +
+                    "  name = ?;";
+
+    //language=H2
+    static final String SQL_SELECT_ALL =
+            "SELECT id, name FROM group_dictionary;";
+    // @formatter:on
+}
@@ -0,0 +1,235 @@
+package de.dopler.ms.group_dictionary;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.OptionalInt;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class GroupDictionaryTest {
+
+    private static final int THREADS = 8;
+
+    private CountingDataSource dataSource;
+    private GroupDictionary groupDictionary;
+
+    @BeforeEach
+    void setUp() {
+        dataSource = new CountingDataSource();
+        dataSource.setURL("jdbc:h2:mem:group-dictionary-test;DB_CLOSE_DELAY=-1");
+        groupDictionary = new GroupDictionary(dataSource);
+    }
+
+    @AfterEach
+    void tearDown() throws SQLException {
+        try (Connection conn = dataSource.getConnection();
+             Statement statement = conn.createStatement()) {
+            statement.execute("DROP ALL OBJECTS");
+        }
+    }
+
+    // #encode and #decode =========================================================================
+
+    @Test
+    void groupsAreEncodedAsAscendingVarints() {
+        // ids 1 to 200: 200 needs a second byte
+        var names = IntStream.rangeClosed(1, 200)
+                .mapToObj(i -> "group-" + i)
+                .collect(Collectors.toList());
+        names.forEach(groupDictionary::id);
+
+        var encoded = groupDictionary.encode(Set.of("group-200", "group-1", "group-127",
+                "group-128"));
+
+        assertThat(encoded, is(equalTo(new byte[]{1, 127, (byte) 0x80, 1, (byte) 0xC8, 1})));
+        assertThat(groupDictionary.decode(encoded),
+                is(equalTo(Set.of("group-1", "group-127", "group-128", "group-200"))));
+        assertThat(groupDictionary.decode(new int[]{200, 128, 127, 1}),
+                is(equalTo(Set.of("group-1", "group-127", "group-128", "group-200"))));
+        assertThat(groupDictionary.encode(new HashSet<>(names)).length,
+                is(equalTo(127 + 2 * 73)));
+    }
+
+    @Test
+    void emptyGroupsAreEncodedAsEmptyArray() {
+        assertThat(groupDictionary.encode(Set.of()).length, is(equalTo(0)));
+        assertThat(groupDictionary.decode(new byte[0]), is(empty()));
+    }
+
+    @Test
+    void invalidEncodingsAreRejected() {
+        groupDictionary.id("group");
+
+        // a varint without its last byte
+        assertThrows(IllegalArgumentException.class,
+                () -> groupDictionary.decode(new byte[]{(byte) 0x81}));
+        // more than 5 bytes
+        assertThrows(IllegalArgumentException.class, () -> groupDictionary.decode(
+                new byte[]{(byte) 0x81, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0}));
+        // not in the dictionary
+        assertThrows(IllegalArgumentException.class,
+                () -> groupDictionary.decode(new byte[]{42}));
+    }
+
+    // #canonical ==================================================================================
+
+    @Test
+    void equalGroupsAreDecodedToTheSameInstance() {
+        var groups = groupDictionary.canonical(Set.of("admin", "user"));
+
+        assertThat(groupDictionary.canonical(new HashSet<>(List.of("user", "admin"))),
+                is(sameInstance(groups)));
+        assertThat(groupDictionary.decode(groupDictionary.encode(Set.of("admin", "user"))),
+                is(sameInstance(groups)));
+        assertThrows(UnsupportedOperationException.class, () -> groups.add("other"));
+    }
+
+    @Test
+    void setsBeyondMaxCachedGroupSetsAreDecodedButNotCached() {
+        groupDictionary = new GroupDictionary(dataSource, 1);
+        var cached = groupDictionary.canonical(Set.of("admin"));
+
+        var uncached = groupDictionary.canonical(Set.of("user"));
+
+        assertThat(uncached, is(equalTo(Set.of("user"))));
+        assertThat(groupDictionary.canonical(Set.of("user")), is(not(sameInstance(uncached))));
+        assertThat(groupDictionary.canonical(Set.of("admin")), is(sameInstance(cached)));
+    }
+
+    // #id =========================================================================================
+
+    @Test
+    void concurrentlyInternedGroupsGetOneIdAcrossDictionaries() throws Exception {
+        // a second dictionary on the same database, like another process
+        var otherDictionary = new GroupDictionary(dataSource);
+        groupDictionary.initStore();
+        otherDictionary.initStore();
+        var names = IntStream.range(0, 50).mapToObj(i -> "group-" + i).collect(Collectors.toList());
+        var executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            var start = new CountDownLatch(1);
+            var ids = new ArrayList<CompletableFuture<List<Integer>>>();
+            for (int thread = 0; thread < THREADS; thread++) {
+                var dictionary = thread % 2 == 0 ? groupDictionary : otherDictionary;
+                ids.add(internAll(executor, start, dictionary, names));
+            }
+            start.countDown();
+
+            var expectedIds = ids.get(0).get();
+            for (var threadIds : ids) {
+                assertThat(threadIds.get(), is(equalTo(expectedIds)));
+            }
+            assertThat(Set.copyOf(expectedIds), hasSize(names.size()));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    // #existingId =================================================================================
+
+    @Test
+    void existingIdNeverInterns() {
+        assertThat(groupDictionary.existingId("unknown"), is(equalTo(OptionalInt.empty())));
+        var id = groupDictionary.id("known");
+
+        assertThat(groupDictionary.existingId("known"), is(equalTo(OptionalInt.of(id))));
+        assertThat(groupDictionary.existingId("unknown"), is(equalTo(OptionalInt.empty())));
+    }
+
+    @Test
+    void unknownNamesReloadAtMostOncePerInterval() {
+        groupDictionary = new GroupDictionary(dataSource,
+                GroupDictionary.DEFAULT_MAX_CACHED_GROUP_SETS, 60_000);
+        groupDictionary.initStore();
+        var otherDictionary = new GroupDictionary(dataSource);
+        var id = otherDictionary.id("interned-elsewhere");
+        var connections = dataSource.connections.get();
+
+        for (int i = 0; i < 1000; i++) {
+            assertThat(groupDictionary.existingId("unknown-" + i),
+                    is(equalTo(OptionalInt.empty())));
+        }
+
+        // the last reload is less than an interval ago: not found yet
+        assertThat(groupDictionary.existingId("interned-elsewhere"),
+                is(equalTo(OptionalInt.empty())));
+        assertThat(dataSource.connections.get(), is(equalTo(connections)));
+        // the first decode of an unknown id reloads
+        assertThat(groupDictionary.decode(new int[]{id}),
+                is(equalTo(Set.of("interned-elsewhere"))));
+        assertThat(groupDictionary.existingId("interned-elsewhere"),
+                is(equalTo(OptionalInt.of(id))));
+    }
+
+    @Test
+    void unknownIdsReloadOnlyOnTheirFirstDecodeWithinAnInterval() {
+        groupDictionary = new GroupDictionary(dataSource,
+                GroupDictionary.DEFAULT_MAX_CACHED_GROUP_SETS, 60_000);
+        groupDictionary.initStore();
+        var connections = dataSource.connections.get();
+
+        for (int i = 0; i < 1000; i++) {
+            assertThrows(IllegalArgumentException.class,
+                    () -> groupDictionary.decode(new int[]{42}));
+        }
+
+        assertThat(dataSource.connections.get(), is(equalTo(connections + 1)));
+    }
+
+    @Test
+    void unknownNamesReloadOnceTheIntervalPassed() {
+        groupDictionary = new GroupDictionary(dataSource,
+                GroupDictionary.DEFAULT_MAX_CACHED_GROUP_SETS, 0);
+        groupDictionary.initStore();
+        var id = new GroupDictionary(dataSource).id("interned-elsewhere");
+
+        assertThat(groupDictionary.existingId("interned-elsewhere"),
+                is(equalTo(OptionalInt.of(id))));
+    }
+
+    private static CompletableFuture<List<Integer>> internAll(ExecutorService executor,
+            CountDownLatch start, GroupDictionary dictionary, List<String> names) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                start.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+            return names.stream().map(dictionary::id).collect(Collectors.toList());
+        }, executor);
+    }
+
+    /**
+     * Counts the connections, so a test can tell whether the dictionary was reloaded.
+     */
+    private static class CountingDataSource extends JdbcDataSource {
+
+        final AtomicInteger connections = new AtomicInteger();
+
+        @Override
+        public Connection getConnection() throws SQLException {
+            connections.incrementAndGet();
+            return super.getConnection();
+        }
+    }
+}
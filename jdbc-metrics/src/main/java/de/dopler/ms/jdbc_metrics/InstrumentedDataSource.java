@@ -0,0 +1,78 @@
+package de.dopler.ms.jdbc_metrics;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * {@link DataSource} which times the acquisition of connections and instruments them.
+ */
+final class InstrumentedDataSource implements DataSource {
+
+    private final DataSource delegate;
+    private final JdbcMetrics jdbcMetrics;
+
+    InstrumentedDataSource(@NonNull DataSource delegate, @NonNull JdbcMetrics jdbcMetrics) {
+        this.delegate = delegate;
+        this.jdbcMetrics = jdbcMetrics;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        var start = System.nanoTime();
+        var connection = delegate.getConnection();
+        jdbcMetrics.connectionAcquisition().update(System.nanoTime() - start,
+                TimeUnit.NANOSECONDS);
+        return JdbcProxies.connection(connection, jdbcMetrics);
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        var start = System.nanoTime();
+        var connection = delegate.getConnection(username, password);
+        jdbcMetrics.connectionAcquisition().update(System.nanoTime() - start,
+                TimeUnit.NANOSECONDS);
+        return JdbcProxies.connection(connection, jdbcMetrics);
+    }
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        return delegate.getLogWriter();
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) throws SQLException {
+        delegate.setLogWriter(out);
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) throws SQLException {
+        delegate.setLoginTimeout(seconds);
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        return delegate.getLoginTimeout();
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        return delegate.getParentLogger();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        return iface.isInstance(this) ? iface.cast(this) : delegate.unwrap(iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this) || delegate.isWrapperFor(iface);
+    }
+}
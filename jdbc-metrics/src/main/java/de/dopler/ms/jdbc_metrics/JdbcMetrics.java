@@ -0,0 +1,107 @@
+package de.dopler.ms.jdbc_metrics;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.microprofile.metrics.Metadata;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.eclipse.microprofile.metrics.MetricType;
+import org.eclipse.microprofile.metrics.Tag;
+import org.eclipse.microprofile.metrics.Timer;
+
+import javax.sql.DataSource;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Instruments datasources with metrics, so the time of a request can be split into waiting for
+ * a connection, executing statements and reading their results:
+ * <ul>
+ * <li>{@code jdbc-connection-acquisition}: time of {@link DataSource#getConnection()}, i.e. the
+ * wait for a pooled connection;</li>
+ * <li>{@code jdbc-statement-execution}: time of every execute call;</li>
+ * <li>{@code jdbc-result-mapping}: time from the end of a query until its result set is closed,
+ * i.e. the time the caller spends reading and mapping the rows;</li>
+ * <li>{@code jdbc-result-rows}: number of rows read.</li>
+ * </ul>
+ * The statement metrics are tagged with the name of the statement's constant (see
+ * {@link StatementNames}). The timers provide counts and percentiles.
+ * <p>
+ * Connections, statements and result sets are wrapped in dynamic proxies; a measured call costs
+ * two {@link System#nanoTime()} calls and a timer update more, all other calls only the proxy
+ * dispatch.
+ */
+public final class JdbcMetrics {
+
+    private static final String STATEMENT_TAG = "statement";
+    // formatted statements (e.g. one per partition table) are cached until this many
+    private static final int MAX_CACHED_STATEMENTS = 1000;
+
+    private final MetricRegistry metricRegistry;
+    private final StatementNames statementNames;
+    private final Timer connectionAcquisition;
+    private final ConcurrentHashMap<String, StatementMetrics> statementsBySql =
+            new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, StatementMetrics> statementsByName =
+            new ConcurrentHashMap<>();
+
+    /**
+     * @param statementClasses the classes defining the {@code SQL_*} statement constants.
+     */
+    public JdbcMetrics(@NonNull MetricRegistry metricRegistry,
+            @NonNull Class<?>... statementClasses) {
+        this.metricRegistry = metricRegistry;
+        statementNames = new StatementNames(statementClasses);
+        connectionAcquisition = metricRegistry.timer(Metadata.builder()
+                .withName("jdbc-connection-acquisition")
+                .withDescription("Time to acquire a connection from the datasource")
+                .withType(MetricType.TIMER)
+                .build());
+    }
+
+    /**
+     * @return {@code dataSource} with all its connections instrumented.
+     */
+    @NonNull
+    public DataSource instrument(@NonNull DataSource dataSource) {
+        return new InstrumentedDataSource(dataSource, this);
+    }
+
+    @NonNull
+    Timer connectionAcquisition() {
+        return connectionAcquisition;
+    }
+
+    @NonNull
+    StatementMetrics statement(@NonNull String sql) {
+        var metrics = statementsBySql.get(sql);
+        if (metrics == null) {
+            metrics = statementsByName.computeIfAbsent(statementNames.nameOf(sql),
+                    this::register);
+            if (statementsBySql.size() >= MAX_CACHED_STATEMENTS) {
+                statementsBySql.clear();
+            }
+            statementsBySql.put(sql, metrics);
+        }
+        return metrics;
+    }
+
+    @NonNull
+    private StatementMetrics register(@NonNull String name) {
+        var tag = new Tag(STATEMENT_TAG, name);
+        return new StatementMetrics(
+                metricRegistry.timer(Metadata.builder()
+                        .withName("jdbc-statement-execution")
+                        .withDescription("Execution time of the statement")
+                        .withType(MetricType.TIMER)
+                        .build(), tag),
+                metricRegistry.timer(Metadata.builder()
+                        .withName("jdbc-result-mapping")
+                        .withDescription("Time from the end of the query until its result set " +
+                                "is closed")
+                        .withType(MetricType.TIMER)
+                        .build(), tag),
+                metricRegistry.counter(Metadata.builder()
+                        .withName("jdbc-result-rows")
+                        .withDescription("Number of rows read from the results of the statement")
+                        .withType(MetricType.COUNTER)
+                        .build(), tag));
+    }
+}
@@ -0,0 +1,193 @@
+package de.dopler.ms.jdbc_metrics;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Dynamic proxies which instrument connections, statements and result sets for
+ * {@link JdbcMetrics}. The proxy classes are created once, so wrapping an object only calls a
+ * constructor.
+ */
+final class JdbcProxies {
+
+    private static final Constructor<?> CONNECTION = proxyConstructor(Connection.class);
+    private static final Constructor<?> STATEMENT = proxyConstructor(Statement.class);
+    private static final Constructor<?> PREPARED_STATEMENT =
+            proxyConstructor(PreparedStatement.class);
+    private static final Constructor<?> CALLABLE_STATEMENT =
+            proxyConstructor(CallableStatement.class);
+    private static final Constructor<?> RESULT_SET = proxyConstructor(ResultSet.class);
+
+    private JdbcProxies() {
+        // utility class
+    }
+
+    @NonNull
+    static Connection connection(@NonNull Connection connection,
+            @NonNull JdbcMetrics jdbcMetrics) {
+        return newProxy(CONNECTION, new ConnectionHandler(connection, jdbcMetrics));
+    }
+
+    @NonNull
+    private static <T> T newProxy(@NonNull Constructor<?> constructor,
+            @NonNull InvocationHandler handler) {
+        try {
+            @SuppressWarnings("unchecked")
+            var proxy = (T) constructor.newInstance(handler);
+            return proxy;
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("creating a JDBC proxy failed", e);
+        }
+    }
+
+    @NonNull
+    private static Constructor<?> proxyConstructor(@NonNull Class<?> type) {
+        var proxy = Proxy.newProxyInstance(JdbcProxies.class.getClassLoader(),
+                new Class<?>[]{type}, (p, method, args) -> null);
+        try {
+            return proxy.getClass().getConstructor(InvocationHandler.class);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException("no proxy constructor for " + type.getName(), e);
+        }
+    }
+
+    private static Object invoke(@NonNull Object delegate, @NonNull Method method, Object[] args)
+            throws Throwable {
+        try {
+            return method.invoke(delegate, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static final class ConnectionHandler implements InvocationHandler {
+
+        private final Connection delegate;
+        private final JdbcMetrics jdbcMetrics;
+
+        ConnectionHandler(Connection delegate, JdbcMetrics jdbcMetrics) {
+            this.delegate = delegate;
+            this.jdbcMetrics = jdbcMetrics;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            var result = JdbcProxies.invoke(delegate, method, args);
+            switch (method.getName()) {
+                case "prepareStatement":
+                    return newProxy(PREPARED_STATEMENT, new StatementHandler(result, jdbcMetrics,
+                            jdbcMetrics.statement((String) args[0])));
+                case "prepareCall":
+                    return newProxy(CALLABLE_STATEMENT, new StatementHandler(result, jdbcMetrics,
+                            jdbcMetrics.statement((String) args[0])));
+                case "createStatement":
+                    // named per execute call by its SQL
+                    return newProxy(STATEMENT, new StatementHandler(result, jdbcMetrics, null));
+                default:
+                    return result;
+            }
+        }
+    }
+
+    private static final class StatementHandler implements InvocationHandler {
+
+        private final Object delegate;
+        private final JdbcMetrics jdbcMetrics;
+        // null for plain statements
+        private final StatementMetrics prepared;
+        private String batchSql;
+        private StatementMetrics lastExecuted;
+
+        StatementHandler(Object delegate, JdbcMetrics jdbcMetrics, StatementMetrics prepared) {
+            this.delegate = delegate;
+            this.jdbcMetrics = jdbcMetrics;
+            this.prepared = prepared;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            var name = method.getName();
+            if (name.startsWith("execute")) {
+                var metrics = metricsOf(args);
+                lastExecuted = metrics;
+                var start = System.nanoTime();
+                Object result;
+                try {
+                    result = JdbcProxies.invoke(delegate, method, args);
+                } finally {
+                    metrics.execution.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                }
+                return result instanceof ResultSet ?
+                        newProxy(RESULT_SET, new ResultSetHandler(result, metrics)) :
+                        result;
+            }
+            if (name.equals("addBatch") && args != null && batchSql == null) {
+                batchSql = (String) args[0];
+            }
+            var result = JdbcProxies.invoke(delegate, method, args);
+            if (name.equals("getResultSet") && result != null && lastExecuted != null) {
+                return newProxy(RESULT_SET, new ResultSetHandler(result, lastExecuted));
+            }
+            return result;
+        }
+
+        @NonNull
+        private StatementMetrics metricsOf(Object[] args) {
+            if (args != null && args.length > 0 && args[0] instanceof String) {
+                return jdbcMetrics.statement((String) args[0]);
+            }
+            if (prepared != null) {
+                return prepared;
+            }
+            return jdbcMetrics.statement(batchSql == null ? StatementNames.OTHER : batchSql);
+        }
+    }
+
+    private static final class ResultSetHandler implements InvocationHandler {
+
+        private final Object delegate;
+        private final StatementMetrics metrics;
+        private final long openedAt = System.nanoTime();
+        private long rows;
+        private boolean closed;
+
+        ResultSetHandler(Object delegate, StatementMetrics metrics) {
+            this.delegate = delegate;
+            this.metrics = metrics;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            var result = JdbcProxies.invoke(delegate, method, args);
+            switch (method.getName()) {
+                case "next":
+                    if ((Boolean) result) {
+                        rows++;
+                    }
+                    break;
+                case "close":
+                    if (!closed) {
+                        closed = true;
+                        metrics.mapping.update(System.nanoTime() - openedAt,
+                                TimeUnit.NANOSECONDS);
+                        metrics.rows.inc(rows);
+                    }
+                    break;
+                default:
+                    break;
+            }
+            return result;
+        }
+    }
+}
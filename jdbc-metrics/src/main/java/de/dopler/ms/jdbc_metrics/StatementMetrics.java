@@ -0,0 +1,20 @@
+package de.dopler.ms.jdbc_metrics;
+
+import org.eclipse.microprofile.metrics.Counter;
+import org.eclipse.microprofile.metrics.Timer;
+
+/**
+ * The metrics of one named statement.
+ */
+final class StatementMetrics {
+
+    final Timer execution;
+    final Timer mapping;
+    final Counter rows;
+
+    StatementMetrics(Timer execution, Timer mapping, Counter rows) {
+        this.execution = execution;
+        this.mapping = mapping;
+        this.rows = rows;
+    }
+}
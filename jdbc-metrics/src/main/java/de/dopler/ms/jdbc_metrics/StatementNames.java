@@ -0,0 +1,105 @@
+package de.dopler.ms.jdbc_metrics;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Names SQL statements after the constants they are defined by: the static String fields named
+ * {@code SQL_*} of the given classes. Statements formatted from a constant (e.g. with the name of
+ * a table for {@code %s}) are matched against the constant as a pattern. A name defined by more
+ * than one class is qualified by the simple class name. Unknown statements are named
+ * {@value #OTHER}.
+ */
+final class StatementNames {
+
+    static final String OTHER = "other";
+
+    private static final String PREFIX = "SQL_";
+    private static final Pattern FORMAT_SPECIFIER = Pattern.compile("%[sd]");
+
+    private final Map<String, String> namesBySql = new HashMap<>();
+    private final List<NamePattern> patterns = new ArrayList<>();
+
+    StatementNames(@NonNull Class<?>... statementClasses) {
+        var sqlsByName = new HashMap<String, String>();
+        for (var statementClass : statementClasses) {
+            for (var field : statementClass.getDeclaredFields()) {
+                if (!isStatementConstant(field)) {
+                    continue;
+                }
+                var sql = constantValue(field);
+                var name = field.getName();
+                var previous = sqlsByName.putIfAbsent(name, sql);
+                if (previous != null && !previous.equals(sql)) {
+                    name = statementClass.getSimpleName() + "." + name;
+                }
+                add(name, sql);
+            }
+        }
+    }
+
+    @NonNull
+    String nameOf(@NonNull String sql) {
+        var name = namesBySql.get(sql);
+        if (name != null) {
+            return name;
+        }
+        for (var pattern : patterns) {
+            if (pattern.pattern.matcher(sql).matches()) {
+                return pattern.name;
+            }
+        }
+        return OTHER;
+    }
+
+    private void add(@NonNull String name, @NonNull String sql) {
+        var matcher = FORMAT_SPECIFIER.matcher(sql);
+        if (!matcher.find()) {
+            namesBySql.putIfAbsent(sql, name);
+            return;
+        }
+        var regex = new StringBuilder();
+        var start = 0;
+        do {
+            regex.append(Pattern.quote(sql.substring(start, matcher.start())))
+                    .append(matcher.group().equals("%d") ? "-?\\d+" : "\\w+");
+            start = matcher.end();
+        } while (matcher.find());
+        regex.append(Pattern.quote(sql.substring(start)));
+        patterns.add(new NamePattern(name, Pattern.compile(regex.toString())));
+    }
+
+    private static boolean isStatementConstant(@NonNull Field field) {
+        var modifiers = field.getModifiers();
+        return Modifier.isStatic(modifiers) && Modifier.isFinal(modifiers) &&
+                field.getType() == String.class && field.getName().startsWith(PREFIX);
+    }
+
+    @NonNull
+    private static String constantValue(@NonNull Field field) {
+        try {
+            field.setAccessible(true);
+            return (String) field.get(null);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("cannot read " + field.getName(), e);
+        }
+    }
+
+    private static final class NamePattern {
+
+        final String name;
+        final Pattern pattern;
+
+        NamePattern(String name, Pattern pattern) {
+            this.name = name;
+            this.pattern = pattern;
+        }
+    }
+}
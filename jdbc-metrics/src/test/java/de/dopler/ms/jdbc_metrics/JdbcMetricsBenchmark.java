@@ -0,0 +1,152 @@
+package de.dopler.ms.jdbc_metrics;
+
+import io.smallrye.metrics.MetricRegistries;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Measures the overhead of the instrumentation: the same queries on an in-memory H2 database,
+ * once on the plain and once on the instrumented datasource, and the name resolution of a
+ * statement. Not run by default, as its timings depend on the machine; run it with
+ * {@code mvn test -Dbenchmark=true -Dtest=JdbcMetricsBenchmark}.
+ */
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+class JdbcMetricsBenchmark {
+
+    private static final int WARM_UP_ROUNDS = 3;
+    private static final int ROUNDS = 5;
+    private static final int QUERIES = 20_000;
+    private static final int ROWS = 10;
+
+    private JdbcDataSource dataSource;
+    private JdbcMetrics jdbcMetrics;
+
+    @BeforeEach
+    void setUp() throws SQLException {
+        dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:jdbc-metrics-benchmark;DB_CLOSE_DELAY=-1");
+        jdbcMetrics = new JdbcMetrics(MetricRegistries.get(MetricRegistry.Type.APPLICATION),
+                BenchmarkStatements.class);
+        try (Connection conn = dataSource.getConnection();
+             Statement statement = conn.createStatement()) {
+            statement.execute(BenchmarkStatements.SQL_CREATE_TABLE);
+            for (int i = 0; i < ROWS; i++) {
+                statement.execute("INSERT INTO benchmark (id, name) VALUES (" + i + ", 'n" + i +
+                        "');");
+            }
+        }
+    }
+
+    @AfterEach
+    void tearDown() throws SQLException {
+        try (Connection conn = dataSource.getConnection();
+             Statement statement = conn.createStatement()) {
+            statement.execute("DROP ALL OBJECTS");
+        }
+    }
+
+    @Test
+    void instrumentedQueries() throws SQLException {
+        var instrumented = jdbcMetrics.instrument(dataSource);
+        for (int round = 0; round < WARM_UP_ROUNDS; round++) {
+            query(dataSource);
+            query(instrumented);
+        }
+
+        long plainNanos = Long.MAX_VALUE;
+        long instrumentedNanos = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            var start = System.nanoTime();
+            var plainRows = query(dataSource);
+            plainNanos = Math.min(plainNanos, System.nanoTime() - start);
+            start = System.nanoTime();
+            var instrumentedRows = query(instrumented);
+            instrumentedNanos = Math.min(instrumentedNanos, System.nanoTime() - start);
+            assertThat(instrumentedRows, is(equalTo(plainRows)));
+        }
+
+        System.out.printf("plain: %d ns/query, instrumented: %d ns/query, overhead: %d ns/query " +
+                        "(%.1f %%)%n", plainNanos / QUERIES, instrumentedNanos / QUERIES,
+                (instrumentedNanos - plainNanos) / QUERIES,
+                100.0 * (instrumentedNanos - plainNanos) / plainNanos);
+    }
+
+    @Test
+    void statementNameResolution() {
+        var statementNames = new StatementNames(BenchmarkStatements.class);
+        var constant = BenchmarkStatements.SQL_SELECT_PAGE;
+        var formatted = String.format(BenchmarkStatements.SQL_SELECT_FROM, "benchmark");
+        for (int round = 0; round < WARM_UP_ROUNDS; round++) {
+            resolve(statementNames, constant);
+            resolve(statementNames, formatted);
+        }
+
+        long constantNanos = Long.MAX_VALUE;
+        long formattedNanos = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            var start = System.nanoTime();
+            assertThat(resolve(statementNames, constant), is(equalTo("SQL_SELECT_PAGE")));
+            constantNanos = Math.min(constantNanos, System.nanoTime() - start);
+            start = System.nanoTime();
+            assertThat(resolve(statementNames, formatted), is(equalTo("SQL_SELECT_FROM")));
+            formattedNanos = Math.min(formattedNanos, System.nanoTime() - start);
+        }
+
+        System.out.printf("name of a constant: %d ns, of a formatted statement: %d ns%n",
+                constantNanos / QUERIES, formattedNanos / QUERIES);
+    }
+
+    /**
+     * @return the number of rows read.
+     */
+    private static long query(DataSource dataSource) throws SQLException {
+        var rows = 0L;
+        try (Connection conn = dataSource.getConnection()) {
+            for (int i = 0; i < QUERIES; i++) {
+                try (PreparedStatement statement = conn.prepareStatement(
+                        BenchmarkStatements.SQL_SELECT_PAGE)) {
+                    statement.setInt(1, ROWS);
+                    try (ResultSet resultSet = statement.executeQuery()) {
+                        while (resultSet.next()) {
+                            rows += resultSet.getLong(1);
+                        }
+                    }
+                }
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * @return the name of the last resolution.
+     */
+    private static String resolve(StatementNames statementNames, String sql) {
+        String name = null;
+        for (int i = 0; i < QUERIES; i++) {
+            name = statementNames.nameOf(sql);
+        }
+        return name;
+    }
+
+    private static final class BenchmarkStatements {
+
+        static final String SQL_CREATE_TABLE =
+                "CREATE TABLE benchmark (id BIGINT PRIMARY KEY, name VARCHAR NOT NULL);";
+        static final String SQL_SELECT_PAGE = "SELECT id, name FROM benchmark LIMIT ?;";
+        static final String SQL_SELECT_FROM = "SELECT id, name FROM %s;";
+    }
+}
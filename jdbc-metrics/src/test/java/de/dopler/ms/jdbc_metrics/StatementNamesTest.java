@@ -0,0 +1,103 @@
+package de.dopler.ms.jdbc_metrics;
+
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+class StatementNamesTest {
+
+    private final StatementNames statementNames = new StatementNames(FirstStatements.class,
+            SecondStatements.class);
+
+    @Test
+    void constantsAreNamedAfterTheirField() {
+        assertThat(statementNames.nameOf(FirstStatements.SQL_SELECT_USER),
+                is(equalTo("SQL_SELECT_USER")));
+        assertThat(statementNames.nameOf(SecondStatements.SQL_DELETE_USER),
+                is(equalTo("SQL_DELETE_USER")));
+    }
+
+    @Test
+    void onlyStaticFinalStringFieldsWithThePrefixAreConstants() {
+        assertThat(statementNames.nameOf(FirstStatements.NOT_PREFIXED), is(equalTo("other")));
+        assertThat(statementNames.nameOf(FirstStatements.SQL_NOT_FINAL), is(equalTo("other")));
+        assertThat(statementNames.nameOf(new FirstStatements().SQL_NOT_STATIC),
+                is(equalTo("other")));
+    }
+
+    @Test
+    void stringFormatSpecifierMatchesAWord() {
+        assertThat(statementNames.nameOf(String.format(FirstStatements.SQL_MERGE_INTO, "tokens_3")),
+                is(equalTo("SQL_MERGE_INTO")));
+        assertThat(statementNames.nameOf(String.format(FirstStatements.SQL_MERGE_INTO, "tokens")),
+                is(equalTo("SQL_MERGE_INTO")));
+        // not a single word, so not a table name
+        assertThat(statementNames.nameOf(String.format(FirstStatements.SQL_MERGE_INTO,
+                "tokens; DROP TABLE tokens")), is(equalTo(StatementNames.OTHER)));
+        assertThat(statementNames.nameOf(String.format(FirstStatements.SQL_MERGE_INTO, "")),
+                is(equalTo(StatementNames.OTHER)));
+    }
+
+    @Test
+    void decimalFormatSpecifierMatchesAnInteger() {
+        assertThat(statementNames.nameOf(String.format(FirstStatements.SQL_SELECT_PAGE, 100)),
+                is(equalTo("SQL_SELECT_PAGE")));
+        assertThat(statementNames.nameOf(String.format(FirstStatements.SQL_SELECT_PAGE, -1)),
+                is(equalTo("SQL_SELECT_PAGE")));
+        assertThat(statementNames.nameOf("SELECT id FROM users LIMIT x;"),
+                is(equalTo(StatementNames.OTHER)));
+    }
+
+    @Test
+    void patternsMatchTheWholeStatementOnly() {
+        var statement = String.format(FirstStatements.SQL_MERGE_INTO, "tokens");
+
+        assertThat(statementNames.nameOf(statement + " -- comment"),
+                is(equalTo(StatementNames.OTHER)));
+        assertThat(statementNames.nameOf("EXPLAIN " + statement),
+                is(equalTo(StatementNames.OTHER)));
+    }
+
+    @Test
+    void clashingNamesOfAnotherClassAreQualified() {
+        assertThat(statementNames.nameOf(FirstStatements.SQL_SELECT_BY_ID),
+                is(equalTo("SQL_SELECT_BY_ID")));
+        assertThat(statementNames.nameOf(SecondStatements.SQL_SELECT_BY_ID),
+                is(equalTo("SecondStatements.SQL_SELECT_BY_ID")));
+    }
+
+    @Test
+    void equalStatementsOfSeveralClassesKeepTheirName() {
+        assertThat(statementNames.nameOf(SecondStatements.SQL_SELECT_USER),
+                is(equalTo("SQL_SELECT_USER")));
+    }
+
+    @Test
+    void unknownStatementsAreOther() {
+        assertThat(statementNames.nameOf("SELECT 1;"), is(equalTo(StatementNames.OTHER)));
+        assertThat(statementNames.nameOf(""), is(equalTo(StatementNames.OTHER)));
+        assertThat(new StatementNames().nameOf(FirstStatements.SQL_SELECT_USER),
+                is(equalTo(StatementNames.OTHER)));
+    }
+
+    @SuppressWarnings("unused")
+    private static final class FirstStatements {
+
+        static final String SQL_SELECT_USER = "SELECT id FROM users WHERE name = ?;";
+        static final String SQL_SELECT_BY_ID = "SELECT name FROM users WHERE id = ?;";
+        static final String SQL_MERGE_INTO = "MERGE INTO %s (id) KEY (id) VALUES (?);";
+        static final String SQL_SELECT_PAGE = "SELECT id FROM users LIMIT %d;";
+        static final String NOT_PREFIXED = "SELECT count(*) FROM users;";
+        static String SQL_NOT_FINAL = "SELECT max(id) FROM users;";
+        final String SQL_NOT_STATIC = "SELECT min(id) FROM users;";
+    }
+
+    @SuppressWarnings("unused")
+    private static final class SecondStatements {
+
+        static final String SQL_SELECT_USER = FirstStatements.SQL_SELECT_USER;
+        static final String SQL_SELECT_BY_ID = "SELECT name FROM groups WHERE id = ?;";
+        static final String SQL_DELETE_USER = "DELETE FROM users WHERE id = ?;";
+    }
+}
@@ -3,12 +3,11 @@ package de.dopler.ms.jwt_server;
 import de.dopler.ms.jwt_server.domain.JwtResponse;
 import de.dopler.ms.jwt_server.domain.TokenData;
 import de.dopler.ms.jwt_server.domain.User;
-import de.dopler.ms.jwt_server.services.external.TokenStoreService;
+import de.dopler.ms.jwt_server.services.external.TokenStoreBatcher;
 import de.dopler.ms.jwt_server.utils.GenerateTokenUtils;
 import de.dopler.ms.jwt_server.utils.RefreshTokenUtils;
 import de.dopler.ms.response_utils.RefreshTokenCookie;
 import de.dopler.ms.response_utils.ResponseUtils;
-import org.eclipse.microprofile.rest.client.inject.RestClient;
 
 import javax.inject.Inject;
 import javax.ws.rs.Consumes;
@@ -27,11 +26,11 @@ import static de.dopler.ms.server_timings.filter.AbstractServerTimingResponseFil
 @Consumes(MediaType.APPLICATION_JSON)
 public class GenerateTokenResource {
 
-    private final TokenStoreService tokenStoreService;
+    private final TokenStoreBatcher tokenStoreBatcher;
 
     @Inject
-    public GenerateTokenResource(@RestClient TokenStoreService tokenStoreService) {
-        this.tokenStoreService = tokenStoreService;
+    public GenerateTokenResource(TokenStoreBatcher tokenStoreBatcher) {
+        this.tokenStoreBatcher = tokenStoreBatcher;
     }
 
     @POST
@@ -45,7 +44,7 @@ public class GenerateTokenResource {
         var tokenHash = RefreshTokenUtils.toSha256Hash(tokens.refreshToken);
         var tokenData = new TokenData(user.id, tokenHash, user.groups,
                 tokens.refreshTokenExpiresAt);
-        var storedTokenResponse = tokenStoreService.store(tokenData);
+        var storedTokenResponse = tokenStoreBatcher.store(tokenData);
         var tokenStoreTiming = storedTokenResponse.getHeaderString(SERVER_TIMING_HEADER_NAME);
 
         var cookie = new RefreshTokenCookie(tokens.refreshToken, EXPIRATION_REFRESH_TOKEN);
@@ -1,14 +1,13 @@
 package de.dopler.ms.jwt_server;
 
 import de.dopler.ms.jwt_server.domain.JwtResponse;
-import de.dopler.ms.jwt_server.domain.TokenData;
-import de.dopler.ms.jwt_server.services.external.TokenStoreService;
+import de.dopler.ms.jwt_server.domain.TokenRotation;
+import de.dopler.ms.jwt_server.services.external.TokenStoreBatcher;
 import de.dopler.ms.jwt_server.utils.GenerateTokenUtils;
 import de.dopler.ms.jwt_server.utils.RefreshTokenUtils;
 import de.dopler.ms.response_utils.RefreshTokenCookie;
 import de.dopler.ms.response_utils.ResponseUtils;
 import org.eclipse.microprofile.jwt.JsonWebToken;
-import org.eclipse.microprofile.rest.client.inject.RestClient;
 
 import javax.enterprise.context.RequestScoped;
 import javax.inject.Inject;
@@ -31,13 +30,13 @@ import static de.dopler.ms.server_timings.filter.AbstractServerTimingResponseFil
 @Consumes(MediaType.APPLICATION_JSON)
 public class RefreshTokenResource {
 
-    private final TokenStoreService tokenStoreService;
+    private final TokenStoreBatcher tokenStoreBatcher;
     private final JsonWebToken jwt;
 
     @SuppressWarnings("CdiInjectionPointsInspection")
     @Inject
-    public RefreshTokenResource(@RestClient TokenStoreService tokenStoreService, JsonWebToken jwt) {
-        this.tokenStoreService = tokenStoreService;
+    public RefreshTokenResource(TokenStoreBatcher tokenStoreBatcher, JsonWebToken jwt) {
+        this.tokenStoreBatcher = tokenStoreBatcher;
         this.jwt = jwt;
     }
 
@@ -58,9 +57,14 @@ public class RefreshTokenResource {
                     "userId inside upn cannot be parsed");
         }
 
-        var tokenHash = RefreshTokenUtils.toSha256Hash(jwt.getRawToken());
-        var groupsResponse = tokenStoreService.popGroups(userId, tokenHash);
-        var timingGetGroups = groupsResponse.getHeaderString(SERVER_TIMING_HEADER_NAME);
+        // the new refresh token doesn't depend on the groups, so it can be created up front and
+        // exchanged for the old one in a single call to the token store
+        var refreshExpiresAt = GenerateTokenUtils.refreshTokenExpiration();
+        var refreshToken = GenerateTokenUtils.generateRefreshToken(userId, refreshExpiresAt);
+        var tokenRotation = new TokenRotation(RefreshTokenUtils.toSha256Hash(jwt.getRawToken()),
+                RefreshTokenUtils.toSha256Hash(refreshToken), refreshExpiresAt);
+        var groupsResponse = tokenStoreBatcher.rotate(userId, tokenRotation);
+        var timingRotate = groupsResponse.getHeaderString(SERVER_TIMING_HEADER_NAME);
 
         // if no groups were found (404), the JWT info was deleted inside the token store
         // (e.g. because it expired)
@@ -75,17 +79,12 @@ public class RefreshTokenResource {
         }
         var groups = groupsResponse.readEntity(new GenericType<Set<String>>() {});
 
-        var tokens = GenerateTokenUtils.generateJwtTokens(userId, groups);
-        var newTokenHash = RefreshTokenUtils.toSha256Hash(tokens.refreshToken);
+        var accessExpiresAt = GenerateTokenUtils.accessTokenExpiration();
+        var accessToken = GenerateTokenUtils.generateAccessToken(userId, accessExpiresAt, groups);
 
-        var tokenData = new TokenData(userId, newTokenHash, groups, tokens.refreshTokenExpiresAt);
-        var storedTokenResponse = tokenStoreService.store(tokenData);
-        var timingStoreToken = storedTokenResponse.getHeaderString(SERVER_TIMING_HEADER_NAME);
+        var cookie = new RefreshTokenCookie(refreshToken, EXPIRATION_REFRESH_TOKEN);
+        var jwtResponse = new JwtResponse(userId, accessToken, accessExpiresAt);
 
-        var cookie = new RefreshTokenCookie(tokens.refreshToken, EXPIRATION_REFRESH_TOKEN);
-        var jwtResponse = new JwtResponse(userId, tokens.accessToken, tokens.accessTokenExpiresAt);
-
-        return ResponseUtils.jsonResponse(Status.OK, jwtResponse, cookie, timingGetGroups,
-                timingStoreToken);
+        return ResponseUtils.jsonResponse(Status.OK, jwtResponse, cookie, timingRotate);
     }
 }
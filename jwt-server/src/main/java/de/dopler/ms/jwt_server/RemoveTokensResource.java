@@ -1,7 +1,6 @@
 package de.dopler.ms.jwt_server;
 
-import de.dopler.ms.jwt_server.services.external.TokenStoreService;
-import org.eclipse.microprofile.rest.client.inject.RestClient;
+import de.dopler.ms.jwt_server.services.external.TokenStoreBatcher;
 
 import javax.enterprise.context.RequestScoped;
 import javax.inject.Inject;
@@ -15,16 +14,16 @@ import javax.ws.rs.core.Response;
 @Consumes(MediaType.TEXT_PLAIN)
 public class RemoveTokensResource {
 
-    private final TokenStoreService tokenStoreService;
+    private final TokenStoreBatcher tokenStoreBatcher;
 
     @Inject
-    public RemoveTokensResource(@RestClient TokenStoreService tokenStoreService) {
-        this.tokenStoreService = tokenStoreService;
+    public RemoveTokensResource(TokenStoreBatcher tokenStoreBatcher) {
+        this.tokenStoreBatcher = tokenStoreBatcher;
     }
 
     @DELETE
     @Path("/{userId}")
     public Response removeTokens(@PathParam("userId") long userId) {
-        return tokenStoreService.deleteForUser(userId);
+        return tokenStoreBatcher.deleteForUser(userId);
     }
 }
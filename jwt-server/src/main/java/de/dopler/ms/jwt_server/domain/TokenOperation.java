@@ -0,0 +1,44 @@
+package de.dopler.ms.jwt_server.domain;
+
+import io.quarkus.runtime.annotations.RegisterForReflection;
+
+import java.util.Set;
+
+/**
+ * One operation of a batch sent to the token store. Fields an operation doesn't use are null
+ * and left out of the JSON.
+ */
+@RegisterForReflection
+public class TokenOperation {
+
+    public final String op;
+    public final long userId;
+    public final String tokenHash;
+    public final Set<String> groups;
+    public final String newTokenHash;
+    public final Long expiresAt;
+
+    private TokenOperation(String op, long userId, String tokenHash, Set<String> groups,
+            String newTokenHash, Long expiresAt) {
+        this.op = op;
+        this.userId = userId;
+        this.tokenHash = tokenHash;
+        this.groups = groups;
+        this.newTokenHash = newTokenHash;
+        this.expiresAt = expiresAt;
+    }
+
+    public static TokenOperation store(TokenData tokenData) {
+        return new TokenOperation("store", tokenData.userId, tokenData.tokenHash,
+                tokenData.groups, null, tokenData.expiresAt);
+    }
+
+    public static TokenOperation rotate(long userId, TokenRotation tokenRotation) {
+        return new TokenOperation("rotate", userId, tokenRotation.tokenHash, null,
+                tokenRotation.newTokenHash, tokenRotation.expiresAt);
+    }
+
+    public static TokenOperation delete(long userId) {
+        return new TokenOperation("delete", userId, null, null, null, null);
+    }
+}
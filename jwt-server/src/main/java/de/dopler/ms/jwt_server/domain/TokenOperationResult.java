@@ -0,0 +1,26 @@
+package de.dopler.ms.jwt_server.domain;
+
+import io.quarkus.runtime.annotations.RegisterForReflection;
+
+import java.util.Set;
+
+/**
+ * Result of one operation of a batch sent to the token store.
+ * <p>
+ * Deserialized via the no-arg constructor and the fields, as a creator would require all fields
+ * to be present in the JSON.
+ */
+@RegisterForReflection
+public class TokenOperationResult {
+
+    public int status;
+    // groups of a successful "rotate"
+    public Set<String> groups;
+    // number of tokens removed by "delete"
+    public Integer deleted;
+    public String error;
+
+    public TokenOperationResult() {
+        // for JSON-B
+    }
+}
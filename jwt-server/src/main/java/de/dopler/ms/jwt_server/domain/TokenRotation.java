@@ -0,0 +1,14 @@
+package de.dopler.ms.jwt_server.domain;
+
+public class TokenRotation {
+
+    public final String tokenHash;
+    public final String newTokenHash;
+    public final long expiresAt;
+
+    public TokenRotation(String tokenHash, String newTokenHash, long expiresAt) {
+        this.tokenHash = tokenHash;
+        this.newTokenHash = newTokenHash;
+        this.expiresAt = expiresAt;
+    }
+}
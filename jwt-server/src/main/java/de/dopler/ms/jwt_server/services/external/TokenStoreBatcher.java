@@ -0,0 +1,247 @@
+package de.dopler.ms.jwt_server.services.external;
+
+import de.dopler.ms.jwt_server.domain.TokenData;
+import de.dopler.ms.jwt_server.domain.TokenOperation;
+import de.dopler.ms.jwt_server.domain.TokenOperationResult;
+import de.dopler.ms.jwt_server.domain.TokenRotation;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.rest.client.inject.RestClient;
+import org.jboss.logging.Logger;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.ws.rs.core.GenericType;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static de.dopler.ms.server_timings.filter.AbstractServerTimingResponseFilter.SERVER_TIMING_HEADER_NAME;
+
+/**
+ * Sends the calls to the {@link TokenStoreService} in batches ({@code /auth/tokens/batch}), so
+ * concurrent logins and refreshes pay the HTTP overhead once per batch instead of once per call.
+ * The responses are the ones of the single calls.
+ * <p>
+ * A single dispatcher thread takes the first waiting call, collects more of them for up to
+ * {@code jwt-server.token-store.batch.window-millis} (or until {@code max-size} calls are
+ * collected) and sends them. Up to {@code max-in-flight} batches are sent at the same time; calls
+ * arriving while all of them are in flight go into the next batch, so even with a window of 0
+ * (the default) batches form under load without delaying single calls on an idle server. With
+ * {@code enabled=false} (the default), every call is sent on its own.
+ * <p>
+ * A caller waits at most {@code timeout-millis} for the result of its batch. A store whose batch
+ * failed or timed out is sent on its own, with the retry and fallback of the single call, so a
+ * token-store outage still lets token generation succeed; other calls fail with 500 (503 on a
+ * timeout).
+ */
+@ApplicationScoped
+public class TokenStoreBatcher {
+
+    private static final Logger LOG = Logger.getLogger("TokenStoreBatcher");
+
+    private final TokenStoreService tokenStoreService;
+    private final boolean enabled;
+    private final int maxSize;
+    private final long windowNanos;
+    private final long timeoutMillis;
+    private final Semaphore inFlight;
+    private final ExecutorService senders;
+    private final BlockingQueue<PendingOperation> queue = new LinkedBlockingQueue<>();
+    private final Thread dispatcher;
+    private final AtomicBoolean started = new AtomicBoolean();
+
+    @Inject
+    public TokenStoreBatcher(@RestClient TokenStoreService tokenStoreService,
+            @ConfigProperty(name = "jwt-server.token-store.batch.enabled", defaultValue = "false")
+                    boolean enabled,
+            @ConfigProperty(name = "jwt-server.token-store.batch.max-size", defaultValue = "128")
+                    int maxSize,
+            @ConfigProperty(name = "jwt-server.token-store.batch.window-millis",
+                    defaultValue = "0") long windowMillis,
+            @ConfigProperty(name = "jwt-server.token-store.batch.max-in-flight",
+                    defaultValue = "4") int maxInFlight,
+            @ConfigProperty(name = "jwt-server.token-store.batch.timeout-millis",
+                    defaultValue = "10000") long timeoutMillis) {
+        this.tokenStoreService = tokenStoreService;
+        this.enabled = enabled;
+        this.maxSize = maxSize;
+        windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        this.timeoutMillis = timeoutMillis;
+        inFlight = new Semaphore(maxInFlight);
+        senders = Executors.newFixedThreadPool(maxInFlight, runnable -> {
+            var thread = new Thread(runnable, "token-store-batch-sender");
+            thread.setDaemon(true);
+            return thread;
+        });
+        dispatcher = new Thread(this::dispatchBatches, "token-store-batch-dispatcher");
+        dispatcher.setDaemon(true);
+    }
+
+    /**
+     * @see TokenStoreService#store(TokenData)
+     */
+    public Response store(TokenData tokenData) {
+        if (!enabled) {
+            return tokenStoreService.store(tokenData);
+        }
+        return execute(TokenOperation.store(tokenData),
+                status -> tokenStoreService.store(tokenData));
+    }
+
+    /**
+     * @see TokenStoreService#rotate(long, TokenRotation)
+     */
+    public Response rotate(long userId, TokenRotation tokenRotation) {
+        if (!enabled) {
+            return tokenStoreService.rotate(userId, tokenRotation);
+        }
+        return execute(TokenOperation.rotate(userId, tokenRotation),
+                status -> Response.status(status).build());
+    }
+
+    /**
+     * @see TokenStoreService#deleteForUser(long)
+     */
+    public Response deleteForUser(long userId) {
+        if (!enabled) {
+            return tokenStoreService.deleteForUser(userId);
+        }
+        return execute(TokenOperation.delete(userId), status -> Response.status(status).build());
+    }
+
+    /**
+     * @param onFailure the response if the batch failed or timed out, by the status of the
+     *                  failure.
+     */
+    private Response execute(TokenOperation operation, Function<Status, Response> onFailure) {
+        if (started.compareAndSet(false, true)) {
+            dispatcher.start();
+        }
+        var pendingOperation = new PendingOperation(operation);
+        queue.add(pendingOperation);
+        try {
+            return pendingOperation.response.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Response.status(Status.INTERNAL_SERVER_ERROR).build();
+        } catch (ExecutionException e) {
+            return onFailure.apply(Status.INTERNAL_SERVER_ERROR);
+        } catch (TimeoutException e) {
+            // if the operation hasn't been sent yet, it won't be
+            pendingOperation.response.cancel(false);
+            LOG.errorf("%s for userId %d got no result within %d ms", operation.op,
+                    operation.userId, timeoutMillis);
+            return onFailure.apply(Status.SERVICE_UNAVAILABLE);
+        }
+    }
+
+    private void dispatchBatches() {
+        while (true) {
+            var batch = new ArrayList<PendingOperation>(maxSize);
+            try {
+                // wait for a free slot first, so calls queue up meanwhile and form the batch
+                inFlight.acquire();
+                batch.add(queue.take());
+                collect(batch);
+            } catch (InterruptedException e) {
+                // don't propagate; send what has been collected so far
+                if (batch.isEmpty()) {
+                    inFlight.release();
+                    continue;
+                }
+            }
+            senders.execute(() -> {
+                try {
+                    send(batch);
+                } finally {
+                    inFlight.release();
+                }
+            });
+        }
+    }
+
+    private void collect(List<PendingOperation> batch) throws InterruptedException {
+        var deadline = System.nanoTime() + windowNanos;
+        while (batch.size() < maxSize) {
+            var remaining = deadline - System.nanoTime();
+            var next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+            if (next == null) {
+                return;
+            }
+            batch.add(next);
+        }
+    }
+
+    private void send(List<PendingOperation> batch) {
+        // skip the operations whose callers gave up waiting
+        batch.removeIf(pendingOperation -> pendingOperation.response.isDone());
+        if (batch.isEmpty()) {
+            return;
+        }
+        var operations = batch.stream()
+                .map(pendingOperation -> pendingOperation.operation)
+                .collect(Collectors.toList());
+        List<TokenOperationResult> results = null;
+        String timing = null;
+        try {
+            var response = tokenStoreService.batch(operations);
+            if (response.getStatus() == Status.OK.getStatusCode()) {
+                timing = response.getHeaderString(SERVER_TIMING_HEADER_NAME);
+                results = response.readEntity(new GenericType<List<TokenOperationResult>>() {});
+            } else {
+                LOG.errorf("batch of %d token operations failed with status %d", batch.size(),
+                        response.getStatus());
+            }
+        } catch (RuntimeException e) {
+            LOG.errorf("batch of %d token operations failed: %s", batch.size(), e.getMessage());
+        }
+        if (results == null || results.size() != batch.size()) {
+            var failure = new IllegalStateException("batch of token operations failed");
+            batch.forEach(pendingOperation -> pendingOperation.response.completeExceptionally(
+                    failure));
+            return;
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            batch.get(i).response.complete(toResponse(results.get(i), timing));
+        }
+    }
+
+    private static Response toResponse(TokenOperationResult result, String timing) {
+        var response = Response.status(result.status);
+        if (result.groups != null) {
+            response.entity(result.groups).type(MediaType.APPLICATION_JSON_TYPE);
+        } else if (result.deleted != null) {
+            response.entity(String.valueOf(result.deleted)).type(MediaType.TEXT_PLAIN_TYPE);
+        } else if (result.error != null) {
+            response.entity(result.error).type(MediaType.TEXT_PLAIN_TYPE);
+        }
+        if (timing != null) {
+            response.header(SERVER_TIMING_HEADER_NAME, timing);
+        }
+        return response.build();
+    }
+
+    private static final class PendingOperation {
+
+        final TokenOperation operation;
+        final CompletableFuture<Response> response = new CompletableFuture<>();
+
+        PendingOperation(TokenOperation operation) {
+            this.operation = operation;
+        }
+    }
+}
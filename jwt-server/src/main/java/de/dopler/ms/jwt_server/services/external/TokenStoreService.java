@@ -1,6 +1,8 @@
 package de.dopler.ms.jwt_server.services.external;
 
 import de.dopler.ms.jwt_server.domain.TokenData;
+import de.dopler.ms.jwt_server.domain.TokenOperation;
+import de.dopler.ms.jwt_server.domain.TokenRotation;
 import org.eclipse.microprofile.faulttolerance.Fallback;
 import org.eclipse.microprofile.faulttolerance.Retry;
 import org.eclipse.microprofile.rest.client.inject.RegisterRestClient;
@@ -11,6 +13,7 @@ import javax.enterprise.context.ApplicationScoped;
 import javax.ws.rs.*;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import java.util.List;
 
 @Path("/auth/tokens")
 @Produces(MediaType.TEXT_PLAIN)
@@ -29,17 +32,29 @@ public interface TokenStoreService {
     @Fallback(fallbackMethod = "storeFallback")
     Response store(TokenData tokenData);
 
-    @GET
-    @Path("/{userId}")
+    /**
+     * Not retried: if the rotation was committed but its response got lost, a retry would find
+     * the old token gone and fail with 404.
+     */
+    @POST
+    @Path("/{userId}/rotate")
+    @Consumes(MediaType.APPLICATION_JSON)
     @Produces(MediaType.APPLICATION_JSON)
-    @Retry(maxRetries = 1, delay = 3000)
-    Response popGroups(@PathParam("userId") long userId,
-            @QueryParam("token-hash") String tokenHash);
+    Response rotate(@PathParam("userId") long userId, TokenRotation tokenRotation);
 
     @DELETE
     @Path("/{userId}")
     Response deleteForUser(@PathParam("userId") long userId);
 
+    /**
+     * Not retried, as the batch may contain operations which must not run twice (rotations).
+     */
+    @POST
+    @Path("/batch")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    Response batch(List<TokenOperation> operations);
+
     @SuppressWarnings("unused")
     private static Response storeFallback(TokenData tokenData) {
         LOG.error(STORE_FALLBACK_ERROR_MSG);
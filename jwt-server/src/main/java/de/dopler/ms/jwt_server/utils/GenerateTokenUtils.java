@@ -23,14 +23,24 @@ public final class GenerateTokenUtils {
         var accessExpiration = accessTokenExpiration();
         var refreshExpiration = refreshTokenExpiration();
 
-        var accessClaims = buildAccessClaims(userId, accessExpiration, groups);
-        var refreshClaims = buildRefreshClaims(userId, refreshExpiration);
-
-        var accessToken = Jwt.claims(accessClaims).sign();
-        var refreshToken = Jwt.claims(refreshClaims).sign();
+        var accessToken = generateAccessToken(userId, accessExpiration, groups);
+        var refreshToken = generateRefreshToken(userId, refreshExpiration);
         return new JWTokens(accessToken, refreshToken, accessExpiration, refreshExpiration);
     }
 
+    public static String generateAccessToken(long userId, long accessExpiration,
+            Set<String> groups) {
+        return Jwt.claims(buildAccessClaims(userId, accessExpiration, groups)).sign();
+    }
+
+    /**
+     * Refresh tokens don't carry the user's groups, so they can be generated before the groups
+     * are known (e.g. when rotating a refresh token).
+     */
+    public static String generateRefreshToken(long userId, long refreshExpiration) {
+        return Jwt.claims(buildRefreshClaims(userId, refreshExpiration)).sign();
+    }
+
     private static Map<String, Object> buildAccessClaims(long userId, long accessExpiration,
             Set<String> groups) {
         // @formatter:off
@@ -53,13 +63,13 @@ public final class GenerateTokenUtils {
         // @formatter:on
     }
 
-    private static long accessTokenExpiration() {
+    public static long accessTokenExpiration() {
         return Instant.now(Clock.systemDefaultZone())
                 .plusSeconds(EXPIRATION_ACCESS_TOKEN)
                 .getEpochSecond();
     }
 
-    private static long refreshTokenExpiration() {
+    public static long refreshTokenExpiration() {
         return Instant.now(Clock.systemDefaultZone())
                 .plusSeconds(EXPIRATION_REFRESH_TOKEN)
                 .getEpochSecond();
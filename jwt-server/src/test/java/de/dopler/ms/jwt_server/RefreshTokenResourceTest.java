@@ -1,8 +1,10 @@
 package de.dopler.ms.jwt_server;
 
 import de.dopler.ms.jwt_server.domain.TokenData;
+import de.dopler.ms.jwt_server.domain.TokenRotation;
 import de.dopler.ms.jwt_server.services.external.TokenStoreService;
 import de.dopler.ms.jwt_server.utils.GenerateTokenUtils;
+import de.dopler.ms.jwt_server.utils.RefreshTokenUtils;
 import de.dopler.ms.response_utils.RefreshTokenCookie;
 import io.quarkus.test.junit.QuarkusTest;
 import io.quarkus.test.junit.mockito.InjectMock;
@@ -16,6 +18,7 @@ import org.eclipse.microprofile.jwt.JsonWebToken;
 import org.eclipse.microprofile.rest.client.inject.RestClient;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 
 import javax.inject.Inject;
@@ -56,13 +59,9 @@ class RefreshTokenResourceTest {
 
     @BeforeEach
     void setUp() {
-        // tokenStoreService.store
-        Mockito.when(tokenStoreService.store(Mockito.any(TokenData.class)))
-                .thenReturn(javax.ws.rs.core.Response.noContent().build());
-
-        // tokenStoreService.popGroups
+        // tokenStoreService.rotate
         groups = Set.of("groupA", "groupB", "groupC");
-        Mockito.when(tokenStoreService.popGroups(Mockito.anyLong(), Mockito.anyString()))
+        Mockito.when(tokenStoreService.rotate(Mockito.anyLong(), Mockito.any(TokenRotation.class)))
                 .thenReturn(javax.ws.rs.core.Response.ok(groups).build());
 
         // JWT
@@ -151,6 +150,20 @@ class RefreshTokenResourceTest {
         assertThat(accessToken.getGroups(), containsInAnyOrder(groups.toArray()));
     }
 
+    @Test
+    void fromRefreshTokenEndpointRotatesTokenInSingleTokenStoreCall() {
+        givenPostToEndpoint().then().statusCode(Status.OK.getStatusCode());
+
+        var rotationCaptor = ArgumentCaptor.forClass(TokenRotation.class);
+        Mockito.verify(tokenStoreService).rotate(Mockito.eq(userId), rotationCaptor.capture());
+        Mockito.verify(tokenStoreService, Mockito.never()).store(Mockito.any(TokenData.class));
+
+        var tokenRotation = rotationCaptor.getValue();
+        assertThat(tokenRotation.tokenHash,
+                is(equalTo(RefreshTokenUtils.toSha256Hash("raw.token.value"))));
+        assertThat(tokenRotation.newTokenHash, is(not(equalTo(tokenRotation.tokenHash))));
+    }
+
     @Test
     void fromRefreshTokenEndpointReturnsCode400OnInvalidTokenSubject() {
         Mockito.when(jwt.getSubject()).thenReturn(SUBJECT_ACCESS);
@@ -171,7 +184,7 @@ class RefreshTokenResourceTest {
 
     @Test
     void fromRefreshTokenEndpointReturnsCode400AndDeleteCookieIfTokenStoreReturnsNoGroups() {
-        Mockito.when(tokenStoreService.popGroups(Mockito.anyLong(), Mockito.anyString()))
+        Mockito.when(tokenStoreService.rotate(Mockito.anyLong(), Mockito.any(TokenRotation.class)))
                 .thenReturn(javax.ws.rs.core.Response.status(Status.NOT_FOUND).build());
 
         // @formatter:off
@@ -192,7 +205,7 @@ class RefreshTokenResourceTest {
 
     @Test
     void fromRefreshTokenEndpointReturnsCode500IfTokenStoreReturnsServerError() {
-        Mockito.when(tokenStoreService.popGroups(Mockito.anyLong(), Mockito.anyString()))
+        Mockito.when(tokenStoreService.rotate(Mockito.anyLong(), Mockito.any(TokenRotation.class)))
                 .thenReturn(javax.ws.rs.core.Response.status(Status.INTERNAL_SERVER_ERROR).build());
 
         givenPostToEndpoint().then().statusCode(Status.INTERNAL_SERVER_ERROR.getStatusCode());
@@ -0,0 +1,135 @@
+package de.dopler.ms.jwt_server.services.external;
+
+import de.dopler.ms.jwt_server.domain.TokenData;
+import de.dopler.ms.jwt_server.domain.TokenOperation;
+import de.dopler.ms.jwt_server.domain.TokenOperationResult;
+import de.dopler.ms.jwt_server.domain.TokenRotation;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.core.GenericType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+class TokenStoreBatcherTest {
+
+    private static final int CALLS = 10;
+
+    private TokenStoreService tokenStoreService;
+    private TokenStoreBatcher batcher;
+    // a thread per call, so all calls wait at the same time
+    private final ExecutorService callers = Executors.newFixedThreadPool(CALLS);
+
+    @BeforeEach
+    void setUp() {
+        tokenStoreService = Mockito.mock(TokenStoreService.class);
+        // a long window, so all concurrent calls end up in the same batch
+        batcher = new TokenStoreBatcher(tokenStoreService, true, 128, 1000, 1, 10000);
+    }
+
+    @AfterEach
+    void tearDown() {
+        callers.shutdown();
+    }
+
+    @Test
+    void concurrentCallsAreSentInOneBatch() {
+        Mockito.when(tokenStoreService.batch(Mockito.anyList())).thenAnswer(invocation -> {
+            List<TokenOperation> operations = invocation.getArgument(0);
+            var results = operations.stream()
+                    .map(operation -> result(Status.OK, Set.of("group-" + operation.userId)))
+                    .collect(Collectors.toList());
+            return Response.ok(results).build();
+        });
+
+        var responses = new ArrayList<CompletableFuture<Response>>();
+        for (long userId = 0; userId < CALLS; userId++) {
+            var id = userId;
+            responses.add(CompletableFuture.supplyAsync(() -> batcher.rotate(id,
+                    new TokenRotation("token-hash", "new-token-hash", 0)), callers));
+        }
+
+        for (int userId = 0; userId < CALLS; userId++) {
+            var response = responses.get(userId).join();
+            assertThat(response.getStatus(), is(equalTo(Status.OK.getStatusCode())));
+            assertThat(response.readEntity(new GenericType<Set<String>>() {}),
+                    is(equalTo(Set.of("group-" + userId))));
+        }
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<List<TokenOperation>> captor = ArgumentCaptor.forClass(List.class);
+        Mockito.verify(tokenStoreService).batch(captor.capture());
+        assertThat(captor.getValue(), hasSize(CALLS));
+    }
+
+    @Test
+    void failedBatchFailsAllItsCalls() {
+        Mockito.when(tokenStoreService.batch(Mockito.anyList()))
+                .thenReturn(Response.status(Status.SERVICE_UNAVAILABLE).build());
+
+        var responses = new ArrayList<CompletableFuture<Response>>();
+        for (long userId = 0; userId < CALLS; userId++) {
+            var id = userId;
+            responses.add(CompletableFuture.supplyAsync(() -> batcher.deleteForUser(id), callers));
+        }
+
+        for (var response : responses) {
+            assertThat(response.join().getStatus(),
+                    is(equalTo(Status.INTERNAL_SERVER_ERROR.getStatusCode())));
+        }
+    }
+
+    @Test
+    void storeOfFailedBatchIsSentOnItsOwn() {
+        Mockito.when(tokenStoreService.batch(Mockito.anyList()))
+                .thenThrow(new ProcessingException("connection refused"));
+        Mockito.when(tokenStoreService.store(Mockito.any(TokenData.class)))
+                .thenReturn(Response.noContent().build());
+        var tokenData = new TokenData(1, "token-hash", Set.of("group-1"), 0);
+
+        var response = batcher.store(tokenData);
+
+        assertThat(response.getStatus(), is(equalTo(Status.NO_CONTENT.getStatusCode())));
+        Mockito.verify(tokenStoreService).store(tokenData);
+    }
+
+    @Test
+    void callWithoutResultTimesOut() {
+        var stuck = new CountDownLatch(1);
+        Mockito.when(tokenStoreService.batch(Mockito.anyList())).thenAnswer(invocation -> {
+            stuck.await();
+            return Response.status(Status.INTERNAL_SERVER_ERROR).build();
+        });
+        batcher = new TokenStoreBatcher(tokenStoreService, true, 128, 0, 1, 100);
+
+        try {
+            var response = batcher.deleteForUser(1);
+
+            assertThat(response.getStatus(),
+                    is(equalTo(Status.SERVICE_UNAVAILABLE.getStatusCode())));
+        } finally {
+            stuck.countDown();
+        }
+    }
+
+    private static TokenOperationResult result(Status status, Set<String> groups) {
+        var result = new TokenOperationResult();
+        result.status = status.getStatusCode();
+        result.groups = groups;
+        return result;
+    }
+}
@@ -3,18 +3,24 @@ package de.dopler.ms.login_server;
 import de.dopler.ms.login_server.domain.AuthData;
 import de.dopler.ms.login_server.domain.Credentials;
 import de.dopler.ms.login_server.domain.User;
+import de.dopler.ms.login_server.services.DelayedResponseService;
+import de.dopler.ms.login_server.services.PasswordHashService;
+import de.dopler.ms.login_server.services.SecretRehashService;
 import de.dopler.ms.login_server.services.external.CredentialsStoreService;
 import de.dopler.ms.login_server.services.external.TokenService;
-import de.dopler.ms.login_server.utils.PasswordHashUtils;
 import de.dopler.ms.response_utils.ResponseUtils;
 import org.eclipse.microprofile.rest.client.inject.RestClient;
 
 import javax.inject.Inject;
 import javax.ws.rs.*;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
 import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.RejectedExecutionException;
 
 import static de.dopler.ms.server_timings.filter.AbstractServerTimingResponseFilter.SERVER_TIMING_HEADER_NAME;
 
@@ -24,15 +30,23 @@ public class AuthResource {
 
     private static final int DELAY_CREDENTIALS_MISMATCH_MILLIS = 3000;
     private static final String RESPONSE_TEXT_CREDENTIALS_MISMATCH = "credentials mismatch";
+    private static final String RESPONSE_TEXT_TOO_MANY_REQUESTS = "too many failed logins";
 
     private final CredentialsStoreService credentialsStoreService;
     private final TokenService tokenService;
+    private final DelayedResponseService delayedResponseService;
+    private final PasswordHashService passwordHashService;
+    private final SecretRehashService secretRehashService;
 
     @Inject
     public AuthResource(@RestClient CredentialsStoreService credentialsStoreService,
-            @RestClient TokenService tokenService) {
+            @RestClient TokenService tokenService, DelayedResponseService delayedResponseService,
+            PasswordHashService passwordHashService, SecretRehashService secretRehashService) {
         this.credentialsStoreService = credentialsStoreService;
         this.tokenService = tokenService;
+        this.delayedResponseService = delayedResponseService;
+        this.passwordHashService = passwordHashService;
+        this.secretRehashService = secretRehashService;
     }
 
     @POST
@@ -43,7 +57,13 @@ public class AuthResource {
             return ResponseUtils.textResponse(Status.BAD_REQUEST, "body has to be non-null");
         }
 
-        var hashedSecret = PasswordHashUtils.bcryptHash(credentials.secret);
+        String hashedSecret;
+        try {
+            hashedSecret = passwordHashService.bcryptHash(credentials.secret);
+        } catch (RejectedExecutionException e) {
+            return ResponseUtils.fromResponse(passwordHashService.overloadedResponse(),
+                    Status.SERVICE_UNAVAILABLE);
+        }
         var idResponse = credentialsStoreService.storeCredentials(
                 new Credentials(credentials.username, hashedSecret));
         var timingCredentials = idResponse.getHeaderString(SERVER_TIMING_HEADER_NAME);
@@ -73,12 +93,50 @@ public class AuthResource {
     @POST
     @Path("/login")
     @Produces(MediaType.APPLICATION_JSON)
-    public Response login(Credentials credentials) {
+    public CompletionStage<Response> login(Credentials credentials) {
         if (credentials == null) {
-            return ResponseUtils.textResponse(Status.BAD_REQUEST, "body has to be non-null");
+            return CompletableFuture.completedFuture(
+                    ResponseUtils.textResponse(Status.BAD_REQUEST, "body has to be non-null"));
+        }
+        if (passwordHashService.isSaturated()) {
+            // don't look up the auth data of a login which can't be verified anyway
+            return CompletableFuture.completedFuture(ResponseUtils.fromResponse(
+                    passwordHashService.overloadedResponse(), Status.SERVICE_UNAVAILABLE));
+        }
+        // reserve the delay before the credentials are checked: while too many delayed responses
+        // are pending, every login gets 429, so it doesn't reveal whether the credentials match
+        if (!delayedResponseService.tryReserve()) {
+            return CompletableFuture.completedFuture(tooManyRequests());
+        }
+        var delayed = false;
+        try {
+            var response = checkCredentials(credentials);
+            if (response.getStatus() == Status.UNAUTHORIZED.getStatusCode()) {
+                delayed = true;
+                return delayedResponseService.delay(response, DELAY_CREDENTIALS_MISMATCH_MILLIS);
+            }
+            return CompletableFuture.completedFuture(response);
+        } finally {
+            if (!delayed) {
+                delayedResponseService.release();
+            }
         }
+    }
+
+    @POST
+    @Path("/refresh")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response refresh(@CookieParam("r_token") String jwtCookie) {
+        return tokenService.fromRefreshToken(jwtCookie);
+    }
 
-        // check credentials
+    /**
+     * Check the given {@code credentials} and retrieve a token if they match.
+     *
+     * @return {@code 401 Unauthorized} if the username is unknown or the secret doesn't match,
+     * which {@link #login(Credentials)} delays by {@value #DELAY_CREDENTIALS_MISMATCH_MILLIS} ms.
+     */
+    private Response checkCredentials(Credentials credentials) {
         var authDataResponse = credentialsStoreService.getAuthData(credentials.username);
         var timingCredentials = authDataResponse.getHeaderString(SERVER_TIMING_HEADER_NAME);
 
@@ -86,16 +144,22 @@ public class AuthResource {
             return ResponseUtils.fromResponse(authDataResponse, Status.INTERNAL_SERVER_ERROR);
         }
         if (authDataResponse.getStatusInfo().getFamily() == Status.Family.CLIENT_ERROR) {
-            delayResponse();
             return ResponseUtils.fromResponse(authDataResponse, Status.UNAUTHORIZED);
         }
         var authData = authDataResponse.readEntity(AuthData.class);
 
-        if (!PasswordHashUtils.verify(authData.secret, credentials.secret)) {
-            delayResponse();
+        boolean verified;
+        try {
+            verified = passwordHashService.verify(authData.secret, credentials.secret);
+        } catch (RejectedExecutionException e) {
+            return ResponseUtils.fromResponse(passwordHashService.overloadedResponse(),
+                    Status.SERVICE_UNAVAILABLE, timingCredentials);
+        }
+        if (!verified) {
             return ResponseUtils.textResponse(Status.UNAUTHORIZED,
                     RESPONSE_TEXT_CREDENTIALS_MISMATCH, timingCredentials);
         }
+        secretRehashService.rehashIfOutdated(authData, credentials.secret);
 
         // retrieve token
         var user = new User(authData.id, authData.groups);
@@ -110,18 +174,13 @@ public class AuthResource {
         return ResponseUtils.fromResponse(tokenResponse, Status.OK, timingCredentials);
     }
 
-    @POST
-    @Path("/refresh")
-    @Produces(MediaType.APPLICATION_JSON)
-    public Response refresh(@CookieParam("r_token") String jwtCookie) {
-        return tokenService.fromRefreshToken(jwtCookie);
-    }
-
-    private static void delayResponse() {
-        try {
-            Thread.sleep(DELAY_CREDENTIALS_MISMATCH_MILLIS);
-        } catch (InterruptedException e) {
-            // don't propagate; the program can continue running in case of an InterruptedException
-        }
+    private static Response tooManyRequests() {
+        var retryAfterSeconds = DELAY_CREDENTIALS_MISMATCH_MILLIS / 1000;
+        var response = Response.status(Status.TOO_MANY_REQUESTS)
+                .type(MediaType.TEXT_PLAIN_TYPE)
+                .entity(RESPONSE_TEXT_TOO_MANY_REQUESTS)
+                .header(HttpHeaders.RETRY_AFTER, retryAfterSeconds)
+                .build();
+        return ResponseUtils.fromResponse(response, Status.TOO_MANY_REQUESTS);
     }
 }
@@ -1,17 +1,20 @@
 package de.dopler.ms.login_server;
 
+import de.dopler.ms.login_server.domain.CredentialsPatch;
+import de.dopler.ms.login_server.services.PasswordHashService;
 import de.dopler.ms.login_server.services.external.CredentialsStoreService;
-import de.dopler.ms.login_server.utils.PasswordHashUtils;
 import de.dopler.ms.response_utils.ResponseUtils;
 import org.eclipse.microprofile.jwt.JsonWebToken;
 import org.eclipse.microprofile.rest.client.inject.RestClient;
 
 import javax.inject.Inject;
 import javax.ws.rs.*;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
 import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
 
 import static de.dopler.ms.login_server.utils.TokenUtils.isUnauthorizedToChangeAdminOnlyData;
 import static de.dopler.ms.login_server.utils.TokenUtils.isUnauthorizedToChangeData;
@@ -22,16 +25,87 @@ import static de.dopler.ms.login_server.utils.TokenUtils.isUnauthorizedToChangeD
 public class UpdateCredentialsResource {
 
     private final CredentialsStoreService credentialsStoreService;
+    private final PasswordHashService passwordHashService;
     private final JsonWebToken jwt;
 
     @SuppressWarnings("CdiInjectionPointsInspection")
     @Inject
     public UpdateCredentialsResource(@RestClient CredentialsStoreService credentialsStoreService,
-            JsonWebToken jwt) {
+            PasswordHashService passwordHashService, JsonWebToken jwt) {
         this.credentialsStoreService = credentialsStoreService;
+        this.passwordHashService = passwordHashService;
         this.jwt = jwt;
     }
 
+    /**
+     * @return the id, the username and the groups of the user, with the {@code ETag} of their
+     * version for the {@code If-Match} header of the first {@link #patchCredentials}.
+     */
+    @GET
+    @Path("/{id}")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getCredentials(@PathParam("id") long id) {
+        if (isUnauthorizedToChangeData(jwt, id)) {
+            return ResponseUtils.status(Status.FORBIDDEN);
+        }
+
+        var response = credentialsStoreService.getMetadata(id);
+        if (response.getStatusInfo().getFamily() == Status.Family.CLIENT_ERROR) {
+            // don't leak actual status code to client (404 Not Found)
+            return ResponseUtils.fromResponse(response, Status.BAD_REQUEST);
+        }
+        if (response.getStatusInfo().getFamily() == Status.Family.SERVER_ERROR) {
+            return ResponseUtils.fromResponse(response, Status.INTERNAL_SERVER_ERROR);
+        }
+        return ResponseUtils.fromResponse(response, Status.OK);
+    }
+
+    /**
+     * Change any of the username, the secret and the groups at once, in one call and one
+     * transaction. Changing the groups requires the admin role. With an {@code If-Match} header
+     * of the {@code ETag} of {@link #getCredentials} or the previous patch, the patch fails with
+     * 412 Precondition Failed instead of overwriting a change made meanwhile.
+     */
+    @PATCH
+    @Path("/{id}")
+    @Consumes(MediaType.APPLICATION_JSON)
+    public Response patchCredentials(@PathParam("id") long id,
+            @HeaderParam(HttpHeaders.IF_MATCH) String ifMatch, CredentialsPatch patch) {
+        if (patch == null || patch.username == null && patch.secret == null &&
+                patch.groups == null) {
+            return ResponseUtils.textResponse(Status.BAD_REQUEST, "patch has to change a field");
+        }
+        if ((patch.username != null || patch.secret != null) &&
+                isUnauthorizedToChangeData(jwt, id) ||
+                patch.groups != null && isUnauthorizedToChangeAdminOnlyData(jwt)) {
+            return ResponseUtils.status(Status.FORBIDDEN);
+        }
+
+        if (patch.secret != null) {
+            try {
+                patch.secret = passwordHashService.bcryptHash(patch.secret);
+            } catch (RejectedExecutionException e) {
+                return ResponseUtils.fromResponse(passwordHashService.overloadedResponse(),
+                        Status.SERVICE_UNAVAILABLE);
+            }
+        }
+        var response = credentialsStoreService.patchCredentials(id, ifMatch, patch);
+        if (response.getStatus() == Status.CONFLICT.getStatusCode()) {
+            return ResponseUtils.fromResponse(response, Status.CONFLICT);
+        }
+        if (response.getStatus() == Status.PRECONDITION_FAILED.getStatusCode()) {
+            return ResponseUtils.fromResponse(response, Status.PRECONDITION_FAILED);
+        }
+        if (response.getStatusInfo().getFamily() == Status.Family.CLIENT_ERROR) {
+            // don't leak actual status code to client (404 Not Found)
+            return ResponseUtils.fromResponse(response, Status.BAD_REQUEST);
+        }
+        if (response.getStatusInfo().getFamily() == Status.Family.SERVER_ERROR) {
+            return ResponseUtils.fromResponse(response, Status.INTERNAL_SERVER_ERROR);
+        }
+        return ResponseUtils.fromResponse(response, Status.NO_CONTENT);
+    }
+
     @PUT
     @Path("/{id}/username")
     public Response updateUsername(@PathParam("id") long id, String newUsername) {
@@ -63,7 +137,13 @@ public class UpdateCredentialsResource {
             return ResponseUtils.status(Status.FORBIDDEN);
         }
 
-        var hashedSecret = PasswordHashUtils.bcryptHash(newSecret);
+        String hashedSecret;
+        try {
+            hashedSecret = passwordHashService.bcryptHash(newSecret);
+        } catch (RejectedExecutionException e) {
+            return ResponseUtils.fromResponse(passwordHashService.overloadedResponse(),
+                    Status.SERVICE_UNAVAILABLE);
+        }
         var response = credentialsStoreService.updateSecret(id, hashedSecret);
         if (response.getStatusInfo().getFamily() == Status.Family.CLIENT_ERROR) {
             // don't leak actual status code to client (404 Not Found)
@@ -90,4 +170,51 @@ public class UpdateCredentialsResource {
         }
         return ResponseUtils.fromResponse(response, Status.NO_CONTENT);
     }
+
+    /**
+     * Add the users with the given ids to {@code group} in one call instead of one
+     * {@link #updateGroups} per user.
+     *
+     * @return the number of given users which were added; existing members aren't counted.
+     */
+    @POST
+    @Path("/groups/{group}/add")
+    @Consumes(MediaType.APPLICATION_JSON)
+    public Response addGroupMembers(@PathParam("group") String group, Set<Long> ids) {
+        if (ids == null) {
+            return ResponseUtils.textResponse(Status.BAD_REQUEST, "body has to be non-null");
+        }
+        if (isUnauthorizedToChangeAdminOnlyData(jwt)) {
+            return ResponseUtils.status(Status.FORBIDDEN);
+        }
+
+        var response = credentialsStoreService.addGroupMembers(group, ids);
+        if (response.getStatusInfo().getFamily() == Status.Family.CLIENT_ERROR) {
+            return ResponseUtils.fromResponse(response, Status.BAD_REQUEST);
+        }
+        return ResponseUtils.fromResponse(response, Status.OK);
+    }
+
+    /**
+     * Remove the users with the given ids from {@code group} in one call.
+     *
+     * @return the number of given users which were members of the group.
+     */
+    @POST
+    @Path("/groups/{group}/remove")
+    @Consumes(MediaType.APPLICATION_JSON)
+    public Response removeGroupMembers(@PathParam("group") String group, Set<Long> ids) {
+        if (ids == null) {
+            return ResponseUtils.textResponse(Status.BAD_REQUEST, "body has to be non-null");
+        }
+        if (isUnauthorizedToChangeAdminOnlyData(jwt)) {
+            return ResponseUtils.status(Status.FORBIDDEN);
+        }
+
+        var response = credentialsStoreService.removeGroupMembers(group, ids);
+        if (response.getStatusInfo().getFamily() == Status.Family.CLIENT_ERROR) {
+            return ResponseUtils.fromResponse(response, Status.BAD_REQUEST);
+        }
+        return ResponseUtils.fromResponse(response, Status.OK);
+    }
 }
@@ -0,0 +1,23 @@
+package de.dopler.ms.login_server.domain;
+
+import io.quarkus.runtime.annotations.RegisterForReflection;
+
+import java.util.Set;
+
+/**
+ * The changes of one user, applied at once: a null field is kept. The fields are mutable as
+ * JSON-B requires all parameters of a {@code JsonbCreator}.
+ */
+@RegisterForReflection
+public class CredentialsPatch {
+
+    public String username;
+    public String secret;
+    public Set<String> groups;
+
+    @Override
+    public String toString() {
+        return String.format("CredentialsPatch[username=%s, secret=%s, groups=%s]", username,
+                secret == null ? null : "HIDDEN", groups);
+    }
+}
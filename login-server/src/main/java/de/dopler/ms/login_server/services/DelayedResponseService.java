@@ -0,0 +1,131 @@
+package de.dopler.ms.login_server.services;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.metrics.Counter;
+import org.eclipse.microprofile.metrics.Metadata;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.eclipse.microprofile.metrics.MetricType;
+import org.eclipse.microprofile.metrics.MetricUnits;
+import org.eclipse.microprofile.metrics.annotation.Gauge;
+import org.eclipse.microprofile.metrics.annotation.RegistryType;
+import org.jboss.logging.Logger;
+
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.ws.rs.core.Response;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delivers responses after a fixed delay without blocking the calling (worker) thread. The
+ * returned {@link CompletionStage} is completed by a timer thread, so JAX-RS resources can return
+ * it directly and the request is suspended until then.
+ * <p>
+ * The number of pending delayed responses is bounded by {@code login.delay.max-pending}. A request
+ * reserves its slot with {@link #tryReserve()} before it knows whether its response is delayed,
+ * and {@link #release() releases} it if it isn't: if only the delayed responses were bounded, a
+ * client could keep the bound reached, and then tell a delayed response from an undelayed one by
+ * the overflow response it gets at once instead.
+ */
+@ApplicationScoped
+public class DelayedResponseService {
+
+    private static final Logger LOG = Logger.getLogger("DelayedResponseService");
+
+    // at most one warning per interval: while the bound is reached, every request is rejected
+    private static final long WARN_INTERVAL_MILLIS = 60_000;
+
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+                var thread = new Thread(runnable, "delayed-response-timer");
+                thread.setDaemon(true);
+                return thread;
+            });
+    private final AtomicInteger pending = new AtomicInteger();
+    private final int maxPending;
+    private final Counter rejections;
+    private final AtomicLong rejectionsSinceWarning = new AtomicLong();
+    private final AtomicLong lastWarningMillis = new AtomicLong(
+            System.currentTimeMillis() - WARN_INTERVAL_MILLIS);
+
+    @Inject
+    public DelayedResponseService(
+            @ConfigProperty(name = "login.delay.max-pending", defaultValue = "10000")
+                    int maxPending,
+            @RegistryType(type = MetricRegistry.Type.APPLICATION) MetricRegistry metricRegistry) {
+        this.maxPending = maxPending;
+        rejections = metricRegistry.counter(Metadata.builder()
+                .withName("rejected-delayed-responses")
+                .withDescription("Number of requests rejected because " +
+                        "login.delay.max-pending delayed responses were pending")
+                .withType(MetricType.COUNTER)
+                .build());
+    }
+
+    /**
+     * Reserve a slot for a response which may be delayed. Each successful reservation has to be
+     * followed by exactly one {@link #delay(Response, long)} or {@link #release()}.
+     *
+     * @return false if {@code login.delay.max-pending} slots are reserved already.
+     */
+    public boolean tryReserve() {
+        if (pending.incrementAndGet() > maxPending) {
+            pending.decrementAndGet();
+            rejections.inc();
+            rejectionsSinceWarning.incrementAndGet();
+            warnRateLimited();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Release a slot reserved with {@link #tryReserve()} whose response isn't delayed.
+     */
+    public void release() {
+        pending.decrementAndGet();
+    }
+
+    /**
+     * Complete the returned stage with the given {@code response} after {@code delayMillis},
+     * using a slot reserved with {@link #tryReserve()}.
+     */
+    @NonNull
+    public CompletionStage<Response> delay(@NonNull Response response, long delayMillis) {
+        var future = new CompletableFuture<Response>();
+        timer.schedule(() -> {
+            pending.decrementAndGet();
+            future.complete(response);
+        }, delayMillis, TimeUnit.MILLISECONDS);
+        return future;
+    }
+
+    private void warnRateLimited() {
+        var now = System.currentTimeMillis();
+        var last = lastWarningMillis.get();
+        if (now - last < WARN_INTERVAL_MILLIS || !lastWarningMillis.compareAndSet(last, now)) {
+            return;
+        }
+        LOG.warnf("More than %d delayed responses pending, rejected %d requests since the last " +
+                "warning", maxPending, rejectionsSinceWarning.getAndSet(0));
+    }
+
+    @Gauge(name = "pending-delayed-responses", unit = MetricUnits.NONE, absolute = true,
+            description = "Number of responses currently waiting for their delay to pass, or " +
+                    "reserved by requests which may be delayed")
+    public int pendingCount() {
+        return pending.get();
+    }
+
+    @PreDestroy
+    void shutdown() {
+        timer.shutdownNow();
+    }
+}
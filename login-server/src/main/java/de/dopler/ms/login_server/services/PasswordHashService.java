@@ -0,0 +1,268 @@
+package de.dopler.ms.login_server.services;
+
+import de.dopler.ms.login_server.utils.PasswordHashUtils;
+import io.quarkus.runtime.StartupEvent;
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.metrics.Metadata;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.eclipse.microprofile.metrics.MetricType;
+import org.eclipse.microprofile.metrics.MetricUnits;
+import org.eclipse.microprofile.metrics.Timer;
+import org.eclipse.microprofile.metrics.annotation.Gauge;
+import org.eclipse.microprofile.metrics.annotation.RegistryType;
+import org.jboss.logging.Logger;
+
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the bcrypt hashing and verification of {@link PasswordHashUtils} on a dedicated pool of
+ * {@code login.hash.threads} threads (by default one per core), so the CPU time of a flood of
+ * logins can't starve cheap requests like {@code /auth/refresh}: the worker threads only wait for
+ * their hash.
+ * <p>
+ * Up to {@code login.hash.max-queued} hashes wait for a free thread; beyond that, a hash is
+ * rejected with a {@link RejectedExecutionException}, which resources answer with
+ * {@link #overloadedResponse()}. The queue is short, as a hash waiting for seconds only delays the
+ * response to a client which has given up already.
+ * <p>
+ * New hashes use the cost {@code login.hash.cost}. If that is 0, the cost is calibrated at startup:
+ * the highest cost whose hash takes at most {@code login.hash.target-millis} on this machine, but
+ * at least {@code login.hash.min-cost}.
+ */
+@ApplicationScoped
+public class PasswordHashService {
+
+    private static final Logger LOG = Logger.getLogger("PasswordHashService");
+
+    private static final String RESPONSE_TEXT_OVERLOADED = "too many pending password hashes";
+    // the calibration measures this cost and extrapolates: each increment doubles the time
+    private static final int CALIBRATION_COST = 8;
+    private static final int CALIBRATION_RUNS = 3;
+    private static final String CALIBRATION_PASSWORD = "calibration";
+
+    private final int configuredCost;
+    private final long targetMillis;
+    private final int minCost;
+    private volatile int cost = PasswordHashUtils.ITERATION_COUNT;
+    private final int threads;
+    private final ThreadPoolExecutor executor;
+    private final Timer waits;
+    private final Timer hashes;
+
+    @Inject
+    public PasswordHashService(
+            @ConfigProperty(name = "login.hash.threads", defaultValue = "0") int threads,
+            @ConfigProperty(name = "login.hash.max-queued", defaultValue = "16") int maxQueued,
+            @ConfigProperty(name = "login.hash.cost", defaultValue = "0") int configuredCost,
+            @ConfigProperty(name = "login.hash.target-millis", defaultValue = "100")
+                    long targetMillis,
+            @ConfigProperty(name = "login.hash.min-cost", defaultValue = "10") int minCost,
+            @RegistryType(type = MetricRegistry.Type.APPLICATION) MetricRegistry metricRegistry) {
+        if (configuredCost != 0 && (configuredCost < PasswordHashUtils.MIN_ITERATION_COUNT ||
+                configuredCost > PasswordHashUtils.MAX_ITERATION_COUNT)) {
+            throw new IllegalArgumentException("login.hash.cost must be 0 or between " +
+                    PasswordHashUtils.MIN_ITERATION_COUNT + " and " +
+                    PasswordHashUtils.MAX_ITERATION_COUNT);
+        }
+        this.configuredCost = configuredCost;
+        this.targetMillis = targetMillis;
+        this.minCost = Math.max(PasswordHashUtils.MIN_ITERATION_COUNT,
+                Math.min(minCost, PasswordHashUtils.MAX_ITERATION_COUNT));
+        this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        var threadCount = new AtomicInteger();
+        executor = new ThreadPoolExecutor(this.threads, this.threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(maxQueued), runnable -> {
+                    var thread = new Thread(runnable,
+                            "password-hash-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        waits = metricRegistry.timer(Metadata.builder()
+                .withName("password-hash-wait")
+                .withDescription("Time a password hash waits in the queue for a free thread")
+                .withType(MetricType.TIMER)
+                .build());
+        hashes = metricRegistry.timer(Metadata.builder()
+                .withName("password-hash")
+                .withDescription("Time to compute a password hash or verify a password")
+                .withType(MetricType.TIMER)
+                .build());
+    }
+
+    void onStart(@Observes StartupEvent ev) {
+        if (configuredCost != 0) {
+            cost = configuredCost;
+            return;
+        }
+        var timingStart = System.nanoTime();
+        cost = calibrate();
+        var duration = (System.nanoTime() - timingStart) / 1_000_000;
+        LOG.infof("Calibrated the bcrypt cost to %d for %d ms per hash after %d ms", cost,
+                targetMillis, duration);
+    }
+
+    /**
+     * {@link PasswordHashUtils#bcryptHash(String, int)} with the current cost on the hash
+     * pool.
+     *
+     * @throws RejectedExecutionException if {@code login.hash.max-queued} hashes are waiting.
+     */
+    @NonNull
+    public String bcryptHash(@NonNull String password) {
+        var currentCost = cost;
+        return run(() -> PasswordHashUtils.bcryptHash(password, currentCost));
+    }
+
+    /**
+     * {@link #bcryptHash(String)} without waiting, for work which may be skipped: the hash is
+     * only computed if no hash is waiting for a thread, so it delays the hashes of requests by at
+     * most one hash.
+     *
+     * @return the hash; completed exceptionally with a {@link RejectedExecutionException} if
+     * hashes are waiting.
+     */
+    @NonNull
+    public CompletableFuture<String> bcryptHashIfIdle(@NonNull String password) {
+        // not the active count: the thread which verified the calling request's password may
+        // not be idle again yet
+        if (!executor.getQueue().isEmpty()) {
+            return CompletableFuture.failedFuture(
+                    new RejectedExecutionException("password hashes are waiting"));
+        }
+        var currentCost = cost;
+        var submitted = System.nanoTime();
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                waits.update(System.nanoTime() - submitted, TimeUnit.NANOSECONDS);
+                var timing = hashes.time();
+                try {
+                    return PasswordHashUtils.bcryptHash(password, currentCost);
+                } finally {
+                    timing.stop();
+                }
+            }, executor);
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * @return true if {@code storedSecret} has another cost than new hashes, including secrets
+     * which aren't bcrypt hashes.
+     */
+    public boolean isOutdated(@NonNull String storedSecret) {
+        return PasswordHashUtils.iterationCount(storedSecret) != cost;
+    }
+
+    /**
+     * {@link PasswordHashUtils#verify(String, String)} on the hash pool.
+     *
+     * @throws RejectedExecutionException if {@code login.hash.max-queued} hashes are waiting.
+     */
+    public boolean verify(@NonNull String storedSecret, @NonNull String guess) {
+        return run(() -> PasswordHashUtils.verify(storedSecret, guess));
+    }
+
+    /**
+     * @return {@code 503 Service Unavailable} with a {@code Retry-After} of the time the pool
+     * needs for a full queue, estimated from the mean hash time.
+     */
+    @NonNull
+    public Response overloadedResponse() {
+        var queueNanos = hashes.getSnapshot().getMean() * executor.getQueue().size() / threads;
+        var retryAfterSeconds = Math.max(1, (long) Math.ceil(queueNanos / 1e9));
+        return Response.status(Status.SERVICE_UNAVAILABLE)
+                .type(MediaType.TEXT_PLAIN_TYPE)
+                .entity(RESPONSE_TEXT_OVERLOADED)
+                .header(HttpHeaders.RETRY_AFTER, retryAfterSeconds)
+                .build();
+    }
+
+    /**
+     * @return true if a hash would be rejected now, so a request can be rejected before it does
+     * anything else.
+     */
+    public boolean isSaturated() {
+        return executor.getQueue().remainingCapacity() == 0;
+    }
+
+    @Gauge(name = "password-hash-queue-depth", unit = MetricUnits.NONE, absolute = true,
+            description = "Number of password hashes waiting for a free thread")
+    public int queueDepth() {
+        return executor.getQueue().size();
+    }
+
+    @PreDestroy
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private int calibrate() {
+        long fastestNanos = Long.MAX_VALUE;
+        // the first runs include the warm-up of the JIT
+        for (var i = 0; i < CALIBRATION_RUNS * 2; i++) {
+            var start = System.nanoTime();
+            PasswordHashUtils.bcryptHash(CALIBRATION_PASSWORD, CALIBRATION_COST);
+            fastestNanos = Math.min(fastestNanos, System.nanoTime() - start);
+        }
+        return extrapolateCost(fastestNanos, TimeUnit.MILLISECONDS.toNanos(targetMillis),
+                minCost);
+    }
+
+    /**
+     * @param calibrationNanos the time of a hash with the cost {@value #CALIBRATION_COST}.
+     * @return the highest cost whose hash takes at most {@code targetNanos}, extrapolated from
+     * {@code calibrationNanos}, but at least {@code minCost} and at most
+     * {@link PasswordHashUtils#MAX_ITERATION_COUNT}.
+     */
+    static int extrapolateCost(long calibrationNanos, long targetNanos, int minCost) {
+        var cost = minCost;
+        while (cost < PasswordHashUtils.MAX_ITERATION_COUNT &&
+                calibrationNanos * Math.pow(2, cost + 1 - CALIBRATION_COST) <= targetNanos) {
+            cost++;
+        }
+        return cost;
+    }
+
+    /**
+     * Run {@code hash} on the hash pool and wait for its result.
+     *
+     * @throws RejectedExecutionException if {@code login.hash.max-queued} hashes are waiting.
+     */
+    <T> T run(@NonNull Callable<T> hash) {
+        var submitted = System.nanoTime();
+        var future = executor.submit(() -> {
+            waits.update(System.nanoTime() - submitted, TimeUnit.NANOSECONDS);
+            return hashes.time(hash);
+        });
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while waiting for a password hash");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            LOG.errorf("password hash failed: %s", e.getCause().getMessage());
+            throw new IllegalStateException("password hash failed", e.getCause());
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package de.dopler.ms.login_server.services;
+
+import de.dopler.ms.login_server.domain.AuthData;
+import de.dopler.ms.login_server.domain.CredentialsPatch;
+import de.dopler.ms.login_server.services.external.CredentialsStoreService;
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.microprofile.metrics.Counter;
+import org.eclipse.microprofile.metrics.Metadata;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.eclipse.microprofile.metrics.MetricType;
+import org.eclipse.microprofile.metrics.annotation.RegistryType;
+import org.eclipse.microprofile.rest.client.inject.RestClient;
+import org.jboss.logging.Logger;
+
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.ws.rs.core.Response.Status;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Moves stored secrets to the cost of new hashes (see {@link PasswordHashService}) when their
+ * users log in, the only time the password is known: the password is hashed again on the hash
+ * pool, if no other hash is waiting, and written back in the background, after the login's
+ * response.
+ * <p>
+ * The secret is written back with the version of the auth data the login verified, so a secret
+ * changed meanwhile isn't overwritten. A rehash skipped because the hash pool is busy is repeated
+ * on the user's next login.
+ */
+@ApplicationScoped
+public class SecretRehashService {
+
+    private static final Logger LOG = Logger.getLogger("SecretRehashService");
+
+    private final CredentialsStoreService credentialsStoreService;
+    private final PasswordHashService passwordHashService;
+    // the write-backs are blocking REST calls, which must not block a thread of the hash pool
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> {
+        var thread = new Thread(runnable, "secret-rehash-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // the ids of the users being rehashed, so concurrent logins of a user hash only once
+    private final Set<Long> pending = ConcurrentHashMap.newKeySet();
+    private final Counter rehashes;
+
+    @SuppressWarnings("CdiInjectionPointsInspection")
+    @Inject
+    public SecretRehashService(@RestClient CredentialsStoreService credentialsStoreService,
+            PasswordHashService passwordHashService,
+            @RegistryType(type = MetricRegistry.Type.APPLICATION) MetricRegistry metricRegistry) {
+        this.credentialsStoreService = credentialsStoreService;
+        this.passwordHashService = passwordHashService;
+        rehashes = metricRegistry.counter(Metadata.builder()
+                .withName("secret-rehashes")
+                .withDescription("Number of stored secrets rehashed with the current cost")
+                .withType(MetricType.COUNTER)
+                .build());
+    }
+
+    /**
+     * Rehash the secret of {@code authData} with the current cost in the background if it has
+     * another one. Returns immediately.
+     *
+     * @param password the password {@code authData}'s secret was verified against.
+     */
+    public void rehashIfOutdated(@NonNull AuthData authData, @NonNull String password) {
+        if (!passwordHashService.isOutdated(authData.secret) || !pending.add(authData.id)) {
+            return;
+        }
+        passwordHashService.bcryptHashIfIdle(password)
+                .thenAcceptAsync(hashedSecret -> writeBack(authData, hashedSecret), writer)
+                .whenComplete((ignored, e) -> {
+                    pending.remove(authData.id);
+                    if (e != null) {
+                        LOG.debugf("Rehashing the secret of user %d skipped: %s", authData.id,
+                                e.getMessage());
+                    }
+                });
+    }
+
+    @PreDestroy
+    void shutdown() {
+        writer.shutdownNow();
+    }
+
+    private void writeBack(@NonNull AuthData authData, @NonNull String hashedSecret) {
+        var patch = new CredentialsPatch();
+        patch.secret = hashedSecret;
+        // the strong ETag of the version
+        var ifMatch = "\"" + authData.version + "\"";
+        var response = credentialsStoreService.patchCredentials(authData.id, ifMatch, patch);
+        if (response.getStatus() == Status.NO_CONTENT.getStatusCode()) {
+            rehashes.inc();
+        } else if (response.getStatus() == Status.PRECONDITION_FAILED.getStatusCode()) {
+            LOG.debugf("Secret of user %d changed before its rehash was written", authData.id);
+        } else {
+            LOG.warnf("Writing the rehashed secret of user %d failed with status %d",
+                    authData.id, response.getStatus());
+        }
+    }
+}
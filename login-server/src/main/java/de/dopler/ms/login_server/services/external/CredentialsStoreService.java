@@ -1,11 +1,13 @@
 package de.dopler.ms.login_server.services.external;
 
 import de.dopler.ms.login_server.domain.Credentials;
+import de.dopler.ms.login_server.domain.CredentialsPatch;
 import org.eclipse.microprofile.faulttolerance.Retry;
 import org.eclipse.microprofile.rest.client.inject.RegisterRestClient;
 
 import javax.inject.Singleton;
 import javax.ws.rs.*;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import java.util.Set;
@@ -28,11 +30,27 @@ public interface CredentialsStoreService {
     @Retry(maxRetries = 1, delay = 3000)
     Response getAuthData(@PathParam("username") String username);
 
+    @GET
+    @Path("/{id}/metadata")
+    @Produces(MediaType.APPLICATION_JSON)
+    @Retry(maxRetries = 1, delay = 3000)
+    Response getMetadata(@PathParam("id") long id);
+
     @DELETE
     @Path("/{id}")
     @Retry(maxRetries = 1, delay = 3000)
     Response removeCredentials(@PathParam("id") long id);
 
+    /**
+     * Not retried: if the patch was committed but its response got lost, a retry with the same
+     * {@code If-Match} would fail with 412 although the change was applied.
+     */
+    @PATCH
+    @Path("/{id}")
+    @Consumes(MediaType.APPLICATION_JSON)
+    Response patchCredentials(@PathParam("id") long id,
+            @HeaderParam(HttpHeaders.IF_MATCH) String ifMatch, CredentialsPatch patch);
+
     @PUT
     @Path("/{id}/username")
     @Retry(maxRetries = 1, delay = 3000)
@@ -45,6 +63,19 @@ public interface CredentialsStoreService {
 
     @PUT
     @Path("/{id}/groups")
+    @Consumes(MediaType.APPLICATION_JSON)
     @Retry(maxRetries = 1, delay = 3000)
     Response updateGroups(@PathParam("id") long id, Set<String> newGroups);
+
+    @POST
+    @Path("/bulk/groups/{group}/add")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Retry(maxRetries = 1, delay = 3000)
+    Response addGroupMembers(@PathParam("group") String group, Set<Long> ids);
+
+    @POST
+    @Path("/bulk/groups/{group}/remove")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Retry(maxRetries = 1, delay = 3000)
+    Response removeGroupMembers(@PathParam("group") String group, Set<Long> ids);
 }
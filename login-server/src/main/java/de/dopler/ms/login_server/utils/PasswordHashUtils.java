@@ -20,7 +20,9 @@ import java.security.spec.InvalidKeySpecException;
 public final class PasswordHashUtils {
 
     private static final WildFlyElytronPasswordProvider PROVIDER = new WildFlyElytronPasswordProvider();
-    private static final int ITERATION_COUNT = 10;
+    public static final int ITERATION_COUNT = 10;
+    public static final int MIN_ITERATION_COUNT = 4;
+    public static final int MAX_ITERATION_COUNT = 31;
 
     private PasswordHashUtils() {
         // utility class
@@ -35,6 +37,21 @@ public final class PasswordHashUtils {
      */
     @NonNull
     public static String bcryptHash(@NonNull String password) {
+        return bcryptHash(password, ITERATION_COUNT);
+    }
+
+    /**
+     * Produce a Modular Crypt Format bcrypt hash of the given password, using a random
+     * salt and the given {@code iterationCount} (the bcrypt cost: each increment doubles the time
+     * to compute the hash).
+     *
+     * @param password       the password to hash
+     * @param iterationCount the cost between {@value MIN_ITERATION_COUNT} and
+     *                       {@value MAX_ITERATION_COUNT}
+     * @return the Modular Crypt Format bcrypt hash of the given password.
+     */
+    @NonNull
+    public static String bcryptHash(@NonNull String password, int iterationCount) {
         var salt = new byte[BCryptPassword.BCRYPT_SALT_SIZE];
         new SecureRandom().nextBytes(salt);
 
@@ -47,7 +64,7 @@ public final class PasswordHashUtils {
                     "NoSuchAlgorithmException in PasswordHashUtils#bcryptHash: " + e.getMessage());
         }
 
-        var iteratedAlgorithmSpec = new IteratedSaltedPasswordAlgorithmSpec(ITERATION_COUNT, salt);
+        var iteratedAlgorithmSpec = new IteratedSaltedPasswordAlgorithmSpec(iterationCount, salt);
         var encryptableSpec = new EncryptablePasswordSpec(password.toCharArray(),
                 iteratedAlgorithmSpec);
 
@@ -86,4 +103,22 @@ public final class PasswordHashUtils {
                     "InvalidKey(Spec)Exception in PasswordHashUtils#verify: " + e.getMessage());
         }
     }
+
+    /**
+     * @param storedSecret Modular Crypt Format bcrypt hash, e.g. stored in your password store
+     * @return the iteration count (the bcrypt cost) of the given hash; -1 if it isn't a bcrypt
+     * hash.
+     */
+    public static int iterationCount(@NonNull String storedSecret) {
+        // $2a$10$ followed by the salt and the hash
+        if (storedSecret.length() < 7 || !storedSecret.startsWith("$2") ||
+                storedSecret.charAt(3) != '$' || storedSecret.charAt(6) != '$') {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(storedSecret.substring(4, 6));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
 }
@@ -0,0 +1,91 @@
+package de.dopler.ms.login_server;
+
+import de.dopler.ms.login_server.domain.AuthData;
+import de.dopler.ms.login_server.domain.Credentials;
+import de.dopler.ms.login_server.services.DelayedResponseService;
+import de.dopler.ms.login_server.services.PasswordHashService;
+import de.dopler.ms.login_server.services.SecretRehashService;
+import de.dopler.ms.login_server.services.external.CredentialsStoreService;
+import de.dopler.ms.login_server.services.external.TokenService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * The responses of {@link AuthResource} while the pool of the {@link PasswordHashService} is
+ * saturated.
+ */
+class AuthResourceHashPoolTest {
+
+    private static final Credentials CREDENTIALS = new Credentials("user", "password");
+
+    private CredentialsStoreService credentialsStoreService;
+    private DelayedResponseService delayedResponseService;
+    private PasswordHashService passwordHashService;
+    private AuthResource authResource;
+
+    @BeforeEach
+    void setUp() {
+        credentialsStoreService = Mockito.mock(CredentialsStoreService.class);
+        delayedResponseService = Mockito.mock(DelayedResponseService.class);
+        Mockito.when(delayedResponseService.tryReserve()).thenReturn(true);
+        passwordHashService = Mockito.mock(PasswordHashService.class);
+        Mockito.when(passwordHashService.overloadedResponse()).thenReturn(
+                Response.status(Status.SERVICE_UNAVAILABLE)
+                        .header(HttpHeaders.RETRY_AFTER, 7)
+                        .build());
+        authResource = new AuthResource(credentialsStoreService, Mockito.mock(TokenService.class),
+                delayedResponseService, passwordHashService,
+                Mockito.mock(SecretRehashService.class));
+    }
+
+    @Test
+    void registerWithRejectedHashReturnsCode503AndStoresNothing() {
+        Mockito.when(passwordHashService.bcryptHash(Mockito.anyString()))
+                .thenThrow(new RejectedExecutionException());
+
+        var response = authResource.register(false, CREDENTIALS);
+
+        assertOverloaded(response);
+        Mockito.verifyNoInteractions(credentialsStoreService);
+    }
+
+    @Test
+    void loginWhileSaturatedReturnsCode503WithoutLookup() {
+        Mockito.when(passwordHashService.isSaturated()).thenReturn(true);
+
+        var response = authResource.login(CREDENTIALS).toCompletableFuture().join();
+
+        assertOverloaded(response);
+        Mockito.verifyNoInteractions(credentialsStoreService, delayedResponseService);
+    }
+
+    @Test
+    void loginWithRejectedVerificationReturnsCode503Undelayed() {
+        Mockito.when(credentialsStoreService.getAuthData(CREDENTIALS.username)).thenReturn(
+                Response.ok(new AuthData(1, "secret", Set.of(), 0)).build());
+        Mockito.when(passwordHashService.verify(Mockito.anyString(), Mockito.anyString()))
+                .thenThrow(new RejectedExecutionException());
+
+        var response = authResource.login(CREDENTIALS).toCompletableFuture().join();
+
+        assertOverloaded(response);
+        Mockito.verify(delayedResponseService).release();
+        Mockito.verify(delayedResponseService, Mockito.never())
+                .delay(Mockito.any(), Mockito.anyLong());
+    }
+
+    private static void assertOverloaded(Response response) {
+        assertThat(response.getStatus(), is(equalTo(Status.SERVICE_UNAVAILABLE.getStatusCode())));
+        assertThat(response.getHeaderString(HttpHeaders.RETRY_AFTER), is(equalTo("7")));
+    }
+}
@@ -0,0 +1,71 @@
+package de.dopler.ms.login_server;
+
+import de.dopler.ms.login_server.domain.CredentialsPatch;
+import de.dopler.ms.login_server.services.PasswordHashService;
+import de.dopler.ms.login_server.services.external.CredentialsStoreService;
+import org.eclipse.microprofile.jwt.JsonWebToken;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+class UpdateCredentialsResourceTest {
+
+    private static final long ID = 42;
+
+    private CredentialsStoreService credentialsStoreService;
+    private PasswordHashService passwordHashService;
+    private UpdateCredentialsResource updateCredentialsResource;
+
+    @BeforeEach
+    void setUp() {
+        credentialsStoreService = Mockito.mock(CredentialsStoreService.class);
+        passwordHashService = Mockito.mock(PasswordHashService.class);
+        Mockito.when(passwordHashService.overloadedResponse()).thenReturn(
+                Response.status(Status.SERVICE_UNAVAILABLE)
+                        .header(HttpHeaders.RETRY_AFTER, 7)
+                        .build());
+        var jwt = Mockito.mock(JsonWebToken.class);
+        Mockito.when(jwt.getName()).thenReturn(String.valueOf(ID));
+        Mockito.when(jwt.getGroups()).thenReturn(Set.of());
+        updateCredentialsResource = new UpdateCredentialsResource(credentialsStoreService,
+                passwordHashService, jwt);
+    }
+
+    @Test
+    void secretUpdateWithRejectedHashReturnsCode503AndChangesNothing() {
+        Mockito.when(passwordHashService.bcryptHash(Mockito.anyString()))
+                .thenThrow(new RejectedExecutionException());
+
+        var response = updateCredentialsResource.updateSecret(ID, "new-secret");
+
+        assertOverloaded(response);
+        Mockito.verifyNoInteractions(credentialsStoreService);
+    }
+
+    @Test
+    void secretPatchWithRejectedHashReturnsCode503AndChangesNothing() {
+        Mockito.when(passwordHashService.bcryptHash(Mockito.anyString()))
+                .thenThrow(new RejectedExecutionException());
+        var patch = new CredentialsPatch();
+        patch.secret = "new-secret";
+
+        var response = updateCredentialsResource.patchCredentials(ID, null, patch);
+
+        assertOverloaded(response);
+        Mockito.verifyNoInteractions(credentialsStoreService);
+    }
+
+    private static void assertOverloaded(Response response) {
+        assertThat(response.getStatus(), is(equalTo(Status.SERVICE_UNAVAILABLE.getStatusCode())));
+        assertThat(response.getHeaderString(HttpHeaders.RETRY_AFTER), is(equalTo("7")));
+    }
+}
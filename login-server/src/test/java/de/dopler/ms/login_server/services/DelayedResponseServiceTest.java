@@ -0,0 +1,63 @@
+package de.dopler.ms.login_server.services;
+
+import io.smallrye.metrics.MetricRegistries;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.ws.rs.core.Response;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+class DelayedResponseServiceTest {
+
+    private static final int MAX_PENDING = 2;
+
+    private final MetricRegistry metricRegistry = MetricRegistries.get(
+            MetricRegistry.Type.APPLICATION);
+    private DelayedResponseService delayedResponseService;
+
+    @BeforeEach
+    void setUp() {
+        delayedResponseService = new DelayedResponseService(MAX_PENDING, metricRegistry);
+    }
+
+    @AfterEach
+    void tearDown() {
+        delayedResponseService.shutdown();
+    }
+
+    @Test
+    void reservationsBeyondMaxPendingAreRejectedAndCounted() {
+        var rejectionsBefore = rejections();
+        assertThat(delayedResponseService.tryReserve(), is(true));
+        assertThat(delayedResponseService.tryReserve(), is(true));
+
+        for (int i = 0; i < 100; i++) {
+            assertThat(delayedResponseService.tryReserve(), is(false));
+        }
+
+        assertThat(rejections() - rejectionsBefore, is(equalTo(100L)));
+        assertThat(delayedResponseService.pendingCount(), is(equalTo(MAX_PENDING)));
+        delayedResponseService.release();
+        assertThat(delayedResponseService.tryReserve(), is(true));
+    }
+
+    @Test
+    void delayedResponseFreesItsSlotWhenCompleted() throws Exception {
+        delayedResponseService.tryReserve();
+
+        var response = delayedResponseService.delay(Response.noContent().build(), 10)
+                .toCompletableFuture().get(10, TimeUnit.SECONDS);
+
+        assertThat(response.getStatus(), is(equalTo(204)));
+        assertThat(delayedResponseService.pendingCount(), is(equalTo(0)));
+    }
+
+    private long rejections() {
+        return metricRegistry.counter("rejected-delayed-responses").getCount();
+    }
+}
@@ -0,0 +1,260 @@
+package de.dopler.ms.login_server.services;
+
+import de.dopler.ms.login_server.utils.PasswordHashUtils;
+import org.eclipse.microprofile.metrics.Metadata;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.eclipse.microprofile.metrics.Snapshot;
+import org.eclipse.microprofile.metrics.Timer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response.Status;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class PasswordHashServiceTest {
+
+    // the lowest bcrypt cost, so the hashes of the tests are fast
+    private static final int COST = 4;
+    private static final long AWAIT_TIMEOUT_MILLIS = 10_000;
+
+    private final CountDownLatch release = new CountDownLatch(1);
+    // a thread per blocking hash, as each caller waits for its hash
+    private final ExecutorService callers = Executors.newCachedThreadPool();
+    private PasswordHashService passwordHashService;
+
+    @AfterEach
+    void tearDown() {
+        release.countDown();
+        callers.shutdown();
+        if (passwordHashService != null) {
+            passwordHashService.shutdown();
+        }
+    }
+
+    // #bcryptHash and #verify =====================================================================
+
+    @Test
+    void hashesBeyondTheQueueAreRejected() throws Exception {
+        passwordHashService = givenPasswordHashService(1, 2, 0);
+        // not hashed on the pool: an idle thread could race the blocking hashes for the queue
+        var hash = PasswordHashUtils.bcryptHash("password", COST);
+        assertThat(passwordHashService.isSaturated(), is(false));
+
+        givenBlockingHashes(1, 2);
+
+        assertThat(passwordHashService.queueDepth(), is(equalTo(2)));
+        assertThat(passwordHashService.isSaturated(), is(true));
+        assertThrows(RejectedExecutionException.class,
+                () -> passwordHashService.bcryptHash("password"));
+        assertThrows(RejectedExecutionException.class,
+                () -> passwordHashService.verify(hash, "password"));
+    }
+
+    @Test
+    void hashesAreAcceptedAgainWhenTheQueueDrains() throws Exception {
+        passwordHashService = givenPasswordHashService(1, 2, 0);
+        givenBlockingHashes(1, 2);
+        assertThat(passwordHashService.isSaturated(), is(true));
+
+        release.countDown();
+
+        awaitQueueDepth(0);
+        assertThat(passwordHashService.isSaturated(), is(false));
+        var hash = passwordHashService.bcryptHash("password");
+        assertThat(passwordHashService.verify(hash, "password"), is(true));
+    }
+
+    @Test
+    void hashIfIdleIsSkippedWhileHashesAreWaiting() throws Exception {
+        passwordHashService = givenPasswordHashService(1, 2, 0);
+        givenBlockingHashes(1, 1);
+
+        var skipped = passwordHashService.bcryptHashIfIdle("password");
+
+        var e = assertThrows(ExecutionException.class,
+                () -> skipped.get(AWAIT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertThat(e.getCause(), is(instanceOf(RejectedExecutionException.class)));
+        release.countDown();
+        awaitQueueDepth(0);
+        var hash = passwordHashService.bcryptHashIfIdle("password")
+                .get(AWAIT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        assertThat(passwordHashService.verify(hash, "password"), is(true));
+    }
+
+    @Test
+    void hashIfIdleRecordsItsWaitAndHashTime() throws Exception {
+        var waits = givenTimer(0);
+        var hashes = givenTimer(0);
+        var metricRegistry = Mockito.mock(MetricRegistry.class);
+        Mockito.when(metricRegistry.timer(Mockito.any(Metadata.class))).thenAnswer(invocation ->
+                "password-hash-wait".equals(invocation.<Metadata>getArgument(0).getName()) ?
+                        waits :
+                        hashes);
+        passwordHashService = new PasswordHashService(1, 2, COST, 100, 10, metricRegistry);
+        passwordHashService.onStart(null);
+
+        passwordHashService.bcryptHashIfIdle("password")
+                .get(AWAIT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+
+        Mockito.verify(waits).update(Mockito.anyLong(), Mockito.eq(TimeUnit.NANOSECONDS));
+        Mockito.verify(hashes).time();
+    }
+
+    // #overloadedResponse =========================================================================
+
+    @Test
+    void retryAfterIsTheTimeToWorkOffTheQueue() throws Exception {
+        // 2 queued hashes of 3 s each on 1 thread
+        passwordHashService = givenPasswordHashService(1, 2, 3e9);
+        givenBlockingHashes(1, 2);
+
+        var response = passwordHashService.overloadedResponse();
+
+        assertThat(response.getStatus(), is(equalTo(Status.SERVICE_UNAVAILABLE.getStatusCode())));
+        assertThat(response.getHeaderString(HttpHeaders.RETRY_AFTER), is(equalTo("6")));
+    }
+
+    @Test
+    void retryAfterSharesTheQueueAmongThreadsAndRoundsUp() throws Exception {
+        // 4 queued hashes of 1.2 s each on 2 threads
+        passwordHashService = givenPasswordHashService(2, 4, 1.2e9);
+        givenBlockingHashes(2, 4);
+
+        var response = passwordHashService.overloadedResponse();
+
+        assertThat(response.getHeaderString(HttpHeaders.RETRY_AFTER), is(equalTo("3")));
+    }
+
+    @Test
+    void retryAfterIsAtLeastOneSecond() throws Exception {
+        passwordHashService = givenPasswordHashService(1, 2, 0);
+
+        var response = passwordHashService.overloadedResponse();
+
+        assertThat(response.getHeaderString(HttpHeaders.RETRY_AFTER), is(equalTo("1")));
+    }
+
+    // #calibration ================================================================================
+
+    @Test
+    void costIsExtrapolatedFromTheCalibrationHash() {
+        var calibrationNanos = TimeUnit.MILLISECONDS.toNanos(1);
+
+        // cost 14 takes 2^(14 - 8) ms = 64 ms, cost 15 128 ms
+        assertThat(PasswordHashService.extrapolateCost(calibrationNanos,
+                TimeUnit.MILLISECONDS.toNanos(100), 10), is(equalTo(14)));
+        assertThat(PasswordHashService.extrapolateCost(calibrationNanos,
+                TimeUnit.MILLISECONDS.toNanos(64), 10), is(equalTo(14)));
+        assertThat(PasswordHashService.extrapolateCost(calibrationNanos,
+                TimeUnit.MILLISECONDS.toNanos(63), 10), is(equalTo(13)));
+    }
+
+    @Test
+    void extrapolatedCostIsClampedToMinCostAndMaxCost() {
+        assertThat(PasswordHashService.extrapolateCost(TimeUnit.SECONDS.toNanos(1),
+                TimeUnit.MILLISECONDS.toNanos(100), 10), is(equalTo(10)));
+        assertThat(PasswordHashService.extrapolateCost(1, Long.MAX_VALUE, 10),
+                is(equalTo(PasswordHashUtils.MAX_ITERATION_COUNT)));
+    }
+
+    @Test
+    void calibratedCostIsAtLeastTheClampedMinCost() throws Exception {
+        // a target no hash meets, so the calibration ends at the min cost
+        passwordHashService = new PasswordHashService(1, 2, 0, 0, 1, givenMetricRegistry(0));
+        passwordHashService.onStart(null);
+
+        assertThat(passwordHashService.isOutdated(
+                PasswordHashUtils.bcryptHash("password", PasswordHashUtils.MIN_ITERATION_COUNT)),
+                is(false));
+    }
+
+    @Test
+    void configuredCostOutOfRangeIsRejected() {
+        assertThrows(IllegalArgumentException.class, () -> new PasswordHashService(1, 2,
+                PasswordHashUtils.MAX_ITERATION_COUNT + 1, 100, 10, givenMetricRegistry(0)));
+        assertThrows(IllegalArgumentException.class, () -> new PasswordHashService(1, 2,
+                PasswordHashUtils.MIN_ITERATION_COUNT - 1, 100, 10, givenMetricRegistry(0)));
+    }
+
+    // #isOutdated =================================================================================
+
+    @Test
+    void secretsWithAnotherCostOrWithoutCostAreOutdated() throws Exception {
+        passwordHashService = givenPasswordHashService(1, 2, 0);
+
+        assertThat(passwordHashService.isOutdated(PasswordHashUtils.bcryptHash("password", COST)),
+                is(false));
+        assertThat(passwordHashService.isOutdated(
+                PasswordHashUtils.bcryptHash("password", COST + 1)), is(true));
+        assertThat(passwordHashService.isOutdated("plain-secret"), is(true));
+    }
+
+    /**
+     * @param meanHashNanos the mean hash time reported by the {@code password-hash} timer.
+     */
+    private static PasswordHashService givenPasswordHashService(int threads, int maxQueued,
+            double meanHashNanos) throws Exception {
+        var passwordHashService = new PasswordHashService(threads, maxQueued, COST, 100, 10,
+                givenMetricRegistry(meanHashNanos));
+        passwordHashService.onStart(null);
+        return passwordHashService;
+    }
+
+    private static MetricRegistry givenMetricRegistry(double meanHashNanos) throws Exception {
+        var timer = givenTimer(meanHashNanos);
+        var metricRegistry = Mockito.mock(MetricRegistry.class);
+        Mockito.when(metricRegistry.timer(Mockito.any(Metadata.class))).thenReturn(timer);
+        return metricRegistry;
+    }
+
+    private static Timer givenTimer(double meanHashNanos) throws Exception {
+        var snapshot = Mockito.mock(Snapshot.class);
+        Mockito.when(snapshot.getMean()).thenReturn(meanHashNanos);
+        var timer = Mockito.mock(Timer.class);
+        Mockito.when(timer.getSnapshot()).thenReturn(snapshot);
+        Mockito.when(timer.time()).thenReturn(Mockito.mock(Timer.Context.class));
+        Mockito.when(timer.time(Mockito.<Callable<Object>>any())).thenAnswer(
+                invocation -> invocation.<Callable<?>>getArgument(0).call());
+        return timer;
+    }
+
+    /**
+     * Occupy the {@code threads} threads of the pool with hashes which block until
+     * {@link #release} is counted down and queue {@code queued} more of them.
+     */
+    private void givenBlockingHashes(int threads, int queued) {
+        for (int i = 0; i < threads + queued; i++) {
+            callers.execute(() -> passwordHashService.run(
+                    () -> release.await(AWAIT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)));
+        }
+        // the first hashes start threads of their own, the others are queued
+        awaitQueueDepth(queued);
+    }
+
+    private void awaitQueueDepth(int queueDepth) {
+        var deadline = System.currentTimeMillis() + AWAIT_TIMEOUT_MILLIS;
+        while (passwordHashService.queueDepth() != queueDepth) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("the queue depth did not become " + queueDepth);
+            }
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new AssertionError("interrupted while waiting for the queue");
+            }
+        }
+    }
+}
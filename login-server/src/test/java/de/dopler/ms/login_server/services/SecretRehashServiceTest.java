@@ -0,0 +1,99 @@
+package de.dopler.ms.login_server.services;
+
+import de.dopler.ms.login_server.domain.AuthData;
+import de.dopler.ms.login_server.services.external.CredentialsStoreService;
+import io.smallrye.metrics.MetricRegistries;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+
+class SecretRehashServiceTest {
+
+    private static final long TIMEOUT_MILLIS = 10_000;
+    private static final String OUTDATED_SECRET = "$2a$04$outdated";
+    private static final String REHASHED_SECRET = "$2a$10$rehashed";
+
+    private CredentialsStoreService credentialsStoreService;
+    private PasswordHashService passwordHashService;
+    private SecretRehashService secretRehashService;
+
+    @BeforeEach
+    void setUp() {
+        credentialsStoreService = Mockito.mock(CredentialsStoreService.class);
+        Mockito.when(credentialsStoreService.patchCredentials(Mockito.anyLong(),
+                Mockito.anyString(), Mockito.any()))
+                .thenReturn(Response.status(Status.NO_CONTENT).build());
+        passwordHashService = Mockito.mock(PasswordHashService.class);
+        Mockito.when(passwordHashService.isOutdated(OUTDATED_SECRET)).thenReturn(true);
+        secretRehashService = new SecretRehashService(credentialsStoreService,
+                passwordHashService, MetricRegistries.get(MetricRegistry.Type.APPLICATION));
+    }
+
+    @AfterEach
+    void tearDown() {
+        secretRehashService.shutdown();
+    }
+
+    @Test
+    void outdatedSecretIsWrittenBackWithETagOfVerifiedVersion() {
+        Mockito.when(passwordHashService.bcryptHashIfIdle("password"))
+                .thenReturn(CompletableFuture.completedFuture(REHASHED_SECRET));
+
+        secretRehashService.rehashIfOutdated(authData(1, OUTDATED_SECRET, 3), "password");
+
+        Mockito.verify(credentialsStoreService, Mockito.timeout(TIMEOUT_MILLIS)).patchCredentials(
+                Mockito.eq(1L), Mockito.eq("\"3\""), Mockito.argThat(patch ->
+                        REHASHED_SECRET.equals(patch.secret) && patch.username == null &&
+                                patch.groups == null));
+    }
+
+    @Test
+    void currentSecretIsNotRehashed() {
+        secretRehashService.rehashIfOutdated(authData(1, REHASHED_SECRET, 3), "password");
+
+        Mockito.verify(passwordHashService, Mockito.never()).bcryptHashIfIdle(Mockito.any());
+        Mockito.verifyNoInteractions(credentialsStoreService);
+    }
+
+    @Test
+    void concurrentLoginsOfAUserRehashOnce() {
+        var hash = new CompletableFuture<String>();
+        Mockito.when(passwordHashService.bcryptHashIfIdle("password")).thenReturn(hash);
+
+        secretRehashService.rehashIfOutdated(authData(1, OUTDATED_SECRET, 3), "password");
+        secretRehashService.rehashIfOutdated(authData(1, OUTDATED_SECRET, 3), "password");
+        secretRehashService.rehashIfOutdated(authData(2, OUTDATED_SECRET, 5), "password");
+        hash.complete(REHASHED_SECRET);
+
+        Mockito.verify(passwordHashService, Mockito.times(2)).bcryptHashIfIdle("password");
+        Mockito.verify(credentialsStoreService, Mockito.timeout(TIMEOUT_MILLIS))
+                .patchCredentials(Mockito.eq(2L), Mockito.eq("\"5\""), Mockito.any());
+        Mockito.verify(credentialsStoreService, Mockito.timeout(TIMEOUT_MILLIS).times(1))
+                .patchCredentials(Mockito.eq(1L), Mockito.eq("\"3\""), Mockito.any());
+    }
+
+    @Test
+    void skippedRehashIsRepeatedOnNextLogin() {
+        Mockito.when(passwordHashService.bcryptHashIfIdle("password"))
+                .thenReturn(CompletableFuture.failedFuture(new RejectedExecutionException()))
+                .thenReturn(CompletableFuture.completedFuture(REHASHED_SECRET));
+
+        secretRehashService.rehashIfOutdated(authData(1, OUTDATED_SECRET, 3), "password");
+        secretRehashService.rehashIfOutdated(authData(1, OUTDATED_SECRET, 3), "password");
+
+        Mockito.verify(credentialsStoreService, Mockito.timeout(TIMEOUT_MILLIS).times(1))
+                .patchCredentials(Mockito.eq(1L), Mockito.eq("\"3\""), Mockito.any());
+    }
+
+    private static AuthData authData(long id, String secret, long version) {
+        return new AuthData(id, secret, Set.of(), version);
+    }
+}
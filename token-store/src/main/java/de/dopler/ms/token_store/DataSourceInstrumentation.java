@@ -0,0 +1,49 @@
+package de.dopler.ms.token_store;
+
+import de.dopler.ms.group_dictionary.GroupDictionarySqlStatements;
+import de.dopler.ms.jdbc_metrics.JdbcMetrics;
+import io.agroal.api.AgroalDataSource;
+import io.quarkus.arc.AlternativePriority;
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.eclipse.microprofile.metrics.annotation.RegistryType;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.inject.Produces;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import javax.sql.DataSource;
+
+/**
+ * Instruments the default datasource and the token shards with {@link JdbcMetrics} unless
+ * {@code token-store.jdbc-metrics.enabled} is false. The instrumented default datasource replaces
+ * the one of Agroal for all injection points.
+ */
+@ApplicationScoped
+public class DataSourceInstrumentation {
+
+    private final JdbcMetrics jdbcMetrics;
+
+    @Inject
+    public DataSourceInstrumentation(
+            @RegistryType(type = MetricRegistry.Type.APPLICATION) MetricRegistry metricRegistry,
+            @ConfigProperty(name = "token-store.jdbc-metrics.enabled", defaultValue = "true")
+                    boolean enabled) {
+        jdbcMetrics = enabled ? new JdbcMetrics(metricRegistry, TokenStoreSqlStatements.class,
+                GroupDictionarySqlStatements.class) : null;
+    }
+
+    @SuppressWarnings("CdiInjectionPointsInspection")
+    @Produces
+    @AlternativePriority(1)
+    @Singleton
+    DataSource dataSource(AgroalDataSource dataSource) {
+        return instrument(dataSource);
+    }
+
+    @NonNull
+    DataSource instrument(@NonNull DataSource dataSource) {
+        return jdbcMetrics == null ? dataSource : jdbcMetrics.instrument(dataSource);
+    }
+}
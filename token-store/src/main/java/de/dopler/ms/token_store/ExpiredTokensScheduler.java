@@ -1,13 +1,23 @@
 package de.dopler.ms.token_store;
 
 import io.quarkus.scheduler.Scheduled;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.metrics.MetricUnits;
+import org.eclipse.microprofile.metrics.annotation.Gauge;
 import org.jboss.logging.Logger;
 
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Deletes expired tokens in chunks of {@code token-store.purge.chunk-size}, so a large backlog
+ * never holds the table for long. A run stops after {@code token-store.purge.time-budget-millis}
+ * and leaves the rest to the next run; between chunks it pauses while live token requests are
+ * slower than {@code token-store.purge.latency-threshold-millis} on average.
+ */
 @ApplicationScoped
 public class ExpiredTokensScheduler {
 
@@ -16,22 +26,70 @@ public class ExpiredTokensScheduler {
     private static final long WARN_LOG_DURATION_THRESHOLD_SECONDS = 10;
 
     private final TokenStoreService tokenStoreService;
+    private final LatencyMonitor latencyMonitor;
+    private final int chunkSize;
+    private final Duration timeBudget;
+    private final double latencyThresholdMillis;
+    private final long pauseMillis;
+
+    private final AtomicLong deletedTotal = new AtomicLong();
+    private volatile long deletedLastRun;
+    private volatile long backlog;
 
     @Inject
-    public ExpiredTokensScheduler(TokenStoreService tokenStoreService) {
+    public ExpiredTokensScheduler(TokenStoreService tokenStoreService,
+            LatencyMonitor latencyMonitor,
+            @ConfigProperty(name = "token-store.purge.chunk-size", defaultValue = "10000")
+                    int chunkSize,
+            @ConfigProperty(name = "token-store.purge.time-budget-millis", defaultValue = "60000")
+                    long timeBudgetMillis,
+            @ConfigProperty(name = "token-store.purge.latency-threshold-millis",
+                    defaultValue = "50") double latencyThresholdMillis,
+            @ConfigProperty(name = "token-store.purge.pause-millis", defaultValue = "500")
+                    long pauseMillis) {
         this.tokenStoreService = tokenStoreService;
+        this.latencyMonitor = latencyMonitor;
+        this.chunkSize = chunkSize;
+        this.timeBudget = Duration.ofMillis(timeBudgetMillis);
+        this.latencyThresholdMillis = latencyThresholdMillis;
+        this.pauseMillis = pauseMillis;
     }
 
     @Scheduled(every = "5m", delayed = "1m")
     void deleteExpiredTokens() {
         var startInstant = Instant.now();
-        var count = tokenStoreService.deleteExpired();
+        var deadline = startInstant.plus(timeBudget);
+        var count = 0L;
+        var chunks = 0;
+        var pauses = 0;
+        var done = false;
+        while (true) {
+            var deleted = tokenStoreService.deleteExpired(chunkSize);
+            count += deleted;
+            deletedTotal.addAndGet(deleted);
+            chunks++;
+            if (deleted < chunkSize) {
+                done = true;
+                break;
+            }
+            pauses += pauseWhileBusy(deadline);
+            if (!Instant.now().isBefore(deadline)) {
+                break;
+            }
+        }
+        deletedLastRun = count;
+        backlog = done ? 0 : tokenStoreService.countExpired();
+        // the purge removes most of the tokens which are still in the filter
+        tokenStoreService.rebuildFilterIfStale();
+
         var duration = Duration.between(startInstant, Instant.now());
         var tookMillis = duration.toMillis();
 
-        var message = String.format("Deleted %d expired tokens (took %d ms)", count, tookMillis);
+        var message = String.format(
+                "Deleted %d expired tokens in %d chunks with %d pauses (took %d ms, %d left)",
+                count, chunks, pauses, tookMillis, backlog);
 
-        if (duration.toSeconds() > WARN_LOG_DURATION_THRESHOLD_SECONDS) {
+        if (backlog > 0 || duration.toSeconds() > WARN_LOG_DURATION_THRESHOLD_SECONDS) {
             LOG.warn(message);
         } else if (count > 0) {
             LOG.info(message);
@@ -39,4 +97,37 @@ public class ExpiredTokensScheduler {
             LOG.debug(message);
         }
     }
+
+    private int pauseWhileBusy(Instant deadline) {
+        var pauses = 0;
+        while (latencyMonitor.averageMillis() > latencyThresholdMillis &&
+                Instant.now().plusMillis(pauseMillis).isBefore(deadline)) {
+            try {
+                Thread.sleep(pauseMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return pauses;
+            }
+            pauses++;
+        }
+        return pauses;
+    }
+
+    @Gauge(name = "purge-deleted-total", unit = MetricUnits.NONE, absolute = true,
+            description = "Number of expired tokens deleted by the purge since startup")
+    public long deletedTotal() {
+        return deletedTotal.get();
+    }
+
+    @Gauge(name = "purge-deleted-last-run", unit = MetricUnits.NONE, absolute = true,
+            description = "Number of expired tokens deleted by the last purge run")
+    public long deletedLastRun() {
+        return deletedLastRun;
+    }
+
+    @Gauge(name = "purge-backlog", unit = MetricUnits.NONE, absolute = true,
+            description = "Number of expired tokens left after the last purge run")
+    public long backlog() {
+        return backlog;
+    }
 }
@@ -0,0 +1,380 @@
+package de.dopler.ms.token_store;
+
+import de.dopler.ms.group_dictionary.GroupDictionary;
+import de.dopler.ms.token_store.domain.StoredToken;
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.metrics.*;
+import org.eclipse.microprofile.metrics.annotation.RegistryType;
+import org.jboss.logging.Logger;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.sql.DataSource;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static de.dopler.ms.token_store.TokenStoreSqlStatements.SQL_DELETE_OLDEST_OF_USER;
+import static de.dopler.ms.token_store.TokenStoreSqlStatements.SQL_INSERT;
+import static de.dopler.ms.token_store.TokenStoreSqlStatements.SQL_INSERT_INTO;
+
+/**
+ * Collects concurrent token inserts and writes them as one JDBC batch in a single transaction
+ * ("group commit"), so a burst of logins costs one commit instead of one commit per token.
+ * <p>
+ * A single writer thread takes the first waiting insert, collects more of them for up to
+ * {@code token-store.group-commit.window-millis} (or until {@code max-batch-size} inserts are
+ * collected) and writes them. Inserts arriving while a batch is written go into the next batch,
+ * so even with a window of 0 (the default) batches form under load without delaying single
+ * inserts on an idle store.
+ * <p>
+ * Inserts into the {@code tokens} table evict the oldest tokens of their user beyond the
+ * {@link SessionCap} in the same transaction.
+ * <p>
+ * The parameters of an insert are converted before it is queued, so an invalid one fails the
+ * request and never reaches the writer thread. A caller waits at most
+ * {@code token-store.group-commit.timeout-millis} for its batch, so a stuck writer can't hold up
+ * request threads forever.
+ */
+@ApplicationScoped
+public class GroupCommitWriter {
+
+    private static final Logger LOG = Logger.getLogger("GroupCommitWriter");
+
+    private static final String TABLE = "tokens";
+
+    private final DataSource dataSource;
+    private final GroupDictionary groupDictionary;
+    private final int maxBatchSize;
+    private final long windowNanos;
+    private final long timeoutMillis;
+    private final SessionCap sessionCap;
+    private final BlockingQueue<PendingInsert> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private final AtomicBoolean started = new AtomicBoolean();
+    private final MetricRegistry metricRegistry;
+    private final Histogram batchSizes;
+    private final Timer queueWait;
+
+    @SuppressWarnings("CdiInjectionPointsInspection")
+    @Inject
+    public GroupCommitWriter(DataSource dataSource, GroupDictionary groupDictionary,
+            @ConfigProperty(name = "token-store.group-commit.max-batch-size", defaultValue = "256")
+                    int maxBatchSize,
+            @ConfigProperty(name = "token-store.group-commit.window-millis", defaultValue = "0")
+                    long windowMillis,
+            @ConfigProperty(name = "token-store.group-commit.timeout-millis",
+                    defaultValue = "10000") long timeoutMillis,
+            SessionCap sessionCap,
+            @RegistryType(type = MetricRegistry.Type.APPLICATION) MetricRegistry metricRegistry) {
+        this.dataSource = dataSource;
+        this.groupDictionary = groupDictionary;
+        this.maxBatchSize = maxBatchSize;
+        windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        this.timeoutMillis = timeoutMillis;
+        this.sessionCap = sessionCap;
+        writer = new Thread(this::writeBatches, "token-group-commit-writer");
+        writer.setDaemon(true);
+        this.metricRegistry = metricRegistry;
+        batchSizes = metricRegistry.histogram(Metadata.builder()
+                .withName("group-commit-batch-size")
+                .withDescription("Number of tokens inserted per transaction")
+                .withType(MetricType.HISTOGRAM)
+                .build());
+        queueWait = metricRegistry.timer(Metadata.builder()
+                .withName("group-commit-queue-wait")
+                .withDescription("Time an insert waits until its batch is written")
+                .withType(MetricType.TIMER)
+                .build());
+    }
+
+    /**
+     * @return a new writer with the same configuration which writes to {@code dataSource}. Both
+     * writers report to the same metrics.
+     */
+    @NonNull
+    GroupCommitWriter forDataSource(@NonNull DataSource dataSource,
+            @NonNull GroupDictionary groupDictionary) {
+        return new GroupCommitWriter(dataSource, groupDictionary, maxBatchSize,
+                TimeUnit.NANOSECONDS.toMillis(windowNanos), timeoutMillis, sessionCap,
+                metricRegistry);
+    }
+
+    /**
+     * Insert the given token together with other concurrently waiting inserts and wait until its
+     * batch is committed.
+     *
+     * @return true if the token was stored.
+     * @throws IllegalArgumentException if {@code expiresAt} is out of range.
+     */
+    public boolean insert(long userId, @NonNull byte[] tokenHash, @NonNull Set<String> groups,
+            long expiresAt) {
+        return insert(SQL_INSERT, userId, tokenHash, groups, expiresAt);
+    }
+
+    /**
+     * Same as {@link #insert(long, byte[], Set, long)} but insert into the given table, which must
+     * have the columns of the {@code tokens} table.
+     */
+    public boolean insertInto(@NonNull String table, long userId, @NonNull byte[] tokenHash,
+            @NonNull Set<String> groups, long expiresAt) {
+        return insert(String.format(SQL_INSERT_INTO, table), userId, tokenHash, groups, expiresAt);
+    }
+
+    /**
+     * Same as {@link #insertInto(String, long, byte[], Set, long)} for several tokens, which are
+     * queued at once so they are written in as few batches as possible instead of one after the
+     * other. Each insert succeeds or fails on its own.
+     *
+     * @param tableOf the table of a token: {@code tokens} or one with its columns.
+     * @return per token, in their order, a completed future of whether it was stored, or failed
+     * with the exception a single insert would have thrown.
+     */
+    @NonNull
+    public List<CompletableFuture<Boolean>> insertAll(@NonNull List<StoredToken> tokens,
+            @NonNull Function<StoredToken, String> tableOf) {
+        var pendingInserts = new ArrayList<PendingInsert>(tokens.size());
+        var results = new ArrayList<CompletableFuture<Boolean>>(tokens.size());
+        for (var token : tokens) {
+            try {
+                var table = tableOf.apply(token);
+                pendingInserts.add(pendingInsert(TABLE.equals(table) ? SQL_INSERT :
+                                String.format(SQL_INSERT_INTO, table), token.userId,
+                        TokenHashes.toBytes(token.tokenHash), token.groups, token.expiresAt));
+                results.add(null);
+            } catch (RuntimeException e) {
+                pendingInserts.add(null);
+                results.add(CompletableFuture.failedFuture(e));
+            }
+        }
+        startWriter();
+        pendingInserts.stream().filter(Objects::nonNull).forEach(queue::add);
+        for (int i = 0; i < pendingInserts.size(); i++) {
+            var pendingInsert = pendingInserts.get(i);
+            if (pendingInsert == null) {
+                continue;
+            }
+            try {
+                results.set(i, CompletableFuture.completedFuture(await(pendingInsert)));
+            } catch (RuntimeException e) {
+                results.set(i, CompletableFuture.failedFuture(e));
+            }
+        }
+        return results;
+    }
+
+    private boolean insert(String insertSql, long userId, byte[] tokenHash, Set<String> groups,
+            long expiresAt) {
+        var pendingInsert = pendingInsert(insertSql, userId, tokenHash, groups, expiresAt);
+        startWriter();
+        queue.add(pendingInsert);
+        return await(pendingInsert);
+    }
+
+    @NonNull
+    private PendingInsert pendingInsert(String insertSql, long userId, byte[] tokenHash,
+            Set<String> groups, long expiresAt) {
+        // convert before queueing: an invalid value must fail this request, not the writer
+        // thread, and interning a new group must not hold up the writer thread
+        return new PendingInsert(insertSql, userId, tokenHash, groupDictionary.encode(groups),
+                TokenTimestamps.toTimestamp(expiresAt));
+    }
+
+    private void startWriter() {
+        if (started.compareAndSet(false, true)) {
+            writer.start();
+        }
+    }
+
+    private boolean await(PendingInsert pendingInsert) {
+        // inserts queued together share their deadline
+        var remainingNanos = pendingInsert.enqueuedAt +
+                TimeUnit.MILLISECONDS.toNanos(timeoutMillis) - System.nanoTime();
+        try {
+            return pendingInsert.result.get(remainingNanos, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("put was interrupted");
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("put failed due to SQL exception");
+        } catch (TimeoutException e) {
+            LOG.errorf("put for userId %d not written within %d ms", pendingInsert.userId,
+                    timeoutMillis);
+            throw new IllegalStateException("put timed out");
+        }
+    }
+
+    private void writeBatches() {
+        var batch = new ArrayList<PendingInsert>(maxBatchSize);
+        while (true) {
+            try {
+                batch.add(queue.take());
+                collect(batch);
+            } catch (InterruptedException e) {
+                // don't propagate; write what has been collected so far
+            }
+            if (!batch.isEmpty()) {
+                try {
+                    write(batch);
+                } catch (RuntimeException e) {
+                    // must not end this thread, or every later insert would wait for nothing
+                    LOG.errorf("batch insert of %d tokens failed: %s", batch.size(), e);
+                    batch.forEach(pendingInsert -> pendingInsert.result.completeExceptionally(e));
+                }
+                batch.clear();
+            }
+        }
+    }
+
+    private void collect(List<PendingInsert> batch) throws InterruptedException {
+        var deadline = System.nanoTime() + windowNanos;
+        while (batch.size() < maxBatchSize) {
+            var remaining = deadline - System.nanoTime();
+            var next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+            if (next == null) {
+                return;
+            }
+            batch.add(next);
+        }
+    }
+
+    private void write(List<PendingInsert> batch) {
+        var now = System.nanoTime();
+        for (var pendingInsert : batch) {
+            queueWait.update(now - pendingInsert.enqueuedAt, TimeUnit.NANOSECONDS);
+        }
+        batchSizes.update(batch.size());
+
+        try (Connection conn = dataSource.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                // usually all inserts of a batch go to the same table
+                for (var tableBatch : groupByStatement(batch)) {
+                    try (PreparedStatement statement = conn.prepareStatement(
+                            tableBatch.get(0).insertSql)) {
+                        for (var pendingInsert : tableBatch) {
+                            setParameters(statement, pendingInsert);
+                            statement.addBatch();
+                        }
+                        var updateCounts = statement.executeBatch();
+                        for (int i = 0; i < tableBatch.size(); i++) {
+                            tableBatch.get(i).updateCount = updateCounts[i];
+                        }
+                    }
+                }
+                var evicted = evictOldest(conn, batch);
+                conn.commit();
+                sessionCap.recordEvictions(evicted);
+                for (var pendingInsert : batch) {
+                    pendingInsert.result.complete(pendingInsert.updateCount == 1 ||
+                            pendingInsert.updateCount == Statement.SUCCESS_NO_INFO);
+                }
+                return;
+            } catch (SQLException | RuntimeException e) {
+                conn.rollback();
+                throw e;
+            }
+        } catch (SQLException | RuntimeException e) {
+            LOG.errorf("batch insert of %d tokens failed, inserting them one by one: %s",
+                    batch.size(), e.getMessage());
+        }
+        // a single broken insert must not fail the others
+        writeOneByOne(batch);
+    }
+
+    private static Collection<List<PendingInsert>> groupByStatement(List<PendingInsert> batch) {
+        return batch.stream()
+                .collect(Collectors.groupingBy(pendingInsert -> pendingInsert.insertSql,
+                        LinkedHashMap::new, Collectors.toList()))
+                .values();
+    }
+
+    private void writeOneByOne(List<PendingInsert> batch) {
+        try (Connection conn = dataSource.getConnection()) {
+            conn.setAutoCommit(false);
+            for (var pendingInsert : batch) {
+                try (PreparedStatement statement = conn.prepareStatement(
+                        pendingInsert.insertSql)) {
+                    setParameters(statement, pendingInsert);
+                    var inserted = statement.executeUpdate() == 1;
+                    var evicted = inserted ? evictOldest(conn, List.of(pendingInsert)) : 0;
+                    conn.commit();
+                    sessionCap.recordEvictions(evicted);
+                    pendingInsert.result.complete(inserted);
+                } catch (SQLException | RuntimeException e) {
+                    conn.rollback();
+                    LOG.errorf("put failed for userId %d: %s", pendingInsert.userId,
+                            e.getMessage());
+                    pendingInsert.result.completeExceptionally(e);
+                }
+            }
+        } catch (SQLException e) {
+            LOG.errorf("put failed for %d tokens: %s", batch.size(), e.getMessage());
+            batch.forEach(pendingInsert -> pendingInsert.result.completeExceptionally(e));
+        }
+    }
+
+    /**
+     * Evict the oldest tokens of the users of the given inserts into the {@code tokens} table
+     * beyond the {@link SessionCap}, keeping the inserted tokens.
+     *
+     * @return the number of evicted tokens.
+     */
+    private int evictOldest(Connection conn, List<PendingInsert> inserts) throws SQLException {
+        if (!sessionCap.isEnabled()) {
+            return 0;
+        }
+        var evicted = 0;
+        try (PreparedStatement statement = conn.prepareStatement(SQL_DELETE_OLDEST_OF_USER)) {
+            for (var pendingInsert : inserts) {
+                if (!pendingInsert.insertSql.equals(SQL_INSERT)) {
+                    continue;
+                }
+                statement.setLong(1, pendingInsert.userId);
+                statement.setLong(2, pendingInsert.userId);
+                statement.setBytes(3, pendingInsert.tokenHash);
+                statement.setInt(4, sessionCap.maxTokensPerUser());
+                evicted += statement.executeUpdate();
+            }
+        }
+        return evicted;
+    }
+
+    private static void setParameters(PreparedStatement statement, PendingInsert pendingInsert)
+            throws SQLException {
+        statement.setLong(1, pendingInsert.userId);
+        statement.setBytes(2, pendingInsert.tokenHash);
+        statement.setBytes(3, pendingInsert.groups);
+        statement.setTimestamp(4, pendingInsert.expiresAt);
+    }
+
+    private static final class PendingInsert {
+
+        final String insertSql;
+        final long userId;
+        final byte[] tokenHash;
+        final byte[] groups;
+        final Timestamp expiresAt;
+        final long enqueuedAt = System.nanoTime();
+        final CompletableFuture<Boolean> result = new CompletableFuture<>();
+        int updateCount;
+
+        PendingInsert(String insertSql, long userId, byte[] tokenHash, byte[] groups,
+                Timestamp expiresAt) {
+            this.insertSql = insertSql;
+            this.userId = userId;
+            this.tokenHash = tokenHash;
+            this.groups = groups;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package de.dopler.ms.token_store;
+
+import de.dopler.ms.group_dictionary.GroupDictionary;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.inject.Produces;
+import javax.inject.Singleton;
+import javax.sql.DataSource;
+
+/**
+ * Provides the {@link GroupDictionary} of the token database, shared by all token engines.
+ */
+@ApplicationScoped
+public class GroupDictionaryProducer {
+
+    @SuppressWarnings("CdiInjectionPointsInspection")
+    @Produces
+    @Singleton
+    GroupDictionary groupDictionary(DataSource dataSource) {
+        return new GroupDictionary(dataSource);
+    }
+}
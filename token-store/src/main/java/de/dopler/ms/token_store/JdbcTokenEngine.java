@@ -0,0 +1,552 @@
+package de.dopler.ms.token_store;
+
+import de.dopler.ms.group_dictionary.GroupDictionary;
+import de.dopler.ms.token_store.domain.StoredToken;
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.sql.DataSource;
+import java.sql.*;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static de.dopler.ms.token_store.TokenStoreSqlStatements.*;
+
+/**
+ * {@link TokenEngine} which reads and writes every token directly from/to the {@code tokens} table.
+ * <p>
+ * A {@code tokens} table of schema v1 is renamed to {@code tokens_v1} on {@link #initStore()} and
+ * moved to the v2 table in the background by the {@link TokenTableMigration}.
+ */
+@ApplicationScoped
+public class JdbcTokenEngine implements TokenEngine {
+
+    private static final Logger LOG = Logger.getLogger("JdbcTokenEngine");
+
+    private static final String TABLE = "tokens";
+    private static final int FETCH_SIZE = 1000;
+
+    private final DataSource dataSource;
+    private final GroupCommitWriter groupCommitWriter;
+    private final GroupDictionary groupDictionary;
+    private final int migrationChunkSize;
+    private volatile TokenTableMigration migration;
+
+    @SuppressWarnings("CdiInjectionPointsInspection")
+    @Inject
+    public JdbcTokenEngine(DataSource dataSource, GroupCommitWriter groupCommitWriter,
+            GroupDictionary groupDictionary,
+            @ConfigProperty(name = "token-store.migration.chunk-size", defaultValue = "1000")
+                    int migrationChunkSize) {
+        this.dataSource = dataSource;
+        this.groupCommitWriter = groupCommitWriter;
+        this.groupDictionary = groupDictionary;
+        this.migrationChunkSize = migrationChunkSize;
+    }
+
+    @Override
+    public void initStore() {
+        groupDictionary.initStore();
+        var timingStart = Instant.now();
+        boolean migrate;
+        try (Connection conn = dataSource.getConnection();
+             Statement statement = conn.createStatement()) {
+            conn.setAutoCommit(false);
+            if (count(statement, SQL_COUNT_V1_TOKENS_TABLE) > 0) {
+                statement.execute(SQL_RENAME_V1_TABLE);
+                LOG.info("Renamed the tokens table of schema v1 to tokens_v1");
+            }
+            statement.execute(SQL_CREATE_TABLE);
+            statement.execute(String.format(SQL_ADD_ISSUED_AT_COLUMN, TABLE));
+            statement.execute(String.format(SQL_SET_ISSUED_AT_DEFAULT, TABLE));
+            statement.execute(SQL_CREATE_INDEX_EXPIRES_AT);
+            conn.commit();
+            migrate = count(statement, SQL_COUNT_V1_TABLE) > 0;
+        } catch (SQLException e) {
+            LOG.errorf("initStore failed: %s", e.getMessage());
+            throw new IllegalStateException("Initializing the store failed due to SQL exception");
+        }
+        var duration = timingStart.until(Instant.now(), ChronoUnit.MILLIS);
+        LOG.infof("Database initialization succeeded after %d ms", duration);
+
+        synchronized (this) {
+            if (migrate && !isMigrating()) {
+                migration = new TokenTableMigration(dataSource, groupDictionary,
+                        migrationChunkSize);
+                migration.start();
+            }
+        }
+    }
+
+    /**
+     * Wait until the tokens of a v1 table have been moved to the v2 table, if there are any.
+     */
+    void awaitMigration() {
+        var currentMigration = migration;
+        if (currentMigration != null) {
+            currentMigration.await();
+        }
+    }
+
+    /**
+     * Inserts are written via the {@link GroupCommitWriter}, together with other concurrent ones.
+     */
+    @Override
+    public boolean put(long userId, @NonNull String tokenHash, @NonNull Set<String> groups,
+            long expiresAt) {
+        return groupCommitWriter.insert(userId, TokenHashes.toBytes(tokenHash), groups,
+                expiresAt);
+    }
+
+    /**
+     * The tokens are queued at the {@link GroupCommitWriter} at once, so they usually share a
+     * batch.
+     */
+    @NonNull
+    @Override
+    public List<CompletableFuture<Boolean>> putEach(@NonNull List<StoredToken> tokens) {
+        return groupCommitWriter.insertAll(tokens, token -> TABLE);
+    }
+
+    @NonNull
+    @Override
+    public Optional<Set<String>> popGroups(long userId, @NonNull String tokenHash) {
+        var tokenHashBytes = TokenHashes.toBytes(tokenHash);
+        try (Connection conn = dataSource.getConnection()) {
+            // we have multiple queries but still the results should not be rolled back if only
+            // the delete statement fails: so set auto commit to true
+            conn.setAutoCommit(true);
+            var groups = popGroups(conn, userId, tokenHashBytes);
+            var currentMigration = migration;
+            if (groups.isEmpty() && currentMigration != null && currentMigration.isRunning()) {
+                groups = currentMigration.popGroups(conn, userId, tokenHashBytes);
+                if (groups.isEmpty()) {
+                    // the token may have been moved to the v2 table in the meantime
+                    groups = popGroups(conn, userId, tokenHashBytes);
+                }
+            }
+            return groups;
+        } catch (SQLException e) {
+            LOG.errorf("popGroups failed for userId %d: %s", userId, e.getMessage());
+            throw new IllegalStateException("popGroups failed due to SQL exception");
+        }
+    }
+
+    @NonNull
+    private Optional<Set<String>> popGroups(Connection conn, long userId,
+            byte[] tokenHash) throws SQLException {
+        var groups = selectGroups(conn, userId, tokenHash);
+        if (groups.isPresent() && delete(conn, userId, tokenHash) == 0) {
+            LOG.errorf("delete statement in popGroups failed for userId %d", userId);
+        }
+        return groups;
+    }
+
+    /**
+     * The old token is deleted and the new one inserted rather than updating the row in place:
+     * H2 executes an update as a delete and an insert on every index of the table anyway, and the
+     * insert of a new row appends to the end of the primary index instead of rewriting a page in
+     * the middle, so an in-place update is slower and grows the database file faster.
+     */
+    @NonNull
+    @Override
+    public Optional<Set<String>> rotate(long userId, @NonNull String tokenHash,
+            @NonNull String newTokenHash, long newExpiresAt) {
+        var tokenHashBytes = TokenHashes.toBytes(tokenHash);
+        var newTokenHashBytes = TokenHashes.toBytes(newTokenHash);
+        var newExpiresAtTimestamp = TokenTimestamps.toTimestamp(newExpiresAt);
+        Optional<Set<String>> groups;
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement insertStatement = conn.prepareStatement(SQL_INSERT)) {
+            conn.setAutoCommit(false);
+            try {
+                groups = takeGroups(conn, userId, tokenHashBytes);
+                var currentMigration = migration;
+                if (groups.isEmpty() && currentMigration != null && currentMigration.isRunning()) {
+                    groups = currentMigration.popGroups(conn, userId, tokenHashBytes);
+                    if (groups.isEmpty()) {
+                        // the token may have been moved to the v2 table in the meantime
+                        groups = takeGroups(conn, userId, tokenHashBytes);
+                    }
+                }
+                if (groups.isEmpty()) {
+                    conn.rollback();
+                    return Optional.empty();
+                }
+                // insert
+                insertStatement.setLong(1, userId);
+                insertStatement.setBytes(2, newTokenHashBytes);
+                insertStatement.setBytes(3, groupDictionary.encode(groups.get()));
+                insertStatement.setTimestamp(4, newExpiresAtTimestamp);
+                insertStatement.executeUpdate();
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            LOG.errorf("rotate failed for userId %d: %s", userId, e.getMessage());
+            throw new IllegalStateException("rotate failed due to SQL exception");
+        }
+        return groups;
+    }
+
+    /**
+     * Select and delete the token; if nothing was deleted, the token has been consumed
+     * concurrently and no groups are returned.
+     */
+    @NonNull
+    private Optional<Set<String>> takeGroups(Connection conn, long userId,
+            byte[] tokenHash) throws SQLException {
+        var groups = selectGroups(conn, userId, tokenHash);
+        if (groups.isPresent() && delete(conn, userId, tokenHash) == 0) {
+            return Optional.empty();
+        }
+        return groups;
+    }
+
+    @NonNull
+    private Optional<Set<String>> selectGroups(Connection conn, long userId,
+            byte[] tokenHash) throws SQLException {
+        try (PreparedStatement statement = conn.prepareStatement(SQL_SELECT_GROUPS)) {
+            statement.setLong(1, userId);
+            statement.setBytes(2, tokenHash);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                if (resultSet.next()) {
+                    return Optional.of(groupDictionary.decode(resultSet.getBytes(1)));
+                }
+            }
+        }
+        return Optional.empty();
+    }
+
+    private static int delete(Connection conn, long userId, byte[] tokenHash)
+            throws SQLException {
+        try (PreparedStatement statement = conn.prepareStatement(
+                SQL_DELETE_BY_USER_ID_TOKEN_HASH)) {
+            statement.setLong(1, userId);
+            statement.setBytes(2, tokenHash);
+            return statement.executeUpdate();
+        }
+    }
+
+    @Override
+    public int deleteForUser(long userId) {
+        var updatedRows = 0;
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement statement = conn.prepareStatement(SQL_DELETE_BY_USER_ID)) {
+            conn.setAutoCommit(true);
+            statement.setLong(1, userId);
+            updatedRows = statement.executeUpdate();
+            var currentMigration = migration;
+            if (currentMigration != null) {
+                updatedRows += currentMigration.deleteForUser(conn, userId);
+            }
+        } catch (SQLException e) {
+            LOG.errorf("deleteForUser failed: %s", e.getMessage());
+            throw new IllegalStateException("deleteForUser failed due to SQL exception");
+        }
+        return updatedRows;
+    }
+
+    @Override
+    public int deleteForUsers(@NonNull long[] userIds) {
+        var updatedRows = 0;
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement statement = conn.prepareStatement(SQL_DELETE_BY_USER_ID)) {
+            conn.setAutoCommit(false);
+            try {
+                for (var userId : userIds) {
+                    statement.setLong(1, userId);
+                    statement.addBatch();
+                }
+                updatedRows = sum(statement.executeBatch());
+                var currentMigration = migration;
+                if (currentMigration != null) {
+                    for (var userId : userIds) {
+                        updatedRows += currentMigration.deleteForUser(conn, userId);
+                    }
+                }
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            LOG.errorf("deleteForUsers failed: %s", e.getMessage());
+            throw new IllegalStateException("deleteForUsers failed due to SQL exception");
+        }
+        return updatedRows;
+    }
+
+    @Override
+    public int deleteExpired() {
+        var updatedRows = 0;
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement statement = conn.prepareStatement(SQL_DELETE_EXPIRED)) {
+            conn.setAutoCommit(true);
+            updatedRows = statement.executeUpdate();
+        } catch (SQLException e) {
+            LOG.errorf("deleteExpired failed: %s", e.getMessage());
+            throw new IllegalStateException("deleteExpired failed due to SQL exception");
+        }
+        return updatedRows;
+    }
+
+    @Override
+    public int deleteExpired(int limit) {
+        var updatedRows = 0;
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement statement = conn.prepareStatement(SQL_DELETE_EXPIRED_LIMIT)) {
+            conn.setAutoCommit(true);
+            statement.setInt(1, limit);
+            updatedRows = statement.executeUpdate();
+        } catch (SQLException e) {
+            LOG.errorf("deleteExpired failed: %s", e.getMessage());
+            throw new IllegalStateException("deleteExpired failed due to SQL exception");
+        }
+        return updatedRows;
+    }
+
+    @Override
+    public long countExpired() {
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement statement = conn.prepareStatement(SQL_COUNT_EXPIRED)) {
+            conn.setAutoCommit(true);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() ? resultSet.getLong(1) : 0;
+            }
+        } catch (SQLException e) {
+            LOG.errorf("countExpired failed: %s", e.getMessage());
+            throw new IllegalStateException("countExpired failed due to SQL exception");
+        }
+    }
+
+    /**
+     * Waits for a running migration first, as the tokens of a v1 table are not checked.
+     */
+    @Override
+    public long deleteMatching(@NonNull TokenMatcher matcher, int chunkSize,
+            @NonNull ChunkProgress progress) {
+        awaitMigration();
+        try {
+            return deleteMatchingFrom(dataSource, groupDictionary, TABLE, matcher, chunkSize,
+                    progress);
+        } catch (SQLException e) {
+            LOG.errorf("deleteMatching failed: %s", e.getMessage());
+            throw new IllegalStateException("deleteMatching failed due to SQL exception");
+        }
+    }
+
+    /**
+     * Waits for a running migration first, as the tokens of a v1 table are not passed.
+     */
+    @Override
+    public void forEachToken(@NonNull TokenKeyConsumer consumer) {
+        awaitMigration();
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement statement = conn.prepareStatement(SQL_SELECT_VALID_KEYS)) {
+            conn.setAutoCommit(true);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    consumer.accept(resultSet.getLong(1), resultSet.getBytes(2));
+                }
+            }
+        } catch (SQLException e) {
+            LOG.errorf("forEachToken failed: %s", e.getMessage());
+            throw new IllegalStateException("forEachToken failed due to SQL exception");
+        }
+    }
+
+    /**
+     * Waits for a running migration first, as the tokens of a v1 table are not passed.
+     */
+    @Override
+    public void forEachStoredToken(@NonNull Consumer<StoredToken> consumer) {
+        awaitMigration();
+        try {
+            forEachStoredTokenFrom(dataSource, groupDictionary, TABLE, consumer);
+        } catch (SQLException e) {
+            LOG.errorf("forEachStoredToken failed: %s", e.getMessage());
+            throw new IllegalStateException("forEachStoredToken failed due to SQL exception");
+        }
+    }
+
+    @Override
+    public int putAll(@NonNull List<StoredToken> tokens) {
+        try (Connection conn = dataSource.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                var stored = mergeInto(conn, groupDictionary, TABLE, tokens);
+                conn.commit();
+                return stored;
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            LOG.errorf("putAll failed: %s", e.getMessage());
+            throw new IllegalStateException("putAll failed due to SQL exception");
+        }
+    }
+
+    @NonNull
+    @Override
+    public JdbcTokenEngine forDataSource(@NonNull DataSource dataSource) {
+        var shardGroupDictionary = new GroupDictionary(dataSource);
+        return new JdbcTokenEngine(dataSource,
+                groupCommitWriter.forDataSource(dataSource, shardGroupDictionary),
+                shardGroupDictionary, migrationChunkSize);
+    }
+
+    @NonNull
+    GroupDictionary groupDictionary() {
+        return groupDictionary;
+    }
+
+    /**
+     * {@link #deleteMatching(TokenMatcher, int, ChunkProgress)} on {@code table}, which must have
+     * the columns of the {@code tokens} table. The tokens are read in the order of the primary
+     * key; every chunk is read and deleted in one transaction.
+     *
+     * @return the number of deleted tokens.
+     */
+    static long deleteMatchingFrom(@NonNull DataSource dataSource,
+            @NonNull GroupDictionary groupDictionary, @NonNull String table,
+            @NonNull TokenMatcher matcher, int chunkSize, @NonNull ChunkProgress progress)
+            throws SQLException {
+        var deleted = 0L;
+        var lastUserId = Long.MIN_VALUE;
+        // sorts before every token hash
+        var lastTokenHash = new byte[0];
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement selectStatement = conn.prepareStatement(
+                     String.format(SQL_SELECT_VALID_CHUNK_FROM, table));
+             PreparedStatement deleteStatement = conn.prepareStatement(
+                     String.format(SQL_DELETE_FROM_BY_USER_ID_TOKEN_HASH, table))) {
+            conn.setAutoCommit(false);
+            while (true) {
+                var checked = 0;
+                var chunkDeleted = 0;
+                try {
+                    selectStatement.setLong(1, lastUserId);
+                    selectStatement.setLong(2, lastUserId);
+                    selectStatement.setBytes(3, lastTokenHash);
+                    selectStatement.setInt(4, chunkSize);
+                    var matched = 0;
+                    try (ResultSet resultSet = selectStatement.executeQuery()) {
+                        while (resultSet.next()) {
+                            checked++;
+                            lastUserId = resultSet.getLong(1);
+                            lastTokenHash = resultSet.getBytes(2);
+                            var issuedAt = resultSet.getTimestamp(4);
+                            if (matcher.matches(lastUserId,
+                                    groupDictionary.decode(resultSet.getBytes(3)),
+                                    issuedAt == null ? 0 : issuedAt.toInstant().getEpochSecond())) {
+                                deleteStatement.setLong(1, lastUserId);
+                                deleteStatement.setBytes(2, lastTokenHash);
+                                deleteStatement.addBatch();
+                                matched++;
+                            }
+                        }
+                    }
+                    // tokens popped in the meantime are not counted
+                    if (matched > 0) {
+                        chunkDeleted = sum(deleteStatement.executeBatch());
+                    }
+                    conn.commit();
+                } catch (SQLException e) {
+                    conn.rollback();
+                    throw e;
+                }
+                deleted += chunkDeleted;
+                if (!progress.onChunk(checked, chunkDeleted) || checked < chunkSize) {
+                    return deleted;
+                }
+            }
+        }
+    }
+
+    /**
+     * {@link #forEachStoredToken(Consumer)} on {@code table}, which must have the columns of the
+     * {@code tokens} table. The rows are read with a forward-only cursor, so they are not held in
+     * memory.
+     */
+    static void forEachStoredTokenFrom(@NonNull DataSource dataSource,
+            @NonNull GroupDictionary groupDictionary, @NonNull String table,
+            @NonNull Consumer<StoredToken> consumer) throws SQLException {
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement statement = conn.prepareStatement(
+                     String.format(SQL_SELECT_VALID_FROM, table), ResultSet.TYPE_FORWARD_ONLY,
+                     ResultSet.CONCUR_READ_ONLY)) {
+            conn.setAutoCommit(true);
+            statement.setFetchSize(FETCH_SIZE);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    var issuedAt = resultSet.getTimestamp(5);
+                    consumer.accept(new StoredToken(resultSet.getLong(1),
+                            TokenHashes.toHex(resultSet.getBytes(2)),
+                            groupDictionary.decode(resultSet.getBytes(3)),
+                            resultSet.getTimestamp(4).toInstant().getEpochSecond(),
+                            issuedAt == null ? null : issuedAt.toInstant().getEpochSecond()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Merge {@code tokens} into {@code table} as one batch in the transaction of {@code conn}.
+     *
+     * @return the number of merged tokens.
+     */
+    static int mergeInto(@NonNull Connection conn, @NonNull GroupDictionary groupDictionary,
+            @NonNull String table, @NonNull List<StoredToken> tokens) throws SQLException {
+        try (PreparedStatement statement = conn.prepareStatement(
+                String.format(SQL_MERGE_INTO, table))) {
+            for (var token : tokens) {
+                statement.setLong(1, token.userId);
+                statement.setBytes(2, TokenHashes.toBytes(token.tokenHash));
+                statement.setBytes(3, groupDictionary.encode(token.groups));
+                statement.setTimestamp(4, TokenTimestamps.toTimestamp(token.expiresAt));
+                statement.setTimestamp(5, token.issuedAt == null ? null :
+                        TokenTimestamps.toTimestamp(token.issuedAt));
+                statement.addBatch();
+            }
+            return sum(statement.executeBatch());
+        }
+    }
+
+    private static int sum(int[] updateCounts) {
+        var sum = 0;
+        for (var updateCount : updateCounts) {
+            sum += Math.max(updateCount, 0);
+        }
+        return sum;
+    }
+
+    private boolean isMigrating() {
+        return migration != null && migration.isRunning();
+    }
+
+    private static long count(Statement statement, String sql) throws SQLException {
+        try (ResultSet resultSet = statement.executeQuery(sql)) {
+            return resultSet.next() ? resultSet.getLong(1) : 0;
+        }
+    }
+
+    @NonNull
+    static Set<String> toStringSet(@NonNull Array sqlArray) throws SQLException {
+        var objectArray = (Object[]) sqlArray.getArray();
+        return Stream.of(objectArray).map(String.class::cast).collect(Collectors.toSet());
+    }
+}
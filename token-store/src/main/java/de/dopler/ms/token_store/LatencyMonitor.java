@@ -0,0 +1,38 @@
+package de.dopler.ms.token_store;
+
+import javax.enterprise.context.ApplicationScoped;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks the latency of live token requests as an exponentially weighted moving average, so
+ * background jobs can back off while the store is under pressure. Without recent samples the
+ * store is considered idle and the average is reported as 0.
+ */
+@ApplicationScoped
+public class LatencyMonitor {
+
+    private static final double ALPHA = 0.1;
+    private static final long STALE_AFTER_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final AtomicLong averageNanosBits = new AtomicLong(Double.doubleToLongBits(0));
+    private volatile long lastSampleAt = System.nanoTime() - STALE_AFTER_NANOS;
+
+    public void record(long durationNanos) {
+        lastSampleAt = System.nanoTime();
+        long current;
+        long updated;
+        do {
+            current = averageNanosBits.get();
+            var average = Double.longBitsToDouble(current);
+            updated = Double.doubleToLongBits(average + ALPHA * (durationNanos - average));
+        } while (!averageNanosBits.compareAndSet(current, updated));
+    }
+
+    public double averageMillis() {
+        if (System.nanoTime() - lastSampleAt > STALE_AFTER_NANOS) {
+            return 0;
+        }
+        return Double.longBitsToDouble(averageNanosBits.get()) / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
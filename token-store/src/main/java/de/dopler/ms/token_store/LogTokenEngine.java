@@ -0,0 +1,681 @@
+package de.dopler.ms.token_store;
+
+import de.dopler.ms.group_dictionary.GroupDictionary;
+import de.dopler.ms.token_store.domain.StoredToken;
+import io.quarkus.runtime.ShutdownEvent;
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.enterprise.event.Reception;
+import javax.inject.Inject;
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+
+/**
+ * {@link TokenEngine} which appends the tokens to memory-mapped segment files instead of a
+ * database table. Refresh tokens are written once, read once and expire on a fixed schedule, so
+ * they need neither updates nor a sorted index:
+ * <ul>
+ * <li>every put appends a record to the active segment of {@code token-store.log.segment-size}
+ * bytes in {@code token-store.log.directory};</li>
+ * <li>an off-heap hash index ({@link TokenLogIndex}) maps the keys of the stored tokens to their
+ * records;</li>
+ * <li>a pop marks the record as popped in place (tombstone) and removes it from the index;</li>
+ * <li>a segment is deleted as a whole once all its records are popped or expired.</li>
+ * </ul>
+ * On startup, the index is rebuilt by scanning the segments; a torn record at the end of a
+ * segment ends its scan. The mapped segments are written by the operating system, so the tokens
+ * survive a crash of the process; they are forced to disk when a segment is full, on every purge
+ * and on shutdown.
+ * <p>
+ * The groups are encoded by the {@link GroupDictionary} of the default datasource.
+ */
+@ApplicationScoped
+public class LogTokenEngine implements TokenEngine {
+
+    private static final Logger LOG = Logger.getLogger("LogTokenEngine");
+
+    private static final String SEGMENT_PREFIX = "tokens-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+    // record: length (int), flags (byte), CRC32 of the rest (int), userId (long), tokenHash,
+    // expiresAt and issuedAt (epoch seconds, long), encoded groups
+    private static final int FLAGS_OFFSET = Integer.BYTES;
+    private static final int CRC_OFFSET = FLAGS_OFFSET + 1;
+    private static final int USER_ID_OFFSET = CRC_OFFSET + Integer.BYTES;
+    private static final int TOKEN_HASH_OFFSET = USER_ID_OFFSET + Long.BYTES;
+    private static final int EXPIRES_AT_OFFSET = TOKEN_HASH_OFFSET + TokenHashes.HASH_LENGTH;
+    private static final int ISSUED_AT_OFFSET = EXPIRES_AT_OFFSET + Long.BYTES;
+    private static final int GROUPS_OFFSET = ISSUED_AT_OFFSET + Long.BYTES;
+    private static final byte LIVE = 0;
+    private static final byte POPPED = 1;
+
+    private final GroupDictionary groupDictionary;
+    private final Path directory;
+    private final int segmentSize;
+    private final int indexCapacity;
+
+    // appends, tombstones and the index are all guarded by this lock; every operation takes
+    // microseconds, as no I/O happens while holding it apart from creating the file of a new
+    // segment. Segments are only forced after releasing it: an msync of a whole segment would
+    // stall every other operation
+    private final ReentrantLock lock = new ReentrantLock();
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    // segments rolled over under the lock, which the rolling thread forces after releasing it
+    private final List<Segment> rolledSegments = new ArrayList<>();
+    private TokenLogIndex index;
+    private Segment active;
+
+    @Inject
+    public LogTokenEngine(GroupDictionary groupDictionary,
+            @ConfigProperty(name = "token-store.log.directory", defaultValue = "../ms-tokens-log")
+                    String directory,
+            @ConfigProperty(name = "token-store.log.segment-size", defaultValue = "67108864")
+                    int segmentSize,
+            @ConfigProperty(name = "token-store.log.index-capacity", defaultValue = "1048576")
+                    int indexCapacity) {
+        this.groupDictionary = groupDictionary;
+        this.directory = Paths.get(directory);
+        this.segmentSize = segmentSize;
+        this.indexCapacity = indexCapacity;
+    }
+
+    @Override
+    public void initStore() {
+        groupDictionary.initStore();
+        lock.lock();
+        try {
+            // recover only once: the segments are the state
+            if (index != null) {
+                return;
+            }
+            var timingStart = Instant.now();
+            index = new TokenLogIndex(indexCapacity);
+            Files.createDirectories(directory);
+            var segmentIds = listSegmentIds();
+            for (var segmentId : segmentIds) {
+                var segment = openSegment(segmentId);
+                segments.put(segmentId, segment);
+                recover(segment);
+            }
+            active = segments.isEmpty() ? null : segments.lastEntry().getValue();
+            for (var segment : new ArrayList<>(segments.values())) {
+                if (segment.live == 0 && segment != active) {
+                    reclaim(segment);
+                }
+            }
+            var duration = timingStart.until(Instant.now(), ChronoUnit.MILLIS);
+            LOG.infof("Recovered %d tokens from %d segments after %d ms (index: %d KiB)",
+                    index.size(), segmentIds.size(), duration, index.memoryBytes() / 1024);
+        } catch (IOException e) {
+            index = null;
+            segments.clear();
+            LOG.errorf("initStore failed: %s", e.getMessage());
+            throw new IllegalStateException("Initializing the store failed due to I/O exception");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean put(long userId, @NonNull String tokenHash, @NonNull Set<String> groups,
+            long expiresAt) {
+        var tokenHashBytes = TokenHashes.toBytes(tokenHash);
+        var encodedGroups = groupDictionary.encode(groups);
+        lock.lock();
+        try {
+            // as in the memory engine, a token stored again replaces the old one
+            var location = find(userId, tokenHashBytes);
+            if (location != TokenLogIndex.NOT_FOUND) {
+                markPopped(location, userId, tokenHashBytes);
+            }
+            append(userId, tokenHashBytes, encodedGroups, expiresAt,
+                    Instant.now().getEpochSecond());
+        } finally {
+            unlockAndForceRolledSegments();
+        }
+        return true;
+    }
+
+    @NonNull
+    @Override
+    public Optional<Set<String>> popGroups(long userId, @NonNull String tokenHash) {
+        var tokenHashBytes = TokenHashes.toBytes(tokenHash);
+        byte[] encodedGroups;
+        lock.lock();
+        try {
+            encodedGroups = pop(userId, tokenHashBytes);
+        } finally {
+            lock.unlock();
+        }
+        return encodedGroups == null ?
+                Optional.empty() :
+                Optional.of(groupDictionary.decode(encodedGroups));
+    }
+
+    @NonNull
+    @Override
+    public Optional<Set<String>> rotate(long userId, @NonNull String tokenHash,
+            @NonNull String newTokenHash, long newExpiresAt) {
+        var tokenHashBytes = TokenHashes.toBytes(tokenHash);
+        var newTokenHashBytes = TokenHashes.toBytes(newTokenHash);
+        byte[] encodedGroups;
+        lock.lock();
+        try {
+            encodedGroups = pop(userId, tokenHashBytes);
+            if (encodedGroups != null) {
+                var location = find(userId, newTokenHashBytes);
+                if (location != TokenLogIndex.NOT_FOUND) {
+                    markPopped(location, userId, newTokenHashBytes);
+                }
+                append(userId, newTokenHashBytes, encodedGroups, newExpiresAt,
+                        Instant.now().getEpochSecond());
+            }
+        } finally {
+            unlockAndForceRolledSegments();
+        }
+        return encodedGroups == null ?
+                Optional.empty() :
+                Optional.of(groupDictionary.decode(encodedGroups));
+    }
+
+    /**
+     * Scans all segments, as the index has no entries per user; deleting users is rare. Expired
+     * tokens are left to {@link #deleteExpired()}: the ones recovered on startup are not counted
+     * as live, so tombstoning them would let their segment be deleted with valid tokens in it.
+     */
+    @Override
+    public int deleteForUser(long userId) {
+        var now = Instant.now().getEpochSecond();
+        var deleted = 0;
+        lock.lock();
+        try {
+            for (var segment : new ArrayList<>(segments.values())) {
+                var buffer = segment.buffer;
+                for (int offset = 0; offset < segment.position;
+                     offset += buffer.getInt(offset)) {
+                    if (buffer.get(offset + FLAGS_OFFSET) == LIVE &&
+                            buffer.getLong(offset + USER_ID_OFFSET) == userId &&
+                            buffer.getLong(offset + EXPIRES_AT_OFFSET) > now) {
+                        markPopped(location(segment.id, offset), userId, tokenHash(buffer,
+                                offset));
+                        deleted++;
+                    }
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        return deleted;
+    }
+
+    /**
+     * Delete all segments whose tokens are all expired. Expired tokens in other segments are
+     * deleted with their segment later. The active segment is forced after releasing the lock,
+     * so appends continue during the msync.
+     *
+     * @return the number of expired tokens in the deleted segments.
+     */
+    @Override
+    public int deleteExpired() {
+        var now = Instant.now().getEpochSecond();
+        var deleted = 0;
+        Segment activeSegment;
+        lock.lock();
+        try {
+            for (var segment : new ArrayList<>(segments.values())) {
+                if (segment != active && segment.maxExpiresAt <= now) {
+                    deleted += segment.live;
+                    reclaim(segment);
+                }
+            }
+            activeSegment = active;
+        } finally {
+            lock.unlock();
+        }
+        // a segment reclaimed meanwhile stays mapped until its buffer is garbage collected
+        if (activeSegment != null) {
+            activeSegment.buffer.force();
+        }
+        return deleted;
+    }
+
+    /**
+     * The limit is ignored: deleting a segment is cheap regardless of its size.
+     */
+    @Override
+    public int deleteExpired(int limit) {
+        return deleteExpired();
+    }
+
+    /**
+     * @return the number of tokens which the next {@link #deleteExpired()} deletes.
+     */
+    @Override
+    public long countExpired() {
+        var now = Instant.now().getEpochSecond();
+        lock.lock();
+        try {
+            return segments.values()
+                    .stream()
+                    .filter(segment -> segment != active && segment.maxExpiresAt <= now)
+                    .mapToLong(segment -> segment.live)
+                    .sum();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Checks one segment per chunk, so the chunk size is ignored.
+     */
+    @Override
+    public long deleteMatching(@NonNull TokenMatcher matcher, int chunkSize,
+            @NonNull ChunkProgress progress) {
+        var now = Instant.now().getEpochSecond();
+        var deleted = 0L;
+        List<Integer> segmentIds;
+        lock.lock();
+        try {
+            segmentIds = new ArrayList<>(segments.keySet());
+        } finally {
+            lock.unlock();
+        }
+        for (var segmentId : segmentIds) {
+            var checked = 0;
+            var segmentDeleted = 0;
+            lock.lock();
+            try {
+                var segment = segments.get(segmentId);
+                // reclaimed in the meantime
+                var end = segment == null ? 0 : segment.position;
+                for (int offset = 0; offset < end; ) {
+                    var buffer = segment.buffer;
+                    var length = buffer.getInt(offset);
+                    if (buffer.get(offset + FLAGS_OFFSET) == LIVE &&
+                            buffer.getLong(offset + EXPIRES_AT_OFFSET) > now) {
+                        checked++;
+                        var userId = buffer.getLong(offset + USER_ID_OFFSET);
+                        var encodedGroups = new byte[length - GROUPS_OFFSET];
+                        buffer.duplicate().position(offset + GROUPS_OFFSET).get(encodedGroups);
+                        if (matcher.matches(userId, groupDictionary.decode(encodedGroups),
+                                buffer.getLong(offset + ISSUED_AT_OFFSET))) {
+                            // the buffer stays readable if this reclaims the segment
+                            markPopped(location(segmentId, offset), userId,
+                                    tokenHash(buffer, offset));
+                            segmentDeleted++;
+                        }
+                    }
+                    offset += length;
+                }
+            } finally {
+                lock.unlock();
+            }
+            deleted += segmentDeleted;
+            if (!progress.onChunk(checked, segmentDeleted)) {
+                break;
+            }
+        }
+        return deleted;
+    }
+
+    @Override
+    public void forEachToken(@NonNull TokenKeyConsumer consumer) {
+        var now = Instant.now().getEpochSecond();
+        lock.lock();
+        try {
+            index.forEachLocation(location -> {
+                var segment = segments.get(segmentId(location));
+                var offset = offset(location);
+                if (segment.buffer.getLong(offset + EXPIRES_AT_OFFSET) > now) {
+                    consumer.accept(segment.buffer.getLong(offset + USER_ID_OFFSET),
+                            tokenHash(segment.buffer, offset));
+                }
+            });
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Copies the tokens of one segment at a time under the lock and passes them outside of it.
+     */
+    @Override
+    public void forEachStoredToken(@NonNull Consumer<StoredToken> consumer) {
+        var now = Instant.now().getEpochSecond();
+        List<Integer> segmentIds;
+        lock.lock();
+        try {
+            segmentIds = new ArrayList<>(segments.keySet());
+        } finally {
+            lock.unlock();
+        }
+        for (var segmentId : segmentIds) {
+            var storedTokens = new ArrayList<StoredToken>();
+            lock.lock();
+            try {
+                var segment = segments.get(segmentId);
+                // reclaimed in the meantime
+                var end = segment == null ? 0 : segment.position;
+                for (int offset = 0; offset < end; ) {
+                    var buffer = segment.buffer;
+                    var length = buffer.getInt(offset);
+                    var expiresAt = buffer.getLong(offset + EXPIRES_AT_OFFSET);
+                    if (buffer.get(offset + FLAGS_OFFSET) == LIVE && expiresAt > now) {
+                        var encodedGroups = new byte[length - GROUPS_OFFSET];
+                        buffer.duplicate().position(offset + GROUPS_OFFSET).get(encodedGroups);
+                        var issuedAt = buffer.getLong(offset + ISSUED_AT_OFFSET);
+                        storedTokens.add(new StoredToken(buffer.getLong(offset + USER_ID_OFFSET),
+                                TokenHashes.toHex(tokenHash(buffer, offset)),
+                                groupDictionary.decode(encodedGroups), expiresAt,
+                                issuedAt == 0 ? null : issuedAt));
+                    }
+                    offset += length;
+                }
+            } finally {
+                lock.unlock();
+            }
+            storedTokens.forEach(consumer);
+        }
+    }
+
+    /**
+     * The records are appended under one lock; they are durable like single puts.
+     */
+    @Override
+    public int putAll(@NonNull List<StoredToken> tokens) {
+        var tokenHashes = new byte[tokens.size()][];
+        var encodedGroups = new byte[tokens.size()][];
+        for (int i = 0; i < tokenHashes.length; i++) {
+            tokenHashes[i] = TokenHashes.toBytes(tokens.get(i).tokenHash);
+            encodedGroups[i] = groupDictionary.encode(tokens.get(i).groups);
+        }
+        lock.lock();
+        try {
+            for (int i = 0; i < tokenHashes.length; i++) {
+                var token = tokens.get(i);
+                var location = find(token.userId, tokenHashes[i]);
+                if (location != TokenLogIndex.NOT_FOUND) {
+                    markPopped(location, token.userId, tokenHashes[i]);
+                }
+                append(token.userId, tokenHashes[i], encodedGroups[i], token.expiresAt,
+                        token.issuedAt == null ? 0 : token.issuedAt);
+            }
+        } finally {
+            unlockAndForceRolledSegments();
+        }
+        return tokens.size();
+    }
+
+    @NonNull
+    @Override
+    public TokenEngine forDataSource(@NonNull DataSource dataSource) {
+        throw new IllegalStateException("the log engine does not support shards");
+    }
+
+    void onStop(@Observes(notifyObserver = Reception.IF_EXISTS) ShutdownEvent ev) {
+        shutdown();
+    }
+
+    @Override
+    public void shutdown() {
+        lock.lock();
+        try {
+            segments.values().forEach(segment -> segment.buffer.force());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the encoded groups of the popped token or null if no valid token was found.
+     */
+    private byte[] pop(long userId, @NonNull byte[] tokenHash) {
+        var location = find(userId, tokenHash);
+        if (location == TokenLogIndex.NOT_FOUND) {
+            return null;
+        }
+        var segment = segments.get(segmentId(location));
+        var offset = offset(location);
+        var expiresAt = segment.buffer.getLong(offset + EXPIRES_AT_OFFSET);
+        var encodedGroups = new byte[segment.buffer.getInt(offset) - GROUPS_OFFSET];
+        segment.buffer.duplicate().position(offset + GROUPS_OFFSET).get(encodedGroups);
+        markPopped(location, userId, tokenHash);
+        return expiresAt > Instant.now().getEpochSecond() ? encodedGroups : null;
+    }
+
+    private long find(long userId, @NonNull byte[] tokenHash) {
+        return index.find(keyHash(userId, tokenHash), location -> {
+            var segment = segments.get(segmentId(location));
+            var offset = offset(location);
+            return segment.buffer.getLong(offset + USER_ID_OFFSET) == userId &&
+                    Arrays.equals(tokenHash(segment.buffer, offset), tokenHash);
+        });
+    }
+
+    private void markPopped(long location, long userId, @NonNull byte[] tokenHash) {
+        var segment = segments.get(segmentId(location));
+        segment.buffer.put(offset(location) + FLAGS_OFFSET, POPPED);
+        index.remove(keyHash(userId, tokenHash), location);
+        segment.live--;
+        if (segment.live == 0 && segment != active) {
+            reclaim(segment);
+        }
+    }
+
+    /**
+     * @param issuedAt 0 if unknown.
+     */
+    private void append(long userId, @NonNull byte[] tokenHash, @NonNull byte[] encodedGroups,
+            long expiresAt, long issuedAt) {
+        var length = GROUPS_OFFSET + encodedGroups.length;
+        if (length > segmentSize) {
+            throw new IllegalArgumentException("too many groups");
+        }
+        if (active == null || active.position + length > segmentSize) {
+            roll();
+        }
+        var offset = active.position;
+        var record = active.buffer.duplicate();
+        record.position(offset + USER_ID_OFFSET);
+        record.putLong(userId)
+                .put(tokenHash)
+                .putLong(expiresAt)
+                .putLong(issuedAt)
+                .put(encodedGroups);
+        active.buffer.putInt(offset + CRC_OFFSET, crc(active.buffer, offset, length));
+        active.buffer.put(offset + FLAGS_OFFSET, LIVE);
+        // the length comes last: a record without it is not scanned on recovery
+        active.buffer.putInt(offset, length);
+        active.position += length;
+        active.live++;
+        active.maxExpiresAt = Math.max(active.maxExpiresAt, expiresAt);
+        index.put(keyHash(userId, tokenHash), location(active.id, offset));
+    }
+
+    private void roll() {
+        var previous = active;
+        var segmentId = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+        try {
+            active = openSegment(segmentId);
+        } catch (IOException e) {
+            LOG.errorf("creating segment %d failed: %s", segmentId, e.getMessage());
+            throw new IllegalStateException("put failed due to I/O exception");
+        }
+        segments.put(segmentId, active);
+        if (previous != null) {
+            if (previous.live == 0) {
+                reclaim(previous);
+            } else {
+                // nothing is appended to it anymore, so it's forced once, outside the lock
+                rolledSegments.add(previous);
+            }
+        }
+    }
+
+    /**
+     * Release the lock and force the segments rolled over while holding it. The rolling thread
+     * waits for the msync, so the put which filled a segment returns once it is on disk, while
+     * the other threads continue on the new segment.
+     */
+    private void unlockAndForceRolledSegments() {
+        if (rolledSegments.isEmpty()) {
+            lock.unlock();
+            return;
+        }
+        var forced = new ArrayList<>(rolledSegments);
+        rolledSegments.clear();
+        lock.unlock();
+        forced.forEach(segment -> segment.buffer.force());
+    }
+
+    private void recover(@NonNull Segment segment) {
+        var now = Instant.now().getEpochSecond();
+        var buffer = segment.buffer;
+        var offset = 0;
+        while (offset + GROUPS_OFFSET <= segmentSize) {
+            var length = buffer.getInt(offset);
+            if (length == 0) {
+                break;
+            }
+            if (length < GROUPS_OFFSET || offset + length > segmentSize ||
+                    buffer.getInt(offset + CRC_OFFSET) != crc(buffer, offset, length)) {
+                LOG.warnf("Ignoring torn record at offset %d of segment %d", offset, segment.id);
+                break;
+            }
+            var expiresAt = buffer.getLong(offset + EXPIRES_AT_OFFSET);
+            segment.maxExpiresAt = Math.max(segment.maxExpiresAt, expiresAt);
+            if (buffer.get(offset + FLAGS_OFFSET) == LIVE && expiresAt > now) {
+                var userId = buffer.getLong(offset + USER_ID_OFFSET);
+                index.put(keyHash(userId, tokenHash(buffer, offset)),
+                        location(segment.id, offset));
+                segment.live++;
+            }
+            offset += length;
+        }
+        segment.position = offset;
+    }
+
+    /**
+     * Remove the remaining tokens of the segment from the index and delete its file.
+     */
+    private void reclaim(@NonNull Segment segment) {
+        var buffer = segment.buffer;
+        for (int offset = 0; offset < segment.position; offset += buffer.getInt(offset)) {
+            if (buffer.get(offset + FLAGS_OFFSET) == LIVE) {
+                index.remove(keyHash(buffer.getLong(offset + USER_ID_OFFSET),
+                        tokenHash(buffer, offset)), location(segment.id, offset));
+            }
+        }
+        segments.remove(segment.id);
+        if (segment == active) {
+            active = null;
+        }
+        try {
+            // the mapping is released once the buffer is garbage collected
+            Files.deleteIfExists(segment.path);
+        } catch (IOException e) {
+            LOG.errorf("deleting segment %d failed: %s", segment.id, e.getMessage());
+        }
+    }
+
+    @NonNull
+    private Segment openSegment(int segmentId) throws IOException {
+        var path = directory.resolve(String.format("%s%010d%s", SEGMENT_PREFIX, segmentId,
+                SEGMENT_SUFFIX));
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // a new file is extended with zeros, i.e. no records
+            return new Segment(segmentId, path,
+                    channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize));
+        }
+    }
+
+    @NonNull
+    private List<Integer> listSegmentIds() throws IOException {
+        try (var files = Files.list(directory)) {
+            return files.map(path -> path.getFileName().toString())
+                    .filter(name -> name.startsWith(SEGMENT_PREFIX) &&
+                            name.endsWith(SEGMENT_SUFFIX))
+                    .map(name -> Integer.valueOf(name.substring(SEGMENT_PREFIX.length(),
+                            name.length() - SEGMENT_SUFFIX.length())))
+                    .sorted()
+                    .collect(Collectors.toList());
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static int crc(@NonNull ByteBuffer buffer, int offset, int length) {
+        var record = buffer.duplicate();
+        record.position(offset + USER_ID_OFFSET).limit(offset + length);
+        var crc = new CRC32();
+        crc.update(record);
+        return (int) crc.getValue();
+    }
+
+    @NonNull
+    private static byte[] tokenHash(@NonNull ByteBuffer buffer, int offset) {
+        var tokenHash = new byte[TokenHashes.HASH_LENGTH];
+        buffer.duplicate().position(offset + TOKEN_HASH_OFFSET).get(tokenHash);
+        return tokenHash;
+    }
+
+    private static long keyHash(long userId, @NonNull byte[] tokenHash) {
+        // the token hash is a SHA-256 hash: its first bytes are well distributed already
+        return ByteBuffer.wrap(tokenHash).getLong() ^ userId * GOLDEN_GAMMA;
+    }
+
+    private static long location(int segmentId, int offset) {
+        // segment ids start at 1, so a location is never 0 (not found) or -1 (deleted slot)
+        return (long) segmentId << 32 | offset;
+    }
+
+    private static int segmentId(long location) {
+        return (int) (location >>> 32);
+    }
+
+    private static int offset(long location) {
+        return (int) location;
+    }
+
+    private static final class Segment {
+
+        final int id;
+        final Path path;
+        final MappedByteBuffer buffer;
+        int position;
+        int live;
+        long maxExpiresAt = Long.MIN_VALUE;
+
+        Segment(int id, Path path, MappedByteBuffer buffer) {
+            this.id = id;
+            this.path = path;
+            this.buffer = buffer;
+        }
+    }
+}
@@ -0,0 +1,785 @@
+package de.dopler.ms.token_store;
+
+import de.dopler.ms.group_dictionary.GroupDictionary;
+import de.dopler.ms.token_store.domain.StoredToken;
+import io.quarkus.runtime.ShutdownEvent;
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.enterprise.event.Reception;
+import javax.inject.Inject;
+import javax.sql.DataSource;
+import java.sql.*;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import static de.dopler.ms.token_store.TokenStoreSqlStatements.*;
+
+/**
+ * {@link TokenEngine} which holds all tokens in memory and persists them write-behind.
+ * <p>
+ * Every change is applied to the in-memory map first and then appended to a journal. A
+ * background thread drains the journal and writes the changes to the {@code tokens} table in
+ * batched transactions. On startup, all valid tokens are loaded from that table, so it also acts
+ * as the recovery source.
+ * <p>
+ * Removals of valid tokens (pops, rotations, deletes of a user's tokens and revocations) are only
+ * acknowledged once they are written, together with the other entries of their batch: otherwise
+ * a crash would bring back refresh tokens which were used already. New tokens are written
+ * behind: the ones still in the journal when the process crashes are lost, which only costs
+ * their users a new login. On a regular shutdown the journal is flushed.
+ * <p>
+ * Requests wait up to {@code token-store.write-behind.timeout-millis} for room in the journal,
+ * which holds {@code token-store.write-behind.capacity} entries, and for their removals to be
+ * written; beyond that they fail with a {@link RejectedExecutionException} or an
+ * {@link IllegalStateException}. They never wait inside a compute call, which would block the
+ * other users of the map bin, too. A journal entry which can't be written is logged and skipped.
+ * <p>
+ * A put evicts the oldest tokens of the user beyond the {@link SessionCap} atomically with the
+ * insert.
+ */
+@ApplicationScoped
+public class MemoryTokenEngine implements TokenEngine {
+
+    private static final Logger LOG = Logger.getLogger("MemoryTokenEngine");
+
+    private static final long POLL_TIMEOUT_MILLIS = 100;
+    private static final long WRITE_RETRY_DELAY_MILLIS = 1000;
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = 10_000;
+    private static final int CONNECTION_VALID_TIMEOUT_SECONDS = 1;
+
+    private final JdbcTokenEngine jdbcTokenEngine;
+    private final DataSource dataSource;
+    private final GroupDictionary groupDictionary;
+    private final int journalCapacity;
+    private final int journalBatchSize;
+    private final long journalTimeoutMillis;
+    private final SessionCap sessionCap;
+    // unbounded: appends happen inside compute calls and must not block; the capacity is
+    // enforced before the compute calls instead, see awaitJournalSpace
+    private final BlockingQueue<JournalEntry> journal = new LinkedBlockingQueue<>();
+    // notified by the journal writer whenever it drained entries
+    private final Object journalSpace = new Object();
+    private final Thread journalWriter;
+    private final AtomicBoolean loaded = new AtomicBoolean();
+    private volatile boolean running = true;
+
+    // userId -> (tokenHash -> token); the inner maps are only accessed inside compute* calls,
+    // which also append to the journal so the journal order per user matches the memory order
+    private final ConcurrentHashMap<Long, Map<String, Token>> tokensByUser =
+            new ConcurrentHashMap<>();
+
+    @SuppressWarnings("CdiInjectionPointsInspection")
+    @Inject
+    public MemoryTokenEngine(JdbcTokenEngine jdbcTokenEngine, DataSource dataSource,
+            GroupDictionary groupDictionary,
+            @ConfigProperty(name = "token-store.write-behind.capacity", defaultValue = "100000")
+                    int journalCapacity,
+            @ConfigProperty(name = "token-store.write-behind.batch-size", defaultValue = "1000")
+                    int journalBatchSize,
+            @ConfigProperty(name = "token-store.write-behind.timeout-millis",
+                    defaultValue = "5000") long journalTimeoutMillis,
+            SessionCap sessionCap) {
+        this.jdbcTokenEngine = jdbcTokenEngine;
+        this.dataSource = dataSource;
+        this.groupDictionary = groupDictionary;
+        this.journalCapacity = journalCapacity;
+        this.journalBatchSize = journalBatchSize;
+        this.journalTimeoutMillis = journalTimeoutMillis;
+        this.sessionCap = sessionCap;
+        journalWriter = new Thread(this::writeJournal, "token-journal-writer");
+        journalWriter.setDaemon(true);
+    }
+
+    @Override
+    public void initStore() {
+        jdbcTokenEngine.initStore();
+        // tokens still in a v1 table would be missed by the load
+        jdbcTokenEngine.awaitMigration();
+        // load only once: later calls would resurrect tokens whose removal is still journaled
+        if (!loaded.compareAndSet(false, true)) {
+            return;
+        }
+        var timingStart = Instant.now();
+        var count = 0;
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement statement = conn.prepareStatement(SQL_SELECT_ALL_VALID)) {
+            conn.setAutoCommit(true);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    var userId = resultSet.getLong(1);
+                    var tokenHash = TokenHashes.toHex(resultSet.getBytes(2));
+                    var issuedAt = resultSet.getTimestamp(5);
+                    var token = new Token(groupDictionary.decode(resultSet.getBytes(3)),
+                            resultSet.getTimestamp(4).toInstant().getEpochSecond(),
+                            issuedAt == null ? 0 : issuedAt.toInstant().getEpochSecond());
+                    tokensByUser.computeIfAbsent(userId, id -> new HashMap<>())
+                            .put(tokenHash, token);
+                    count++;
+                }
+            }
+        } catch (SQLException e) {
+            loaded.set(false);
+            tokensByUser.clear();
+            LOG.errorf("initStore failed: %s", e.getMessage());
+            throw new IllegalStateException("Loading the tokens failed due to SQL exception");
+        }
+        journalWriter.start();
+        var duration = timingStart.until(Instant.now(), ChronoUnit.MILLIS);
+        LOG.infof("Loaded %d tokens into memory after %d ms", count, duration);
+    }
+
+    @Override
+    public boolean put(long userId, @NonNull String tokenHash, @NonNull Set<String> groups,
+            long expiresAt) {
+        var key = TokenHashes.normalize(tokenHash);
+        // tokens with equal groups share one canonical set
+        var token = new Token(groupDictionary.canonical(groups),
+                TokenTimestamps.requireValid(expiresAt), Instant.now().getEpochSecond());
+        reserveJournalSpace();
+        sessionCap.recordEvictions(put(userId, key, token, true));
+        return true;
+    }
+
+    /**
+     * The tokens are journaled one by one like single puts, but don't evict other tokens.
+     */
+    @Override
+    public int putAll(@NonNull List<StoredToken> tokens) {
+        var keys = new ArrayList<String>(tokens.size());
+        for (var token : tokens) {
+            keys.add(TokenHashes.normalize(token.tokenHash));
+            TokenTimestamps.requireValid(token.expiresAt);
+            if (token.issuedAt != null) {
+                TokenTimestamps.requireValid(token.issuedAt);
+            }
+        }
+        for (int i = 0; i < tokens.size(); i++) {
+            var token = tokens.get(i);
+            awaitJournalSpace();
+            put(token.userId, keys.get(i),
+                    new Token(groupDictionary.canonical(token.groups), token.expiresAt,
+                            token.issuedAt == null ? 0 : token.issuedAt), false);
+        }
+        return tokens.size();
+    }
+
+    /**
+     * @return the number of tokens evicted by the put.
+     */
+    private int put(long userId, @NonNull String key, @NonNull Token token, boolean evict) {
+        var evicted = new int[1];
+        tokensByUser.compute(userId, (id, tokens) -> {
+            var userTokens = tokens == null ? new HashMap<String, Token>() : tokens;
+            userTokens.put(key, token);
+            appendToJournal(JournalEntry.put(userId, key, token));
+            if (evict) {
+                evicted[0] = evictOldest(userId, key, userTokens);
+            }
+            return userTokens;
+        });
+        return evicted[0];
+    }
+
+    /**
+     * Evict the oldest live tokens of the user but {@code key} beyond the {@link SessionCap}.
+     * Must be called inside a compute call for the user.
+     *
+     * @return the number of evicted tokens.
+     */
+    private int evictOldest(long userId, @NonNull String key, @NonNull Map<String, Token> tokens) {
+        if (!sessionCap.isEnabled()) {
+            return 0;
+        }
+        var now = Instant.now().getEpochSecond();
+        var excess = tokens.values().stream().filter(token -> token.expiresAt > now).count() -
+                sessionCap.maxTokensPerUser();
+        if (excess <= 0) {
+            return 0;
+        }
+        // tokens without issue time (0) are the oldest
+        var evictedKeys = tokens.entrySet().stream()
+                .filter(entry -> !entry.getKey().equals(key) && entry.getValue().expiresAt > now)
+                .sorted(Comparator.comparingLong(
+                        (Map.Entry<String, Token> entry) -> entry.getValue().issuedAt)
+                        .thenComparingLong(entry -> entry.getValue().expiresAt))
+                .limit(excess)
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toList());
+        for (var evictedKey : evictedKeys) {
+            tokens.remove(evictedKey);
+            appendToJournal(JournalEntry.delete(userId, evictedKey, false));
+        }
+        return evictedKeys.size();
+    }
+
+    @NonNull
+    @Override
+    public Optional<Set<String>> popGroups(long userId, @NonNull String tokenHash) {
+        var key = TokenHashes.normalize(tokenHash);
+        reserveJournalSpace();
+        var removed = new Token[1];
+        var delete = new JournalEntry[1];
+        tokensByUser.computeIfPresent(userId, (id, tokens) -> {
+            removed[0] = tokens.remove(key);
+            if (removed[0] != null) {
+                delete[0] = appendToJournal(JournalEntry.delete(userId, key,
+                        !removed[0].isExpired()));
+            }
+            return tokens.isEmpty() ? null : tokens;
+        });
+        var token = removed[0];
+        if (token == null || token.isExpired()) {
+            return Optional.empty();
+        }
+        awaitWritten(delete[0]);
+        return Optional.of(token.groups);
+    }
+
+    @NonNull
+    @Override
+    public Optional<Set<String>> rotate(long userId, @NonNull String tokenHash,
+            @NonNull String newTokenHash, long newExpiresAt) {
+        var key = TokenHashes.normalize(tokenHash);
+        var newKey = TokenHashes.normalize(newTokenHash);
+        TokenTimestamps.requireValid(newExpiresAt);
+        reserveJournalSpace();
+        var removed = new Token[1];
+        var delete = new JournalEntry[1];
+        tokensByUser.computeIfPresent(userId, (id, tokens) -> {
+            var token = tokens.remove(key);
+            if (token == null) {
+                return tokens;
+            }
+            delete[0] = appendToJournal(JournalEntry.delete(userId, key, !token.isExpired()));
+            if (!token.isExpired()) {
+                var newToken = new Token(token.groups, newExpiresAt,
+                        Instant.now().getEpochSecond());
+                tokens.put(newKey, newToken);
+                appendToJournal(JournalEntry.put(userId, newKey, newToken));
+            }
+            removed[0] = token;
+            return tokens.isEmpty() ? null : tokens;
+        });
+        var token = removed[0];
+        if (token == null || token.isExpired()) {
+            return Optional.empty();
+        }
+        awaitWritten(delete[0]);
+        return Optional.of(token.groups);
+    }
+
+    @Override
+    public int deleteForUser(long userId) {
+        reserveJournalSpace();
+        var deleted = new int[1];
+        var delete = new JournalEntry[1];
+        tokensByUser.computeIfPresent(userId, (id, tokens) -> {
+            deleted[0] = tokens.size();
+            delete[0] = appendToJournal(JournalEntry.deleteForUser(userId));
+            return null;
+        });
+        if (delete[0] != null) {
+            awaitWritten(delete[0]);
+        }
+        return deleted[0];
+    }
+
+    @Override
+    public int deleteExpired() {
+        var now = Instant.now().getEpochSecond();
+        var deleted = new int[1];
+        for (var userId : tokensByUser.keySet()) {
+            tokensByUser.computeIfPresent(userId, (id, tokens) -> {
+                // not journaled per token: the DELETE_EXPIRED entry below covers them
+                var sizeBefore = tokens.size();
+                tokens.values().removeIf(token -> token.expiresAt <= now);
+                deleted[0] += sizeBefore - tokens.size();
+                return tokens.isEmpty() ? null : tokens;
+            });
+        }
+        awaitJournalSpace();
+        appendToJournal(JournalEntry.deleteExpired());
+        return deleted[0];
+    }
+
+    /**
+     * Unlike {@link #deleteExpired()}, this journals a delete per token, so the write-behind
+     * deletes are chunked the same way.
+     */
+    @Override
+    public int deleteExpired(int limit) {
+        var now = Instant.now().getEpochSecond();
+        var deleted = new int[1];
+        for (var userId : tokensByUser.keySet()) {
+            if (deleted[0] >= limit) {
+                break;
+            }
+            awaitJournalSpace();
+            tokensByUser.computeIfPresent(userId, (id, tokens) -> {
+                var iterator = tokens.entrySet().iterator();
+                while (iterator.hasNext() && deleted[0] < limit) {
+                    var entry = iterator.next();
+                    if (entry.getValue().expiresAt <= now) {
+                        iterator.remove();
+                        deleted[0]++;
+                        appendToJournal(JournalEntry.delete(userId, entry.getKey(), false));
+                    }
+                }
+                return tokens.isEmpty() ? null : tokens;
+            });
+        }
+        return deleted[0];
+    }
+
+    @Override
+    public long countExpired() {
+        var now = Instant.now().getEpochSecond();
+        var expired = new long[1];
+        for (var userId : tokensByUser.keySet()) {
+            tokensByUser.computeIfPresent(userId, (id, tokens) -> {
+                expired[0] += tokens.values()
+                        .stream()
+                        .filter(token -> token.expiresAt <= now)
+                        .count();
+                return tokens;
+            });
+        }
+        return expired[0];
+    }
+
+    /**
+     * The chunks only set the interval of the progress: the deletes are journaled per token. Each
+     * chunk is reported once its deletes are written.
+     */
+    @Override
+    public long deleteMatching(@NonNull TokenMatcher matcher, int chunkSize,
+            @NonNull ChunkProgress progress) {
+        var now = Instant.now().getEpochSecond();
+        var deleted = 0L;
+        // checked and deleted tokens of the current chunk
+        var chunk = new int[2];
+        // the last delete of the current chunk: the journal is written in order
+        var lastDelete = new JournalEntry[1];
+        for (var userId : tokensByUser.keySet()) {
+            awaitJournalSpace();
+            tokensByUser.computeIfPresent(userId, (id, tokens) -> {
+                var iterator = tokens.entrySet().iterator();
+                while (iterator.hasNext()) {
+                    var entry = iterator.next();
+                    var token = entry.getValue();
+                    if (token.expiresAt <= now) {
+                        continue;
+                    }
+                    chunk[0]++;
+                    if (matcher.matches(userId, token.groups, token.issuedAt)) {
+                        iterator.remove();
+                        chunk[1]++;
+                        lastDelete[0] = appendToJournal(
+                                JournalEntry.delete(userId, entry.getKey(), true));
+                    }
+                }
+                return tokens.isEmpty() ? null : tokens;
+            });
+            if (chunk[0] >= chunkSize) {
+                deleted += chunk[1];
+                awaitWritten(lastDelete[0]);
+                lastDelete[0] = null;
+                if (!progress.onChunk(chunk[0], chunk[1])) {
+                    return deleted;
+                }
+                chunk[0] = 0;
+                chunk[1] = 0;
+            }
+        }
+        awaitWritten(lastDelete[0]);
+        progress.onChunk(chunk[0], chunk[1]);
+        return deleted + chunk[1];
+    }
+
+    @Override
+    public void forEachToken(@NonNull TokenKeyConsumer consumer) {
+        var now = Instant.now().getEpochSecond();
+        for (var userId : tokensByUser.keySet()) {
+            var tokenHashes = new ArrayList<String>();
+            // copy inside compute, call the consumer outside of it
+            tokensByUser.computeIfPresent(userId, (id, tokens) -> {
+                tokens.forEach((tokenHash, token) -> {
+                    if (token.expiresAt > now) {
+                        tokenHashes.add(tokenHash);
+                    }
+                });
+                return tokens;
+            });
+            for (var tokenHash : tokenHashes) {
+                consumer.accept(userId, TokenHashes.toBytes(tokenHash));
+            }
+        }
+    }
+
+    @Override
+    public void forEachStoredToken(@NonNull Consumer<StoredToken> consumer) {
+        var now = Instant.now().getEpochSecond();
+        for (var userId : tokensByUser.keySet()) {
+            var storedTokens = new ArrayList<StoredToken>();
+            // copy inside compute, call the consumer outside of it
+            tokensByUser.computeIfPresent(userId, (id, tokens) -> {
+                tokens.forEach((tokenHash, token) -> {
+                    if (token.expiresAt > now) {
+                        storedTokens.add(new StoredToken(userId, tokenHash, token.groups,
+                                token.expiresAt, token.issuedAt == 0 ? null : token.issuedAt));
+                    }
+                });
+                return tokens;
+            });
+            storedTokens.forEach(consumer);
+        }
+    }
+
+    @NonNull
+    @Override
+    public MemoryTokenEngine forDataSource(@NonNull DataSource dataSource) {
+        var shardJdbcTokenEngine = jdbcTokenEngine.forDataSource(dataSource);
+        return new MemoryTokenEngine(shardJdbcTokenEngine, dataSource,
+                shardJdbcTokenEngine.groupDictionary(), journalCapacity, journalBatchSize,
+                journalTimeoutMillis, sessionCap);
+    }
+
+    void onStop(@Observes(notifyObserver = Reception.IF_EXISTS) ShutdownEvent ev) {
+        shutdown();
+    }
+
+    /**
+     * Stop accepting journal entries and wait until all pending entries are written.
+     */
+    @Override
+    public void shutdown() {
+        running = false;
+        if (!journalWriter.isAlive()) {
+            return;
+        }
+        try {
+            journalWriter.join(SHUTDOWN_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!journal.isEmpty()) {
+            LOG.errorf("%d journal entries could not be written before shutdown", journal.size());
+        }
+    }
+
+    /**
+     * Wait up to {@code token-store.write-behind.timeout-millis} for room in the journal. Must be
+     * called before, not inside, the compute call which appends to the journal.
+     *
+     * @throws RejectedExecutionException if the journal is still full.
+     */
+    private void reserveJournalSpace() {
+        if (!awaitJournalSpace(journalTimeoutMillis)) {
+            throw new RejectedExecutionException("the token journal is full");
+        }
+    }
+
+    /**
+     * Wait for room in the journal as long as it takes, for background operations. Must be
+     * called before, not inside, the compute call which appends to the journal.
+     */
+    private void awaitJournalSpace() {
+        awaitJournalSpace(Long.MAX_VALUE);
+    }
+
+    /**
+     * The capacity of the journal is a soft bound: the room is checked before a compute call, but
+     * the call may append more than one entry, as may concurrent ones.
+     *
+     * @return false if the journal is still full after {@code timeoutMillis}.
+     */
+    private boolean awaitJournalSpace(long timeoutMillis) {
+        if (journal.size() < journalCapacity) {
+            return true;
+        }
+        var deadline = System.currentTimeMillis() + Math.min(timeoutMillis, Long.MAX_VALUE / 2);
+        synchronized (journalSpace) {
+            while (journal.size() >= journalCapacity) {
+                var remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                try {
+                    journalSpace.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("waiting for the journal was interrupted");
+                }
+            }
+        }
+        return true;
+    }
+
+    @NonNull
+    private JournalEntry appendToJournal(@NonNull JournalEntry entry) {
+        journal.add(entry);
+        return entry;
+    }
+
+    /**
+     * Wait until the given journal entry, appended with {@code written}, has been written.
+     *
+     * @throws IllegalStateException if it wasn't written within
+     *                               {@code token-store.write-behind.timeout-millis}.
+     */
+    private void awaitWritten(JournalEntry entry) {
+        if (entry == null || entry.written == null) {
+            return;
+        }
+        try {
+            entry.written.get(journalTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("waiting for the journal was interrupted");
+        } catch (ExecutionException | TimeoutException e) {
+            throw new IllegalStateException("the removal of a token could not be written");
+        }
+    }
+
+    private void writeJournal() {
+        var entries = new ArrayList<JournalEntry>(journalBatchSize);
+        while (running || !journal.isEmpty()) {
+            JournalEntry first;
+            try {
+                first = journal.poll(POLL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                // don't propagate; only the running flag stops this thread
+                continue;
+            }
+            if (first == null) {
+                continue;
+            }
+            entries.add(first);
+            journal.drainTo(entries, journalBatchSize - 1);
+            synchronized (journalSpace) {
+                journalSpace.notifyAll();
+            }
+            writeWithRetry(entries);
+            entries.clear();
+        }
+    }
+
+    /**
+     * Write the entries in one transaction or, if that fails, one by one, skipping the ones which
+     * fail on their own. Only if the database can't be reached, the rest is retried.
+     */
+    private void writeWithRetry(List<JournalEntry> entries) {
+        try {
+            write(entries);
+            entries.forEach(JournalEntry::markWritten);
+            return;
+        } catch (SQLException | RuntimeException e) {
+            LOG.errorf("writing %d journal entries failed, writing them one by one: %s",
+                    entries.size(), e.getMessage());
+        }
+        while (true) {
+            try {
+                writeOneByOne(entries);
+                return;
+            } catch (SQLException e) {
+                LOG.errorf("writing %d journal entries failed: %s", entries.size(),
+                        e.getMessage());
+            }
+            if (!running) {
+                LOG.errorf("dropping %d journal entries during shutdown", entries.size());
+                entries.forEach(entry -> entry.markFailed(new IllegalStateException("dropped")));
+                return;
+            }
+            try {
+                Thread.sleep(WRITE_RETRY_DELAY_MILLIS);
+            } catch (InterruptedException e) {
+                // don't propagate; retry right away
+            }
+        }
+    }
+
+    private void write(List<JournalEntry> entries) throws SQLException {
+        try (Connection conn = dataSource.getConnection();
+             JournalStatements statements = new JournalStatements(conn)) {
+            conn.setAutoCommit(false);
+            try {
+                for (var entry : entries) {
+                    statements.write(entry);
+                }
+                conn.commit();
+            } catch (SQLException | RuntimeException e) {
+                conn.rollback();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Write the entries in a transaction each and remove them from {@code entries}, so a retry
+     * continues with the first unwritten one.
+     *
+     * @throws SQLException if the database can't be reached.
+     */
+    private void writeOneByOne(List<JournalEntry> entries) throws SQLException {
+        try (Connection conn = dataSource.getConnection();
+             JournalStatements statements = new JournalStatements(conn)) {
+            conn.setAutoCommit(false);
+            var iterator = entries.iterator();
+            while (iterator.hasNext()) {
+                var entry = iterator.next();
+                try {
+                    statements.write(entry);
+                    conn.commit();
+                    entry.markWritten();
+                } catch (SQLException | RuntimeException e) {
+                    conn.rollback();
+                    if (!conn.isValid(CONNECTION_VALID_TIMEOUT_SECONDS)) {
+                        throw e instanceof SQLException ? (SQLException) e : new SQLException(e);
+                    }
+                    LOG.errorf("skipping journal entry %s for userId %d: %s", entry.type,
+                            entry.userId, e.getMessage());
+                    entry.markFailed(e);
+                }
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * The statements of the journal entry types, prepared once per connection.
+     */
+    private final class JournalStatements implements AutoCloseable {
+
+        private final PreparedStatement mergeStatement;
+        private final PreparedStatement deleteStatement;
+        private final PreparedStatement deleteForUserStatement;
+        private final PreparedStatement deleteExpiredStatement;
+
+        JournalStatements(Connection conn) throws SQLException {
+            mergeStatement = conn.prepareStatement(SQL_MERGE);
+            deleteStatement = conn.prepareStatement(SQL_DELETE_BY_USER_ID_TOKEN_HASH);
+            deleteForUserStatement = conn.prepareStatement(SQL_DELETE_BY_USER_ID);
+            deleteExpiredStatement = conn.prepareStatement(SQL_DELETE_EXPIRED);
+        }
+
+        void write(JournalEntry entry) throws SQLException {
+            switch (entry.type) {
+                case PUT:
+                    // merge: a retried batch must not fail on its own inserts
+                    mergeStatement.setLong(1, entry.userId);
+                    mergeStatement.setBytes(2, TokenHashes.toBytes(entry.tokenHash));
+                    mergeStatement.setBytes(3, groupDictionary.encode(entry.token.groups));
+                    mergeStatement.setTimestamp(4,
+                            TokenTimestamps.toTimestamp(entry.token.expiresAt));
+                    mergeStatement.setTimestamp(5, entry.token.issuedAt == 0 ?
+                            null :
+                            TokenTimestamps.toTimestamp(entry.token.issuedAt));
+                    mergeStatement.executeUpdate();
+                    break;
+                case DELETE:
+                    deleteStatement.setLong(1, entry.userId);
+                    deleteStatement.setBytes(2, TokenHashes.toBytes(entry.tokenHash));
+                    deleteStatement.executeUpdate();
+                    break;
+                case DELETE_FOR_USER:
+                    deleteForUserStatement.setLong(1, entry.userId);
+                    deleteForUserStatement.executeUpdate();
+                    break;
+                case DELETE_EXPIRED:
+                    deleteExpiredStatement.executeUpdate();
+                    break;
+            }
+        }
+
+        @Override
+        public void close() throws SQLException {
+            mergeStatement.close();
+            deleteStatement.close();
+            deleteForUserStatement.close();
+            deleteExpiredStatement.close();
+        }
+    }
+
+    private static final class Token {
+
+        final Set<String> groups;
+        final long expiresAt;
+        // 0 if unknown
+        final long issuedAt;
+
+        Token(Set<String> groups, long expiresAt, long issuedAt) {
+            this.groups = groups;
+            this.expiresAt = expiresAt;
+            this.issuedAt = issuedAt;
+        }
+
+        boolean isExpired() {
+            return expiresAt <= Instant.now().getEpochSecond();
+        }
+    }
+
+    private static final class JournalEntry {
+
+        enum Type {PUT, DELETE, DELETE_FOR_USER, DELETE_EXPIRED}
+
+        final Type type;
+        final long userId;
+        final String tokenHash;
+        final Token token;
+        // completed once the entry is written, for entries whose writer waits for that
+        final CompletableFuture<Void> written;
+
+        private JournalEntry(Type type, long userId, String tokenHash, Token token,
+                boolean awaited) {
+            this.type = type;
+            this.userId = userId;
+            this.tokenHash = tokenHash;
+            this.token = token;
+            written = awaited ? new CompletableFuture<>() : null;
+        }
+
+        static JournalEntry put(long userId, String tokenHash, Token token) {
+            return new JournalEntry(Type.PUT, userId, tokenHash, token, false);
+        }
+
+        static JournalEntry delete(long userId, String tokenHash, boolean awaited) {
+            return new JournalEntry(Type.DELETE, userId, tokenHash, null, awaited);
+        }
+
+        static JournalEntry deleteForUser(long userId) {
+            return new JournalEntry(Type.DELETE_FOR_USER, userId, null, null, true);
+        }
+
+        static JournalEntry deleteExpired() {
+            return new JournalEntry(Type.DELETE_EXPIRED, 0, null, null, false);
+        }
+
+        void markWritten() {
+            if (written != null) {
+                written.complete(null);
+            }
+        }
+
+        void markFailed(Throwable e) {
+            if (written != null) {
+                written.completeExceptionally(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,503 @@
+package de.dopler.ms.token_store;
+
+import de.dopler.ms.group_dictionary.GroupDictionary;
+import de.dopler.ms.token_store.domain.StoredToken;
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.sql.DataSource;
+import java.sql.*;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Consumer;
+
+import static de.dopler.ms.token_store.TokenStoreSqlStatements.*;
+
+/**
+ * {@link TokenEngine} which stores the tokens in one table per period of their expiration (one
+ * day by default, see {@code token-store.partitioned.period-days}).
+ * <p>
+ * As all refresh tokens have the same lifetime, new tokens always go to the newest partition.
+ * Lookups search the partitions which may still hold valid tokens, newest first. Once a period
+ * has passed, all tokens of its partition are expired and the whole table is dropped, so there is
+ * no row-by-row purge and no index on {@code expires_at}.
+ * <p>
+ * Tokens in the {@code tokens} table of the other engines are not migrated.
+ */
+@ApplicationScoped
+public class PartitionedTokenEngine implements TokenEngine {
+
+    private static final Logger LOG = Logger.getLogger("PartitionedTokenEngine");
+
+    private static final String PARTITION_PREFIX = "tokens_";
+    private static final DateTimeFormatter PARTITION_SUFFIX = DateTimeFormatter.BASIC_ISO_DATE;
+    // a partition may be dropped while it is searched; it only held expired tokens then
+    private static final String SQL_STATE_TABLE_NOT_FOUND = "42S02";
+
+    private final DataSource dataSource;
+    private final GroupCommitWriter groupCommitWriter;
+    private final GroupDictionary groupDictionary;
+    private final long periodDays;
+
+    // first day of the partition's period -> table name
+    private final ConcurrentSkipListMap<LocalDate, String> partitions =
+            new ConcurrentSkipListMap<>();
+
+    @SuppressWarnings("CdiInjectionPointsInspection")
+    @Inject
+    public PartitionedTokenEngine(DataSource dataSource, GroupCommitWriter groupCommitWriter,
+            GroupDictionary groupDictionary,
+            @ConfigProperty(name = "token-store.partitioned.period-days", defaultValue = "1")
+                    int periodDays) {
+        this.dataSource = dataSource;
+        this.groupCommitWriter = groupCommitWriter;
+        this.groupDictionary = groupDictionary;
+        this.periodDays = periodDays;
+    }
+
+    @Override
+    public void initStore() {
+        groupDictionary.initStore();
+        var timingStart = Instant.now();
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement statement = conn.prepareStatement(SQL_SELECT_PARTITIONS);
+             Statement alterStatement = conn.createStatement()) {
+            conn.setAutoCommit(true);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    var table = resultSet.getString(1).toLowerCase(Locale.ROOT);
+                    try {
+                        var periodStart = LocalDate.parse(
+                                table.substring(PARTITION_PREFIX.length()), PARTITION_SUFFIX);
+                        partitions.put(periodStart, table);
+                    } catch (DateTimeParseException e) {
+                        LOG.warnf("Ignoring table %s: not a token partition", table);
+                    }
+                }
+            }
+            for (var table : partitions.values()) {
+                alterStatement.execute(String.format(SQL_ADD_ISSUED_AT_COLUMN, table));
+                alterStatement.execute(String.format(SQL_SET_ISSUED_AT_DEFAULT, table));
+            }
+        } catch (SQLException e) {
+            LOG.errorf("initStore failed: %s", e.getMessage());
+            throw new IllegalStateException("Initializing the store failed due to SQL exception");
+        }
+        var duration = timingStart.until(Instant.now(), ChronoUnit.MILLIS);
+        LOG.infof("Found %d token partitions after %d ms", partitions.size(), duration);
+    }
+
+    @Override
+    public boolean put(long userId, @NonNull String tokenHash, @NonNull Set<String> groups,
+            long expiresAt) {
+        return groupCommitWriter.insertInto(partition(expiresAt), userId,
+                TokenHashes.toBytes(tokenHash), groups, expiresAt);
+    }
+
+    @NonNull
+    @Override
+    public List<CompletableFuture<Boolean>> putEach(@NonNull List<StoredToken> tokens) {
+        return groupCommitWriter.insertAll(tokens, token -> partition(token.expiresAt));
+    }
+
+    @NonNull
+    @Override
+    public Optional<Set<String>> popGroups(long userId, @NonNull String tokenHash) {
+        var tokenHashBytes = TokenHashes.toBytes(tokenHash);
+        try (Connection conn = dataSource.getConnection()) {
+            // as in JdbcTokenEngine: the result stands even if only the delete fails
+            conn.setAutoCommit(true);
+            for (var table : livePartitions()) {
+                try {
+                    var groups = selectGroups(conn, table, userId, tokenHashBytes);
+                    if (groups.isEmpty()) {
+                        continue;
+                    }
+                    if (delete(conn, table, userId, tokenHashBytes) == 0) {
+                        LOG.errorf("delete statement in popGroups failed for userId %d", userId);
+                    }
+                    return groups;
+                } catch (SQLException e) {
+                    if (!isTableNotFound(e)) {
+                        throw e;
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            LOG.errorf("popGroups failed for userId %d: %s", userId, e.getMessage());
+            throw new IllegalStateException("popGroups failed due to SQL exception");
+        }
+        return Optional.empty();
+    }
+
+    @NonNull
+    @Override
+    public Optional<Set<String>> rotate(long userId, @NonNull String tokenHash,
+            @NonNull String newTokenHash, long newExpiresAt) {
+        var tokenHashBytes = TokenHashes.toBytes(tokenHash);
+        var newTokenHashBytes = TokenHashes.toBytes(newTokenHash);
+        // DDL commits, so create the partition of the new token before the transaction
+        var newTable = partition(newExpiresAt);
+        try (Connection conn = dataSource.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                for (var table : livePartitions()) {
+                    Optional<Set<String>> groups;
+                    try {
+                        groups = selectGroups(conn, table, userId, tokenHashBytes);
+                    } catch (SQLException e) {
+                        if (isTableNotFound(e)) {
+                            continue;
+                        }
+                        throw e;
+                    }
+                    if (groups.isEmpty()) {
+                        continue;
+                    }
+                    // if nothing was deleted, the token has been consumed concurrently
+                    if (delete(conn, table, userId, tokenHashBytes) == 0) {
+                        break;
+                    }
+                    insert(conn, newTable, userId, newTokenHashBytes, groups.get(), newExpiresAt);
+                    conn.commit();
+                    return groups;
+                }
+                conn.rollback();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            LOG.errorf("rotate failed for userId %d: %s", userId, e.getMessage());
+            throw new IllegalStateException("rotate failed due to SQL exception");
+        }
+        return Optional.empty();
+    }
+
+    @Override
+    public int deleteForUser(long userId) {
+        var updatedRows = 0;
+        try (Connection conn = dataSource.getConnection()) {
+            conn.setAutoCommit(true);
+            for (var table : partitions.values()) {
+                try (PreparedStatement statement = conn.prepareStatement(
+                        String.format(SQL_DELETE_FROM_BY_USER_ID, table))) {
+                    statement.setLong(1, userId);
+                    updatedRows += statement.executeUpdate();
+                } catch (SQLException e) {
+                    if (!isTableNotFound(e)) {
+                        throw e;
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            LOG.errorf("deleteForUser failed: %s", e.getMessage());
+            throw new IllegalStateException("deleteForUser failed due to SQL exception");
+        }
+        return updatedRows;
+    }
+
+    @Override
+    public int deleteForUsers(@NonNull long[] userIds) {
+        var updatedRows = 0;
+        try (Connection conn = dataSource.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                for (var table : partitions.values()) {
+                    try (PreparedStatement statement = conn.prepareStatement(
+                            String.format(SQL_DELETE_FROM_BY_USER_ID, table))) {
+                        for (var userId : userIds) {
+                            statement.setLong(1, userId);
+                            statement.addBatch();
+                        }
+                        for (var updateCount : statement.executeBatch()) {
+                            updatedRows += Math.max(updateCount, 0);
+                        }
+                    } catch (SQLException e) {
+                        if (!isTableNotFound(e)) {
+                            throw e;
+                        }
+                    }
+                }
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            LOG.errorf("deleteForUsers failed: %s", e.getMessage());
+            throw new IllegalStateException("deleteForUsers failed due to SQL exception");
+        }
+        return updatedRows;
+    }
+
+    /**
+     * Drop all partitions whose period has passed.
+     *
+     * @return the number of tokens in the dropped partitions.
+     */
+    @Override
+    public int deleteExpired() {
+        var deletedRows = 0;
+        try (Connection conn = dataSource.getConnection();
+             Statement statement = conn.createStatement()) {
+            conn.setAutoCommit(true);
+            for (var partition : expiredPartitions().entrySet()) {
+                var table = partition.getValue();
+                deletedRows += count(conn, table);
+                statement.execute(String.format(SQL_DROP_PARTITION, table));
+                partitions.remove(partition.getKey());
+                LOG.infof("Dropped token partition %s", table);
+            }
+        } catch (SQLException e) {
+            LOG.errorf("deleteExpired failed: %s", e.getMessage());
+            throw new IllegalStateException("deleteExpired failed due to SQL exception");
+        }
+        return deletedRows;
+    }
+
+    /**
+     * The limit is ignored: dropping a partition is cheap regardless of its size.
+     */
+    @Override
+    public int deleteExpired(int limit) {
+        return deleteExpired();
+    }
+
+    @Override
+    public long countExpired() {
+        var count = 0L;
+        try (Connection conn = dataSource.getConnection()) {
+            conn.setAutoCommit(true);
+            for (var table : expiredPartitions().values()) {
+                count += count(conn, table);
+            }
+        } catch (SQLException e) {
+            LOG.errorf("countExpired failed: %s", e.getMessage());
+            throw new IllegalStateException("countExpired failed due to SQL exception");
+        }
+        return count;
+    }
+
+    /**
+     * Checks the live partitions one after the other.
+     */
+    @Override
+    public long deleteMatching(@NonNull TokenMatcher matcher, int chunkSize,
+            @NonNull ChunkProgress progress) {
+        var deleted = 0L;
+        var stopped = new boolean[1];
+        try {
+            for (var table : livePartitions()) {
+                try {
+                    deleted += JdbcTokenEngine.deleteMatchingFrom(dataSource, groupDictionary,
+                            table, matcher, chunkSize, (checked, chunkDeleted) -> {
+                                stopped[0] = !progress.onChunk(checked, chunkDeleted);
+                                return !stopped[0];
+                            });
+                } catch (SQLException e) {
+                    if (!isTableNotFound(e)) {
+                        throw e;
+                    }
+                }
+                if (stopped[0]) {
+                    break;
+                }
+            }
+        } catch (SQLException e) {
+            LOG.errorf("deleteMatching failed: %s", e.getMessage());
+            throw new IllegalStateException("deleteMatching failed due to SQL exception");
+        }
+        return deleted;
+    }
+
+    @Override
+    public void forEachToken(@NonNull TokenKeyConsumer consumer) {
+        try (Connection conn = dataSource.getConnection()) {
+            conn.setAutoCommit(true);
+            for (var table : livePartitions()) {
+                try (PreparedStatement statement = conn.prepareStatement(
+                        String.format(SQL_SELECT_VALID_KEYS_FROM, table));
+                     ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        consumer.accept(resultSet.getLong(1), resultSet.getBytes(2));
+                    }
+                } catch (SQLException e) {
+                    if (!isTableNotFound(e)) {
+                        throw e;
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            LOG.errorf("forEachToken failed: %s", e.getMessage());
+            throw new IllegalStateException("forEachToken failed due to SQL exception");
+        }
+    }
+
+    @Override
+    public void forEachStoredToken(@NonNull Consumer<StoredToken> consumer) {
+        try {
+            for (var table : livePartitions()) {
+                try {
+                    JdbcTokenEngine.forEachStoredTokenFrom(dataSource, groupDictionary, table,
+                            consumer);
+                } catch (SQLException e) {
+                    if (!isTableNotFound(e)) {
+                        throw e;
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            LOG.errorf("forEachStoredToken failed: %s", e.getMessage());
+            throw new IllegalStateException("forEachStoredToken failed due to SQL exception");
+        }
+    }
+
+    /**
+     * The tokens go to the partitions of their expiration, all in one transaction.
+     */
+    @Override
+    public int putAll(@NonNull List<StoredToken> tokens) {
+        var byPartition = new HashMap<String, List<StoredToken>>();
+        for (var token : tokens) {
+            byPartition.computeIfAbsent(partition(token.expiresAt), table -> new ArrayList<>())
+                    .add(token);
+        }
+        var stored = 0;
+        try (Connection conn = dataSource.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                for (var partition : byPartition.entrySet()) {
+                    stored += JdbcTokenEngine.mergeInto(conn, groupDictionary, partition.getKey(),
+                            partition.getValue());
+                }
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            LOG.errorf("putAll failed: %s", e.getMessage());
+            throw new IllegalStateException("putAll failed due to SQL exception");
+        }
+        return stored;
+    }
+
+    @NonNull
+    @Override
+    public PartitionedTokenEngine forDataSource(@NonNull DataSource dataSource) {
+        var shardGroupDictionary = new GroupDictionary(dataSource);
+        return new PartitionedTokenEngine(dataSource,
+                groupCommitWriter.forDataSource(dataSource, shardGroupDictionary),
+                shardGroupDictionary, (int) periodDays);
+    }
+
+    @NonNull
+    private String partition(long expiresAt) {
+        var expirationDay = Instant.ofEpochSecond(expiresAt).atOffset(ZoneOffset.UTC).toLocalDate();
+        return partitions.computeIfAbsent(periodStart(expirationDay), this::createPartition);
+    }
+
+    @NonNull
+    private String createPartition(@NonNull LocalDate periodStart) {
+        var table = PARTITION_PREFIX + PARTITION_SUFFIX.format(periodStart);
+        try (Connection conn = dataSource.getConnection();
+             Statement statement = conn.createStatement()) {
+            conn.setAutoCommit(false);
+            statement.execute(String.format(SQL_CREATE_PARTITION, table));
+            conn.commit();
+        } catch (SQLException e) {
+            LOG.errorf("creating partition %s failed: %s", table, e.getMessage());
+            throw new IllegalStateException("Creating a partition failed due to SQL exception");
+        }
+        LOG.infof("Created token partition %s", table);
+        return table;
+    }
+
+    @NonNull
+    private LocalDate periodStart(@NonNull LocalDate day) {
+        return LocalDate.ofEpochDay(Math.floorDiv(day.toEpochDay(), periodDays) * periodDays);
+    }
+
+    @NonNull
+    private LocalDate currentPeriodStart() {
+        return periodStart(LocalDate.now(ZoneOffset.UTC));
+    }
+
+    @NonNull
+    private Collection<String> livePartitions() {
+        return partitions.tailMap(currentPeriodStart()).descendingMap().values();
+    }
+
+    @NonNull
+    private Map<LocalDate, String> expiredPartitions() {
+        return partitions.headMap(currentPeriodStart());
+    }
+
+    @NonNull
+    private Optional<Set<String>> selectGroups(Connection conn, String table, long userId,
+            byte[] tokenHash) throws SQLException {
+        try (PreparedStatement statement = conn.prepareStatement(
+                String.format(SQL_SELECT_GROUPS_FROM, table))) {
+            statement.setLong(1, userId);
+            statement.setBytes(2, tokenHash);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                if (resultSet.next()) {
+                    return Optional.of(groupDictionary.decode(resultSet.getBytes(1)));
+                }
+            }
+        }
+        return Optional.empty();
+    }
+
+    private static int delete(Connection conn, String table, long userId, byte[] tokenHash)
+            throws SQLException {
+        try (PreparedStatement statement = conn.prepareStatement(
+                String.format(SQL_DELETE_FROM_BY_USER_ID_TOKEN_HASH, table))) {
+            statement.setLong(1, userId);
+            statement.setBytes(2, tokenHash);
+            return statement.executeUpdate();
+        }
+    }
+
+    private void insert(Connection conn, String table, long userId, byte[] tokenHash,
+            Set<String> groups, long expiresAt) throws SQLException {
+        try (PreparedStatement statement = conn.prepareStatement(
+                String.format(SQL_INSERT_INTO, table))) {
+            statement.setLong(1, userId);
+            statement.setBytes(2, tokenHash);
+            statement.setBytes(3, groupDictionary.encode(groups));
+            statement.setTimestamp(4, Timestamp.from(Instant.ofEpochSecond(expiresAt)));
+            statement.executeUpdate();
+        }
+    }
+
+    private static long count(Connection conn, String table) throws SQLException {
+        try (PreparedStatement statement = conn.prepareStatement(
+                String.format(SQL_COUNT_FROM, table));
+             ResultSet resultSet = statement.executeQuery()) {
+            return resultSet.next() ? resultSet.getLong(1) : 0;
+        }
+    }
+
+    private static boolean isTableNotFound(SQLException e) {
+        return SQL_STATE_TABLE_NOT_FOUND.equals(e.getSQLState());
+    }
+}
@@ -0,0 +1,77 @@
+package de.dopler.ms.token_store;
+
+import de.dopler.ms.response_utils.ResponseUtils;
+import de.dopler.ms.token_store.domain.RevocationCriteria;
+
+import javax.inject.Inject;
+import javax.ws.rs.*;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+@Path("/auth/tokens/revocations")
+@Produces(MediaType.APPLICATION_JSON)
+public class RevocationJobResource {
+
+    private final RevocationJobs revocationJobs;
+
+    @Inject
+    public RevocationJobResource(RevocationJobs revocationJobs) {
+        this.revocationJobs = revocationJobs;
+    }
+
+    @POST
+    @Consumes(MediaType.APPLICATION_JSON)
+    public Response revokeMatching(RevocationCriteria criteria) {
+        if (criteria == null) {
+            return ResponseUtils.textResponse(Status.BAD_REQUEST, "invalid revocation criteria");
+        }
+
+        try {
+            return ResponseUtils.jsonResponse(Status.ACCEPTED, revocationJobs.submit(criteria));
+        } catch (IllegalArgumentException e) {
+            return ResponseUtils.textResponse(Status.BAD_REQUEST, e.getMessage());
+        }
+    }
+
+    /**
+     * @param userIds one userId per line, read as a stream.
+     */
+    @POST
+    @Consumes(MediaType.TEXT_PLAIN)
+    public Response revokeForUsers(InputStream userIds) {
+        try {
+            return ResponseUtils.jsonResponse(Status.ACCEPTED, revocationJobs.submitUserIds(
+                    new InputStreamReader(userIds, StandardCharsets.UTF_8)));
+        } catch (IllegalArgumentException e) {
+            return ResponseUtils.textResponse(Status.BAD_REQUEST, e.getMessage());
+        } catch (IOException e) {
+            return ResponseUtils.textResponse(Status.BAD_REQUEST, "reading the userIds failed");
+        }
+    }
+
+    @GET
+    public Response statuses() {
+        return ResponseUtils.jsonResponse(Status.OK, revocationJobs.statuses());
+    }
+
+    @GET
+    @Path("/{jobId}")
+    public Response status(@PathParam("jobId") long jobId) {
+        return revocationJobs.status(jobId)
+                .map(status -> ResponseUtils.jsonResponse(Status.OK, status))
+                .orElse(ResponseUtils.status(Status.NOT_FOUND));
+    }
+
+    @DELETE
+    @Path("/{jobId}")
+    public Response cancel(@PathParam("jobId") long jobId) {
+        return revocationJobs.cancel(jobId)
+                .map(status -> ResponseUtils.jsonResponse(Status.OK, status))
+                .orElse(ResponseUtils.status(Status.NOT_FOUND));
+    }
+}
@@ -0,0 +1,289 @@
+package de.dopler.ms.token_store;
+
+import de.dopler.ms.token_store.TokenEngine.TokenMatcher;
+import de.dopler.ms.token_store.domain.RevocationCriteria;
+import de.dopler.ms.token_store.domain.RevocationJobStatus;
+import io.quarkus.runtime.ShutdownEvent;
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.enterprise.event.Reception;
+import javax.inject.Inject;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+/**
+ * Revokes tokens in bulk, e.g. after an incident: all tokens matching {@link RevocationCriteria}
+ * (a group, issued before a point in time) or all tokens of a list of users.
+ * <p>
+ * The jobs run one after the other on a background thread, in chunks of
+ * {@code token-store.revocation.chunk-size} tokens or users per transaction. Their progress can be
+ * queried and they can be cancelled between two chunks. Jobs are kept in memory only: queued jobs
+ * are lost on restart and only the last {@code token-store.revocation.retained-jobs} finished
+ * jobs are kept.
+ */
+@ApplicationScoped
+public class RevocationJobs {
+
+    private static final Logger LOG = Logger.getLogger("RevocationJobs");
+
+    enum State {QUEUED, RUNNING, COMPLETED, CANCELLED, FAILED}
+
+    private final TokenStoreService tokenStoreService;
+    private final int chunkSize;
+    private final int maxUserIds;
+    private final int retainedJobs;
+    private final ExecutorService executor;
+    private final AtomicLong nextId = new AtomicLong(1);
+    private final ConcurrentSkipListMap<Long, Job> jobs = new ConcurrentSkipListMap<>();
+
+    @Inject
+    public RevocationJobs(TokenStoreService tokenStoreService,
+            @ConfigProperty(name = "token-store.revocation.chunk-size", defaultValue = "1000")
+                    int chunkSize,
+            @ConfigProperty(name = "token-store.revocation.max-user-ids", defaultValue = "1000000")
+                    int maxUserIds,
+            @ConfigProperty(name = "token-store.revocation.retained-jobs", defaultValue = "100")
+                    int retainedJobs) {
+        this.tokenStoreService = tokenStoreService;
+        this.chunkSize = chunkSize;
+        this.maxUserIds = maxUserIds;
+        this.retainedJobs = retainedJobs;
+        executor = Executors.newSingleThreadExecutor(runnable -> {
+            var thread = new Thread(runnable, "token-revocation");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    void onStop(@Observes(notifyObserver = Reception.IF_EXISTS) ShutdownEvent ev) {
+        jobs.values().forEach(Job::cancel);
+        executor.shutdown();
+    }
+
+    /**
+     * Revoke all valid tokens which match all given criteria. Tokens without an issue time (stored
+     * before it was recorded) count as issued before any point in time.
+     */
+    @NonNull
+    public RevocationJobStatus submit(@NonNull RevocationCriteria criteria) {
+        if (criteria.group == null && criteria.issuedBefore == null) {
+            throw new IllegalArgumentException("no revocation criteria");
+        }
+        if (criteria.group != null && criteria.group.isEmpty()) {
+            throw new IllegalArgumentException("empty group");
+        }
+        var description = describe(criteria);
+        // the criteria are mutable, the job must not see later changes
+        var group = criteria.group;
+        var issuedBefore = criteria.issuedBefore;
+        TokenMatcher matcher = (userId, groups, issuedAt) ->
+                (group == null || groups.contains(group)) &&
+                        (issuedBefore == null || issuedAt < issuedBefore);
+        return submit(new Job(nextId.getAndIncrement(), description, null, job ->
+                tokenStoreService.deleteMatching(matcher, chunkSize, (checked, deleted) -> {
+                    job.processed.addAndGet(checked);
+                    job.revoked.addAndGet(deleted);
+                    return !job.cancelled;
+                })));
+    }
+
+    /**
+     * Revoke all tokens of the users listed in {@code userIds}, one userId per line. The list is
+     * read completely before the job is queued.
+     */
+    @NonNull
+    public RevocationJobStatus submitUserIds(@NonNull Reader userIds) throws IOException {
+        var userIdArray = readUserIds(userIds);
+        var description = String.format("%d userIds", userIdArray.length);
+        return submit(new Job(nextId.getAndIncrement(), description, (long) userIdArray.length,
+                job -> {
+                    for (int from = 0; from < userIdArray.length && !job.cancelled;
+                         from += chunkSize) {
+                        var chunk = Arrays.copyOfRange(userIdArray, from,
+                                Math.min(from + chunkSize, userIdArray.length));
+                        job.revoked.addAndGet(tokenStoreService.deleteForUsers(chunk));
+                        job.processed.addAndGet(chunk.length);
+                    }
+                }));
+    }
+
+    @NonNull
+    public Optional<RevocationJobStatus> status(long id) {
+        return Optional.ofNullable(jobs.get(id)).map(Job::status);
+    }
+
+    /**
+     * @return the status of the retained jobs, oldest first.
+     */
+    @NonNull
+    public List<RevocationJobStatus> statuses() {
+        return jobs.values().stream().map(Job::status).collect(Collectors.toList());
+    }
+
+    /**
+     * Cancel a queued job or stop a running one after its current chunk; the tokens revoked so
+     * far stay revoked.
+     *
+     * @return the status of the job or an empty Optional if there is no such job.
+     */
+    @NonNull
+    public Optional<RevocationJobStatus> cancel(long id) {
+        var job = jobs.get(id);
+        if (job == null) {
+            return Optional.empty();
+        }
+        job.cancel();
+        return Optional.of(job.status());
+    }
+
+    @NonNull
+    private RevocationJobStatus submit(@NonNull Job job) {
+        jobs.put(job.id, job);
+        removeFinishedJobs();
+        executor.execute(() -> run(job));
+        LOG.infof("Queued revocation job %d: %s", job.id, job.criteria);
+        return job.status();
+    }
+
+    private void run(@NonNull Job job) {
+        if (!job.state.compareAndSet(State.QUEUED, State.RUNNING)) {
+            // cancelled while queued
+            return;
+        }
+        var timingStart = Instant.now();
+        try {
+            job.task.run(job);
+            job.state.set(job.cancelled ? State.CANCELLED : State.COMPLETED);
+        } catch (IllegalStateException e) {
+            job.error = e.getMessage();
+            job.state.set(State.FAILED);
+        } catch (RuntimeException e) {
+            // anything else would leave the job running forever
+            LOG.errorf(e, "Revocation job %d failed", job.id);
+            job.error = e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage();
+            job.state.set(State.FAILED);
+        }
+        var duration = timingStart.until(Instant.now(), ChronoUnit.MILLIS);
+        LOG.infof("Revocation job %d %s after %d ms: revoked %d tokens", job.id,
+                job.state.get().name().toLowerCase(Locale.ROOT), duration, job.revoked.get());
+    }
+
+    private void removeFinishedJobs() {
+        var finished = jobs.values().stream().filter(Job::isFinished).count();
+        for (var job : jobs.values()) {
+            if (finished <= retainedJobs) {
+                return;
+            }
+            if (job.isFinished()) {
+                jobs.remove(job.id);
+                finished--;
+            }
+        }
+    }
+
+    @NonNull
+    private long[] readUserIds(@NonNull Reader userIds) throws IOException {
+        var builder = LongStream.builder();
+        var count = 0;
+        var reader = new BufferedReader(userIds);
+        String line;
+        var lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            if (++count > maxUserIds) {
+                throw new IllegalArgumentException(
+                        String.format("more than %d userIds", maxUserIds));
+            }
+            try {
+                builder.add(Long.parseLong(line));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException(
+                        String.format("invalid userId in line %d", lineNumber));
+            }
+        }
+        if (count == 0) {
+            throw new IllegalArgumentException("no userIds");
+        }
+        return builder.build().toArray();
+    }
+
+    @NonNull
+    private static String describe(@NonNull RevocationCriteria criteria) {
+        var description = new StringBuilder();
+        if (criteria.group != null) {
+            description.append("group=").append(criteria.group);
+        }
+        if (criteria.issuedBefore != null) {
+            if (description.length() > 0) {
+                description.append(", ");
+            }
+            description.append("issuedBefore=")
+                    .append(Instant.ofEpochSecond(criteria.issuedBefore));
+        }
+        return description.toString();
+    }
+
+    @FunctionalInterface
+    private interface Task {
+
+        void run(@NonNull Job job);
+    }
+
+    private static final class Job {
+
+        final long id;
+        final String criteria;
+        final Long total;
+        final Task task;
+        final AtomicReference<State> state = new AtomicReference<>(State.QUEUED);
+        final AtomicLong processed = new AtomicLong();
+        final AtomicLong revoked = new AtomicLong();
+        volatile boolean cancelled;
+        volatile String error;
+
+        Job(long id, String criteria, Long total, Task task) {
+            this.id = id;
+            this.criteria = criteria;
+            this.total = total;
+            this.task = task;
+        }
+
+        void cancel() {
+            cancelled = true;
+            state.compareAndSet(State.QUEUED, State.CANCELLED);
+        }
+
+        boolean isFinished() {
+            var currentState = state.get();
+            return currentState != State.QUEUED && currentState != State.RUNNING;
+        }
+
+        @NonNull
+        RevocationJobStatus status() {
+            return new RevocationJobStatus(id, state.get().name(), criteria, processed.get(),
+                    total, revoked.get(), error);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package de.dopler.ms.token_store;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.metrics.Counter;
+import org.eclipse.microprofile.metrics.Metadata;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.eclipse.microprofile.metrics.MetricType;
+import org.eclipse.microprofile.metrics.annotation.RegistryType;
+import org.jboss.logging.Logger;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+/**
+ * Maximum number of live tokens per user, see {@code token-store.max-tokens-per-user}. When a
+ * put exceeds it, the oldest live tokens of the user are evicted together with the insert, so
+ * clients which log in again and again without logging out can't fill the store. Bounds the
+ * store by the number of users instead of the number of logins.
+ * <p>
+ * Enforced by the jdbc and memory engines only: the partitioned engine spreads the tokens of a
+ * user over many tables and the log engine has no index per user.
+ */
+@ApplicationScoped
+public class SessionCap {
+
+    private static final Logger LOG = Logger.getLogger("SessionCap");
+
+    private final int maxTokensPerUser;
+    private final Counter evictions;
+
+    @Inject
+    public SessionCap(
+            @ConfigProperty(name = "token-store.max-tokens-per-user", defaultValue = "0")
+                    int maxTokensPerUser,
+            @ConfigProperty(name = "token-store.engine",
+                    defaultValue = TokenStoreService.ENGINE_JDBC) String engine,
+            @RegistryType(type = MetricRegistry.Type.APPLICATION) MetricRegistry metricRegistry) {
+        if (maxTokensPerUser < 0) {
+            throw new IllegalArgumentException(
+                    "token-store.max-tokens-per-user must not be negative");
+        }
+        this.maxTokensPerUser = maxTokensPerUser;
+        evictions = metricRegistry.counter(Metadata.builder()
+                .withName("token-evictions")
+                .withDescription("Number of tokens evicted as their user had too many")
+                .withType(MetricType.COUNTER)
+                .build());
+        if (isEnabled() && (engine.equals(TokenStoreService.ENGINE_PARTITIONED) ||
+                engine.equals(TokenStoreService.ENGINE_LOG))) {
+            LOG.warnf("token-store.max-tokens-per-user is not enforced by the %s engine", engine);
+        }
+    }
+
+    public boolean isEnabled() {
+        return maxTokensPerUser > 0;
+    }
+
+    /**
+     * @return the maximum number of live tokens per user; 0 if unlimited.
+     */
+    public int maxTokensPerUser() {
+        return maxTokensPerUser;
+    }
+
+    public void recordEvictions(int count) {
+        if (count > 0) {
+            evictions.inc(count);
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package de.dopler.ms.token_store;
+
+import de.dopler.ms.token_store.domain.StoredToken;
+import org.eclipse.jdt.annotation.NonNull;
+
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+/**
+ * {@link TokenEngine} which routes every token to one of several engines, one per
+ * {@link TokenShards shard}, by its userId. Operations on all shards (initialization and the
+ * purge of expired tokens) run on all shards in parallel.
+ */
+final class ShardedTokenEngine implements TokenEngine {
+
+    private final List<TokenEngine> shards;
+    private final ExecutorService executor;
+
+    ShardedTokenEngine(@NonNull List<TokenEngine> shards) {
+        this.shards = List.copyOf(shards);
+        var threadCount = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(shards.size(), runnable -> {
+            var thread = new Thread(runnable, "token-shard-" + threadCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public void initStore() {
+        onAllShards(engine -> {
+            engine.initStore();
+            return null;
+        });
+    }
+
+    @Override
+    public boolean put(long userId, @NonNull String tokenHash, @NonNull Set<String> groups,
+            long expiresAt) {
+        return shard(userId).put(userId, tokenHash, groups, expiresAt);
+    }
+
+    /**
+     * The shards write their tokens in parallel.
+     */
+    @NonNull
+    @Override
+    public List<CompletableFuture<Boolean>> putEach(@NonNull List<StoredToken> tokens) {
+        var indexesByShard = new HashMap<Integer, List<Integer>>();
+        for (int i = 0; i < tokens.size(); i++) {
+            indexesByShard.computeIfAbsent(TokenShards.shardOf(tokens.get(i).userId,
+                    shards.size()), shard -> new ArrayList<>()).add(i);
+        }
+        var shardResults =
+                new HashMap<Integer, CompletableFuture<List<CompletableFuture<Boolean>>>>();
+        for (var shardIndexes : indexesByShard.entrySet()) {
+            var shardTokens = shardIndexes.getValue().stream()
+                    .map(tokens::get)
+                    .collect(Collectors.toList());
+            var engine = shards.get(shardIndexes.getKey());
+            shardResults.put(shardIndexes.getKey(),
+                    CompletableFuture.supplyAsync(() -> engine.putEach(shardTokens), executor));
+        }
+        var results = new ArrayList<CompletableFuture<Boolean>>(
+                Collections.nCopies(tokens.size(), null));
+        for (var shardIndexes : indexesByShard.entrySet()) {
+            var indexes = shardIndexes.getValue();
+            try {
+                var shardResult = shardResults.get(shardIndexes.getKey()).join();
+                for (int i = 0; i < indexes.size(); i++) {
+                    results.set(indexes.get(i), shardResult.get(i));
+                }
+            } catch (CompletionException e) {
+                indexes.forEach(index -> results.set(index,
+                        CompletableFuture.failedFuture(e.getCause())));
+            }
+        }
+        return results;
+    }
+
+    @NonNull
+    @Override
+    public Optional<Set<String>> popGroups(long userId, @NonNull String tokenHash) {
+        return shard(userId).popGroups(userId, tokenHash);
+    }
+
+    @NonNull
+    @Override
+    public Optional<Set<String>> rotate(long userId, @NonNull String tokenHash,
+            @NonNull String newTokenHash, long newExpiresAt) {
+        return shard(userId).rotate(userId, tokenHash, newTokenHash, newExpiresAt);
+    }
+
+    @Override
+    public int deleteForUser(long userId) {
+        return shard(userId).deleteForUser(userId);
+    }
+
+    @Override
+    public int deleteForUsers(@NonNull long[] userIds) {
+        var userIdsByShard = new HashMap<Integer, LongStream.Builder>();
+        for (var userId : userIds) {
+            userIdsByShard.computeIfAbsent(TokenShards.shardOf(userId, shards.size()),
+                    shard -> LongStream.builder()).add(userId);
+        }
+        var deleted = 0;
+        for (var shardUserIds : userIdsByShard.entrySet()) {
+            deleted += shards.get(shardUserIds.getKey())
+                    .deleteForUsers(shardUserIds.getValue().build().toArray());
+        }
+        return deleted;
+    }
+
+    @Override
+    public int deleteExpired() {
+        return onAllShards(TokenEngine::deleteExpired).stream().mapToInt(Integer::intValue).sum();
+    }
+
+    /**
+     * Every shard deletes up to {@code limit} tokens, so less than {@code limit} deleted tokens
+     * in total still mean that no expired tokens are left.
+     */
+    @Override
+    public int deleteExpired(int limit) {
+        return onAllShards(engine -> engine.deleteExpired(limit)).stream()
+                .mapToInt(Integer::intValue)
+                .sum();
+    }
+
+    @Override
+    public long countExpired() {
+        return onAllShards(TokenEngine::countExpired).stream().mapToLong(Long::longValue).sum();
+    }
+
+    /**
+     * Checks the shards one after the other, so the progress is reported in order.
+     */
+    @Override
+    public long deleteMatching(@NonNull TokenMatcher matcher, int chunkSize,
+            @NonNull ChunkProgress progress) {
+        var deleted = 0L;
+        var stopped = new boolean[1];
+        for (var engine : shards) {
+            deleted += engine.deleteMatching(matcher, chunkSize, (checked, chunkDeleted) -> {
+                stopped[0] = !progress.onChunk(checked, chunkDeleted);
+                return !stopped[0];
+            });
+            if (stopped[0]) {
+                break;
+            }
+        }
+        return deleted;
+    }
+
+    @Override
+    public void forEachToken(@NonNull TokenKeyConsumer consumer) {
+        shards.forEach(engine -> engine.forEachToken(consumer));
+    }
+
+    @Override
+    public void forEachStoredToken(@NonNull Consumer<StoredToken> consumer) {
+        shards.forEach(engine -> engine.forEachStoredToken(consumer));
+    }
+
+    /**
+     * One transaction per shard: a failing shard doesn't roll back the others.
+     */
+    @Override
+    public int putAll(@NonNull List<StoredToken> tokens) {
+        var tokensByShard = new HashMap<Integer, List<StoredToken>>();
+        for (var token : tokens) {
+            tokensByShard.computeIfAbsent(TokenShards.shardOf(token.userId, shards.size()),
+                    shard -> new ArrayList<>()).add(token);
+        }
+        var stored = 0;
+        for (var shardTokens : tokensByShard.entrySet()) {
+            stored += shards.get(shardTokens.getKey()).putAll(shardTokens.getValue());
+        }
+        return stored;
+    }
+
+    @NonNull
+    @Override
+    public TokenEngine forDataSource(@NonNull DataSource dataSource) {
+        throw new IllegalStateException("a sharded engine cannot be sharded again");
+    }
+
+    @Override
+    public void shutdown() {
+        onAllShards(engine -> {
+            engine.shutdown();
+            return null;
+        });
+        executor.shutdown();
+    }
+
+    @NonNull
+    private TokenEngine shard(long userId) {
+        return shards.get(TokenShards.shardOf(userId, shards.size()));
+    }
+
+    @NonNull
+    private <T> List<T> onAllShards(@NonNull Function<TokenEngine, T> operation) {
+        var futures = shards.stream()
+                .map(engine -> CompletableFuture.supplyAsync(() -> operation.apply(engine),
+                        executor))
+                .collect(Collectors.toList());
+        try {
+            return futures.stream().map(CompletableFuture::join).collect(Collectors.toList());
+        } catch (CompletionException e) {
+            // keep the exception types of the engines
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+}
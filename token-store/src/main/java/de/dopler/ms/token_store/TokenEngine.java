@@ -0,0 +1,162 @@
+package de.dopler.ms.token_store;
+
+import de.dopler.ms.token_store.domain.StoredToken;
+import org.eclipse.jdt.annotation.NonNull;
+
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * Storage backend for refresh tokens. Which engine is used by {@link TokenStoreService} is
+ * configured via {@code token-store.engine}.
+ */
+public interface TokenEngine {
+
+    /**
+     * Create the underlying storage if it doesn't exist yet and prepare the engine for use.
+     */
+    void initStore();
+
+    boolean put(long userId, @NonNull String tokenHash, @NonNull Set<String> groups,
+            long expiresAt);
+
+    /**
+     * Same as {@link #put(long, String, Set, long)} for each of the given tokens (their issue
+     * times are ignored), but the engine may write them together, e.g. in one group commit. Each
+     * token is stored or fails on its own.
+     *
+     * @return per token, in their order, a completed future of the result of its put, or failed
+     * with the exception its put would have thrown.
+     */
+    @NonNull
+    default List<CompletableFuture<Boolean>> putEach(@NonNull List<StoredToken> tokens) {
+        var results = new ArrayList<CompletableFuture<Boolean>>(tokens.size());
+        for (var token : tokens) {
+            try {
+                results.add(CompletableFuture.completedFuture(
+                        put(token.userId, token.tokenHash, token.groups, token.expiresAt)));
+            } catch (RuntimeException e) {
+                results.add(CompletableFuture.failedFuture(e));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Remove the (non-expired) token identified by {@code userId} and {@code tokenHash}.
+     *
+     * @return the groups of the removed token or an empty Optional if no such token was found.
+     */
+    @NonNull
+    Optional<Set<String>> popGroups(long userId, @NonNull String tokenHash);
+
+    /**
+     * Atomically consume the (non-expired) token identified by {@code userId} and {@code tokenHash}
+     * and store {@code newTokenHash} with the same groups in its place, so a token can only be
+     * rotated once.
+     *
+     * @return the groups of the consumed token or an empty Optional if no such token was found.
+     */
+    @NonNull
+    Optional<Set<String>> rotate(long userId, @NonNull String tokenHash,
+            @NonNull String newTokenHash, long newExpiresAt);
+
+    int deleteForUser(long userId);
+
+    int deleteExpired();
+
+    /**
+     * Same as {@link #deleteExpired()} but delete at most {@code limit} tokens.
+     */
+    int deleteExpired(int limit);
+
+    long countExpired();
+
+    /**
+     * Delete the valid tokens accepted by {@code matcher}, checking about {@code chunkSize}
+     * tokens per transaction. After every chunk, {@code progress} gets the number of checked and
+     * deleted tokens of the chunk and decides whether to go on.
+     *
+     * @return the number of deleted tokens.
+     */
+    long deleteMatching(@NonNull TokenMatcher matcher, int chunkSize,
+            @NonNull ChunkProgress progress);
+
+    /**
+     * Same as {@link #deleteForUser(long)} for several users, in a single transaction if the
+     * engine has transactions.
+     */
+    default int deleteForUsers(@NonNull long[] userIds) {
+        var deleted = 0;
+        for (var userId : userIds) {
+            deleted += deleteForUser(userId);
+        }
+        return deleted;
+    }
+
+    /**
+     * Pass the key of every valid token to {@code consumer}, e.g. to build the
+     * {@link TokenFilter}. Tokens stored concurrently may or may not be passed.
+     */
+    void forEachToken(@NonNull TokenKeyConsumer consumer);
+
+    /**
+     * Pass every valid token with all its data to {@code consumer}, e.g. for an export. The
+     * tokens are streamed from the storage, not collected first. Tokens stored concurrently may or
+     * may not be passed.
+     */
+    void forEachStoredToken(@NonNull Consumer<StoredToken> consumer);
+
+    /**
+     * Store the given tokens, e.g. from an import, in a single transaction if the engine has
+     * transactions. Unlike {@link #put(long, String, Set, long)}, tokens with the same key are
+     * replaced and the issue time of the tokens is kept.
+     *
+     * @return the number of stored tokens.
+     */
+    int putAll(@NonNull List<StoredToken> tokens);
+
+    /**
+     * @return a new engine of the same kind and configuration which stores its tokens in
+     * {@code dataSource}, e.g. for another shard.
+     */
+    @NonNull
+    TokenEngine forDataSource(@NonNull DataSource dataSource);
+
+    /**
+     * Write pending changes and release resources. The engine must not be used afterwards.
+     */
+    default void shutdown() {
+        // nothing to do
+    }
+
+    @FunctionalInterface
+    interface TokenKeyConsumer {
+
+        void accept(long userId, @NonNull byte[] tokenHash);
+    }
+
+    @FunctionalInterface
+    interface TokenMatcher {
+
+        /**
+         * @param issuedAt epoch seconds; 0 if unknown, i.e. for tokens stored before the issue
+         *                 time was recorded.
+         */
+        boolean matches(long userId, @NonNull Set<String> groups, long issuedAt);
+    }
+
+    @FunctionalInterface
+    interface ChunkProgress {
+
+        /**
+         * @return false to stop after this chunk.
+         */
+        boolean onChunk(int checked, int deleted);
+    }
+}
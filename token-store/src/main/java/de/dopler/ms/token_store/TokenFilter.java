@@ -0,0 +1,305 @@
+package de.dopler.ms.token_store;
+
+import de.dopler.ms.token_store.domain.StoredToken;
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.metrics.MetricUnits;
+import org.eclipse.microprofile.metrics.annotation.Gauge;
+import org.jboss.logging.Logger;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+
+/**
+ * Bloom filter of the keys of all stored tokens, so lookups of tokens which were never stored or
+ * have been rebuilt away (replayed, forged or already rotated ones) don't touch the database.
+ * <p>
+ * A Bloom filter cannot remove keys: popped, deleted and expired tokens stay in the filter and
+ * only raise its false-positive rate until the filter is rebuilt from the {@link TokenEngine}.
+ * That happens on startup and whenever the filter {@link #isStale()}. Until the first build has
+ * completed, every token might be contained.
+ * <p>
+ * The filter only knows the tokens stored by this process, so it is disabled by default and may
+ * only be enabled via {@code token-store.filter.enabled} if no other process writes to the same
+ * database.
+ */
+@ApplicationScoped
+public class TokenFilter {
+
+    private static final Logger LOG = Logger.getLogger("TokenFilter");
+
+    private final boolean enabled;
+    private final long expectedTokens;
+    private final double falsePositiveRate;
+
+    // puts hold the read lock while adding and writing, a build takes the write lock to install
+    // its filter: so every token is either already written when the build reads the tokens or
+    // is added to the new filter
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile BloomFilter current;
+    private volatile BloomFilter next;
+    private final AtomicBoolean building = new AtomicBoolean();
+
+    private final AtomicLong removedSinceBuild = new AtomicLong();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder falsePositives = new LongAdder();
+
+    @Inject
+    public TokenFilter(
+            @ConfigProperty(name = "token-store.filter.enabled", defaultValue = "false")
+                    boolean enabled,
+            @ConfigProperty(name = "token-store.filter.expected-tokens", defaultValue = "1000000")
+                    long expectedTokens,
+            @ConfigProperty(name = "token-store.filter.false-positive-rate",
+                    defaultValue = "0.01") double falsePositiveRate) {
+        this.enabled = enabled;
+        this.expectedTokens = expectedTokens;
+        this.falsePositiveRate = falsePositiveRate;
+    }
+
+    /**
+     * Build a new filter from the tokens of {@code engine} in the background. Does nothing if the
+     * filter is disabled or a build is already running.
+     */
+    public void rebuild(@NonNull TokenEngine engine) {
+        if (!enabled || !building.compareAndSet(false, true)) {
+            return;
+        }
+        var builder = new Thread(() -> build(engine), "token-filter-builder");
+        builder.setDaemon(true);
+        builder.start();
+    }
+
+    /**
+     * Build a new filter from the tokens of {@code engine} in the calling thread.
+     */
+    void build(@NonNull TokenEngine engine) {
+        var timingStart = Instant.now();
+        var previous = current;
+        // leave room for growth if the store holds more tokens than expected
+        var capacity = Math.max(expectedTokens, previous == null ? 0 : 2 * previous.added());
+        var filter = new BloomFilter(capacity, falsePositiveRate);
+        try {
+            lock.writeLock().lock();
+            try {
+                next = filter;
+                removedSinceBuild.set(0);
+            } finally {
+                lock.writeLock().unlock();
+            }
+            engine.forEachToken(filter::add);
+            lock.writeLock().lock();
+            try {
+                current = filter;
+                next = null;
+            } finally {
+                lock.writeLock().unlock();
+            }
+            var duration = timingStart.until(Instant.now(), ChronoUnit.MILLIS);
+            LOG.infof("Built token filter of %d tokens (%d KiB) after %d ms", filter.added(),
+                    filter.sizeBytes() / 1024, duration);
+        } catch (RuntimeException e) {
+            next = null;
+            LOG.errorf("building the token filter failed: %s", e.getMessage());
+        } finally {
+            building.set(false);
+        }
+    }
+
+    /**
+     * Add the token to the filter and store it via {@code write}.
+     */
+    public <T> T add(long userId, @NonNull String tokenHash, @NonNull Supplier<T> write) {
+        if (!enabled) {
+            return write.get();
+        }
+        var tokenHashBytes = TokenHashes.toBytes(tokenHash);
+        lock.readLock().lock();
+        try {
+            var currentFilter = current;
+            if (currentFilter != null) {
+                currentFilter.add(userId, tokenHashBytes);
+            }
+            var nextFilter = next;
+            if (nextFilter != null) {
+                nextFilter.add(userId, tokenHashBytes);
+            }
+            return write.get();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Add all tokens to the filter and store them via {@code write}.
+     */
+    public <T> T addAll(@NonNull List<StoredToken> tokens, @NonNull Supplier<T> write) {
+        if (!enabled) {
+            return write.get();
+        }
+        var tokenHashes = new byte[tokens.size()][];
+        for (int i = 0; i < tokenHashes.length; i++) {
+            tokenHashes[i] = TokenHashes.toBytes(tokens.get(i).tokenHash);
+        }
+        lock.readLock().lock();
+        try {
+            var currentFilter = current;
+            var nextFilter = next;
+            for (int i = 0; i < tokenHashes.length; i++) {
+                if (currentFilter != null) {
+                    currentFilter.add(tokens.get(i).userId, tokenHashes[i]);
+                }
+                if (nextFilter != null) {
+                    nextFilter.add(tokens.get(i).userId, tokenHashes[i]);
+                }
+            }
+            return write.get();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return false if the token is definitely not stored.
+     */
+    public boolean mightContain(long userId, @NonNull String tokenHash) {
+        var currentFilter = current;
+        if (currentFilter == null ||
+                currentFilter.mightContain(userId, TokenHashes.toBytes(tokenHash))) {
+            return true;
+        }
+        rejected.increment();
+        return false;
+    }
+
+    /**
+     * Record a lookup which passed the filter but found no token.
+     */
+    public void recordFalsePositive() {
+        if (current != null) {
+            falsePositives.increment();
+        }
+    }
+
+    public void recordRemoved(long count) {
+        removedSinceBuild.addAndGet(count);
+    }
+
+    /**
+     * @return true if more than half of the tokens in the filter have been removed or it is so
+     * full that its false-positive rate is more than twice the configured one.
+     */
+    public boolean isStale() {
+        var currentFilter = current;
+        return currentFilter != null && (removedSinceBuild.get() > currentFilter.added() / 2 ||
+                currentFilter.expectedFalsePositiveRate() > 2 * falsePositiveRate);
+    }
+
+    @Gauge(name = "token-filter-false-positive-rate", unit = MetricUnits.NONE, absolute = true,
+            description = "Share of lookups of missing tokens not rejected by the filter")
+    public double observedFalsePositiveRate() {
+        var falsePositiveCount = falsePositives.sum();
+        var missing = falsePositiveCount + rejected.sum();
+        return missing == 0 ? 0 : (double) falsePositiveCount / missing;
+    }
+
+    @Gauge(name = "token-filter-expected-false-positive-rate", unit = MetricUnits.NONE,
+            absolute = true, description = "False-positive rate expected from the filter's fill")
+    public double expectedFalsePositiveRate() {
+        var currentFilter = current;
+        return currentFilter == null ? 1 : currentFilter.expectedFalsePositiveRate();
+    }
+
+    @Gauge(name = "token-filter-rejected-total", unit = MetricUnits.NONE, absolute = true,
+            description = "Number of lookups answered by the filter without the database")
+    public long rejectedTotal() {
+        return rejected.sum();
+    }
+
+    @Gauge(name = "token-filter-memory", unit = MetricUnits.BYTES, absolute = true,
+            description = "Memory used by the token filter, including one being built")
+    public long memoryBytes() {
+        var currentFilter = current;
+        var nextFilter = next;
+        return (currentFilter == null ? 0 : currentFilter.sizeBytes()) +
+                (nextFilter == null ? 0 : nextFilter.sizeBytes());
+    }
+
+    /**
+     * Lock-free Bloom filter. The token hashes are SHA-256 hashes, so their bytes are used as
+     * hash values directly (double hashing), mixed with the userId.
+     */
+    static final class BloomFilter {
+
+        private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+        private final AtomicLongArray words;
+        private final long bits;
+        private final int hashFunctions;
+        private final AtomicLong added = new AtomicLong();
+
+        BloomFilter(long capacity, double falsePositiveRate) {
+            var optimalBits = -capacity * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+            var wordCount = (int) Math.min(Integer.MAX_VALUE - 8,
+                    Math.max(1, (long) Math.ceil(optimalBits / Long.SIZE)));
+            words = new AtomicLongArray(wordCount);
+            bits = (long) wordCount * Long.SIZE;
+            hashFunctions = Math.max(1, (int) Math.round((double) bits / capacity * Math.log(2)));
+        }
+
+        void add(long userId, @NonNull byte[] tokenHash) {
+            var buffer = ByteBuffer.wrap(tokenHash);
+            var hash1 = buffer.getLong(0) ^ userId * GOLDEN_GAMMA;
+            var hash2 = buffer.getLong(Long.BYTES) | 1;
+            for (int i = 0; i < hashFunctions; i++) {
+                var bit = Math.floorMod(hash1 + i * hash2, bits);
+                var index = (int) (bit >>> 6);
+                var mask = 1L << bit;
+                long word;
+                do {
+                    word = words.get(index);
+                } while ((word & mask) == 0 && !words.compareAndSet(index, word, word | mask));
+            }
+            added.incrementAndGet();
+        }
+
+        boolean mightContain(long userId, @NonNull byte[] tokenHash) {
+            var buffer = ByteBuffer.wrap(tokenHash);
+            var hash1 = buffer.getLong(0) ^ userId * GOLDEN_GAMMA;
+            var hash2 = buffer.getLong(Long.BYTES) | 1;
+            for (int i = 0; i < hashFunctions; i++) {
+                var bit = Math.floorMod(hash1 + i * hash2, bits);
+                if ((words.get((int) (bit >>> 6)) & 1L << bit) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        long added() {
+            return added.get();
+        }
+
+        long sizeBytes() {
+            return (long) words.length() * Long.BYTES;
+        }
+
+        /**
+         * @return (1 - e^(-k * n / m))^k for the number of added tokens n.
+         */
+        double expectedFalsePositiveRate() {
+            return Math.pow(1 - Math.exp(-hashFunctions * (double) added() / bits), hashFunctions);
+        }
+    }
+}
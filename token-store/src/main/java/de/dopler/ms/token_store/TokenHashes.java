@@ -0,0 +1,61 @@
+package de.dopler.ms.token_store;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+/**
+ * Conversion between the hex encoded SHA-256 token hashes of the API and the 32 bytes stored in
+ * the {@code token_hash} column.
+ */
+final class TokenHashes {
+
+    static final int HASH_LENGTH = 32;
+
+    private static final char[] HEX_CHARS = "0123456789ABCDEF".toCharArray();
+
+    private TokenHashes() {
+        // utility class
+    }
+
+    /**
+     * @throws IllegalArgumentException if {@code tokenHash} is not a hex encoded SHA-256 hash.
+     */
+    @NonNull
+    static byte[] toBytes(@NonNull String tokenHash) {
+        if (tokenHash.length() != HASH_LENGTH * 2) {
+            throw new IllegalArgumentException("invalid token hash");
+        }
+        var bytes = new byte[HASH_LENGTH];
+        for (int i = 0; i < HASH_LENGTH; i++) {
+            var high = Character.digit(tokenHash.charAt(i * 2), 16);
+            var low = Character.digit(tokenHash.charAt(i * 2 + 1), 16);
+            if (high < 0 || low < 0) {
+                throw new IllegalArgumentException("invalid token hash");
+            }
+            bytes[i] = (byte) (high << 4 | low);
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the upper case hex encoding, as generated by the jwt-server.
+     */
+    @NonNull
+    static String toHex(@NonNull byte[] bytes) {
+        var hexChars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            var v = bytes[i] & 0xFF;
+            hexChars[i * 2] = HEX_CHARS[v >>> 4];
+            hexChars[i * 2 + 1] = HEX_CHARS[v & 0x0F];
+        }
+        return new String(hexChars);
+    }
+
+    /**
+     * @return the upper case hex encoding of {@code tokenHash}.
+     * @throws IllegalArgumentException if {@code tokenHash} is not a hex encoded SHA-256 hash.
+     */
+    @NonNull
+    static String normalize(@NonNull String tokenHash) {
+        return toHex(toBytes(tokenHash));
+    }
+}
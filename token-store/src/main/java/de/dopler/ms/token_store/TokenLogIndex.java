@@ -0,0 +1,152 @@
+package de.dopler.ms.token_store;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.util.function.LongConsumer;
+import java.util.function.LongPredicate;
+
+/**
+ * Off-heap hash index of the {@link LogTokenEngine}: maps the key of a token to the location of
+ * its record. Open addressing with linear probing in a direct buffer; every slot holds a hash of
+ * the key and the location, so the index costs 16 bytes per slot and no objects at all.
+ * <p>
+ * Different keys may have the same hash, so lookups verify candidates against the record via a
+ * predicate. Not thread-safe.
+ */
+final class TokenLogIndex {
+
+    static final long NOT_FOUND = 0;
+
+    private static final int SLOT_LENGTH = 2 * Long.BYTES;
+    private static final long EMPTY = 0;
+    private static final long DELETED = -1;
+    private static final double MAX_LOAD = 0.75;
+
+    private ByteBuffer slots;
+    private int capacity;
+    private int size;
+    // live and deleted slots: probing only stops at empty ones
+    private int used;
+
+    /**
+     * @param initialCapacity rounded up to a power of two.
+     */
+    TokenLogIndex(int initialCapacity) {
+        allocate(Integer.highestOneBit(Math.max(16, initialCapacity - 1)) << 1);
+    }
+
+    /**
+     * @param location must be neither {@link #NOT_FOUND} nor -1.
+     */
+    void put(long keyHash, long location) {
+        if (used + 1 > capacity * MAX_LOAD) {
+            // grow if mostly live, otherwise only clear the deleted slots
+            resize(size + 1 > capacity * MAX_LOAD / 2 ? capacity * 2 : capacity);
+        }
+        var slot = slotOf(keyHash);
+        while (true) {
+            var slotLocation = location(slot);
+            if (slotLocation == EMPTY || slotLocation == DELETED) {
+                if (slotLocation == EMPTY) {
+                    used++;
+                }
+                slots.putLong(slot * SLOT_LENGTH, keyHash);
+                slots.putLong(slot * SLOT_LENGTH + Long.BYTES, location);
+                size++;
+                return;
+            }
+            slot = next(slot);
+        }
+    }
+
+    /**
+     * @return the location of the first entry with {@code keyHash} whose location matches or
+     * {@link #NOT_FOUND}.
+     */
+    long find(long keyHash, @NonNull LongPredicate matches) {
+        var slot = slotOf(keyHash);
+        while (true) {
+            var slotLocation = location(slot);
+            if (slotLocation == EMPTY) {
+                return NOT_FOUND;
+            }
+            if (slotLocation != DELETED && slots.getLong(slot * SLOT_LENGTH) == keyHash &&
+                    matches.test(slotLocation)) {
+                return slotLocation;
+            }
+            slot = next(slot);
+        }
+    }
+
+    /**
+     * Remove the entry with {@code keyHash} and {@code location}, if there is one.
+     */
+    void remove(long keyHash, long location) {
+        var slot = slotOf(keyHash);
+        while (true) {
+            var slotLocation = location(slot);
+            if (slotLocation == EMPTY) {
+                return;
+            }
+            if (slotLocation == location) {
+                slots.putLong(slot * SLOT_LENGTH + Long.BYTES, DELETED);
+                size--;
+                return;
+            }
+            slot = next(slot);
+        }
+    }
+
+    void forEachLocation(@NonNull LongConsumer consumer) {
+        for (int slot = 0; slot < capacity; slot++) {
+            var slotLocation = location(slot);
+            if (slotLocation != EMPTY && slotLocation != DELETED) {
+                consumer.accept(slotLocation);
+            }
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    long memoryBytes() {
+        return (long) capacity * SLOT_LENGTH;
+    }
+
+    private void resize(int newCapacity) {
+        var oldSlots = slots;
+        var oldCapacity = capacity;
+        allocate(newCapacity);
+        for (int slot = 0; slot < oldCapacity; slot++) {
+            var slotLocation = oldSlots.getLong(slot * SLOT_LENGTH + Long.BYTES);
+            if (slotLocation != EMPTY && slotLocation != DELETED) {
+                put(oldSlots.getLong(slot * SLOT_LENGTH), slotLocation);
+            }
+        }
+    }
+
+    private void allocate(int newCapacity) {
+        if (newCapacity <= 0 || (long) newCapacity * SLOT_LENGTH > Integer.MAX_VALUE) {
+            throw new IllegalStateException("token index is full");
+        }
+        // direct buffers are zeroed, i.e. all slots are empty
+        slots = ByteBuffer.allocateDirect(newCapacity * SLOT_LENGTH);
+        capacity = newCapacity;
+        size = 0;
+        used = 0;
+    }
+
+    private int slotOf(long keyHash) {
+        return (int) (keyHash ^ keyHash >>> 32) & capacity - 1;
+    }
+
+    private int next(int slot) {
+        return slot + 1 & capacity - 1;
+    }
+
+    private long location(int slot) {
+        return slots.getLong(slot * SLOT_LENGTH + Long.BYTES);
+    }
+}
@@ -0,0 +1,180 @@
+package de.dopler.ms.token_store;
+
+import de.dopler.ms.token_store.domain.StoredToken;
+import de.dopler.ms.token_store.domain.TokenOperation;
+import de.dopler.ms.token_store.domain.TokenOperationResult;
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.ws.rs.core.Response.Status;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.stream.Collectors;
+
+/**
+ * Executes a batch of mixed token operations, so a client with many concurrent requests (the
+ * jwt-server) pays the HTTP overhead once per batch instead of once per operation.
+ * <p>
+ * The operations are independent, each with the result and status of the corresponding
+ * single-operation endpoint, and a failed operation doesn't affect the others. The stores of a
+ * batch are written together first, so they share a group commit of the engine instead of
+ * waiting for one commit each; the other operations then run one after the other in their
+ * order.
+ */
+@ApplicationScoped
+public class TokenOperationBatch {
+
+    private final TokenStoreService tokenStoreService;
+    private final int maxOperations;
+
+    @Inject
+    public TokenOperationBatch(TokenStoreService tokenStoreService,
+            @ConfigProperty(name = "token-store.batch.max-operations", defaultValue = "1000")
+                    int maxOperations) {
+        this.tokenStoreService = tokenStoreService;
+        this.maxOperations = maxOperations;
+    }
+
+    /**
+     * @return the results in the order of the operations.
+     */
+    @NonNull
+    public List<TokenOperationResult> execute(@NonNull List<TokenOperation> operations) {
+        if (operations.size() > maxOperations) {
+            throw new IllegalArgumentException(
+                    String.format("more than %d operations", maxOperations));
+        }
+        var results = new TokenOperationResult[operations.size()];
+        var stores = new ArrayList<StoredToken>();
+        var storeIndexes = new ArrayList<Integer>();
+        for (int i = 0; i < results.length; i++) {
+            var operation = operations.get(i);
+            if (operation == null || !TokenOperation.STORE.equals(operation.op)) {
+                continue;
+            }
+            results[i] = validateStore(operation);
+            if (results[i] == null) {
+                stores.add(new StoredToken(operation.userId, operation.tokenHash,
+                        operation.groups, operation.expiresAt, null));
+                storeIndexes.add(i);
+            }
+        }
+        var storeResults = store(stores);
+        for (int i = 0; i < storeIndexes.size(); i++) {
+            results[storeIndexes.get(i)] = storeResults.get(i);
+        }
+        for (int i = 0; i < results.length; i++) {
+            if (results[i] == null) {
+                results[i] = execute(operations.get(i));
+            }
+        }
+        return Arrays.asList(results);
+    }
+
+    /**
+     * @return the result of an invalid store operation, null if it is valid.
+     */
+    private static TokenOperationResult validateStore(@NonNull TokenOperation operation) {
+        if (operation.tokenHash == null || operation.groups == null) {
+            return error(Status.BAD_REQUEST, "invalid token object");
+        }
+        try {
+            // an invalid token hash must fail only its own operation, not all stores
+            TokenHashes.toBytes(operation.tokenHash);
+            return null;
+        } catch (IllegalArgumentException e) {
+            return error(Status.BAD_REQUEST, e.getMessage());
+        }
+    }
+
+    @NonNull
+    private List<TokenOperationResult> store(@NonNull List<StoredToken> tokens) {
+        if (tokens.isEmpty()) {
+            return List.of();
+        }
+        List<CompletableFuture<Boolean>> stored;
+        try {
+            stored = tokenStoreService.putEach(tokens);
+        } catch (RuntimeException e) {
+            return Collections.nCopies(tokens.size(), failure(e));
+        }
+        return stored.stream().map(result -> {
+            try {
+                return result.join() ?
+                        status(Status.NO_CONTENT) :
+                        status(Status.INTERNAL_SERVER_ERROR);
+            } catch (CompletionException e) {
+                return e.getCause() instanceof RuntimeException ?
+                        failure((RuntimeException) e.getCause()) :
+                        status(Status.INTERNAL_SERVER_ERROR);
+            }
+        }).collect(Collectors.toList());
+    }
+
+    @NonNull
+    private TokenOperationResult execute(TokenOperation operation) {
+        if (operation == null || operation.op == null) {
+            return error(Status.BAD_REQUEST, "invalid token operation");
+        }
+        try {
+            switch (operation.op) {
+                case TokenOperation.POP:
+                    if (operation.tokenHash == null || operation.tokenHash.isEmpty()) {
+                        return error(Status.BAD_REQUEST, "missing token hash");
+                    }
+                    return groups(tokenStoreService.popGroups(operation.userId,
+                            operation.tokenHash));
+                case TokenOperation.ROTATE:
+                    if (operation.tokenHash == null || operation.tokenHash.isEmpty() ||
+                            operation.newTokenHash == null) {
+                        return error(Status.BAD_REQUEST, "invalid token rotation object");
+                    }
+                    return groups(tokenStoreService.rotate(operation.userId, operation.tokenHash,
+                            operation.newTokenHash, operation.expiresAt));
+                case TokenOperation.DELETE:
+                    return new TokenOperationResult(Status.OK.getStatusCode(), null,
+                            tokenStoreService.deleteForUser(operation.userId), null);
+                default:
+                    return error(Status.BAD_REQUEST, "unknown op: " + operation.op);
+            }
+        } catch (RuntimeException e) {
+            return failure(e);
+        }
+    }
+
+    @NonNull
+    private static TokenOperationResult failure(@NonNull RuntimeException e) {
+        if (e instanceof IllegalArgumentException) {
+            return error(Status.BAD_REQUEST, e.getMessage());
+        }
+        if (e instanceof RejectedExecutionException) {
+            return error(Status.SERVICE_UNAVAILABLE, e.getMessage());
+        }
+        return status(Status.INTERNAL_SERVER_ERROR);
+    }
+
+    @NonNull
+    private static TokenOperationResult groups(@NonNull Optional<Set<String>> groups) {
+        return groups.map(g -> new TokenOperationResult(Status.OK.getStatusCode(), g, null, null))
+                .orElse(status(Status.NOT_FOUND));
+    }
+
+    @NonNull
+    private static TokenOperationResult status(@NonNull Status status) {
+        return new TokenOperationResult(status.getStatusCode(), null, null, null);
+    }
+
+    @NonNull
+    private static TokenOperationResult error(@NonNull Status status, @NonNull String error) {
+        return new TokenOperationResult(status.getStatusCode(), null, null, error);
+    }
+}
@@ -0,0 +1,265 @@
+package de.dopler.ms.token_store;
+
+import de.dopler.ms.group_dictionary.GroupDictionary;
+import org.eclipse.jdt.annotation.NonNull;
+import org.jboss.logging.Logger;
+
+import javax.sql.DataSource;
+import java.sql.*;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import static de.dopler.ms.token_store.TokenStoreSqlStatements.*;
+
+/**
+ * Moves the tokens to their shards after the shard count has changed. Runs on startup before the
+ * engines are initialized, so no requests are served meanwhile ("offline").
+ * <p>
+ * The shard count is stored in every shard; shard 0 is written last, so a resharding which
+ * stopped half-way is repeated on the next start. Tokens are merged into their new shard before
+ * they are deleted from the old one, so a token is never lost; at worst a copy stays in the old
+ * shard until it expires. Expired tokens are not moved.
+ */
+final class TokenResharder {
+
+    private static final Logger LOG = Logger.getLogger("TokenResharder");
+
+    private static final int BATCH_SIZE = 1000;
+
+    private final TokenShards shards;
+    private final Map<Integer, GroupDictionary> groupDictionaries = new HashMap<>();
+
+    TokenResharder(@NonNull TokenShards shards) {
+        this.shards = shards;
+    }
+
+    void reshardIfNeeded() {
+        var count = shards.count();
+        int previousCount;
+        try {
+            previousCount = readShardCount(shards.dataSource(0));
+            if (previousCount == count) {
+                return;
+            }
+            var timingStart = Instant.now();
+            var shardCount = Math.max(previousCount, count);
+            for (int shard = 0; shard < shardCount; shard++) {
+                checkNoV1Table(shard);
+            }
+            var moved = 0L;
+            for (int shard = 0; shard < shardCount; shard++) {
+                for (var table : tokenTables(shards.dataSource(shard))) {
+                    moved += moveMisplaced(shard, table, count);
+                }
+            }
+            for (int shard = count - 1; shard >= 0; shard--) {
+                writeShardCount(shards.dataSource(shard), shard, count);
+            }
+            var duration = timingStart.until(Instant.now(), ChronoUnit.MILLIS);
+            LOG.infof("Resharded from %d to %d shards, moved %d tokens after %d ms",
+                    previousCount, count, moved, duration);
+            for (int shard = count; shard < previousCount; shard++) {
+                LOG.infof("Token shard %d is empty now and can be removed", shard);
+            }
+        } catch (SQLException e) {
+            LOG.errorf("resharding failed: %s", e.getMessage());
+            throw new IllegalStateException("Resharding the store failed due to SQL exception");
+        }
+    }
+
+    /**
+     * @return the stored shard count; 1 for a store which has never been sharded.
+     */
+    private static int readShardCount(@NonNull DataSource dataSource) throws SQLException {
+        try (Connection conn = dataSource.getConnection();
+             Statement statement = conn.createStatement()) {
+            conn.setAutoCommit(true);
+            statement.execute(SQL_CREATE_SHARD_TABLE);
+            try (ResultSet resultSet = statement.executeQuery(SQL_SELECT_SHARD_COUNT)) {
+                return resultSet.next() ? resultSet.getInt(1) : 1;
+            }
+        }
+    }
+
+    private static void writeShardCount(@NonNull DataSource dataSource, int shard, int count)
+            throws SQLException {
+        try (Connection conn = dataSource.getConnection();
+             Statement statement = conn.createStatement()) {
+            conn.setAutoCommit(false);
+            statement.execute(SQL_CREATE_SHARD_TABLE);
+            statement.execute(SQL_DELETE_SHARD);
+            try (PreparedStatement insertStatement = conn.prepareStatement(SQL_INSERT_SHARD)) {
+                insertStatement.setInt(1, shard);
+                insertStatement.setInt(2, count);
+                insertStatement.executeUpdate();
+            }
+            conn.commit();
+        }
+    }
+
+    private void checkNoV1Table(int shard) throws SQLException {
+        try (Connection conn = shards.dataSource(shard).getConnection();
+             Statement statement = conn.createStatement()) {
+            conn.setAutoCommit(true);
+            if (count(statement, SQL_COUNT_V1_TOKENS_TABLE) > 0 ||
+                    count(statement, SQL_COUNT_V1_TABLE) > 0) {
+                throw new IllegalStateException(String.format(
+                        "Shard %d holds tokens of schema v1: finish the migration before " +
+                                "resharding", shard));
+            }
+        }
+    }
+
+    @NonNull
+    private static List<String> tokenTables(@NonNull DataSource dataSource) throws SQLException {
+        var tables = new ArrayList<String>();
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement statement = conn.prepareStatement(SQL_SELECT_TOKEN_TABLES)) {
+            conn.setAutoCommit(true);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    tables.add(resultSet.getString(1).toLowerCase(Locale.ROOT));
+                }
+            }
+        }
+        return tables;
+    }
+
+    /**
+     * Move the tokens of {@code table} in {@code shard} which belong to another shard.
+     *
+     * @return the number of moved tokens.
+     */
+    private long moveMisplaced(int shard, @NonNull String table, int count) throws SQLException {
+        var moved = 0L;
+        var batches = new HashMap<Integer, List<Row>>();
+        try (Connection conn = shards.dataSource(shard).getConnection();
+             Statement alterStatement = conn.createStatement()) {
+            conn.setAutoCommit(true);
+            // the engines add the column only after resharding
+            addIssuedAtColumn(alterStatement, table);
+        }
+        try (Connection conn = shards.dataSource(shard).getConnection();
+             PreparedStatement statement = conn.prepareStatement(
+                     String.format(SQL_SELECT_VALID_FROM, table))) {
+            conn.setAutoCommit(true);
+            // H2 materializes the result, so it isn't affected by the deletes of moved tokens
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    var userId = resultSet.getLong(1);
+                    var targetShard = TokenShards.shardOf(userId, count);
+                    if (targetShard == shard) {
+                        continue;
+                    }
+                    var batch = batches.computeIfAbsent(targetShard, s -> new ArrayList<>());
+                    batch.add(new Row(userId, resultSet.getBytes(2), resultSet.getBytes(3),
+                            resultSet.getTimestamp(4), resultSet.getTimestamp(5)));
+                    if (batch.size() >= BATCH_SIZE) {
+                        moved += move(shard, targetShard, table, batch);
+                        batch.clear();
+                    }
+                }
+            }
+        }
+        for (var batch : batches.entrySet()) {
+            if (!batch.getValue().isEmpty()) {
+                moved += move(shard, batch.getKey(), table, batch.getValue());
+            }
+        }
+        return moved;
+    }
+
+    private int move(int sourceShard, int targetShard, @NonNull String table,
+            @NonNull List<Row> rows) throws SQLException {
+        var sourceGroupDictionary = groupDictionary(sourceShard);
+        var targetGroupDictionary = groupDictionary(targetShard);
+        try (Connection conn = shards.dataSource(targetShard).getConnection();
+             Statement statement = conn.createStatement()) {
+            conn.setAutoCommit(false);
+            createTable(statement, table);
+            try (PreparedStatement mergeStatement = conn.prepareStatement(
+                    String.format(SQL_MERGE_INTO, table))) {
+                for (var row : rows) {
+                    // the group ids differ between the shards' dictionaries
+                    var groups = sourceGroupDictionary.decode(row.groups);
+                    mergeStatement.setLong(1, row.userId);
+                    mergeStatement.setBytes(2, row.tokenHash);
+                    mergeStatement.setBytes(3, targetGroupDictionary.encode(groups));
+                    mergeStatement.setTimestamp(4, row.expiresAt);
+                    mergeStatement.setTimestamp(5, row.issuedAt);
+                    mergeStatement.addBatch();
+                }
+                mergeStatement.executeBatch();
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        }
+        try (Connection conn = shards.dataSource(sourceShard).getConnection();
+             PreparedStatement deleteStatement = conn.prepareStatement(
+                     String.format(SQL_DELETE_FROM_BY_USER_ID_TOKEN_HASH, table))) {
+            conn.setAutoCommit(false);
+            for (var row : rows) {
+                deleteStatement.setLong(1, row.userId);
+                deleteStatement.setBytes(2, row.tokenHash);
+                deleteStatement.addBatch();
+            }
+            deleteStatement.executeBatch();
+            conn.commit();
+        }
+        return rows.size();
+    }
+
+    private static void createTable(@NonNull Statement statement, @NonNull String table)
+            throws SQLException {
+        if (table.equals("tokens")) {
+            statement.execute(SQL_CREATE_TABLE);
+            statement.execute(SQL_CREATE_INDEX_EXPIRES_AT);
+        } else {
+            statement.execute(String.format(SQL_CREATE_PARTITION, table));
+        }
+        addIssuedAtColumn(statement, table);
+    }
+
+    private static void addIssuedAtColumn(@NonNull Statement statement, @NonNull String table)
+            throws SQLException {
+        statement.execute(String.format(SQL_ADD_ISSUED_AT_COLUMN, table));
+        statement.execute(String.format(SQL_SET_ISSUED_AT_DEFAULT, table));
+    }
+
+    @NonNull
+    private GroupDictionary groupDictionary(int shard) {
+        return groupDictionaries.computeIfAbsent(shard,
+                s -> new GroupDictionary(shards.dataSource(s)));
+    }
+
+    private static long count(Statement statement, String sql) throws SQLException {
+        try (ResultSet resultSet = statement.executeQuery(sql)) {
+            return resultSet.next() ? resultSet.getLong(1) : 0;
+        }
+    }
+
+    private static final class Row {
+
+        final long userId;
+        final byte[] tokenHash;
+        final byte[] groups;
+        final Timestamp expiresAt;
+        final Timestamp issuedAt;
+
+        Row(long userId, byte[] tokenHash, byte[] groups, Timestamp expiresAt,
+                Timestamp issuedAt) {
+            this.userId = userId;
+            this.tokenHash = tokenHash;
+            this.groups = groups;
+            this.expiresAt = expiresAt;
+            this.issuedAt = issuedAt;
+        }
+    }
+}
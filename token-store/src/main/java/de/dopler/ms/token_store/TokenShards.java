@@ -0,0 +1,113 @@
+package de.dopler.ms.token_store;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.jboss.logging.Logger;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.sql.DataSource;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The databases the tokens are sharded across, see {@code token-store.shards.count}. Shard 0 is
+ * the default datasource, so the existing tokens stay in place when sharding is enabled; the other
+ * shards are separate H2 databases at {@code token-store.shards.url-template}, each with its own
+ * connection pool.
+ * <p>
+ * Tokens are routed by a hash of their userId (see {@link #shardOf(long, int)}), so all tokens of
+ * a user are in the same shard. If the shard count changes, the tokens are moved to their new
+ * shards by {@link #reshardIfNeeded()} before the engines are initialized.
+ */
+@ApplicationScoped
+public class TokenShards {
+
+    private static final Logger LOG = Logger.getLogger("TokenShards");
+
+    private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+    private final DataSource defaultDataSource;
+    private final int count;
+    private final String urlTemplate;
+    private final int poolSize;
+    private final DataSourceInstrumentation instrumentation;
+    private final ConcurrentHashMap<Integer, JdbcConnectionPool> pools = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, DataSource> dataSources = new ConcurrentHashMap<>();
+
+    @SuppressWarnings("CdiInjectionPointsInspection")
+    @Inject
+    public TokenShards(DataSource dataSource,
+            @ConfigProperty(name = "token-store.shards.count", defaultValue = "1") int count,
+            @ConfigProperty(name = "token-store.shards.url-template",
+                    defaultValue = "jdbc:h2:../ms-tokens-%d;AUTO_SERVER=TRUE") String urlTemplate,
+            @ConfigProperty(name = "token-store.shards.pool-size", defaultValue = "20")
+                    int poolSize,
+            DataSourceInstrumentation instrumentation) {
+        if (count < 1) {
+            throw new IllegalArgumentException("token-store.shards.count must be at least 1");
+        }
+        this.defaultDataSource = dataSource;
+        this.count = count;
+        this.urlTemplate = urlTemplate;
+        this.poolSize = poolSize;
+        this.instrumentation = instrumentation;
+    }
+
+    public int count() {
+        return count;
+    }
+
+    /**
+     * @return the shard of the user's tokens if there are {@code count} shards.
+     */
+    static int shardOf(long userId, int count) {
+        // spread sequential ids evenly
+        return Math.floorMod(Long.hashCode(userId * GOLDEN_GAMMA), count);
+    }
+
+    /**
+     * @return the datasource of the given shard; shards beyond {@link #count()} are only used
+     * while resharding.
+     */
+    @NonNull
+    public DataSource dataSource(int shard) {
+        if (shard == 0) {
+            return defaultDataSource;
+        }
+        return dataSources.computeIfAbsent(shard, s -> instrument(createPool(s)));
+    }
+
+    /**
+     * Move the tokens to their shards if the shard count changed since the last start. Must run
+     * before the engines are initialized.
+     */
+    public void reshardIfNeeded() {
+        new TokenResharder(this).reshardIfNeeded();
+    }
+
+    /**
+     * Close the connection pools of all shards but the default datasource.
+     */
+    public void close() {
+        pools.values().forEach(JdbcConnectionPool::dispose);
+        pools.clear();
+        dataSources.clear();
+    }
+
+    @NonNull
+    private DataSource instrument(@NonNull DataSource dataSource) {
+        // not instrumented in tests which create the shards directly
+        return instrumentation == null ? dataSource : instrumentation.instrument(dataSource);
+    }
+
+    @NonNull
+    private JdbcConnectionPool createPool(int shard) {
+        var url = String.format(urlTemplate, shard);
+        LOG.infof("Opening token shard %d at %s", shard, url);
+        var pool = JdbcConnectionPool.create(url, "", "");
+        pool.setMaxConnections(poolSize);
+        pools.put(shard, pool);
+        return pool;
+    }
+}
@@ -2,7 +2,10 @@ package de.dopler.ms.token_store;
 
 import de.dopler.ms.response_utils.ResponseUtils;
 import de.dopler.ms.token_store.domain.TokenData;
+import de.dopler.ms.token_store.domain.TokenOperation;
+import de.dopler.ms.token_store.domain.TokenRotation;
 import io.quarkus.runtime.StartupEvent;
+import org.jboss.logging.Logger;
 
 import javax.enterprise.event.Observes;
 import javax.inject.Inject;
@@ -10,17 +13,36 @@ import javax.ws.rs.*;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
 
 @Path("/auth/tokens")
 @Produces(MediaType.TEXT_PLAIN)
 @Consumes(MediaType.TEXT_PLAIN)
 public class TokenStoreResource {
 
+    private static final Logger LOG = Logger.getLogger("TokenStoreResource");
+
+    private static final String APPLICATION_NDJSON = "application/x-ndjson";
+
     private final TokenStoreService tokenStoreService;
+    private final TokenTransfer tokenTransfer;
+    private final TokenOperationBatch tokenOperationBatch;
 
     @Inject
-    public TokenStoreResource(TokenStoreService tokenStoreService) {
+    public TokenStoreResource(TokenStoreService tokenStoreService, TokenTransfer tokenTransfer,
+            TokenOperationBatch tokenOperationBatch) {
         this.tokenStoreService = tokenStoreService;
+        this.tokenTransfer = tokenTransfer;
+        this.tokenOperationBatch = tokenOperationBatch;
     }
 
     void onStart(@Observes StartupEvent ev) {
@@ -49,6 +71,10 @@ public class TokenStoreResource {
         try {
             stored = tokenStoreService.put(tokenData.userId, tokenData.tokenHash, tokenData.groups,
                     tokenData.expiresAt);
+        } catch (IllegalArgumentException e) {
+            return ResponseUtils.textResponse(Status.BAD_REQUEST, e.getMessage());
+        } catch (RejectedExecutionException e) {
+            return ResponseUtils.textResponse(Status.SERVICE_UNAVAILABLE, e.getMessage());
         } catch (IllegalStateException e) {
             return ResponseUtils.status(Status.INTERNAL_SERVER_ERROR);
         }
@@ -57,6 +83,72 @@ public class TokenStoreResource {
                 ResponseUtils.status(Status.INTERNAL_SERVER_ERROR);
     }
 
+    /**
+     * Execute a batch of store, pop, rotate and delete operations.
+     *
+     * @return the results of the operations in their order; 200 even if single operations
+     * failed.
+     */
+    @POST
+    @Path("/batch")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response batch(List<TokenOperation> operations) {
+        if (operations == null) {
+            return ResponseUtils.textResponse(Status.BAD_REQUEST, "invalid token operations");
+        }
+
+        try {
+            return ResponseUtils.jsonResponse(Status.OK, tokenOperationBatch.execute(operations));
+        } catch (IllegalArgumentException e) {
+            return ResponseUtils.textResponse(Status.BAD_REQUEST, e.getMessage());
+        }
+    }
+
+    /**
+     * Stream all valid tokens as NDJSON. Once streaming has started, a failure can't change the
+     * status anymore: the response is aborted instead.
+     */
+    @GET
+    @Path("/export")
+    @Produces(APPLICATION_NDJSON)
+    public Response exportTokens() {
+        StreamingOutput output = outputStream -> {
+            try {
+                tokenTransfer.exportTokens(new BufferedWriter(
+                        new OutputStreamWriter(outputStream, StandardCharsets.UTF_8)));
+            } catch (IllegalStateException e) {
+                LOG.errorf("token export failed: %s", e.getMessage());
+                throw new WebApplicationException(e, Status.INTERNAL_SERVER_ERROR);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        };
+        return ResponseUtils.response(Status.OK, MediaType.valueOf(APPLICATION_NDJSON), output);
+    }
+
+    /**
+     * @param tokens NDJSON as written by {@link #exportTokens()}, read as a stream.
+     * @return the number of imported tokens.
+     */
+    @POST
+    @Path("/import")
+    @Consumes(APPLICATION_NDJSON)
+    public Response importTokens(InputStream tokens) {
+        long imported;
+        try {
+            imported = tokenTransfer.importTokens(
+                    new InputStreamReader(tokens, StandardCharsets.UTF_8));
+        } catch (IllegalArgumentException e) {
+            return ResponseUtils.textResponse(Status.BAD_REQUEST, e.getMessage());
+        } catch (IOException e) {
+            return ResponseUtils.textResponse(Status.BAD_REQUEST, "reading the tokens failed");
+        } catch (IllegalStateException e) {
+            return ResponseUtils.status(Status.INTERNAL_SERVER_ERROR);
+        }
+        return ResponseUtils.textResponse(Status.OK, String.valueOf(imported));
+    }
+
     @GET
     @Path("/{userId}")
     @Produces(MediaType.APPLICATION_JSON)
@@ -70,6 +162,34 @@ public class TokenStoreResource {
             return tokenStoreService.popGroups(userId, tokenHash)
                     .map(groups -> ResponseUtils.jsonResponse(Status.OK, groups))
                     .orElse(ResponseUtils.status(Status.NOT_FOUND));
+        } catch (IllegalArgumentException e) {
+            return ResponseUtils.textResponse(Status.BAD_REQUEST, e.getMessage());
+        } catch (RejectedExecutionException e) {
+            return ResponseUtils.textResponse(Status.SERVICE_UNAVAILABLE, e.getMessage());
+        } catch (IllegalStateException e) {
+            return ResponseUtils.status(Status.INTERNAL_SERVER_ERROR);
+        }
+    }
+
+    @POST
+    @Path("/{userId}/rotate")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response rotate(@PathParam("userId") long userId, TokenRotation tokenRotation) {
+        if (tokenRotation == null || tokenRotation.tokenHash == null ||
+                tokenRotation.tokenHash.length() == 0 || tokenRotation.newTokenHash == null) {
+            return ResponseUtils.textResponse(Status.BAD_REQUEST, "invalid token rotation object");
+        }
+
+        try {
+            return tokenStoreService.rotate(userId, tokenRotation.tokenHash,
+                    tokenRotation.newTokenHash, tokenRotation.expiresAt)
+                    .map(groups -> ResponseUtils.jsonResponse(Status.OK, groups))
+                    .orElse(ResponseUtils.status(Status.NOT_FOUND));
+        } catch (IllegalArgumentException e) {
+            return ResponseUtils.textResponse(Status.BAD_REQUEST, e.getMessage());
+        } catch (RejectedExecutionException e) {
+            return ResponseUtils.textResponse(Status.SERVICE_UNAVAILABLE, e.getMessage());
         } catch (IllegalStateException e) {
             return ResponseUtils.status(Status.INTERNAL_SERVER_ERROR);
         }
@@ -81,6 +201,8 @@ public class TokenStoreResource {
         int deleted;
         try {
             deleted = tokenStoreService.deleteForUser(userId);
+        } catch (RejectedExecutionException e) {
+            return ResponseUtils.textResponse(Status.SERVICE_UNAVAILABLE, e.getMessage());
         } catch (IllegalStateException e) {
             return ResponseUtils.status(Status.INTERNAL_SERVER_ERROR);
         }
@@ -1,136 +1,222 @@
 package de.dopler.ms.token_store;
 
+import de.dopler.ms.token_store.TokenEngine.ChunkProgress;
+import de.dopler.ms.token_store.TokenEngine.TokenMatcher;
+import de.dopler.ms.token_store.domain.StoredToken;
+import io.quarkus.runtime.ShutdownEvent;
 import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
 import org.jboss.logging.Logger;
 
 import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.enterprise.event.Reception;
 import javax.inject.Inject;
-import javax.sql.DataSource;
-import java.sql.*;
-import java.time.Instant;
-import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
 import java.util.Set;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
-
-import static de.dopler.ms.token_store.TokenStoreSqlStatements.*;
-import static java.sql.JDBCType.VARCHAR;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
+/**
+ * Entry point for all token operations. Delegates to the {@link TokenEngine} selected by
+ * {@code token-store.engine}: {@value #ENGINE_JDBC} (default), {@value #ENGINE_MEMORY},
+ * {@value #ENGINE_PARTITIONED} or {@value #ENGINE_LOG}.
+ * <p>
+ * Lookups of tokens which are definitely not stored are answered by the {@link TokenFilter}
+ * without asking the engine. With more than one of the {@link TokenShards}, every shard gets its
+ * own engine of the selected kind.
+ */
 @ApplicationScoped
 public class TokenStoreService {
 
     private static final Logger LOG = Logger.getLogger("TokenStoreService");
 
-    private final DataSource dataSource;
+    static final String ENGINE_JDBC = "jdbc";
+    static final String ENGINE_MEMORY = "memory";
+    static final String ENGINE_PARTITIONED = "partitioned";
+    static final String ENGINE_LOG = "log";
+
+    private final TokenEngine engine;
+    private final LatencyMonitor latencyMonitor;
+    private final TokenFilter tokenFilter;
+    private final TokenShards tokenShards;
 
-    @SuppressWarnings("CdiInjectionPointsInspection")
     @Inject
-    public TokenStoreService(DataSource dataSource) {
-        this.dataSource = dataSource;
+    public TokenStoreService(
+            @ConfigProperty(name = "token-store.engine", defaultValue = ENGINE_JDBC) String engine,
+            JdbcTokenEngine jdbcTokenEngine, MemoryTokenEngine memoryTokenEngine,
+            PartitionedTokenEngine partitionedTokenEngine, LogTokenEngine logTokenEngine,
+            LatencyMonitor latencyMonitor, TokenFilter tokenFilter, TokenShards tokenShards) {
+        this.latencyMonitor = latencyMonitor;
+        this.tokenFilter = tokenFilter;
+        this.tokenShards = tokenShards;
+        TokenEngine selectedEngine;
+        switch (engine) {
+            case ENGINE_JDBC:
+                selectedEngine = jdbcTokenEngine;
+                break;
+            case ENGINE_MEMORY:
+                selectedEngine = memoryTokenEngine;
+                break;
+            case ENGINE_PARTITIONED:
+                selectedEngine = partitionedTokenEngine;
+                break;
+            case ENGINE_LOG:
+                selectedEngine = logTokenEngine;
+                break;
+            default:
+                throw new IllegalArgumentException("unknown token-store.engine: " + engine);
+        }
+        if (tokenShards.count() > 1) {
+            var shardEngines = new ArrayList<TokenEngine>(tokenShards.count());
+            // shard 0 is the default datasource of the selected engine
+            shardEngines.add(selectedEngine);
+            for (int shard = 1; shard < tokenShards.count(); shard++) {
+                shardEngines.add(selectedEngine.forDataSource(tokenShards.dataSource(shard)));
+            }
+            this.engine = new ShardedTokenEngine(shardEngines);
+        } else {
+            this.engine = selectedEngine;
+        }
+        LOG.infof("Using token engine '%s' with %d shard(s)", engine, tokenShards.count());
+    }
+
+    void onStop(@Observes(notifyObserver = Reception.IF_EXISTS) ShutdownEvent ev) {
+        engine.shutdown();
+        tokenShards.close();
     }
 
     public void initStore() {
-        var timingStart = Instant.now();
-        try (Connection conn = dataSource.getConnection();
-             Statement statement = conn.createStatement()) {
-            conn.setAutoCommit(false);
-            statement.execute(SQL_CREATE_TABLE);
-            statement.execute(SQL_CREATE_INDEX_USER_ID_TOKEN_HASH);
-            statement.execute(SQL_CREATE_INDEX_EXPIRES_AT);
-            conn.commit();
-        } catch (SQLException e) {
-            LOG.errorf("initStore failed: %s", e.getMessage());
-            throw new IllegalStateException("Initializing the store failed due to SQL exception");
+        tokenShards.reshardIfNeeded();
+        engine.initStore();
+        tokenFilter.rebuild(engine);
+    }
+
+    /**
+     * Rebuild the {@link TokenFilter} in the background if too many of its tokens are gone.
+     */
+    public void rebuildFilterIfStale() {
+        if (tokenFilter.isStale()) {
+            tokenFilter.rebuild(engine);
         }
-        var duration = timingStart.until(Instant.now(), ChronoUnit.MILLIS);
-        LOG.infof("Database initialization succeeded after %d ms", duration);
     }
 
     public boolean put(long userId, @NonNull String tokenHash, @NonNull Set<String> groups,
             long expiresAt) {
-        var expiresAtInstant = Instant.ofEpochSecond(expiresAt);
-        var updatedRows = 0;
-        try (Connection conn = dataSource.getConnection();
-             PreparedStatement statement = conn.prepareStatement(SQL_INSERT)) {
-            conn.setAutoCommit(true);
-            statement.setLong(1, userId);
-            statement.setString(2, tokenHash);
-            Array groupsArray = conn.createArrayOf(VARCHAR.name(), groups.toArray());
-            statement.setArray(3, groupsArray);
-            statement.setTimestamp(4, Timestamp.from(expiresAtInstant));
-            updatedRows = statement.executeUpdate();
-        } catch (SQLException e) {
-            LOG.errorf("put failed for userId %d: %s", userId, e.getMessage());
-            throw new IllegalStateException("put failed due to SQL exception");
+        var start = System.nanoTime();
+        try {
+            return tokenFilter.add(userId, tokenHash,
+                    () -> engine.put(userId, tokenHash, groups, expiresAt));
+        } finally {
+            latencyMonitor.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * @see TokenEngine#putEach(List)
+     */
+    @NonNull
+    public List<CompletableFuture<Boolean>> putEach(@NonNull List<StoredToken> tokens) {
+        var start = System.nanoTime();
+        try {
+            return tokenFilter.addAll(tokens, () -> engine.putEach(tokens));
+        } finally {
+            latencyMonitor.record(System.nanoTime() - start);
         }
-        return updatedRows == 1;
     }
 
     @NonNull
     public Optional<Set<String>> popGroups(long userId, @NonNull String tokenHash) {
-        Set<String> groups = null;
-        try (Connection conn = dataSource.getConnection();
-             PreparedStatement selectStatement = conn.prepareStatement(SQL_SELECT_GROUPS);
-             PreparedStatement deleteStatement = conn.prepareStatement(
-                     SQL_DELETE_BY_USER_ID_TOKEN_HASH)) {
-            // we have multiple queries but still the results should not be rolled back if only
-            // the delete statement fails: so set auto commit to true
-            conn.setAutoCommit(true);
-            // select
-            selectStatement.setLong(1, userId);
-            selectStatement.setString(2, tokenHash);
-            try (ResultSet resultSet = selectStatement.executeQuery()) {
-                if (resultSet.next()) {
-                    groups = toStringSet(resultSet.getArray(1));
-                }
-            }
-            if (groups == null) {
+        var start = System.nanoTime();
+        try {
+            if (!tokenFilter.mightContain(userId, tokenHash)) {
                 return Optional.empty();
             }
-            // delete
-            deleteStatement.setLong(1, userId);
-            deleteStatement.setString(2, tokenHash);
-            if (deleteStatement.executeUpdate() == 0) {
-                LOG.errorf("delete statement in popGroups failed for userId %d", userId);
+            return recordLookup(engine.popGroups(userId, tokenHash));
+        } finally {
+            latencyMonitor.record(System.nanoTime() - start);
+        }
+    }
+
+    @NonNull
+    public Optional<Set<String>> rotate(long userId, @NonNull String tokenHash,
+            @NonNull String newTokenHash, long newExpiresAt) {
+        var start = System.nanoTime();
+        try {
+            if (!tokenFilter.mightContain(userId, tokenHash)) {
+                // an invalid new token hash is a bad request nevertheless
+                TokenHashes.toBytes(newTokenHash);
+                return Optional.empty();
             }
-        } catch (SQLException e) {
-            LOG.errorf("popGroups failed for userId %d: %s", userId, e.getMessage());
-            throw new IllegalStateException("popGroups failed due to SQL exception");
+            return recordLookup(tokenFilter.add(userId, newTokenHash,
+                    () -> engine.rotate(userId, tokenHash, newTokenHash, newExpiresAt)));
+        } finally {
+            latencyMonitor.record(System.nanoTime() - start);
         }
-        return Optional.of(groups);
     }
 
     public int deleteForUser(long userId) {
-        var updatedRows = 0;
-        try (Connection conn = dataSource.getConnection();
-             PreparedStatement statement = conn.prepareStatement(SQL_DELETE_BY_USER_ID)) {
-            conn.setAutoCommit(true);
-            statement.setLong(1, userId);
-            updatedRows = statement.executeUpdate();
-        } catch (SQLException e) {
-            LOG.errorf("deleteForUser failed: %s", e.getMessage());
-            throw new IllegalStateException("deleteForUser failed due to SQL exception");
-        }
-        return updatedRows;
+        return recordRemoved(engine.deleteForUser(userId));
+    }
+
+    /**
+     * @see TokenEngine#deleteForUsers(long[])
+     */
+    public int deleteForUsers(@NonNull long[] userIds) {
+        return recordRemoved(engine.deleteForUsers(userIds));
+    }
+
+    /**
+     * @see TokenEngine#deleteMatching(TokenMatcher, int, ChunkProgress)
+     */
+    public long deleteMatching(@NonNull TokenMatcher matcher, int chunkSize,
+            @NonNull ChunkProgress progress) {
+        return engine.deleteMatching(matcher, chunkSize, (checked, deleted) -> {
+            tokenFilter.recordRemoved(deleted);
+            return progress.onChunk(checked, deleted);
+        });
     }
 
     public int deleteExpired() {
-        var updatedRows = 0;
-        try (Connection conn = dataSource.getConnection();
-             PreparedStatement statement = conn.prepareStatement(SQL_DELETE_EXPIRED)) {
-            conn.setAutoCommit(true);
-            updatedRows = statement.executeUpdate();
-        } catch (SQLException e) {
-            LOG.errorf("deleteExpired failed: %s", e.getMessage());
-            throw new IllegalStateException("deleteExpired failed due to SQL exception");
-        }
-        return updatedRows;
+        return recordRemoved(engine.deleteExpired());
+    }
+
+    public int deleteExpired(int limit) {
+        return recordRemoved(engine.deleteExpired(limit));
+    }
+
+    public long countExpired() {
+        return engine.countExpired();
+    }
+
+    /**
+     * @see TokenEngine#forEachStoredToken(Consumer)
+     */
+    public void forEachStoredToken(@NonNull Consumer<StoredToken> consumer) {
+        engine.forEachStoredToken(consumer);
+    }
+
+    /**
+     * @see TokenEngine#putAll(List)
+     */
+    public int putAll(@NonNull List<StoredToken> tokens) {
+        return tokenFilter.addAll(tokens, () -> engine.putAll(tokens));
     }
 
     @NonNull
-    private static Set<String> toStringSet(@NonNull Array sqlArray) throws SQLException {
-        var objectArray = (Object[]) sqlArray.getArray();
-        return Stream.of(objectArray).map(String.class::cast).collect(Collectors.toSet());
+    private Optional<Set<String>> recordLookup(@NonNull Optional<Set<String>> groups) {
+        if (groups.isPresent()) {
+            tokenFilter.recordRemoved(1);
+        } else {
+            tokenFilter.recordFalsePositive();
+        }
+        return groups;
+    }
+
+    private int recordRemoved(int count) {
+        tokenFilter.recordRemoved(count);
+        return count;
     }
 }
@@ -7,25 +7,31 @@ public final class TokenStoreSqlStatements {
     }
 
     // @formatter:off
+    // schema v2: the token_hash is the binary SHA-256 (see TokenHashes) and part of the primary
+    // key, the groups are the ids of the GroupDictionary; issued_at is null for tokens stored
+    // before the column was added
     //language=H2
     static final String SQL_CREATE_TABLE =
             "CREATE TABLE IF NOT EXISTS tokens (" +
-                    "  id IDENTITY," +
                     "  user_id BIGINT NOT NULL," +
-                    "  token_hash CHAR(64) NOT NULL," +
-                    "  groups ARRAY NOT NULL DEFAULT ()," +
+                    "  token_hash BINARY(32) NOT NULL," +
+                    "  groups VARBINARY NOT NULL," +
                     "  expires_at TIMESTAMP WITH TIME ZONE NOT NULL," +
-                    "  last_mod TIMESTAMP WITH TIME ZONE AS CURRENT_TIMESTAMP());";
+                    "  issued_at TIMESTAMP WITH TIME ZONE DEFAULT CURRENT_TIMESTAMP(0)," +
+                    "  PRIMARY KEY (user_id, token_hash));";
 
+    // adds issued_at to a tokens table or a partition: existing tokens keep null
     //language=H2
-    static final String SQL_CREATE_INDEX_USER_ID_TOKEN_HASH =
-            "CREATE INDEX IF NOT EXISTS idx_user_id" +
-                    "  ON tokens" +
-                    "  (user_id, token_hash);";
+    static final String SQL_ADD_ISSUED_AT_COLUMN =
+            "ALTER TABLE %s ADD COLUMN IF NOT EXISTS issued_at TIMESTAMP WITH TIME ZONE;";
+
+    //language=H2
+    static final String SQL_SET_ISSUED_AT_DEFAULT =
+            "ALTER TABLE %s ALTER COLUMN issued_at SET DEFAULT CURRENT_TIMESTAMP(0);";
 
     //language=H2
     static final String SQL_CREATE_INDEX_EXPIRES_AT =
-            "CREATE INDEX IF NOT EXISTS idx_expires_at" +
+            "CREATE INDEX IF NOT EXISTS idx_tokens_expires_at" +
                     "  ON tokens" +
                     "  (expires_at);";
 
@@ -35,12 +41,29 @@ public final class TokenStoreSqlStatements {
                     "  (user_id, token_hash, groups, expires_at)" +
                     "  VALUES (?, ?, ?, ?);";
 
+    //language=H2
+    static final String SQL_INSERT_INTO =
+            "INSERT INTO %s" +
+                    "  (user_id, token_hash, groups, expires_at)" +
+                    "  VALUES (?, ?, ?, ?);";
+
     //language=H2
     static final String SQL_SELECT_GROUPS =
             "SELECT groups FROM tokens" +
                     "  WHERE" +
-                    "  user_id = ? AND token_hash = ? AND expires_at > CURRENT_TIMESTAMP(0)" +
-                    "  LIMIT 1;";
+                    "  user_id = ? AND token_hash = ? AND expires_at > CURRENT_TIMESTAMP(0);";
+
+    //language=H2
+    static final String SQL_SELECT_ALL_VALID =
+            "SELECT user_id, token_hash, groups, expires_at, issued_at FROM tokens" +
+                    "  WHERE" +
+                    "  expires_at > CURRENT_TIMESTAMP(0);";
+
+    //language=H2
+    static final String SQL_SELECT_VALID_KEYS =
+            "SELECT user_id, token_hash FROM tokens" +
+                    "  WHERE" +
+                    "  expires_at > CURRENT_TIMESTAMP(0);";
 
     //language=H2
     static final String SQL_DELETE_EXPIRED =
@@ -48,6 +71,19 @@ public final class TokenStoreSqlStatements {
                     "  WHERE" +
                     "  expires_at < CURRENT_TIMESTAMP(0);";
 
+    //language=H2
+    static final String SQL_DELETE_EXPIRED_LIMIT =
+            "DELETE FROM tokens" +
+                    "  WHERE" +
+                    "  expires_at < CURRENT_TIMESTAMP(0)" +
+                    "  LIMIT ?;";
+
+    //language=H2
+    static final String SQL_COUNT_EXPIRED =
+            "SELECT COUNT(*) FROM tokens" +
+                    "  WHERE" +
+                    "  expires_at < CURRENT_TIMESTAMP(0);";
+
     //language=H2
     static final String SQL_DELETE_BY_USER_ID =
             "DELETE FROM tokens" +
@@ -59,5 +95,183 @@ public final class TokenStoreSqlStatements {
             "DELETE FROM tokens" +
                     "  WHERE" +
                     "  user_id = ? AND token_hash = ?;";
+
+    // session cap: deletes the live tokens of a user but the given one and the newest others,
+    // up to the limit; tokens without issue time are the oldest
+    //language=H2
+    static final String SQL_DELETE_OLDEST_OF_USER =
+            "DELETE FROM tokens" +
+                    "  WHERE" +
+                    "  user_id = ? AND expires_at > CURRENT_TIMESTAMP(0) AND token_hash NOT IN (" +
+                    "    SELECT token_hash FROM tokens" +
+                    "      WHERE" +
+                    "      user_id = ? AND expires_at > CURRENT_TIMESTAMP(0)" +
+                    "      ORDER BY token_hash = ? DESC, issued_at DESC NULLS LAST," +
+                    "      expires_at DESC" +
+                    "      LIMIT ?);";
+
+    // migration from schema v1: the v1 tokens table (surrogate id, hex token_hash, ARRAY groups)
+    // is renamed to tokens_v1 and moved to the v2 table by the TokenTableMigration
+
+    //language=H2
+    static final String SQL_COUNT_V1_TOKENS_TABLE =
+            "SELECT COUNT(*) FROM INFORMATION_SCHEMA.COLUMNS" +
+                    "  WHERE" +
+                    "  table_schema = SCHEMA() AND table_name = 'TOKENS' AND column_name = 'ID';";
+
+    //language=H2
+    static final String SQL_RENAME_V1_TABLE =
+            "ALTER TABLE tokens RENAME TO tokens_v1;";
+
+    //language=H2
+    static final String SQL_COUNT_V1_TABLE =
+            "SELECT COUNT(*) FROM INFORMATION_SCHEMA.TABLES" +
+                    "  WHERE" +
+                    "  table_schema = SCHEMA() AND table_name = 'TOKENS_V1';";
+
+    //language=H2
+    static final String SQL_SELECT_V1_CHUNK =
+            "SELECT id, user_id, token_hash, groups, expires_at FROM tokens_v1" +
+                    "  ORDER BY id" +
+                    "  LIMIT ?;";
+
+    //language=H2
+    static final String SQL_DELETE_V1_BY_ID =
+            "DELETE FROM tokens_v1" +
+                    "  WHERE" +
+                    "  id = ?;";
+
+    //language=H2
+    static final String SQL_MERGE =
+            "MERGE INTO tokens" +
+                    "  (user_id, token_hash, groups, expires_at, issued_at)" +
+                    "  KEY (user_id, token_hash)" +
+                    "  VALUES (?, ?, ?, ?, ?);";
+
+    //language=H2
+    static final String SQL_SELECT_V1_GROUPS =
+            "SELECT groups FROM tokens_v1" +
+                    "  WHERE" +
+                    "  user_id = ? AND token_hash = ? AND expires_at > CURRENT_TIMESTAMP(0)" +
+                    "  LIMIT 1;";
+
+    //language=H2
+    static final String SQL_DELETE_V1_BY_USER_ID_TOKEN_HASH =
+            "DELETE FROM tokens_v1" +
+                    "  WHERE" +
+                    "  user_id = ? AND token_hash = ?;";
+
+    //language=H2
+    static final String SQL_DELETE_V1_BY_USER_ID =
+            "DELETE FROM tokens_v1" +
+                    "  WHERE" +
+                    "  user_id = ?;";
+
+    //language=H2
+    static final String SQL_DROP_V1_TABLE =
+            "DROP TABLE IF EXISTS tokens_v1;";
+
+    // partitions of the PartitionedTokenEngine: tables with the columns of the tokens table,
+    // named after the first day of their period of expires_at; insert via SQL_INSERT_INTO
+
+    //language=H2
+    static final String SQL_CREATE_PARTITION =
+            "CREATE TABLE IF NOT EXISTS %s (" +
+                    "  user_id BIGINT NOT NULL," +
+                    "  token_hash BINARY(32) NOT NULL," +
+                    "  groups VARBINARY NOT NULL," +
+                    "  expires_at TIMESTAMP WITH TIME ZONE NOT NULL," +
+                    "  issued_at TIMESTAMP WITH TIME ZONE DEFAULT CURRENT_TIMESTAMP(0)," +
+                    "  PRIMARY KEY (user_id, token_hash));";
+
+    //language=H2
+    static final String SQL_SELECT_PARTITIONS =
+            "SELECT table_name FROM INFORMATION_SCHEMA.TABLES" +
+                    "  WHERE" +
+                    "  table_schema = SCHEMA() AND table_name REGEXP '^TOKENS_[0-9]{8}$';";
+
+    //language=H2
+    static final String SQL_SELECT_GROUPS_FROM =
+            "SELECT groups FROM %s" +
+                    "  WHERE" +
+                    "  user_id = ? AND token_hash = ? AND expires_at > CURRENT_TIMESTAMP(0);";
+
+    //language=H2
+    static final String SQL_SELECT_VALID_KEYS_FROM =
+            "SELECT user_id, token_hash FROM %s" +
+                    "  WHERE" +
+                    "  expires_at > CURRENT_TIMESTAMP(0);";
+
+    //language=H2
+    static final String SQL_DELETE_FROM_BY_USER_ID =
+            "DELETE FROM %s" +
+                    "  WHERE" +
+                    "  user_id = ?;";
+
+    //language=H2
+    static final String SQL_DELETE_FROM_BY_USER_ID_TOKEN_HASH =
+            "DELETE FROM %s" +
+                    "  WHERE" +
+                    "  user_id = ? AND token_hash = ?;";
+
+    //language=H2
+    static final String SQL_COUNT_FROM =
+            "SELECT COUNT(*) FROM %s;";
+
+    //language=H2
+    static final String SQL_DROP_PARTITION =
+            "DROP TABLE IF EXISTS %s;";
+
+    // sharding: every shard stores its index and the shard count it was last resharded for
+    //language=H2
+    static final String SQL_CREATE_SHARD_TABLE =
+            "CREATE TABLE IF NOT EXISTS token_shard (" +
+                    "  shard_index INT NOT NULL," +
+                    "  shard_count INT NOT NULL);";
+
+    //language=H2
+    static final String SQL_SELECT_SHARD_COUNT =
+            "SELECT shard_count FROM token_shard;";
+
+    //language=H2
+    static final String SQL_DELETE_SHARD =
+            "DELETE FROM token_shard;";
+
+    //language=H2
+    static final String SQL_INSERT_SHARD =
+            "INSERT INTO token_shard" +
+                    "  (shard_index, shard_count)" +
+                    "  VALUES (?, ?);";
+
+    //language=H2
+    static final String SQL_SELECT_TOKEN_TABLES =
+            "SELECT table_name FROM INFORMATION_SCHEMA.TABLES" +
+                    "  WHERE" +
+                    "  table_schema = SCHEMA()" +
+                    "  AND (table_name = 'TOKENS' OR table_name REGEXP '^TOKENS_[0-9]{8}$');";
+
+    //language=H2
+    static final String SQL_SELECT_VALID_FROM =
+            "SELECT user_id, token_hash, groups, expires_at, issued_at FROM %s" +
+                    "  WHERE" +
+                    "  expires_at > CURRENT_TIMESTAMP(0);";
+
+    //language=H2
+    static final String SQL_MERGE_INTO =
+            "MERGE INTO %s" +
+                    "  (user_id, token_hash, groups, expires_at, issued_at)" +
+                    "  KEY (user_id, token_hash)" +
+                    "  VALUES (?, ?, ?, ?, ?);";
+
+    // revocation jobs: keyset pagination over the primary key, starting after (user_id,
+    // token_hash); the start is inclusive for user_id so the index range is used
+    //language=H2
+    static final String SQL_SELECT_VALID_CHUNK_FROM =
+            "SELECT user_id, token_hash, groups, issued_at FROM %s" +
+                    "  WHERE" +
+                    "  user_id >= ? AND (user_id > ? OR token_hash > ?)" +
+                    "  AND expires_at > CURRENT_TIMESTAMP(0)" +
+                    "  ORDER BY user_id, token_hash" +
+                    "  LIMIT ?;";
     // @formatter:on
 }
@@ -0,0 +1,241 @@
+package de.dopler.ms.token_store;
+
+import de.dopler.ms.group_dictionary.GroupDictionary;
+import org.eclipse.jdt.annotation.NonNull;
+import org.jboss.logging.Logger;
+
+import javax.sql.DataSource;
+import java.sql.*;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static de.dopler.ms.token_store.JdbcTokenEngine.toStringSet;
+import static de.dopler.ms.token_store.TokenStoreSqlStatements.*;
+
+/**
+ * Moves the tokens of the schema v1 table {@code tokens_v1} to the v2 {@code tokens} table while
+ * the store keeps serving requests.
+ * <p>
+ * Every chunk is moved in its own transaction: the rows are deleted from the v1 table by id and
+ * only the rows which were actually deleted (and are still valid) are merged into the v2 table,
+ * so a token popped concurrently from the v1 table is never resurrected. Once the v1 table is
+ * empty, it is dropped. Until then, {@link JdbcTokenEngine} also looks up tokens in the v1 table
+ * via {@link #popGroups}.
+ */
+final class TokenTableMigration {
+
+    private static final Logger LOG = Logger.getLogger("TokenTableMigration");
+
+    private static final long RETRY_DELAY_MILLIS = 1000;
+
+    private final DataSource dataSource;
+    private final GroupDictionary groupDictionary;
+    private final int chunkSize;
+    private final Thread migrator;
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    TokenTableMigration(@NonNull DataSource dataSource, @NonNull GroupDictionary groupDictionary,
+            int chunkSize) {
+        this.dataSource = dataSource;
+        this.groupDictionary = groupDictionary;
+        this.chunkSize = chunkSize;
+        migrator = new Thread(this::migrate, "token-table-migration");
+        migrator.setDaemon(true);
+    }
+
+    void start() {
+        migrator.start();
+    }
+
+    boolean isRunning() {
+        return done.getCount() > 0;
+    }
+
+    /**
+     * Wait until all tokens of the v1 table have been moved and the table is dropped.
+     */
+    void await() {
+        try {
+            migrator.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("waiting for the token migration was interrupted");
+        }
+    }
+
+    /**
+     * Pop the groups of the token from the v1 table. Only returns the groups if this call deleted
+     * the token; if it has been moved concurrently, it is found in the v2 table.
+     */
+    @NonNull
+    Optional<Set<String>> popGroups(@NonNull Connection conn, long userId,
+            @NonNull byte[] tokenHash) throws SQLException {
+        if (!isRunning()) {
+            return Optional.empty();
+        }
+        var hexTokenHash = TokenHashes.toHex(tokenHash);
+        Set<String> groups = null;
+        try (PreparedStatement statement = conn.prepareStatement(SQL_SELECT_V1_GROUPS)) {
+            statement.setLong(1, userId);
+            statement.setString(2, hexTokenHash);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                if (resultSet.next()) {
+                    groups = toStringSet(resultSet.getArray(1));
+                }
+            }
+        } catch (SQLException e) {
+            // the v1 table is dropped at the end of the migration
+            if (!isRunning()) {
+                return Optional.empty();
+            }
+            throw e;
+        }
+        if (groups == null) {
+            return Optional.empty();
+        }
+        try (PreparedStatement statement = conn.prepareStatement(
+                SQL_DELETE_V1_BY_USER_ID_TOKEN_HASH)) {
+            statement.setLong(1, userId);
+            statement.setString(2, hexTokenHash);
+            return statement.executeUpdate() > 0 ? Optional.of(groups) : Optional.empty();
+        }
+    }
+
+    int deleteForUser(@NonNull Connection conn, long userId) throws SQLException {
+        if (!isRunning()) {
+            return 0;
+        }
+        try (PreparedStatement statement = conn.prepareStatement(SQL_DELETE_V1_BY_USER_ID)) {
+            statement.setLong(1, userId);
+            return statement.executeUpdate();
+        } catch (SQLException e) {
+            if (!isRunning()) {
+                return 0;
+            }
+            throw e;
+        }
+    }
+
+    private void migrate() {
+        var timingStart = Instant.now();
+        var moved = 0L;
+        var dropped = 0L;
+        while (true) {
+            try {
+                var chunk = moveChunk();
+                if (chunk[0] == 0) {
+                    break;
+                }
+                moved += chunk[1];
+                dropped += chunk[0] - chunk[1];
+            } catch (SQLException e) {
+                LOG.errorf("moving tokens failed, retrying: %s", e.getMessage());
+                try {
+                    TimeUnit.MILLISECONDS.sleep(RETRY_DELAY_MILLIS);
+                } catch (InterruptedException ie) {
+                    LOG.warn("Token table migration interrupted");
+                    return;
+                }
+            }
+        }
+        // the v1 table is empty: stop looking up tokens in it before dropping it
+        done.countDown();
+        try (Connection conn = dataSource.getConnection();
+             Statement statement = conn.createStatement()) {
+            conn.setAutoCommit(true);
+            statement.execute(SQL_DROP_V1_TABLE);
+        } catch (SQLException e) {
+            LOG.errorf("dropping the v1 token table failed: %s", e.getMessage());
+        }
+        var duration = timingStart.until(Instant.now(), ChronoUnit.MILLIS);
+        LOG.infof("Moved %d tokens to the v2 table and skipped %d expired, invalid or used ones " +
+                "after %d ms", moved, dropped, duration);
+    }
+
+    /**
+     * @return the number of rows removed from the v1 table and the number of them which were
+     * moved to the v2 table.
+     */
+    private long[] moveChunk() throws SQLException {
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement selectStatement = conn.prepareStatement(SQL_SELECT_V1_CHUNK);
+             PreparedStatement deleteStatement = conn.prepareStatement(SQL_DELETE_V1_BY_ID);
+             PreparedStatement mergeStatement = conn.prepareStatement(SQL_MERGE)) {
+            conn.setAutoCommit(false);
+            try {
+                var rows = new ArrayList<V1Row>(chunkSize);
+                selectStatement.setInt(1, chunkSize);
+                try (ResultSet resultSet = selectStatement.executeQuery()) {
+                    while (resultSet.next()) {
+                        rows.add(new V1Row(resultSet.getLong(1), resultSet.getLong(2),
+                                resultSet.getString(3), toStringSet(resultSet.getArray(4)),
+                                resultSet.getTimestamp(5)));
+                    }
+                }
+                if (rows.isEmpty()) {
+                    conn.rollback();
+                    return new long[]{0, 0};
+                }
+                for (var row : rows) {
+                    deleteStatement.setLong(1, row.id);
+                    deleteStatement.addBatch();
+                }
+                var deleteCounts = deleteStatement.executeBatch();
+                var now = Instant.now();
+                var merged = 0L;
+                for (int i = 0; i < rows.size(); i++) {
+                    var row = rows.get(i);
+                    // a count of 0: the token has been popped concurrently
+                    if (deleteCounts[i] == 0 || !row.expiresAt.toInstant().isAfter(now)) {
+                        continue;
+                    }
+                    byte[] tokenHash;
+                    try {
+                        tokenHash = TokenHashes.toBytes(row.tokenHash.trim());
+                    } catch (IllegalArgumentException e) {
+                        LOG.warnf("Dropping token of userId %d: invalid token hash", row.userId);
+                        continue;
+                    }
+                    mergeStatement.setLong(1, row.userId);
+                    mergeStatement.setBytes(2, tokenHash);
+                    mergeStatement.setBytes(3, groupDictionary.encode(row.groups));
+                    mergeStatement.setTimestamp(4, row.expiresAt);
+                    // schema v1 has no issue time
+                    mergeStatement.setTimestamp(5, null);
+                    mergeStatement.addBatch();
+                    merged++;
+                }
+                if (merged > 0) {
+                    mergeStatement.executeBatch();
+                }
+                conn.commit();
+                return new long[]{rows.size(), merged};
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        }
+    }
+
+    private static final class V1Row {
+
+        final long id;
+        final long userId;
+        final String tokenHash;
+        final Set<String> groups;
+        final Timestamp expiresAt;
+
+        V1Row(long id, long userId, String tokenHash, Set<String> groups, Timestamp expiresAt) {
+            this.id = id;
+            this.userId = userId;
+            this.tokenHash = tokenHash;
+            this.groups = groups;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package de.dopler.ms.token_store;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+
+/**
+ * Conversion between the epoch seconds of the API and the values of the {@code expires_at} and
+ * {@code issued_at} columns.
+ */
+final class TokenTimestamps {
+
+    // 0001-01-01T00:00:00Z and 9999-12-31T23:59:59Z, the range of an SQL timestamp
+    static final long MIN_EPOCH_SECOND = -62_135_596_800L;
+    static final long MAX_EPOCH_SECOND = 253_402_300_799L;
+
+    private TokenTimestamps() {
+        // utility class
+    }
+
+    /**
+     * Check an epoch second before it is stored, so an out-of-range value is rejected with the
+     * request instead of failing a background writer which converts it later.
+     *
+     * @return {@code epochSecond}.
+     * @throws IllegalArgumentException if {@code epochSecond} is outside of the range of an SQL
+     *                                  timestamp.
+     */
+    static long requireValid(long epochSecond) {
+        if (epochSecond < MIN_EPOCH_SECOND || epochSecond > MAX_EPOCH_SECOND) {
+            throw new IllegalArgumentException("timestamp out of range: " + epochSecond);
+        }
+        return epochSecond;
+    }
+
+    /**
+     * @throws IllegalArgumentException if {@code epochSecond} is outside of the range of an SQL
+     *                                  timestamp.
+     */
+    @NonNull
+    static Timestamp toTimestamp(long epochSecond) {
+        return Timestamp.from(Instant.ofEpochSecond(requireValid(epochSecond)));
+    }
+}
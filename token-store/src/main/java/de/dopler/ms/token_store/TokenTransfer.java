@@ -0,0 +1,153 @@
+package de.dopler.ms.token_store;
+
+import de.dopler.ms.token_store.domain.StoredToken;
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.json.bind.Jsonb;
+import javax.json.bind.JsonbBuilder;
+import javax.json.bind.JsonbConfig;
+import javax.json.bind.JsonbException;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Export and import of all valid tokens as NDJSON: one {@link StoredToken} per line, with all of
+ * its properties (issuedAt may be null).
+ * <p>
+ * Both directions stream: the export writes the tokens while the engine reads them, the import
+ * stores every {@code token-store.import.batch-size} parsed lines in one batch. So neither holds
+ * more than a batch of tokens in memory, regardless of the number of tokens.
+ */
+@ApplicationScoped
+public class TokenTransfer {
+
+    private static final Logger LOG = Logger.getLogger("TokenTransfer");
+
+    // every line has all properties: tokens without issue time are read with issuedAt null
+    private static final Jsonb JSONB = JsonbBuilder.create(new JsonbConfig().withNullValues(true));
+
+    private final TokenStoreService tokenStoreService;
+    private final int batchSize;
+
+    @Inject
+    public TokenTransfer(TokenStoreService tokenStoreService,
+            @ConfigProperty(name = "token-store.import.batch-size", defaultValue = "1000")
+                    int batchSize) {
+        this.tokenStoreService = tokenStoreService;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @return the number of exported tokens.
+     * @throws UncheckedIOException if writing fails.
+     */
+    public long exportTokens(@NonNull Writer writer) {
+        var timingStart = Instant.now();
+        var count = new long[1];
+        tokenStoreService.forEachStoredToken(token -> {
+            try {
+                writer.write(JSONB.toJson(token));
+                writer.write('\n');
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            count[0]++;
+        });
+        try {
+            writer.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        var duration = timingStart.until(Instant.now(), ChronoUnit.MILLIS);
+        LOG.infof("Exported %d tokens after %d ms", count[0], duration);
+        return count[0];
+    }
+
+    /**
+     * Store the tokens of {@code reader}, replacing stored tokens with the same key. Expired
+     * tokens and empty lines are skipped. The batches stored before an invalid line stay stored,
+     * so a failed import can simply be repeated.
+     *
+     * @return the number of imported tokens.
+     * @throws IllegalArgumentException if a line is not a valid token.
+     */
+    public long importTokens(@NonNull Reader reader) throws IOException {
+        var timingStart = Instant.now();
+        var imported = 0L;
+        var batch = new ArrayList<StoredToken>(batchSize);
+        var lineReader = new BufferedReader(reader);
+        var now = Instant.now().getEpochSecond();
+        String line;
+        var lineNumber = 0;
+        while ((line = lineReader.readLine()) != null) {
+            lineNumber++;
+            if (line.isBlank()) {
+                continue;
+            }
+            var token = parse(line, lineNumber);
+            if (token.expiresAt <= now) {
+                continue;
+            }
+            batch.add(token);
+            if (batch.size() >= batchSize) {
+                imported += store(batch);
+            }
+        }
+        if (!batch.isEmpty()) {
+            imported += store(batch);
+        }
+        var duration = timingStart.until(Instant.now(), ChronoUnit.MILLIS);
+        LOG.infof("Imported %d tokens after %d ms", imported, duration);
+        return imported;
+    }
+
+    @NonNull
+    private static StoredToken parse(@NonNull String line, int lineNumber) {
+        StoredToken token;
+        try {
+            token = JSONB.fromJson(line, StoredToken.class);
+        } catch (JsonbException e) {
+            token = null;
+        }
+        if (token == null || token.tokenHash == null || token.groups == null) {
+            throw new IllegalArgumentException(
+                    String.format("invalid token in line %d", lineNumber));
+        }
+        String tokenHash;
+        try {
+            tokenHash = TokenHashes.normalize(token.tokenHash);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(
+                    String.format("invalid token hash in line %d", lineNumber));
+        }
+        // checked like a single put, so the batches stored before it don't end in a 500
+        try {
+            TokenTimestamps.requireValid(token.expiresAt);
+            if (token.issuedAt != null) {
+                TokenTimestamps.requireValid(token.issuedAt);
+            }
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(
+                    String.format("invalid timestamp in line %d", lineNumber));
+        }
+        return new StoredToken(token.userId, tokenHash, token.groups, token.expiresAt,
+                token.issuedAt);
+    }
+
+    private int store(@NonNull List<StoredToken> batch) {
+        var stored = tokenStoreService.putAll(batch);
+        batch.clear();
+        return stored;
+    }
+}
@@ -0,0 +1,23 @@
+package de.dopler.ms.token_store.domain;
+
+/**
+ * Criteria of a revocation job: tokens which match all given criteria are revoked.
+ * <p>
+ * Deserialized via the no-arg constructor and the fields, as a creator would require every
+ * criterion to be present in the JSON, even the unused ones.
+ */
+public class RevocationCriteria {
+
+    public String group;
+    // epoch seconds
+    public Long issuedBefore;
+
+    public RevocationCriteria() {
+        // for JSON-B
+    }
+
+    public RevocationCriteria(String group, Long issuedBefore) {
+        this.group = group;
+        this.issuedBefore = issuedBefore;
+    }
+}
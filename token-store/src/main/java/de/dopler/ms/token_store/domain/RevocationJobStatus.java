@@ -0,0 +1,35 @@
+package de.dopler.ms.token_store.domain;
+
+import javax.json.bind.annotation.JsonbCreator;
+import javax.json.bind.annotation.JsonbProperty;
+
+public class RevocationJobStatus {
+
+    public final long id;
+    // QUEUED, RUNNING, COMPLETED, CANCELLED or FAILED
+    public final String state;
+    public final String criteria;
+    // checked tokens or processed userIds
+    public final long processed;
+    // number of userIds; null for criteria, as the number of tokens to check is not known
+    public final Long total;
+    public final long revoked;
+    public final String error;
+
+    @JsonbCreator
+    public RevocationJobStatus(@JsonbProperty("id") long id,
+            @JsonbProperty("state") String state,
+            @JsonbProperty("criteria") String criteria,
+            @JsonbProperty("processed") long processed,
+            @JsonbProperty("total") Long total,
+            @JsonbProperty("revoked") long revoked,
+            @JsonbProperty("error") String error) {
+        this.id = id;
+        this.state = state;
+        this.criteria = criteria;
+        this.processed = processed;
+        this.total = total;
+        this.revoked = revoked;
+        this.error = error;
+    }
+}
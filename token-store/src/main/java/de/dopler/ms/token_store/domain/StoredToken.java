@@ -0,0 +1,34 @@
+package de.dopler.ms.token_store.domain;
+
+import io.quarkus.runtime.annotations.RegisterForReflection;
+
+import javax.json.bind.annotation.JsonbCreator;
+import javax.json.bind.annotation.JsonbProperty;
+import java.util.Set;
+
+/**
+ * A stored token with all its data, as exported and imported (one per line of NDJSON).
+ */
+@RegisterForReflection
+public class StoredToken {
+
+    public final long userId;
+    public final String tokenHash;
+    public final Set<String> groups;
+    public final long expiresAt;
+    // null if unknown, i.e. for tokens stored before the issue time was recorded
+    public final Long issuedAt;
+
+    @JsonbCreator
+    public StoredToken(@JsonbProperty("userId") long userId,
+            @JsonbProperty("tokenHash") String tokenHash,
+            @JsonbProperty("groups") Set<String> groups,
+            @JsonbProperty("expiresAt") long expiresAt,
+            @JsonbProperty("issuedAt") Long issuedAt) {
+        this.userId = userId;
+        this.tokenHash = tokenHash;
+        this.groups = groups;
+        this.expiresAt = expiresAt;
+        this.issuedAt = issuedAt;
+    }
+}
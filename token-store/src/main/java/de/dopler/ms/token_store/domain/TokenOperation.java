@@ -0,0 +1,30 @@
+package de.dopler.ms.token_store.domain;
+
+import java.util.Set;
+
+/**
+ * One operation of a batch, see {@link #op} for the fields each kind uses.
+ * <p>
+ * Deserialized via the no-arg constructor and the fields, as a creator would require the fields
+ * of every kind to be present in the JSON.
+ */
+public class TokenOperation {
+
+    public static final String STORE = "store";
+    public static final String POP = "pop";
+    public static final String ROTATE = "rotate";
+    public static final String DELETE = "delete";
+
+    // "store" (userId, tokenHash, groups, expiresAt), "pop" (userId, tokenHash), "rotate"
+    // (userId, tokenHash, newTokenHash, expiresAt) or "delete" (all tokens of userId)
+    public String op;
+    public long userId;
+    public String tokenHash;
+    public Set<String> groups;
+    public String newTokenHash;
+    public long expiresAt;
+
+    public TokenOperation() {
+        // for JSON-B
+    }
+}
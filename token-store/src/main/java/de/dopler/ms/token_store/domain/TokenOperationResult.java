@@ -0,0 +1,27 @@
+package de.dopler.ms.token_store.domain;
+
+import io.quarkus.runtime.annotations.RegisterForReflection;
+
+import java.util.Set;
+
+/**
+ * Result of one operation of a batch. The status is the one the single-operation endpoint would
+ * have responded with.
+ */
+@RegisterForReflection
+public class TokenOperationResult {
+
+    public final int status;
+    // groups of a successful "pop" or "rotate"
+    public final Set<String> groups;
+    // number of tokens removed by "delete"
+    public final Integer deleted;
+    public final String error;
+
+    public TokenOperationResult(int status, Set<String> groups, Integer deleted, String error) {
+        this.status = status;
+        this.groups = groups;
+        this.deleted = deleted;
+        this.error = error;
+    }
+}
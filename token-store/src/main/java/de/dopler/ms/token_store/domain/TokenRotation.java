@@ -0,0 +1,20 @@
+package de.dopler.ms.token_store.domain;
+
+import javax.json.bind.annotation.JsonbCreator;
+import javax.json.bind.annotation.JsonbProperty;
+
+public class TokenRotation {
+
+    public final String tokenHash;
+    public final String newTokenHash;
+    public final long expiresAt;
+
+    @JsonbCreator
+    public TokenRotation(@JsonbProperty("tokenHash") String tokenHash,
+            @JsonbProperty("newTokenHash") String newTokenHash,
+            @JsonbProperty("expiresAt") long expiresAt) {
+        this.tokenHash = tokenHash;
+        this.newTokenHash = newTokenHash;
+        this.expiresAt = expiresAt;
+    }
+}
@@ -0,0 +1,69 @@
+package de.dopler.ms.token_store;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.SQLException;
+import java.util.Random;
+
+import static de.dopler.ms.token_store.TestDatabase.GROUPS;
+import static de.dopler.ms.token_store.TestDatabase.inSeconds;
+import static de.dopler.ms.token_store.TestTokenHashes.randomTokenHash;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+class ExpiredTokensSchedulerTest {
+
+    private TestDatabase database;
+    private TokenStoreService tokenStoreService;
+
+    @BeforeEach
+    void setUp() {
+        database = new TestDatabase("expired-tokens-scheduler-test");
+        tokenStoreService = new TokenStoreService(TokenStoreService.ENGINE_JDBC,
+                database.jdbcTokenEngine(), null, null, null, new LatencyMonitor(),
+                new TokenFilter(true, 1000, 0.01),
+                new TokenShards(database.dataSource, 1, "", 1, null));
+        tokenStoreService.initStore();
+
+        for (int i = 0; i < 25; i++) {
+            putToken(-300);
+        }
+        putToken(30);
+    }
+
+    @AfterEach
+    void tearDown() throws SQLException {
+        database.dropAll();
+    }
+
+    @Test
+    void deleteExpiredTokensDeletesAllChunksWithinTimeBudget() {
+        var scheduler = new ExpiredTokensScheduler(tokenStoreService, new LatencyMonitor(), 10,
+                60_000, 50, 10);
+
+        scheduler.deleteExpiredTokens();
+
+        assertThat(scheduler.deletedLastRun(), is(equalTo(25L)));
+        assertThat(scheduler.backlog(), is(equalTo(0L)));
+        assertThat(tokenStoreService.countExpired(), is(equalTo(0L)));
+    }
+
+    @Test
+    void deleteExpiredTokensLeavesBacklogWhenTimeBudgetIsExceeded() {
+        var scheduler = new ExpiredTokensScheduler(tokenStoreService, new LatencyMonitor(), 10, 0,
+                50, 10);
+
+        scheduler.deleteExpiredTokens();
+
+        assertThat(scheduler.deletedLastRun(), is(equalTo(10L)));
+        assertThat(scheduler.backlog(), is(equalTo(15L)));
+        assertThat(scheduler.deletedTotal(), is(equalTo(10L)));
+    }
+
+    private void putToken(long expiresInSeconds) {
+        tokenStoreService.put(new Random().nextLong(), randomTokenHash(), GROUPS,
+                inSeconds(expiresInSeconds));
+    }
+}
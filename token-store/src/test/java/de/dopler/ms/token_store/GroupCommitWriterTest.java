@@ -0,0 +1,203 @@
+package de.dopler.ms.token_store;
+
+import de.dopler.ms.token_store.domain.StoredToken;
+import io.smallrye.metrics.MetricRegistries;
+import org.eclipse.microprofile.metrics.MetricID;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static de.dopler.ms.token_store.TestTokenHashes.randomTokenHash;
+import static de.dopler.ms.token_store.TestTokenStoreSqlStatements.*;
+import static de.dopler.ms.token_store.TokenStoreSqlStatements.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class GroupCommitWriterTest {
+
+    private static final int CONCURRENT_INSERTS = 200;
+
+    private TestDatabase database;
+    private MetricRegistry metricRegistry;
+
+    @BeforeEach
+    void setUp() throws SQLException {
+        database = new TestDatabase("group-commit-test");
+        metricRegistry = MetricRegistries.get(MetricRegistry.Type.APPLICATION);
+        try (Connection conn = database.dataSource.getConnection();
+             Statement statement = conn.createStatement()) {
+            statement.execute(SQL_CREATE_TABLE);
+            statement.execute(SQL_CREATE_INDEX_EXPIRES_AT);
+        }
+    }
+
+    @AfterEach
+    void tearDown() throws SQLException {
+        database.dropAll();
+    }
+
+    @Test
+    void concurrentInsertsAreAllStoredInBatches() throws Exception {
+        var writer = new GroupCommitWriter(database.dataSource, database.groupDictionary, 64, 5,
+                10000, new SessionCap(0, TokenStoreService.ENGINE_JDBC, metricRegistry),
+                metricRegistry);
+        var batchSizes = metricRegistry.getHistograms()
+                .get(new MetricID("group-commit-batch-size"));
+        var batchCountBefore = batchSizes.getCount();
+        var expiresAt = Instant.now().plusSeconds(30).getEpochSecond();
+
+        var executor = Executors.newFixedThreadPool(32);
+        var inserts = new ArrayList<Callable<Boolean>>();
+        for (int i = 0; i < CONCURRENT_INSERTS; i++) {
+            var userId = (long) i;
+            inserts.add(() -> writer.insert(userId, TokenHashes.toBytes(randomTokenHash()),
+                    Set.of("g"), expiresAt));
+        }
+        var results = new ArrayList<Boolean>();
+        for (Future<Boolean> future : executor.invokeAll(inserts)) {
+            results.add(future.get());
+        }
+        executor.shutdown();
+
+        assertThat(results, everyItem(is(equalTo(true))));
+        assertThat(countRows(), is(equalTo(CONCURRENT_INSERTS)));
+        // fewer transactions than inserts
+        assertThat(batchSizes.getCount() - batchCountBefore,
+                is(lessThan((long) CONCURRENT_INSERTS)));
+    }
+
+    @Test
+    void brokenInsertDoesNotFailOthersInSameBatch() throws Exception {
+        var writer = new GroupCommitWriter(database.dataSource, database.groupDictionary, 64, 50,
+                10000, new SessionCap(0, TokenStoreService.ENGINE_JDBC, metricRegistry),
+                metricRegistry);
+        var expiresAt = Instant.now().plusSeconds(30).getEpochSecond();
+        // token hashes are BINARY(32), so this one cannot be inserted
+        var tooLongHash = new byte[100];
+
+        var executor = Executors.newFixedThreadPool(2);
+        var good = executor.submit(
+                () -> writer.insert(1L, TokenHashes.toBytes(randomTokenHash()), Set.of("g"),
+                        expiresAt));
+        var broken = executor.submit(() -> {
+            try {
+                return writer.insert(2L, tooLongHash, Set.of("g"), expiresAt);
+            } catch (IllegalStateException e) {
+                return false;
+            }
+        });
+        executor.shutdown();
+
+        assertThat(good.get(), is(equalTo(true)));
+        assertThat(broken.get(), is(equalTo(false)));
+        assertThat(countRows(), is(equalTo(1)));
+    }
+
+    @Test
+    void outOfRangeExpiryIsRejectedWithoutStoppingWriter() {
+        var writer = new GroupCommitWriter(database.dataSource, database.groupDictionary, 64, 0,
+                10000, new SessionCap(0, TokenStoreService.ENGINE_JDBC, metricRegistry),
+                metricRegistry);
+
+        assertThrows(IllegalArgumentException.class,
+                () -> writer.insert(1L, TokenHashes.toBytes(randomTokenHash()), Set.of("g"),
+                        Long.MAX_VALUE));
+
+        assertThat(writer.insert(1L, TokenHashes.toBytes(randomTokenHash()), Set.of("g"),
+                Instant.now().plusSeconds(30).getEpochSecond()), is(equalTo(true)));
+    }
+
+    @Test
+    void insertAllWritesTokensInOneBatchAndFailsOnlyInvalidOnes() throws Exception {
+        var writer = new GroupCommitWriter(database.dataSource, database.groupDictionary, 64, 0,
+                10000, new SessionCap(0, TokenStoreService.ENGINE_JDBC, metricRegistry),
+                metricRegistry);
+        var batchSizes = metricRegistry.getHistograms()
+                .get(new MetricID("group-commit-batch-size"));
+        var batchCountBefore = batchSizes.getCount();
+        var expiresAt = Instant.now().plusSeconds(30).getEpochSecond();
+        var tokens = new ArrayList<StoredToken>();
+        for (int i = 0; i < 10; i++) {
+            tokens.add(new StoredToken(i, randomTokenHash(), Set.of("g"), expiresAt, null));
+        }
+        tokens.add(5, new StoredToken(99, randomTokenHash(), Set.of("g"), Long.MAX_VALUE, null));
+
+        var results = writer.insertAll(tokens, token -> "tokens");
+
+        assertThat(results, hasSize(11));
+        for (int i = 0; i < results.size(); i++) {
+            assertThat(results.get(i).isDone(), is(equalTo(true)));
+            if (i == 5) {
+                var result = results.get(i);
+                var e = assertThrows(CompletionException.class, result::join);
+                assertThat(e.getCause(), is(instanceOf(IllegalArgumentException.class)));
+            } else {
+                assertThat(results.get(i).get(), is(equalTo(true)));
+            }
+        }
+        assertThat(countRows(), is(equalTo(10)));
+        assertThat(batchSizes.getCount() - batchCountBefore, is(equalTo(1L)));
+    }
+
+    @Test
+    void insertEvictsOldestTokensOfUserBeyondCap() throws SQLException {
+        var sessionCap = new SessionCap(2, TokenStoreService.ENGINE_JDBC, metricRegistry);
+        var writer = new GroupCommitWriter(database.dataSource, database.groupDictionary, 64, 0,
+                10000, sessionCap, metricRegistry);
+        var evictions = metricRegistry.getCounters().get(new MetricID("token-evictions"));
+        var evictionsBefore = evictions.getCount();
+        var now = Instant.now().getEpochSecond();
+        var tokenHashes = new ArrayList<byte[]>();
+        for (int i = 0; i < 4; i++) {
+            tokenHashes.add(TokenHashes.toBytes(randomTokenHash()));
+            // the tokens are issued in the same second, so the later expiry decides the order
+            assertThat(writer.insert(1L, tokenHashes.get(i), Set.of("g"), now + 30 + i),
+                    is(equalTo(true)));
+        }
+        writer.insert(2L, TokenHashes.toBytes(randomTokenHash()), Set.of("g"), now + 30);
+        writer.insert(1L, TokenHashes.toBytes(randomTokenHash()), Set.of("g"), now - 30);
+
+        assertThat(evictions.getCount() - evictionsBefore, is(equalTo(2L)));
+        assertThat(countRows(), is(equalTo(4)));
+        for (int i = 0; i < 4; i++) {
+            assertThat(countRows(1L, tokenHashes.get(i)), is(equalTo(i < 2 ? 0 : 1)));
+        }
+    }
+
+    private int countRows() throws SQLException {
+        try (Connection conn = database.dataSource.getConnection();
+             Statement statement = conn.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT COUNT(*) FROM tokens")) {
+            resultSet.next();
+            return resultSet.getInt(1);
+        }
+    }
+
+    private int countRows(long userId, byte[] tokenHash) throws SQLException {
+        try (Connection conn = database.dataSource.getConnection();
+             PreparedStatement statement = conn.prepareStatement(
+                     "SELECT COUNT(*) FROM tokens WHERE user_id = ? AND token_hash = ?")) {
+            statement.setLong(1, userId);
+            statement.setBytes(2, tokenHash);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                resultSet.next();
+                return resultSet.getInt(1);
+            }
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package de.dopler.ms.token_store;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+import static de.dopler.ms.token_store.TestDatabase.GROUPS;
+import static de.dopler.ms.token_store.TestDatabase.inSeconds;
+import static de.dopler.ms.token_store.TestTokenHashes.randomTokenHash;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+class LogTokenEngineTest {
+
+    // about 16 tokens per segment
+    private static final int SEGMENT_SIZE = 1024;
+
+    @TempDir
+    Path directory;
+
+    private TestDatabase database;
+    private LogTokenEngine engine;
+
+    @BeforeEach
+    void setUp() {
+        database = new TestDatabase("log-engine-test");
+        engine = newEngine();
+        engine.initStore();
+    }
+
+    @AfterEach
+    void tearDown() throws SQLException {
+        engine.shutdown();
+        database.dropAll();
+    }
+
+    @Test
+    void tokensArePoppedAndRotatedOnce() {
+        var userId = new Random().nextLong();
+        var tokenHash = randomTokenHash();
+        var newTokenHash = randomTokenHash();
+        var otherTokenHash = randomTokenHash();
+        engine.put(userId, tokenHash, GROUPS, inSeconds(30));
+        engine.put(userId, otherTokenHash, Set.of(), inSeconds(30));
+
+        assertThat(engine.rotate(userId, tokenHash, newTokenHash, inSeconds(30)),
+                is(equalTo(Optional.of(GROUPS))));
+        assertThat(engine.rotate(userId, tokenHash, newTokenHash, inSeconds(30)),
+                is(equalTo(Optional.empty())));
+        assertThat(engine.popGroups(userId, newTokenHash), is(equalTo(Optional.of(GROUPS))));
+        assertThat(engine.popGroups(userId, newTokenHash), is(equalTo(Optional.empty())));
+        assertThat(engine.popGroups(userId + 1, otherTokenHash), is(equalTo(Optional.empty())));
+        assertThat(engine.popGroups(userId, otherTokenHash), is(equalTo(Optional.of(Set.of()))));
+    }
+
+    @Test
+    void liveTokensAreRecoveredAfterRestart() throws IOException {
+        var tokenHashes = new ArrayList<String>();
+        for (int i = 0; i < 100; i++) {
+            tokenHashes.add(randomTokenHash());
+            engine.put(i, tokenHashes.get(i), GROUPS, inSeconds(30));
+        }
+        for (int i = 0; i < 100; i += 2) {
+            engine.popGroups(i, tokenHashes.get(i));
+        }
+        engine.shutdown();
+        appendTornRecord();
+
+        engine = newEngine();
+        engine.initStore();
+
+        var recovered = new ArrayList<Long>();
+        engine.forEachToken((userId, tokenHash) -> recovered.add(userId));
+        assertThat(recovered, hasSize(50));
+        for (int i = 0; i < 100; i++) {
+            assertThat(engine.popGroups(i, tokenHashes.get(i)),
+                    is(equalTo(i % 2 == 0 ? Optional.empty() : Optional.of(GROUPS))));
+        }
+    }
+
+    @Test
+    void concurrentPutsRollingOverSegmentsAreAllStored() throws Exception {
+        var threads = 4;
+        var tokensPerThread = 50;
+        var tokenHashes = new String[threads * tokensPerThread];
+        Arrays.setAll(tokenHashes, i -> randomTokenHash());
+        var executor = Executors.newFixedThreadPool(threads);
+        try {
+            var puts = new ArrayList<Future<?>>();
+            for (int thread = 0; thread < threads; thread++) {
+                var first = thread * tokensPerThread;
+                puts.add(executor.submit(() -> {
+                    for (int i = first; i < first + tokensPerThread; i++) {
+                        engine.put(i, tokenHashes[i], GROUPS, inSeconds(30));
+                    }
+                }));
+            }
+            for (var put : puts) {
+                put.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        // each thread filled several segments, which were forced outside the lock
+        assertThat(segmentFiles().size(), is(greaterThan(threads)));
+        for (int i = 0; i < tokenHashes.length; i++) {
+            assertThat(engine.popGroups(i, tokenHashes[i]), is(equalTo(Optional.of(GROUPS))));
+        }
+    }
+
+    @Test
+    void segmentsAreDeletedOnceAllTokensArePoppedOrExpired() throws IOException {
+        var userId = new Random().nextLong();
+        var tokenHashes = new ArrayList<String>();
+        for (int i = 0; i < 50; i++) {
+            tokenHashes.add(randomTokenHash());
+            engine.put(userId, tokenHashes.get(i), GROUPS, inSeconds(30));
+        }
+        var segmentCount = segmentFiles().size();
+        assertThat(segmentCount, is(greaterThan(2)));
+
+        // all but the active segment are popped
+        for (int i = 0; i < 40; i++) {
+            engine.popGroups(userId, tokenHashes.get(i));
+        }
+        assertThat(segmentFiles().size(), is(lessThan(segmentCount)));
+
+        for (int i = 0; i < 40; i++) {
+            engine.put(userId, randomTokenHash(), GROUPS, inSeconds(-30));
+        }
+        engine.put(userId, randomTokenHash(), GROUPS, inSeconds(30));
+        var expired = engine.countExpired();
+        assertThat(expired, is(greaterThanOrEqualTo(16L)));
+        assertThat(engine.deleteExpired(), is(equalTo((int) expired)));
+        assertThat(engine.countExpired(), is(equalTo(0L)));
+        for (int i = 40; i < 50; i++) {
+            assertThat(engine.popGroups(userId, tokenHashes.get(i)),
+                    is(equalTo(Optional.of(GROUPS))));
+        }
+    }
+
+    @Test
+    void deleteForUserTombstonesAllTokensOfUser() {
+        var userId = new Random().nextLong();
+        var tokenHash = randomTokenHash();
+        for (int i = 0; i < 30; i++) {
+            engine.put(userId, randomTokenHash(), GROUPS, inSeconds(30));
+        }
+        engine.put(userId + 1, tokenHash, GROUPS, inSeconds(30));
+
+        assertThat(engine.deleteForUser(userId), is(equalTo(30)));
+        assertThat(engine.deleteForUser(userId), is(equalTo(0)));
+        assertThat(engine.popGroups(userId + 1, tokenHash), is(equalTo(Optional.of(GROUPS))));
+    }
+
+    @Test
+    void deleteForUserAfterRestartKeepsSegmentsWithValidTokens() throws IOException {
+        var userId = new Random().nextLong();
+        var otherTokenHash = randomTokenHash();
+        // tokens which are already expired on restart, in the same segment as a valid one
+        for (int i = 0; i < 8; i++) {
+            engine.put(userId, randomTokenHash(), GROUPS, inSeconds(-30));
+        }
+        engine.put(userId + 1, otherTokenHash, GROUPS, inSeconds(30));
+        for (int i = 0; i < 30; i++) {
+            engine.put(userId + 2, randomTokenHash(), GROUPS, inSeconds(30));
+        }
+        engine.shutdown();
+
+        engine = newEngine();
+        engine.initStore();
+        var segmentCount = segmentFiles().size();
+
+        assertThat(engine.deleteForUser(userId), is(equalTo(0)));
+        assertThat(segmentFiles(), hasSize(segmentCount));
+        assertThat(engine.popGroups(userId + 1, otherTokenHash),
+                is(equalTo(Optional.of(GROUPS))));
+    }
+
+    @Test
+    void deleteMatchingTombstonesMatchingTokens() {
+        var since = Instant.now().getEpochSecond();
+        var tokenHashes = new ArrayList<String>();
+        for (int i = 0; i < 40; i++) {
+            tokenHashes.add(randomTokenHash());
+            engine.put(i, tokenHashes.get(i), i % 4 == 0 ? GROUPS : Set.of("group-3"),
+                    inSeconds(30));
+        }
+
+        assertThat(engine.deleteMatching((userId, groups, issuedAt) ->
+                        groups.contains("group-1") && issuedAt >= since, 100,
+                (checked, deleted) -> true), is(equalTo(10L)));
+        for (int i = 0; i < 40; i++) {
+            assertThat(engine.popGroups(i, tokenHashes.get(i)).isPresent(),
+                    is(equalTo(i % 4 != 0)));
+        }
+    }
+
+    private LogTokenEngine newEngine() {
+        return new LogTokenEngine(database.groupDictionary, directory.toString(), SEGMENT_SIZE, 16);
+    }
+
+    /**
+     * Write the start of a record with a wrong checksum behind the last record, as a crash
+     * during an append might leave it.
+     */
+    private void appendTornRecord() throws IOException {
+        var segments = segmentFiles();
+        try (var channel = FileChannel.open(segments.get(segments.size() - 1),
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            var buffer = ByteBuffer.allocate(SEGMENT_SIZE);
+            channel.read(buffer, 0);
+            var offset = 0;
+            while (buffer.getInt(offset) != 0) {
+                offset += buffer.getInt(offset);
+            }
+            channel.write(ByteBuffer.wrap(new byte[]{0, 0, 0, 64, 0, 1, 2, 3, 4}), offset);
+        }
+    }
+
+    private List<Path> segmentFiles() throws IOException {
+        try (var files = Files.list(directory)) {
+            return files.sorted().collect(Collectors.toList());
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package de.dopler.ms.token_store;
+
+import io.smallrye.metrics.MetricRegistries;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Optional;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+
+import static de.dopler.ms.token_store.TestDatabase.GROUPS;
+import static de.dopler.ms.token_store.TestDatabase.inSeconds;
+import static de.dopler.ms.token_store.TestTokenHashes.randomTokenHash;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class MemoryTokenEngineTest {
+
+    private TestDatabase database;
+    private MemoryTokenEngine engine;
+
+    @BeforeEach
+    void setUp() {
+        database = new TestDatabase("memory-engine-test");
+        engine = newEngine(0);
+        engine.initStore();
+    }
+
+    @AfterEach
+    void tearDown() throws SQLException {
+        engine.shutdown();
+        database.dropAll();
+    }
+
+    @Test
+    void popGroupsReturnsGroupsOnlyOnce() {
+        var userId = new Random().nextLong();
+        var tokenHash = randomTokenHash();
+        engine.put(userId, tokenHash, GROUPS, inSeconds(30));
+
+        assertThat(engine.popGroups(userId, tokenHash), is(equalTo(Optional.of(GROUPS))));
+        assertThat(engine.popGroups(userId, tokenHash), is(equalTo(Optional.empty())));
+    }
+
+    @Test
+    void popGroupsReturnsEmptyIfTokenIsExpired() {
+        var userId = new Random().nextLong();
+        var tokenHash = randomTokenHash();
+        engine.put(userId, tokenHash, GROUPS, inSeconds(-300));
+
+        assertThat(engine.popGroups(userId, tokenHash), is(equalTo(Optional.empty())));
+    }
+
+    @Test
+    void rotateReplacesToken() {
+        var userId = new Random().nextLong();
+        var tokenHash = randomTokenHash();
+        var newTokenHash = randomTokenHash();
+        engine.put(userId, tokenHash, GROUPS, inSeconds(30));
+
+        assertThat(engine.rotate(userId, tokenHash, newTokenHash, inSeconds(60)),
+                is(equalTo(Optional.of(GROUPS))));
+        assertThat(engine.rotate(userId, tokenHash, newTokenHash, inSeconds(60)),
+                is(equalTo(Optional.empty())));
+        assertThat(engine.popGroups(userId, newTokenHash), is(equalTo(Optional.of(GROUPS))));
+    }
+
+    @Test
+    void deleteForUserAndDeleteExpiredReturnDeleteCount() {
+        var userId = new Random().nextLong();
+        engine.put(userId, randomTokenHash(), GROUPS, inSeconds(30));
+        engine.put(userId, randomTokenHash(), GROUPS, inSeconds(30));
+        engine.put(new Random().nextLong(), randomTokenHash(), GROUPS, inSeconds(-300));
+
+        assertThat(engine.deleteForUser(userId), is(equalTo(2)));
+        assertThat(engine.deleteForUser(userId), is(equalTo(0)));
+        assertThat(engine.deleteExpired(), is(equalTo(1)));
+    }
+
+    @Test
+    void deleteExpiredWithLimitDeletesAtMostLimit() {
+        for (int i = 0; i < 5; i++) {
+            engine.put(new Random().nextLong(), randomTokenHash(), GROUPS,
+                    inSeconds(-300));
+        }
+        engine.put(new Random().nextLong(), randomTokenHash(), GROUPS, inSeconds(30));
+
+        assertThat(engine.countExpired(), is(equalTo(5L)));
+        assertThat(engine.deleteExpired(3), is(equalTo(3)));
+        assertThat(engine.countExpired(), is(equalTo(2L)));
+        assertThat(engine.deleteExpired(3), is(equalTo(2)));
+        assertThat(engine.countExpired(), is(equalTo(0L)));
+    }
+
+    @Test
+    void tokensAreRecoveredAfterRestart() {
+        var userId = new Random().nextLong();
+        var poppedTokenHash = randomTokenHash();
+        var keptTokenHash = randomTokenHash();
+        engine.put(userId, poppedTokenHash, GROUPS, inSeconds(30));
+        engine.put(userId, keptTokenHash, GROUPS, inSeconds(30));
+        engine.popGroups(userId, poppedTokenHash);
+
+        // shutdown flushes the journal
+        engine.shutdown();
+        engine = newEngine(0);
+        engine.initStore();
+
+        assertThat(engine.popGroups(userId, poppedTokenHash), is(equalTo(Optional.empty())));
+        assertThat(engine.popGroups(userId, keptTokenHash), is(equalTo(Optional.of(GROUPS))));
+    }
+
+    @Test
+    void deleteMatchingDeletesMatchingTokensWithIssueTimeAfterRestart() {
+        var userId = new Random().nextLong();
+        var matchingTokenHash = randomTokenHash();
+        var otherTokenHash = randomTokenHash();
+        engine.put(userId, matchingTokenHash, GROUPS, inSeconds(30));
+        engine.put(userId, otherTokenHash, Set.of("group-3"), inSeconds(30));
+        engine.shutdown();
+        engine = newEngine(0);
+        engine.initStore();
+
+        var chunks = new ArrayList<Integer>();
+        assertThat(engine.deleteMatching((id, groups, issuedAt) ->
+                        groups.contains("group-1") && issuedAt > 0, 1,
+                (checked, deleted) -> chunks.add(checked)), is(equalTo(1L)));
+        assertThat(chunks.stream().mapToInt(Integer::intValue).sum(), is(equalTo(2)));
+        assertThat(engine.popGroups(userId, matchingTokenHash), is(equalTo(Optional.empty())));
+        assertThat(engine.popGroups(userId, otherTokenHash),
+                is(equalTo(Optional.of(Set.of("group-3")))));
+    }
+
+    @Test
+    void putEvictsOldestTokensOfUserBeyondCap() {
+        engine.shutdown();
+        engine = newEngine(2);
+        engine.initStore();
+        var userId = new Random().nextLong();
+        var tokenHashes = new ArrayList<String>();
+        for (int i = 0; i < 4; i++) {
+            tokenHashes.add(randomTokenHash());
+            // the tokens are issued in the same second, so the later expiry decides the order
+            engine.put(userId, tokenHashes.get(i), GROUPS, inSeconds(30 + i));
+        }
+        var otherTokenHash = randomTokenHash();
+        engine.put(userId + 1, otherTokenHash, GROUPS, inSeconds(30));
+
+        // the evictions are journaled
+        engine.shutdown();
+        engine = newEngine(2);
+        engine.initStore();
+        for (int i = 0; i < 4; i++) {
+            assertThat(engine.popGroups(userId, tokenHashes.get(i)),
+                    is(equalTo(i < 2 ? Optional.empty() : Optional.of(GROUPS))));
+        }
+        assertThat(engine.popGroups(userId + 1, otherTokenHash), is(equalTo(Optional.of(GROUPS))));
+    }
+
+    @Test
+    void poppedTokenIsDeletedFromTableBeforePopReturns() throws SQLException {
+        var userId = new Random().nextLong();
+        var tokenHash = randomTokenHash();
+        engine.put(userId, tokenHash, GROUPS, inSeconds(30));
+        engine.shutdown();
+        engine = newEngine(0);
+        engine.initStore();
+        assertThat(countRows(userId), is(equalTo(1)));
+
+        assertThat(engine.popGroups(userId, tokenHash), is(equalTo(Optional.of(GROUPS))));
+        // a crash now must not bring the token back
+        assertThat(countRows(userId), is(equalTo(0)));
+    }
+
+    @Test
+    void outOfRangeExpiryIsRejectedWithoutChangingAnything() throws SQLException {
+        var userId = new Random().nextLong();
+        var tokenHash = randomTokenHash();
+        engine.put(userId, tokenHash, GROUPS, inSeconds(30));
+
+        assertThrows(IllegalArgumentException.class,
+                () -> engine.put(userId, randomTokenHash(), GROUPS, 100_000_000_000_000_000L));
+        assertThrows(IllegalArgumentException.class,
+                () -> engine.rotate(userId, tokenHash, randomTokenHash(), Long.MIN_VALUE));
+
+        // the journal is still written
+        assertThat(engine.popGroups(userId, tokenHash), is(equalTo(Optional.of(GROUPS))));
+        assertThat(countRows(userId), is(equalTo(0)));
+    }
+
+    @Test
+    void fullJournalRejectsRequestsAfterTimeout() {
+        var metricRegistry = MetricRegistries.get(MetricRegistry.Type.APPLICATION);
+        // not initialized, so nothing drains the journal
+        var stalledEngine = new MemoryTokenEngine(database.jdbcTokenEngine(), database.dataSource,
+                database.groupDictionary, 1, 100, 50,
+                new SessionCap(0, TokenStoreService.ENGINE_MEMORY, metricRegistry));
+        var userId = new Random().nextLong();
+        var tokenHash = randomTokenHash();
+        stalledEngine.put(userId, tokenHash, GROUPS, inSeconds(30));
+
+        assertThrows(RejectedExecutionException.class,
+                () -> stalledEngine.put(userId + 1, randomTokenHash(), GROUPS, inSeconds(30)));
+        assertThrows(RejectedExecutionException.class,
+                () -> stalledEngine.popGroups(userId, tokenHash));
+    }
+
+    private int countRows(long userId) throws SQLException {
+        try (Connection conn = database.dataSource.getConnection();
+             PreparedStatement statement = conn.prepareStatement(
+                     "SELECT COUNT(*) FROM tokens WHERE user_id = ?")) {
+            statement.setLong(1, userId);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                resultSet.next();
+                return resultSet.getInt(1);
+            }
+        }
+    }
+
+    private MemoryTokenEngine newEngine(int maxTokensPerUser) {
+        var metricRegistry = MetricRegistries.get(MetricRegistry.Type.APPLICATION);
+        return new MemoryTokenEngine(database.jdbcTokenEngine(), database.dataSource,
+                database.groupDictionary, 1000, 100, 5000,
+                new SessionCap(maxTokensPerUser, TokenStoreService.ENGINE_MEMORY, metricRegistry));
+    }
+}
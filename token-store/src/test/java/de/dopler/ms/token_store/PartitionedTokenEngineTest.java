@@ -0,0 +1,130 @@
+package de.dopler.ms.token_store;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.Set;
+
+import static de.dopler.ms.token_store.TestDatabase.GROUPS;
+import static de.dopler.ms.token_store.TestDatabase.inSeconds;
+import static de.dopler.ms.token_store.TestTokenHashes.randomTokenHash;
+import static de.dopler.ms.token_store.TokenStoreSqlStatements.SQL_SELECT_PARTITIONS;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+class PartitionedTokenEngineTest {
+
+    private static final long DAY_SECONDS = Duration.ofDays(1).toSeconds();
+
+    private TestDatabase database;
+    private PartitionedTokenEngine engine;
+
+    @BeforeEach
+    void setUp() {
+        database = new TestDatabase("partitioned-engine-test");
+        engine = newEngine();
+        engine.initStore();
+    }
+
+    @AfterEach
+    void tearDown() throws SQLException {
+        database.dropAll();
+    }
+
+    @Test
+    void popGroupsFindsTokensInAnyLivePartition() {
+        var userId = new Random().nextLong();
+        var tokenHash = randomTokenHash();
+        var otherTokenHash = randomTokenHash();
+        engine.put(userId, tokenHash, GROUPS, inSeconds(30));
+        engine.put(userId, otherTokenHash, GROUPS, inSeconds(10 * DAY_SECONDS));
+
+        assertThat(partitionTables(), hasSize(2));
+        assertThat(engine.popGroups(userId, tokenHash), is(equalTo(Optional.of(GROUPS))));
+        assertThat(engine.popGroups(userId, tokenHash), is(equalTo(Optional.empty())));
+        assertThat(engine.popGroups(userId, otherTokenHash), is(equalTo(Optional.of(GROUPS))));
+    }
+
+    @Test
+    void rotateMovesTokenToPartitionOfNewExpiration() {
+        var userId = new Random().nextLong();
+        var tokenHash = randomTokenHash();
+        var newTokenHash = randomTokenHash();
+        engine.put(userId, tokenHash, GROUPS, inSeconds(30));
+
+        assertThat(engine.rotate(userId, tokenHash, newTokenHash, inSeconds(10 * DAY_SECONDS)),
+                is(equalTo(Optional.of(GROUPS))));
+        assertThat(engine.rotate(userId, tokenHash, newTokenHash, inSeconds(10 * DAY_SECONDS)),
+                is(equalTo(Optional.empty())));
+        assertThat(partitionTables(), hasSize(2));
+        assertThat(engine.popGroups(userId, newTokenHash), is(equalTo(Optional.of(GROUPS))));
+    }
+
+    @Test
+    void deleteExpiredDropsPastPartitions() {
+        var userId = new Random().nextLong();
+        engine.put(userId, randomTokenHash(), GROUPS, inSeconds(-2 * DAY_SECONDS));
+        engine.put(userId, randomTokenHash(), GROUPS, inSeconds(-2 * DAY_SECONDS));
+        engine.put(userId, randomTokenHash(), GROUPS, inSeconds(10 * DAY_SECONDS));
+
+        assertThat(engine.countExpired(), is(equalTo(2L)));
+        assertThat(engine.deleteExpired(), is(equalTo(2)));
+        assertThat(engine.countExpired(), is(equalTo(0L)));
+        assertThat(partitionTables(), hasSize(1));
+        assertThat(engine.deleteForUser(userId), is(equalTo(1)));
+    }
+
+    @Test
+    void partitionsAreFoundAfterRestart() {
+        var userId = new Random().nextLong();
+        var tokenHash = randomTokenHash();
+        engine.put(userId, tokenHash, GROUPS, inSeconds(10 * DAY_SECONDS));
+
+        engine = newEngine();
+        engine.initStore();
+
+        assertThat(engine.popGroups(userId, tokenHash), is(equalTo(Optional.of(GROUPS))));
+    }
+
+    @Test
+    void deleteMatchingChecksAllLivePartitionsUntilStopped() {
+        var userId = new Random().nextLong();
+        engine.put(userId, randomTokenHash(), GROUPS, inSeconds(30));
+        engine.put(userId, randomTokenHash(), GROUPS, inSeconds(10 * DAY_SECONDS));
+        engine.put(userId, randomTokenHash(), Set.of("group-3"), inSeconds(10 * DAY_SECONDS));
+
+        assertThat(engine.deleteMatching((id, groups, issuedAt) -> groups.contains("group-1"),
+                1, (checked, deleted) -> deleted == 0), is(equalTo(1L)));
+        assertThat(engine.deleteMatching((id, groups, issuedAt) -> groups.contains("group-1"),
+                1, (checked, deleted) -> true), is(equalTo(1L)));
+        assertThat(engine.deleteForUsers(new long[]{userId, userId + 1}), is(equalTo(1)));
+    }
+
+    private PartitionedTokenEngine newEngine() {
+        return new PartitionedTokenEngine(database.dataSource, database.groupCommitWriter(),
+                database.groupDictionary, 1);
+    }
+
+    private List<String> partitionTables() {
+        var tables = new ArrayList<String>();
+        try (Connection conn = database.dataSource.getConnection();
+             Statement statement = conn.createStatement();
+             var resultSet = statement.executeQuery(SQL_SELECT_PARTITIONS)) {
+            while (resultSet.next()) {
+                tables.add(resultSet.getString(1));
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+        return tables;
+    }
+}
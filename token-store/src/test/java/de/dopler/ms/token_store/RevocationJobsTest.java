@@ -0,0 +1,181 @@
+package de.dopler.ms.token_store;
+
+import de.dopler.ms.token_store.domain.RevocationCriteria;
+import de.dopler.ms.token_store.domain.RevocationJobStatus;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import static de.dopler.ms.token_store.TestTokenHashes.randomTokenHash;
+import static de.dopler.ms.token_store.TestTokenStoreSqlStatements.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class RevocationJobsTest {
+
+    private static final Set<String> ADMIN_GROUPS = Set.of("admin", "user");
+    private static final Set<String> USER_GROUPS = Set.of("user");
+    private static final long AWAIT_TIMEOUT_MILLIS = 10_000;
+
+    private TestDatabase database;
+    private TokenStoreService tokenStoreService;
+    private RevocationJobs revocationJobs;
+    private final String[] tokenHashes = new String[20];
+
+    @BeforeEach
+    void setUp() {
+        database = new TestDatabase("revocation-jobs-test");
+        tokenStoreService = new TokenStoreService(TokenStoreService.ENGINE_JDBC,
+                database.jdbcTokenEngine(), null, null, null, new LatencyMonitor(),
+                new TokenFilter(true, 1000, 0.01),
+                new TokenShards(database.dataSource, 1, "", 1, null));
+        tokenStoreService.initStore();
+        revocationJobs = new RevocationJobs(tokenStoreService, 3, 100, 10);
+
+        // users 0-4 are admins
+        var expiresAt = Instant.now().plusSeconds(60).getEpochSecond();
+        for (int userId = 0; userId < tokenHashes.length; userId++) {
+            tokenHashes[userId] = randomTokenHash();
+            tokenStoreService.put(userId, tokenHashes[userId],
+                    userId < 5 ? ADMIN_GROUPS : USER_GROUPS, expiresAt);
+        }
+    }
+
+    @AfterEach
+    void tearDown() throws SQLException {
+        database.dropAll();
+    }
+
+    @Test
+    void revokesTokensMatchingAllCriteria() throws SQLException {
+        // users 0-2 and 10 logged in an hour ago, user 3 before issue times were recorded
+        var anHourAgo = Instant.now().minusSeconds(3600);
+        for (var userId : new long[]{0, 1, 2, 10}) {
+            setIssuedAt(userId, Timestamp.from(anHourAgo));
+        }
+        setIssuedAt(3, null);
+
+        var status = await(revocationJobs.submit(new RevocationCriteria("admin",
+                anHourAgo.plusSeconds(60).getEpochSecond())));
+
+        assertThat(status.state, is(equalTo("COMPLETED")));
+        assertThat(status.revoked, is(equalTo(4L)));
+        assertThat(status.processed, is(equalTo(20L)));
+        assertThat(status.total, is(nullValue()));
+        for (int userId = 0; userId < tokenHashes.length; userId++) {
+            assertThat(tokenStoreService.popGroups(userId, tokenHashes[userId]).isPresent(),
+                    is(equalTo(userId > 3)));
+        }
+    }
+
+    @Test
+    void revokesTokensOfListedUsers() throws IOException {
+        var status = await(revocationJobs.submitUserIds(new StringReader("1\n 2\n\n17\n42\n")));
+
+        assertThat(status.state, is(equalTo("COMPLETED")));
+        assertThat(status.revoked, is(equalTo(3L)));
+        assertThat(status.processed, is(equalTo(4L)));
+        assertThat(status.total, is(equalTo(4L)));
+        assertThat(tokenStoreService.popGroups(2, tokenHashes[2]), is(equalTo(Optional.empty())));
+        assertThat(tokenStoreService.popGroups(3, tokenHashes[3]),
+                is(equalTo(Optional.of(ADMIN_GROUPS))));
+    }
+
+    @Test
+    void rejectsInvalidRequests() {
+        assertThrows(IllegalArgumentException.class,
+                () -> revocationJobs.submit(new RevocationCriteria(null, null)));
+        assertThrows(IllegalArgumentException.class,
+                () -> revocationJobs.submitUserIds(new StringReader("1\nuser-2\n")));
+        assertThrows(IllegalArgumentException.class,
+                () -> revocationJobs.submitUserIds(new StringReader("\n")));
+        var tooManyUserIds = LongStream.range(0, 101)
+                .mapToObj(Long::toString)
+                .collect(Collectors.joining("\n"));
+        assertThrows(IllegalArgumentException.class,
+                () -> revocationJobs.submitUserIds(new StringReader(tooManyUserIds)));
+    }
+
+    @Test
+    void cancelledJobsStop() throws IOException {
+        // one user per chunk: the first job is still running while the second one is queued
+        revocationJobs = new RevocationJobs(tokenStoreService, 1, 100_000, 10);
+        var userIds = LongStream.range(1000, 100_000)
+                .mapToObj(Long::toString)
+                .collect(Collectors.joining("\n"));
+        var running = revocationJobs.submitUserIds(new StringReader(userIds));
+        var queued = revocationJobs.submitUserIds(new StringReader("1\n"));
+
+        assertThat(revocationJobs.cancel(queued.id).orElseThrow().state,
+                is(equalTo("CANCELLED")));
+        revocationJobs.cancel(running.id);
+
+        var cancelled = await(running);
+        assertThat(cancelled.state, is(equalTo("CANCELLED")));
+        assertThat(cancelled.processed, is(lessThan(cancelled.total)));
+        assertThat(await(queued).processed, is(equalTo(0L)));
+        assertThat(revocationJobs.statuses(), hasSize(2));
+        assertThat(revocationJobs.cancel(-1), is(equalTo(Optional.empty())));
+    }
+
+    @Test
+    void unexpectedlyFailingJobsAreFailed() throws IOException {
+        var failingEngine = new JdbcTokenEngine(database.dataSource,
+                database.groupCommitWriter(), database.groupDictionary, 1000) {
+            @Override
+            public int deleteForUsers(long[] userIds) {
+                throw new UnsupportedOperationException("deleteForUsers failed");
+            }
+        };
+        revocationJobs = new RevocationJobs(new TokenStoreService(TokenStoreService.ENGINE_JDBC,
+                failingEngine, null, null, null, new LatencyMonitor(),
+                new TokenFilter(true, 1000, 0.01),
+                new TokenShards(database.dataSource, 1, "", 1, null)),
+                3, 100, 10);
+
+        var status = await(revocationJobs.submitUserIds(new StringReader("1\n2\n")));
+
+        assertThat(status.state, is(equalTo("FAILED")));
+        assertThat(status.error, is(equalTo("deleteForUsers failed")));
+        assertThat(status.processed, is(equalTo(0L)));
+    }
+
+    private RevocationJobStatus await(RevocationJobStatus submitted) {
+        var deadline = System.currentTimeMillis() + AWAIT_TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            var status = revocationJobs.status(submitted.id).orElseThrow();
+            if (!status.state.equals("QUEUED") && !status.state.equals("RUNNING")) {
+                return status;
+            }
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        throw new AssertionError("revocation job " + submitted.id + " did not finish");
+    }
+
+    private void setIssuedAt(long userId, Timestamp issuedAt) throws SQLException {
+        try (Connection conn = database.dataSource.getConnection();
+             PreparedStatement statement = conn.prepareStatement(SQL_UPDATE_ISSUED_AT)) {
+            statement.setTimestamp(1, issuedAt);
+            statement.setLong(2, userId);
+            statement.executeUpdate();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package de.dopler.ms.token_store;
+
+import de.dopler.ms.group_dictionary.GroupDictionary;
+import io.smallrye.metrics.MetricRegistries;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.h2.jdbcx.JdbcDataSource;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.util.Set;
+
+/**
+ * The in-memory H2 database of a test with its {@link GroupDictionary}, and the groups and expiry
+ * times of the test's tokens.
+ */
+public final class TestDatabase {
+
+    static final Set<String> GROUPS = Set.of("group-1", "group-2");
+
+    final JdbcDataSource dataSource;
+    final GroupDictionary groupDictionary;
+
+    /**
+     * @param name the name of the database, which is kept until {@link #dropAll} is called.
+     */
+    TestDatabase(String name) {
+        dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1");
+        groupDictionary = new GroupDictionary(dataSource);
+    }
+
+    /**
+     * @return a writer to the database with the default configuration, which caps no sessions.
+     */
+    GroupCommitWriter groupCommitWriter() {
+        var metricRegistry = MetricRegistries.get(MetricRegistry.Type.APPLICATION);
+        return new GroupCommitWriter(dataSource, groupDictionary, 256, 0, 10000,
+                new SessionCap(0, TokenStoreService.ENGINE_JDBC, metricRegistry), metricRegistry);
+    }
+
+    /**
+     * @return an engine on the database with the default configuration, writing through a
+     * {@link #groupCommitWriter}.
+     */
+    JdbcTokenEngine jdbcTokenEngine() {
+        return new JdbcTokenEngine(dataSource, groupCommitWriter(), groupDictionary, 1000);
+    }
+
+    /**
+     * Drop the tables of the test, including the group dictionary's, so the next test starts on an
+     * empty database.
+     */
+    void dropAll() throws SQLException {
+        try (Connection conn = dataSource.getConnection();
+             Statement statement = conn.createStatement()) {
+            statement.execute("DROP ALL OBJECTS");
+        }
+    }
+
+    /**
+     * @return the epoch second {@code seconds} from now.
+     */
+    static long inSeconds(long seconds) {
+        return Instant.now().plusSeconds(seconds).getEpochSecond();
+    }
+}
@@ -0,0 +1,19 @@
+package de.dopler.ms.token_store;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+public final class TestTokenHashes {
+
+    private TestTokenHashes() {
+        // utility class
+    }
+
+    /**
+     * @return a random, hex encoded 32 byte hash like the ones generated by the jwt-server.
+     */
+    static String randomTokenHash() {
+        var bytes = new byte[TokenHashes.HASH_LENGTH];
+        ThreadLocalRandom.current().nextBytes(bytes);
+        return TokenHashes.toHex(bytes);
+    }
+}
@@ -10,15 +10,41 @@ public final class TestTokenStoreSqlStatements {
     static final String SQL_DROP_TABLE = "DROP TABLE IF EXISTS tokens";
 
     //language=H2
-    static final String SQL_DROP_INDEX_USER_ID_TOKEN_HASH = "DROP INDEX IF EXISTS idx_user_id";
-
-    //language=H2
-    static final String SQL_DROP_INDEX_EXPIRES_AT = "DROP INDEX IF EXISTS idx_expires_at";
+    static final String SQL_DROP_INDEX_EXPIRES_AT = "DROP INDEX IF EXISTS idx_tokens_expires_at";
 
     // @formatter:off
     //language=H2
     static final String SQL_SELECT_GROUPS_EXACTLY =
             "SELECT groups FROM tokens" +
                     "  WHERE user_id = ? AND token_hash = ? AND expires_at = ?";
+
+    //language=H2
+    static final String SQL_UPDATE_ISSUED_AT =
+            "UPDATE tokens" +
+                    "  SET issued_at = ?" +
+                    "  WHERE user_id = ?";
+
+    // the tokens table of schema v1
+    //language=H2
+    static final String SQL_CREATE_TABLE_V1 =
+            "CREATE TABLE IF NOT EXISTS tokens (" +
+                    "  id IDENTITY," +
+                    "  user_id BIGINT NOT NULL," +
+                    "  token_hash CHAR(64) NOT NULL," +
+                    "  groups ARRAY NOT NULL DEFAULT ()," +
+                    "  expires_at TIMESTAMP WITH TIME ZONE NOT NULL," +
+                    "  last_mod TIMESTAMP WITH TIME ZONE AS CURRENT_TIMESTAMP());";
+
+    //language=H2
+    static final String SQL_CREATE_INDEX_USER_ID_TOKEN_HASH_V1 =
+            "CREATE INDEX IF NOT EXISTS idx_user_id" +
+                    "  ON tokens" +
+                    "  (user_id, token_hash);";
+
+    //language=H2
+    static final String SQL_INSERT_V1 =
+            "INSERT INTO tokens" +
+                    "  (user_id, token_hash, groups, expires_at)" +
+                    "  VALUES (?, ?, ?, ?);";
     // @formatter:on
 }
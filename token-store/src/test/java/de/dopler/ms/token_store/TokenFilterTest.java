@@ -0,0 +1,90 @@
+package de.dopler.ms.token_store;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.SQLException;
+import java.util.Optional;
+
+import static de.dopler.ms.token_store.TestDatabase.GROUPS;
+import static de.dopler.ms.token_store.TestDatabase.inSeconds;
+import static de.dopler.ms.token_store.TestTokenHashes.randomTokenHash;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+class TokenFilterTest {
+
+    private static final int TOKENS = 1000;
+    private static final int UNKNOWN_LOOKUPS = 10_000;
+
+    private TestDatabase database;
+    private JdbcTokenEngine engine;
+    private TokenFilter tokenFilter;
+    private TokenStoreService tokenStoreService;
+
+    @BeforeEach
+    void setUp() {
+        database = new TestDatabase("token-filter-test");
+        engine = database.jdbcTokenEngine();
+        tokenFilter = new TokenFilter(true, TOKENS, 0.01);
+        tokenStoreService = new TokenStoreService(TokenStoreService.ENGINE_JDBC, engine, null,
+                null, null, new LatencyMonitor(), tokenFilter,
+                new TokenShards(database.dataSource, 1, "", 1, null));
+        engine.initStore();
+    }
+
+    @AfterEach
+    void tearDown() throws SQLException {
+        database.dropAll();
+    }
+
+    @Test
+    void storedTokensPassAndMostUnknownTokensAreRejected() {
+        var tokenHashes = new String[TOKENS];
+        for (int i = 0; i < TOKENS; i++) {
+            tokenHashes[i] = randomTokenHash();
+            engine.put(i, tokenHashes[i], GROUPS, inSeconds(30));
+        }
+        tokenFilter.build(engine);
+
+        for (int i = 0; i < TOKENS; i++) {
+            assertThat(tokenFilter.mightContain(i, tokenHashes[i]), is(equalTo(true)));
+        }
+        var passed = 0;
+        for (int i = 0; i < UNKNOWN_LOOKUPS; i++) {
+            if (tokenFilter.mightContain(i % TOKENS, randomTokenHash())) {
+                passed++;
+            }
+        }
+        // 1% expected
+        assertThat(passed, is(lessThan(UNKNOWN_LOOKUPS / 50)));
+        assertThat(tokenFilter.memoryBytes(), is(greaterThan(0L)));
+    }
+
+    @Test
+    void tokensPutAfterBuildArePoppedAndThenRejected() {
+        tokenFilter.build(engine);
+        var tokenHash = randomTokenHash();
+        var rotatedTokenHash = randomTokenHash();
+
+        tokenStoreService.put(1L, tokenHash, GROUPS, inSeconds(30));
+        assertThat(tokenStoreService.rotate(1L, tokenHash, rotatedTokenHash, inSeconds(30)),
+                is(equalTo(Optional.of(GROUPS))));
+        assertThat(tokenStoreService.popGroups(1L, rotatedTokenHash),
+                is(equalTo(Optional.of(GROUPS))));
+
+        // still in the filter until it is rebuilt
+        assertThat(tokenFilter.isStale(), is(equalTo(true)));
+        tokenFilter.build(engine);
+        assertThat(tokenFilter.mightContain(1L, rotatedTokenHash), is(equalTo(false)));
+        assertThat(tokenStoreService.popGroups(1L, rotatedTokenHash),
+                is(equalTo(Optional.empty())));
+    }
+
+    @Test
+    void everyTokenMightBeContainedBeforeFirstBuild() {
+        assertThat(tokenFilter.mightContain(1L, randomTokenHash()), is(equalTo(true)));
+        assertThat(tokenFilter.isStale(), is(equalTo(false)));
+    }
+}
@@ -0,0 +1,128 @@
+package de.dopler.ms.token_store;
+
+import de.dopler.ms.group_dictionary.GroupDictionary;
+import io.smallrye.metrics.MetricRegistries;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+import static de.dopler.ms.token_store.TestTokenHashes.randomTokenHash;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+class TokenShardsTest {
+
+    private static final Set<String> GROUPS = Set.of("group-1", "group-2");
+    private static final String URL_TEMPLATE = "jdbc:h2:mem:token-shards-test-%d;DB_CLOSE_DELAY=-1";
+    private static final int USERS = 60;
+
+    private JdbcDataSource dataSource;
+    private TokenShards tokenShards;
+
+    @BeforeEach
+    void setUp() {
+        dataSource = new JdbcDataSource();
+        dataSource.setURL(String.format(URL_TEMPLATE, 0));
+    }
+
+    @AfterEach
+    void tearDown() throws SQLException {
+        for (int shard = 0; shard < 3; shard++) {
+            var shardDataSource = new JdbcDataSource();
+            shardDataSource.setURL(String.format(URL_TEMPLATE, shard));
+            try (Connection conn = shardDataSource.getConnection();
+                 Statement statement = conn.createStatement()) {
+                statement.execute("DROP ALL OBJECTS");
+            }
+        }
+        tokenShards.close();
+    }
+
+    @Test
+    void tokensAreSpreadAcrossAllShards() throws SQLException {
+        var tokenStoreService = newService(3);
+        var tokens = putTokens(tokenStoreService);
+
+        for (int shard = 0; shard < 3; shard++) {
+            assertThat(countTokens(tokenShards.dataSource(shard)), is(greaterThan(0L)));
+        }
+        assertAllTokensPopped(tokenStoreService, tokens);
+    }
+
+    @Test
+    void tokensAreMovedWhenShardCountChanges() throws SQLException {
+        var tokens = putTokens(newService(1));
+        tokenShards.close();
+
+        // grow: the tokens of shard 0 are spread
+        var tokenStoreService = newService(3);
+        assertThat(countTokens(tokenShards.dataSource(0)), is(lessThan((long) USERS)));
+        var lastToken = tokens.entrySet().iterator().next();
+        assertThat(tokenStoreService.popGroups(lastToken.getKey(), lastToken.getValue()),
+                is(equalTo(Optional.of(GROUPS))));
+        tokens.remove(lastToken.getKey());
+        tokenShards.close();
+
+        // shrink: the tokens of shard 2 are moved to shards 0 and 1
+        tokenStoreService = newService(2);
+        assertThat(countTokens(tokenShards.dataSource(2)), is(equalTo(0L)));
+        assertAllTokensPopped(tokenStoreService, tokens);
+    }
+
+    private TokenStoreService newService(int shardCount) {
+        tokenShards = new TokenShards(dataSource, shardCount, URL_TEMPLATE, 4, null);
+        var groupDictionary = new GroupDictionary(dataSource);
+        var metricRegistry = MetricRegistries.get(MetricRegistry.Type.APPLICATION);
+        var groupCommitWriter = new GroupCommitWriter(dataSource, groupDictionary, 256, 0, 10000,
+                new SessionCap(0, TokenStoreService.ENGINE_JDBC, metricRegistry), metricRegistry);
+        var engine = new JdbcTokenEngine(dataSource, groupCommitWriter, groupDictionary, 1000);
+        var tokenStoreService = new TokenStoreService(TokenStoreService.ENGINE_JDBC, engine,
+                null, null, null, new LatencyMonitor(), new TokenFilter(false, 1000, 0.01),
+                tokenShards);
+        tokenStoreService.initStore();
+        return tokenStoreService;
+    }
+
+    private static Map<Long, String> putTokens(TokenStoreService tokenStoreService) {
+        var tokens = new HashMap<Long, String>();
+        var expiresAt = Instant.now().plusSeconds(60).getEpochSecond();
+        for (long userId = 0; userId < USERS; userId++) {
+            var tokenHash = randomTokenHash();
+            assertThat(tokenStoreService.put(userId, tokenHash, GROUPS, expiresAt),
+                    is(equalTo(true)));
+            tokens.put(userId, tokenHash);
+        }
+        return tokens;
+    }
+
+    private static void assertAllTokensPopped(TokenStoreService tokenStoreService,
+            Map<Long, String> tokens) {
+        for (var token : tokens.entrySet()) {
+            assertThat(tokenStoreService.popGroups(token.getKey(), token.getValue()),
+                    is(equalTo(Optional.of(GROUPS))));
+        }
+    }
+
+    private static long countTokens(DataSource dataSource) throws SQLException {
+        try (Connection conn = dataSource.getConnection();
+             Statement statement = conn.createStatement()) {
+            statement.execute(TokenStoreSqlStatements.SQL_CREATE_TABLE);
+            try (ResultSet resultSet = statement.executeQuery("SELECT COUNT(*) FROM tokens")) {
+                return resultSet.next() ? resultSet.getLong(1) : 0;
+            }
+        }
+    }
+}
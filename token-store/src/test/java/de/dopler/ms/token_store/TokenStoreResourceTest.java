@@ -1,6 +1,8 @@
 package de.dopler.ms.token_store;
 
+import de.dopler.ms.group_dictionary.GroupDictionary;
 import de.dopler.ms.token_store.domain.TokenData;
+import de.dopler.ms.token_store.domain.TokenRotation;
 import io.quarkus.test.common.QuarkusTestResource;
 import io.quarkus.test.h2.H2DatabaseTestResource;
 import io.quarkus.test.junit.QuarkusTest;
@@ -17,18 +19,18 @@ import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.Response.Status;
 import javax.ws.rs.core.UriBuilder;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
 import java.sql.*;
 import java.time.Instant;
 import java.util.Random;
 import java.util.Set;
-import java.util.UUID;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+import static de.dopler.ms.token_store.TestTokenHashes.randomTokenHash;
 import static de.dopler.ms.token_store.TestTokenStoreSqlStatements.*;
 import static de.dopler.ms.token_store.TokenStoreSqlStatements.*;
 import static io.restassured.RestAssured.given;
-import static java.sql.JDBCType.VARCHAR;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.*;
 
@@ -39,19 +41,32 @@ class TokenStoreResourceTest {
     private static final URI RESOURCE_BASE_URI = URI.create("/auth/tokens");
     private static final String POP_GROUPS_PATH = "/{userId}";
     private static final String POP_GROUPS_QUERY_PARAM = "token-hash";
+    private static final String ROTATE_PATH = "/{userId}/rotate";
     private static final String DELETE_EXPIRED_PATH = "/expired";
+    private static final String EXPORT_PATH = "/export";
+    private static final String IMPORT_PATH = "/import";
+    private static final String BATCH_PATH = "/batch";
+    private static final String APPLICATION_NDJSON = "application/x-ndjson";
+    private static final URI REVOCATIONS_URI = URI.create("/auth/tokens/revocations");
+    private static final String REVOCATION_JOB_PATH = "/{jobId}";
+    private static final long AWAIT_TIMEOUT_MILLIS = 10_000;
 
     @SuppressWarnings("CdiInjectionPointsInspection")
     @Inject
     DataSource dataSource;
 
+    @Inject
+    GroupDictionary groupDictionary;
+
+    @Inject
+    TokenFilter tokenFilter;
+
     @BeforeEach
     void setUp() throws SQLException {
         try (Connection conn = dataSource.getConnection();
              Statement statement = conn.createStatement()) {
             conn.setAutoCommit(false);
             statement.execute(SQL_CREATE_TABLE);
-            statement.execute(SQL_CREATE_INDEX_USER_ID_TOKEN_HASH);
             statement.execute(SQL_CREATE_INDEX_EXPIRES_AT);
             conn.commit();
         }
@@ -63,7 +78,6 @@ class TokenStoreResourceTest {
              Statement statement = conn.createStatement()) {
             conn.setAutoCommit(false);
             statement.execute(SQL_DROP_TABLE);
-            statement.execute(SQL_DROP_INDEX_USER_ID_TOKEN_HASH);
             statement.execute(SQL_DROP_INDEX_EXPIRES_AT);
             conn.commit();
         }
@@ -99,6 +113,16 @@ class TokenStoreResourceTest {
                 .statusCode(Status.BAD_REQUEST.getStatusCode());
     }
 
+    @Test
+    void storeTokenEndpointReturnsCode400OnInvalidTokenHash() {
+        var tokenData = tokenData();
+        var invalidTokenData = new TokenData(tokenData.userId, "not-a-sha-256-hash",
+                tokenData.groups, tokenData.expiresAt);
+
+        givenPostToEndpoint(invalidTokenData).then()
+                .statusCode(Status.BAD_REQUEST.getStatusCode());
+    }
+
     @Test
     void storeTokenEndpointHasPrivateCacheControlHeader() {
         // @formatter:off
@@ -110,6 +134,16 @@ class TokenStoreResourceTest {
         // @formatter:on
     }
 
+    @Test
+    void storeTokenIsMeasuredByJdbcMetrics() {
+        givenPostToEndpoint(tokenData());
+
+        var metrics = given().accept(ContentType.TEXT).get("/metrics/application").asString();
+        assertThat(metrics, containsString("application_jdbc_connection_acquisition_seconds"));
+        assertThat(metrics, containsString(
+                "application_jdbc_statement_execution_seconds_count{statement=\"SQL_INSERT\"}"));
+    }
+
     // #popGroups ==================================================================================
 
     @Test
@@ -186,6 +220,12 @@ class TokenStoreResourceTest {
                 .statusCode(Status.BAD_REQUEST.getStatusCode());
     }
 
+    @Test
+    void popGroupsEndpointReturnsCode400OnInvalidTokenHash() {
+        givenGetFromEndpoint(new Random().nextLong(), "not-a-sha-256-hash").then()
+                .statusCode(Status.BAD_REQUEST.getStatusCode());
+    }
+
     @Test
     void popGroupsEndpointHasPrivateCacheControlHeaderIfTokenDataFound() throws SQLException {
         var tokenData = tokenData();
@@ -205,7 +245,7 @@ class TokenStoreResourceTest {
     @Test
     void popGroupsEndpointHasPrivateCacheControlHeaderIfTokenDataNotFound() {
         var userId = new Random().nextLong();
-        var tokenHash = UUID.randomUUID().toString();
+        var tokenHash = randomTokenHash();
         // @formatter:off
         givenGetFromEndpoint(userId, tokenHash).then()
             .header(HttpHeaders.CACHE_CONTROL, is(notNullValue()))
@@ -215,6 +255,80 @@ class TokenStoreResourceTest {
         // @formatter:on
     }
 
+    // #rotate =====================================================================================
+
+    @Test
+    void rotateEndpointReturnsGroupsAndReplacesToken() throws SQLException {
+        var tokenData = tokenData();
+        boolean inserted = insertRowToDb(tokenData.userId, tokenData.tokenHash, tokenData.groups,
+                tokenData.expiresAt);
+        assertThat("SQL pre-condition failed", inserted, is(equalTo(true)));
+
+        var newTokenHash = randomTokenHash();
+        var newExpiresAt = Instant.now().plusSeconds(60).getEpochSecond();
+        var rotation = new TokenRotation(tokenData.tokenHash, newTokenHash, newExpiresAt);
+        // @formatter:off
+        var response = givenPostToRotateEndpoint(tokenData.userId, rotation).then()
+            .extract().response();
+        // @formatter:on
+        assertThat(response.statusCode(), is(equalTo(Status.OK.getStatusCode())));
+
+        var groups = response.body().as(new TypeRef<Set<String>>() {});
+        assertThat(groups.toArray(), arrayContainingInAnyOrder(tokenData.groups.toArray()));
+
+        // the old token is gone, the new one is stored with the same groups
+        boolean foundOld = findRowInDb(tokenData.userId, tokenData.tokenHash, tokenData.groups,
+                tokenData.expiresAt);
+        assertThat(foundOld, is(equalTo(false)));
+        boolean foundNew = findRowInDb(tokenData.userId, newTokenHash, tokenData.groups,
+                newExpiresAt);
+        assertThat(foundNew, is(equalTo(true)));
+
+        // ... and the old token cannot be rotated again
+        givenPostToRotateEndpoint(tokenData.userId, rotation).then()
+                .statusCode(Status.NOT_FOUND.getStatusCode());
+    }
+
+    @Test
+    void rotateEndpointReturns404IfTokenDataNotFound() throws SQLException {
+        var tokenData = tokenData();
+        var rotation = new TokenRotation(tokenData.tokenHash, randomTokenHash(),
+                tokenData.expiresAt);
+
+        givenPostToRotateEndpoint(tokenData.userId, rotation).then()
+                .statusCode(Status.NOT_FOUND.getStatusCode());
+
+        boolean foundNew = findRowInDb(tokenData.userId, rotation.newTokenHash, tokenData.groups,
+                rotation.expiresAt);
+        assertThat(foundNew, is(equalTo(false)));
+    }
+
+    @Test
+    void rotateEndpointReturns404IfTokenDataIsFoundButExpired() throws SQLException {
+        var expiredTokenData = expiredTokenData();
+        boolean inserted = insertRowToDb(expiredTokenData.userId, expiredTokenData.tokenHash,
+                expiredTokenData.groups, expiredTokenData.expiresAt);
+        assertThat("SQL pre-condition failed", inserted, is(equalTo(true)));
+
+        var rotation = new TokenRotation(expiredTokenData.tokenHash, randomTokenHash(),
+                Instant.now().plusSeconds(60).getEpochSecond());
+        givenPostToRotateEndpoint(expiredTokenData.userId, rotation).then()
+                .statusCode(Status.NOT_FOUND.getStatusCode());
+    }
+
+    @Test
+    void rotateEndpointReturnsCode400OnInvalidTokenRotation() {
+        var userId = new Random().nextLong();
+        var expiresAt = Instant.now().plusSeconds(60).getEpochSecond();
+        givenPostToRotateEndpoint(userId, new TokenRotation(null, "new-hash", expiresAt)).then()
+                .statusCode(Status.BAD_REQUEST.getStatusCode());
+        givenPostToRotateEndpoint(userId, new TokenRotation("old-hash", null, expiresAt)).then()
+                .statusCode(Status.BAD_REQUEST.getStatusCode());
+        givenPostToRotateEndpoint(userId, new TokenRotation(randomTokenHash(), "new-hash",
+                expiresAt)).then()
+                .statusCode(Status.BAD_REQUEST.getStatusCode());
+    }
+
     // #deleteExpired ==============================================================================
 
     @Test
@@ -266,6 +380,197 @@ class TokenStoreResourceTest {
         assertThat(foundExpired2, is(equalTo(false)));
     }
 
+    // #exportTokens, #importTokens ===============================================================
+
+    @Test
+    void importedTokensAreExportedAndCanBePopped() {
+        var tokenData1 = tokenData();
+        var tokenData2 = tokenData();
+        var lines = ndjsonLine(tokenData1) + ndjsonLine(tokenData2);
+
+        given().contentType(APPLICATION_NDJSON).body(lines.getBytes(StandardCharsets.UTF_8))
+                .when().post(UriBuilder.fromUri(RESOURCE_BASE_URI).path(IMPORT_PATH).build()).then()
+                .statusCode(Status.OK.getStatusCode())
+                .body(is(equalTo("2")));
+        given().when().get(UriBuilder.fromUri(RESOURCE_BASE_URI).path(EXPORT_PATH).build()).then()
+                .statusCode(Status.OK.getStatusCode())
+                .contentType(APPLICATION_NDJSON)
+                .body(containsString(tokenData1.tokenHash), containsString(tokenData2.tokenHash));
+
+        givenGetFromEndpoint(tokenData1.userId, tokenData1.tokenHash).then()
+                .statusCode(Status.OK.getStatusCode());
+        givenGetFromEndpoint(tokenData2.userId, tokenData2.tokenHash).then()
+                .statusCode(Status.OK.getStatusCode());
+    }
+
+    @Test
+    void importEndpointReturnsCode400OnInvalidLine() {
+        var lines = ndjsonLine(tokenData()) + "{\"userId\":1}\n";
+
+        given().contentType(APPLICATION_NDJSON).body(lines.getBytes(StandardCharsets.UTF_8))
+                .when().post(UriBuilder.fromUri(RESOURCE_BASE_URI).path(IMPORT_PATH).build()).then()
+                .statusCode(Status.BAD_REQUEST.getStatusCode())
+                .body(containsString("line 2"));
+    }
+
+    // #batch =====================================================================================
+
+    @Test
+    void batchEndpointExecutesMixedOperationsInOrder() {
+        var tokenData = tokenData();
+        var newTokenHash = randomTokenHash();
+        var operations = String.format("[%s,%s,%s,%s]",
+                String.format("{\"op\":\"store\",\"userId\":%d,\"tokenHash\":\"%s\"," +
+                                "\"groups\":[\"%s\"],\"expiresAt\":%d}", tokenData.userId,
+                        tokenData.tokenHash, String.join("\",\"", tokenData.groups),
+                        tokenData.expiresAt),
+                String.format("{\"op\":\"rotate\",\"userId\":%d,\"tokenHash\":\"%s\"," +
+                                "\"newTokenHash\":\"%s\",\"expiresAt\":%d}", tokenData.userId,
+                        tokenData.tokenHash, newTokenHash, tokenData.expiresAt),
+                String.format("{\"op\":\"pop\",\"userId\":%d,\"tokenHash\":\"%s\"}",
+                        tokenData.userId, tokenData.tokenHash),
+                String.format("{\"op\":\"delete\",\"userId\":%d}", tokenData.userId));
+
+        // @formatter:off
+        givenPostToBatchEndpoint(operations).then()
+            .statusCode(Status.OK.getStatusCode())
+            .body("status", contains(204, 200, 404, 200))
+            .body("[1].groups", containsInAnyOrder(tokenData.groups.toArray()))
+            .body("[3].deleted", is(equalTo(1)));
+        // @formatter:on
+    }
+
+    @Test
+    void batchEndpointFailsOnlyInvalidOperations() {
+        var tokenData = tokenData();
+        var operations = String.format("[{\"op\":\"pop\",\"userId\":1}," +
+                "{\"op\":\"unknown\"},{\"op\":\"store\",\"userId\":%d," +
+                "\"tokenHash\":\"%s\",\"groups\":[],\"expiresAt\":%d}]", tokenData.userId,
+                tokenData.tokenHash, tokenData.expiresAt);
+
+        // @formatter:off
+        givenPostToBatchEndpoint(operations).then()
+            .statusCode(Status.OK.getStatusCode())
+            .body("status", contains(400, 400, 204))
+            .body("[0].error", is(equalTo("missing token hash")));
+        // @formatter:on
+    }
+
+    @Test
+    void batchEndpointStoresAllValidTokensOfBatch() {
+        var first = tokenData();
+        var second = tokenData();
+        var operations = Stream.of(first, second)
+                .map(tokenData -> String.format("{\"op\":\"store\",\"userId\":%d," +
+                                "\"tokenHash\":\"%s\",\"groups\":[\"g\"],\"expiresAt\":%d}",
+                        tokenData.userId, tokenData.tokenHash, tokenData.expiresAt))
+                .collect(Collectors.joining(",", "[", ",{\"op\":\"store\",\"userId\":1," +
+                        "\"tokenHash\":\"invalid\",\"groups\":[],\"expiresAt\":1}]"));
+
+        // @formatter:off
+        givenPostToBatchEndpoint(operations).then()
+            .statusCode(Status.OK.getStatusCode())
+            .body("status", contains(204, 204, 400));
+        givenGetFromEndpoint(first.userId, first.tokenHash).then()
+            .statusCode(Status.OK.getStatusCode());
+        givenGetFromEndpoint(second.userId, second.tokenHash).then()
+            .statusCode(Status.OK.getStatusCode());
+        // @formatter:on
+    }
+
+    // #revocations ==============================================================================
+
+    @Test
+    void revocationEndpointAcceptsGroupAsOnlyCriterion() {
+        var revoked = tokenData();
+        var kept = new TokenData(revoked.userId, randomTokenHash(), Set.of("group-3"),
+                revoked.expiresAt);
+        givenPostToEndpoint(revoked);
+        givenPostToEndpoint(kept);
+
+        // @formatter:off
+        var jobId = givenPostToRevocationsEndpoint("{\"group\":\"group-1\"}").then()
+            .statusCode(Status.ACCEPTED.getStatusCode())
+            .extract().jsonPath().getLong("id");
+        awaitRevocationJob(jobId).then()
+            .body("state", is(equalTo("COMPLETED")))
+            .body("revoked", is(equalTo(1)));
+        // @formatter:on
+
+        givenGetFromEndpoint(revoked.userId, revoked.tokenHash).then()
+                .statusCode(Status.NOT_FOUND.getStatusCode());
+        givenGetFromEndpoint(kept.userId, kept.tokenHash).then()
+                .statusCode(Status.OK.getStatusCode());
+    }
+
+    @Test
+    void revocationEndpointAcceptsIssuedBeforeAsOnlyCriterion() {
+        var tokenData = tokenData();
+        givenPostToEndpoint(tokenData);
+        var issuedBefore = Instant.now().plusSeconds(60).getEpochSecond();
+
+        // @formatter:off
+        var jobId = givenPostToRevocationsEndpoint(
+                String.format("{\"issuedBefore\":%d}", issuedBefore)).then()
+            .statusCode(Status.ACCEPTED.getStatusCode())
+            .extract().jsonPath().getLong("id");
+        awaitRevocationJob(jobId).then()
+            .body("state", is(equalTo("COMPLETED")))
+            .body("revoked", is(equalTo(1)));
+        // @formatter:on
+
+        givenGetFromEndpoint(tokenData.userId, tokenData.tokenHash).then()
+                .statusCode(Status.NOT_FOUND.getStatusCode());
+    }
+
+    @Test
+    void revocationEndpointReturnsCode400WithoutCriteria() {
+        // @formatter:off
+        givenPostToRevocationsEndpoint("{}").then()
+            .statusCode(Status.BAD_REQUEST.getStatusCode())
+            .body(is(equalTo("no revocation criteria")));
+        // @formatter:on
+    }
+
+    private static Response givenPostToRevocationsEndpoint(String criteria) {
+        return given().contentType(ContentType.JSON).body(criteria)
+                .when().post(REVOCATIONS_URI);
+    }
+
+    /**
+     * @return the status response of the job once it isn't queued or running anymore.
+     */
+    private static Response awaitRevocationJob(long jobId) {
+        var uri = UriBuilder.fromUri(REVOCATIONS_URI).path(REVOCATION_JOB_PATH).build(jobId);
+        var deadline = System.currentTimeMillis() + AWAIT_TIMEOUT_MILLIS;
+        while (true) {
+            var response = given().accept(ContentType.JSON).when().get(uri);
+            var state = response.jsonPath().getString("state");
+            if (!"QUEUED".equals(state) && !"RUNNING".equals(state) ||
+                    System.currentTimeMillis() > deadline) {
+                return response;
+            }
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return response;
+            }
+        }
+    }
+
+    private static Response givenPostToBatchEndpoint(String operations) {
+        return given().contentType(ContentType.JSON).body(operations)
+                .when().post(UriBuilder.fromUri(RESOURCE_BASE_URI).path(BATCH_PATH).build());
+    }
+
+    private static String ndjsonLine(TokenData tokenData) {
+        return String.format("{\"userId\":%d,\"tokenHash\":\"%s\",\"groups\":[\"%s\"]," +
+                        "\"expiresAt\":%d,\"issuedAt\":null}%n", tokenData.userId,
+                tokenData.tokenHash, String.join("\",\"", tokenData.groups),
+                tokenData.expiresAt);
+    }
+
     private boolean insertRowToDb(long userId, String tokenHash, Set<String> groups,
             long expiresAt) throws SQLException {
         Instant expiresAtInstant = Instant.ofEpochSecond(expiresAt);
@@ -274,12 +579,13 @@ class TokenStoreResourceTest {
              PreparedStatement statement = conn.prepareStatement(SQL_INSERT)) {
             conn.setAutoCommit(true);
             statement.setLong(1, userId);
-            statement.setString(2, tokenHash);
-            Array groupsArray = conn.createArrayOf(VARCHAR.name(), groups.toArray());
-            statement.setArray(3, groupsArray);
+            statement.setBytes(2, TokenHashes.toBytes(tokenHash));
+            statement.setBytes(3, groupDictionary.encode(groups));
             statement.setTimestamp(4, Timestamp.from(expiresAtInstant));
             updatedRows = statement.executeUpdate();
         }
+        // the row bypasses the service, so add it to the filter as a put would
+        tokenFilter.add(userId, tokenHash, () -> null);
         return updatedRows == 1;
     }
 
@@ -292,12 +598,12 @@ class TokenStoreResourceTest {
              PreparedStatement statement = conn.prepareStatement(SQL_SELECT_GROUPS_EXACTLY)) {
             conn.setAutoCommit(true);
             statement.setLong(1, userId);
-            statement.setString(2, tokenHash);
+            statement.setBytes(2, TokenHashes.toBytes(tokenHash));
             statement.setTimestamp(3, Timestamp.from(expiresAtInstant));
             try (ResultSet resultSet = statement.executeQuery()) {
                 if (resultSet.next()) {
                     resultCount++;
-                    resultGroups = toStringSet(resultSet.getArray(1));
+                    resultGroups = groupDictionary.decode(resultSet.getBytes(1));
                 }
             }
         }
@@ -317,6 +623,11 @@ class TokenStoreResourceTest {
         return given().contentType(ContentType.TEXT).when().get(uri.build(userId));
     }
 
+    private static Response givenPostToRotateEndpoint(long userId, TokenRotation tokenRotation) {
+        var uri = UriBuilder.fromUri(RESOURCE_BASE_URI).path(ROTATE_PATH).build(userId);
+        return given().contentType(ContentType.JSON).body(tokenRotation).when().post(uri);
+    }
+
     private static Response givenDeleteFromEndpoint() {
         var uri = UriBuilder.fromUri(RESOURCE_BASE_URI).path(DELETE_EXPIRED_PATH).build();
         return given().contentType(ContentType.TEXT).when().delete(uri);
@@ -324,7 +635,7 @@ class TokenStoreResourceTest {
 
     private static TokenData tokenData() {
         var userId = new Random().nextLong();
-        var tokenHash = UUID.randomUUID().toString();
+        var tokenHash = randomTokenHash();
         var groups = Set.of("group-1", "group-2");
         long expiresAt = Instant.now().plusSeconds(30).getEpochSecond();
         return new TokenData(userId, tokenHash, groups, expiresAt);
@@ -339,7 +650,7 @@ class TokenStoreResourceTest {
 
     private static TokenData tokenDataWithoutGroups() {
         var userId = new Random().nextLong();
-        var tokenHash = UUID.randomUUID().toString();
+        var tokenHash = randomTokenHash();
         long expiresAt = Instant.now().plusSeconds(30).getEpochSecond();
         return new TokenData(userId, tokenHash, null, expiresAt);
     }
@@ -347,13 +658,8 @@ class TokenStoreResourceTest {
     private static TokenData expiredTokenData() {
         var userId = new Random().nextLong();
         var groups = Set.of("group-1", "group-2");
-        var tokenHash = UUID.randomUUID().toString();
+        var tokenHash = randomTokenHash();
         long expiresAt = Instant.now().minusSeconds(300).getEpochSecond();
         return new TokenData(userId, tokenHash, groups, expiresAt);
     }
-
-    private static Set<String> toStringSet(Array sqlArray) throws SQLException {
-        var objectArray = (Object[]) sqlArray.getArray();
-        return Stream.of(objectArray).map(String.class::cast).collect(Collectors.toSet());
-    }
 }
@@ -0,0 +1,105 @@
+package de.dopler.ms.token_store;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.*;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.Random;
+
+import static de.dopler.ms.token_store.TestDatabase.GROUPS;
+import static de.dopler.ms.token_store.TestDatabase.inSeconds;
+import static de.dopler.ms.token_store.TestTokenHashes.randomTokenHash;
+import static de.dopler.ms.token_store.TestTokenStoreSqlStatements.*;
+import static de.dopler.ms.token_store.TokenStoreSqlStatements.SQL_COUNT_V1_TABLE;
+import static java.sql.JDBCType.VARCHAR;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+class TokenTableMigrationTest {
+
+    private TestDatabase database;
+
+    @BeforeEach
+    void setUp() throws SQLException {
+        database = new TestDatabase("token-table-migration-test");
+        try (Connection conn = database.dataSource.getConnection();
+             Statement statement = conn.createStatement()) {
+            statement.execute(SQL_CREATE_TABLE_V1);
+            statement.execute(SQL_CREATE_INDEX_USER_ID_TOKEN_HASH_V1);
+        }
+    }
+
+    @AfterEach
+    void tearDown() throws SQLException {
+        database.dropAll();
+    }
+
+    @Test
+    void initStoreMovesValidTokensOfV1TableAndDropsIt() throws SQLException {
+        var userId = new Random().nextLong();
+        var tokenHash = randomTokenHash();
+        var otherTokenHash = randomTokenHash();
+        var expiredTokenHash = randomTokenHash();
+        insertV1Row(userId, tokenHash, inSeconds(30));
+        insertV1Row(userId, otherTokenHash, inSeconds(30));
+        insertV1Row(userId, expiredTokenHash, inSeconds(-300));
+
+        var engine = newEngine();
+        engine.initStore();
+        engine.awaitMigration();
+
+        assertThat(countV1Tables(), is(equalTo(0L)));
+        assertThat(engine.popGroups(userId, tokenHash), is(equalTo(Optional.of(GROUPS))));
+        assertThat(engine.popGroups(userId, expiredTokenHash), is(equalTo(Optional.empty())));
+        assertThat(engine.deleteForUser(userId), is(equalTo(1)));
+    }
+
+    @Test
+    void popGroupsFindsTokenInV1TableOnlyOnce() throws SQLException {
+        var userId = new Random().nextLong();
+        var tokenHash = randomTokenHash();
+        insertV1Row(userId, tokenHash, inSeconds(30));
+        try (Connection conn = database.dataSource.getConnection();
+             Statement statement = conn.createStatement()) {
+            statement.execute("ALTER TABLE tokens RENAME TO tokens_v1");
+        }
+        // not started: the v1 table stays until the test drops it
+        var migration = new TokenTableMigration(database.dataSource, database.groupDictionary, 10);
+
+        try (Connection conn = database.dataSource.getConnection()) {
+            var tokenHashBytes = TokenHashes.toBytes(tokenHash);
+            assertThat(migration.popGroups(conn, userId, tokenHashBytes),
+                    is(equalTo(Optional.of(GROUPS))));
+            assertThat(migration.popGroups(conn, userId, tokenHashBytes),
+                    is(equalTo(Optional.empty())));
+        }
+    }
+
+    private JdbcTokenEngine newEngine() {
+        return new JdbcTokenEngine(database.dataSource, database.groupCommitWriter(),
+                database.groupDictionary, 2);
+    }
+
+    private void insertV1Row(long userId, String tokenHash, long expiresAt) throws SQLException {
+        try (Connection conn = database.dataSource.getConnection();
+             PreparedStatement statement = conn.prepareStatement(SQL_INSERT_V1)) {
+            statement.setLong(1, userId);
+            statement.setString(2, tokenHash);
+            statement.setArray(3, conn.createArrayOf(VARCHAR.name(), GROUPS.toArray()));
+            statement.setTimestamp(4, Timestamp.from(Instant.ofEpochSecond(expiresAt)));
+            statement.executeUpdate();
+        }
+    }
+
+    private long countV1Tables() throws SQLException {
+        try (Connection conn = database.dataSource.getConnection();
+             Statement statement = conn.createStatement();
+             ResultSet resultSet = statement.executeQuery(SQL_COUNT_V1_TABLE)) {
+            resultSet.next();
+            return resultSet.getLong(1);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package de.dopler.ms.token_store;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.sql.SQLException;
+import java.util.Optional;
+import java.util.Set;
+
+import static de.dopler.ms.token_store.TestDatabase.GROUPS;
+import static de.dopler.ms.token_store.TestDatabase.inSeconds;
+import static de.dopler.ms.token_store.TestTokenHashes.randomTokenHash;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class TokenTransferTest {
+
+    private static final int TOKENS = 100;
+    // not a divisor of TOKENS, so the last batch is partial
+    private static final int BATCH_SIZE = 7;
+
+    private TestDatabase sourceDatabase;
+    private TestDatabase targetDatabase;
+    private JdbcTokenEngine sourceEngine;
+    private JdbcTokenEngine targetEngine;
+    private TokenTransfer sourceTransfer;
+    private TokenTransfer targetTransfer;
+
+    @BeforeEach
+    void setUp() {
+        sourceDatabase = new TestDatabase("token-transfer-source-test");
+        targetDatabase = new TestDatabase("token-transfer-target-test");
+        sourceEngine = sourceDatabase.jdbcTokenEngine();
+        targetEngine = targetDatabase.jdbcTokenEngine();
+        sourceTransfer = transfer(sourceEngine, sourceDatabase);
+        targetTransfer = transfer(targetEngine, targetDatabase);
+        sourceEngine.initStore();
+        targetEngine.initStore();
+    }
+
+    @AfterEach
+    void tearDown() throws SQLException {
+        sourceDatabase.dropAll();
+        targetDatabase.dropAll();
+    }
+
+    @Test
+    void exportedTokensAreImportedWithTheirIssueTime() throws IOException {
+        var tokenHashes = new String[TOKENS];
+        for (int i = 0; i < TOKENS; i++) {
+            tokenHashes[i] = randomTokenHash();
+            sourceEngine.put(i, tokenHashes[i], GROUPS, inSeconds(30));
+        }
+        sourceEngine.put(TOKENS, randomTokenHash(), GROUPS, inSeconds(-30));
+
+        var export = new StringWriter();
+        assertThat(sourceTransfer.exportTokens(export), is(equalTo((long) TOKENS)));
+        assertThat(export.toString().lines().count(), is(equalTo((long) TOKENS)));
+
+        assertThat(targetTransfer.importTokens(new StringReader(export.toString())),
+                is(equalTo((long) TOKENS)));
+        var reExport = new StringWriter();
+        targetTransfer.exportTokens(reExport);
+        assertThat(reExport.toString().lines().sorted().toArray(),
+                is(equalTo(export.toString().lines().sorted().toArray())));
+        for (int i = 0; i < TOKENS; i++) {
+            assertThat(targetEngine.popGroups(i, tokenHashes[i]),
+                    is(equalTo(Optional.of(GROUPS))));
+        }
+    }
+
+    @Test
+    void importSkipsExpiredTokensAndRejectsInvalidLines() throws IOException {
+        var tokenHash = randomTokenHash();
+        var line = "{\"userId\":%d,\"tokenHash\":\"%s\",\"groups\":[],\"expiresAt\":%d," +
+                "\"issuedAt\":null}%n";
+        var lines = String.format(line + "%n" + line, 1, tokenHash, inSeconds(30), 2,
+                randomTokenHash(), inSeconds(-30));
+        assertThat(targetTransfer.importTokens(new StringReader(lines)), is(equalTo(1L)));
+        assertThat(targetEngine.popGroups(1, tokenHash), is(equalTo(Optional.of(Set.of()))));
+
+        var invalid = lines + String.format(line, 3, "00", inSeconds(30));
+        var e = assertThrows(IllegalArgumentException.class,
+                () -> targetTransfer.importTokens(new StringReader(invalid)));
+        assertThat(e.getMessage(), containsString("line 4"));
+        e = assertThrows(IllegalArgumentException.class,
+                () -> targetTransfer.importTokens(new StringReader("not json")));
+        assertThat(e.getMessage(), containsString("line 1"));
+    }
+
+    @Test
+    void importRejectsOutOfRangeTimestampsWithTheirLine() throws IOException {
+        var line = "{\"userId\":1,\"tokenHash\":\"%s\",\"groups\":[],\"expiresAt\":%d," +
+                "\"issuedAt\":%d}%n";
+        var expiresAtOutOfRange = String.format(line, randomTokenHash(),
+                TokenTimestamps.MAX_EPOCH_SECOND + 1, inSeconds(0));
+        var issuedAtOutOfRange = String.format(line, randomTokenHash(), inSeconds(30),
+                TokenTimestamps.MIN_EPOCH_SECOND - 1);
+
+        var e = assertThrows(IllegalArgumentException.class,
+                () -> targetTransfer.importTokens(new StringReader(expiresAtOutOfRange)));
+        assertThat(e.getMessage(), containsString("line 1"));
+        e = assertThrows(IllegalArgumentException.class, () -> targetTransfer.importTokens(
+                new StringReader(String.format(line, randomTokenHash(), inSeconds(30),
+                        inSeconds(0)) + issuedAtOutOfRange)));
+        assertThat(e.getMessage(), containsString("line 2"));
+    }
+
+    private static TokenTransfer transfer(JdbcTokenEngine engine, TestDatabase database) {
+        var tokenStoreService = new TokenStoreService(TokenStoreService.ENGINE_JDBC, engine,
+                null, null, null, new LatencyMonitor(), new TokenFilter(true, TOKENS, 0.01),
+                new TokenShards(database.dataSource, 1, "", 1, null));
+        return new TokenTransfer(tokenStoreService, BATCH_SIZE);
+    }
+}